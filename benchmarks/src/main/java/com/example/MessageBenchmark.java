@@ -0,0 +1,93 @@
+package com.example;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of creating, encoding and decoding a {@link Message}, next to the {@link UUID#randomUUID()} handles
+ * and string bodies messages used before. Run with {@code -prof gc} to compare the bytes allocated per
+ * operation and with {@code -t} above one to see the contention on the shared random generator.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MessageBenchmark {
+    @Param({"100", "1024"})
+    public int messageSize;
+
+    private String body;
+    private byte[] bodyBytes;
+    private ByteBuffer record;
+
+    @Setup
+    public void setUp() {
+        char[] chars = new char[messageSize];
+        Arrays.fill(chars, 'x');
+        body = new String(chars);
+        bodyBytes = body.getBytes(StandardCharsets.UTF_8);
+        record = ByteBuffer.wrap(new Message(body).encode());
+    }
+
+    /**
+     * The receipt handle of a message before, a random UUID formatted as a string.
+     */
+    @Benchmark
+    public String randomHandle() {
+        return UUID.randomUUID().toString();
+    }
+
+    @Benchmark
+    public String handle() {
+        return new Message(body).getReceiptHandle();
+    }
+
+    /**
+     * Pushing to the file queue before: a random handle, parsed back by the codec, and a string body.
+     */
+    @Benchmark
+    public byte[] encodeRandomHandle() {
+        return RecordCodec.encode(RecordCodec.MESSAGE, UUID.randomUUID().toString(), -1L,
+                body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return new Message(body).encode();
+    }
+
+    @Benchmark
+    public byte[] encodeBytes() {
+        return new Message(bodyBytes).encode();
+    }
+
+    /**
+     * Pulling from the file queue with a string body, as before.
+     */
+    @Benchmark
+    public String decodeString() {
+        return RecordCodec.decode(record, 0).getMessageBody();
+    }
+
+    @Benchmark
+    public byte[] decodeBytes() {
+        return RecordCodec.decode(record, 0).getBody();
+    }
+}
@@ -0,0 +1,149 @@
+package com.example;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A queue of one backend, filled with visible and in-flight messages before the measurement.
+ * In-flight messages get a visibility timeout longer than any run, so they stay in flight.
+ * With more than one partition the backend is wrapped in a {@link PartitionedQueueService}, compare
+ * {@code -p partitions=1,4} at a growing thread count to see a hot queue scale.
+ * The compression applies to the file backend; the bodies are a repeated character, so compare it with
+ * {@code -p compression=NONE,DEFLATE} for the cost of the codec rather than for the disk bandwidth saved.
+ */
+@State(Scope.Benchmark)
+public class QueueBenchmarkState {
+    private static final String QUEUE_NAME = "Benchmark";
+    private static final long HOLD_MILLISECONDS = 3600 * 1000L;
+    private static final int FILL_BATCH = 100;
+    private static final long OFF_HEAP_BYTES = 1024L * 1024 * 1024;
+
+    @Param({"memory", "offheap", "tiered", "file", "sqs"})
+    String backend;
+
+    @Param({"100", "4096"})
+    int messageSize;
+
+    @Param({"0", "10000"})
+    int queueDepth;
+
+    @Param({"0", "10000"})
+    int inFlight;
+
+    @Param({"1"})
+    int partitions;
+
+    @Param({"NONE"})
+    String compression;
+
+    QueueService service;
+    // The backend holding the queue or its partitions
+    private QueueService backendService;
+    String queueUrl = QUEUE_NAME;
+    String messageBody;
+    // Messages pushed but not yet pulled during the measurement
+    final AtomicLong backlog = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setUp() throws InterruptedException, IOException {
+        switch (backend) {
+            case "memory":
+                InMemoryQueueService inMemoryQueueService = InMemoryQueueService.getInstance();
+                inMemoryQueueService.purgeQueue(QUEUE_NAME);
+                inMemoryQueueService.setDelayMilliSeconds(HOLD_MILLISECONDS);
+                service = inMemoryQueueService;
+                break;
+            case "offheap":
+                InMemoryQueueService offHeapQueueService = InMemoryQueueService.getInstance();
+                offHeapQueueService.setOffHeapStorage(OFF_HEAP_BYTES, OffHeapMemory.DEFAULT_SEGMENT_SIZE);
+                // A queue keeps the storage it was created with
+                queueUrl = QUEUE_NAME + "OffHeap";
+                offHeapQueueService.purgeQueue(queueUrl);
+                offHeapQueueService.setDelayMilliSeconds(HOLD_MILLISECONDS);
+                service = offHeapQueueService;
+                break;
+            case "tiered":
+                TieredQueueService tieredQueueService = new TieredQueueService(Files.createTempDirectory("benchmark"));
+                tieredQueueService.setDelayMilliSeconds(HOLD_MILLISECONDS);
+                service = tieredQueueService;
+                break;
+            case "file":
+                FileQueueService fileQueueService = FileQueueService.getInstance();
+                fileQueueService.purgeQueue(QUEUE_NAME);
+                fileQueueService.setDelayMilliSeconds(HOLD_MILLISECONDS);
+                fileQueueService.setCompression(QUEUE_NAME, Compression.valueOf(compression));
+                for (int i = 0; i < partitions && partitions > 1; i++) {
+                    fileQueueService.setCompression(PartitionedQueueService.partitionUrl(QUEUE_NAME, i),
+                            Compression.valueOf(compression));
+                }
+                service = fileQueueService;
+                break;
+            case "sqs":
+                service = new SqsQueueService(new StubSqsClient());
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown backend " + backend);
+        }
+        backendService = service;
+        if (partitions > 1) {
+            service = new PartitionedQueueService(backendService, partitions);
+            purgePartitions();
+        }
+        char[] body = new char[messageSize];
+        Arrays.fill(body, 'x');
+        messageBody = new String(body);
+        fill(inFlight);
+        for (int pulled = 0; pulled < inFlight; ) {
+            pulled += service.pull(queueUrl, Math.min(FILL_BATCH, inFlight - pulled)).size();
+        }
+        fill(queueDepth);
+        backlog.set(0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException, IOException {
+        purgePartitions();
+        if (backendService instanceof InMemoryQueueService) {
+            ((InMemoryQueueService) backendService).purgeQueue(queueUrl);
+            ((InMemoryQueueService) backendService).setDelayMilliSeconds(500L);
+            ((InMemoryQueueService) backendService).setOffHeapStorage(0, 0);
+        } else if (backendService instanceof TieredQueueService) {
+            ((TieredQueueService) backendService).close();
+        } else if (backendService instanceof FileQueueService) {
+            ((FileQueueService) backendService).purgeQueue(QUEUE_NAME);
+            ((FileQueueService) backendService).setDelayMilliSeconds(500L);
+        }
+    }
+
+    private void purgePartitions() throws InterruptedException, IOException {
+        for (int i = 0; i < partitions && partitions > 1; i++) {
+            String partitionUrl = PartitionedQueueService.partitionUrl(queueUrl, i);
+            if (backendService instanceof InMemoryQueueService) {
+                ((InMemoryQueueService) backendService).purgeQueue(partitionUrl);
+            } else if (backendService instanceof FileQueueService) {
+                ((FileQueueService) backendService).purgeQueue(partitionUrl);
+            }
+        }
+    }
+
+    private void fill(int messages) throws InterruptedException, IOException {
+        for (int pushed = 0; pushed < messages; pushed += FILL_BATCH) {
+            List<String> bodies = new ArrayList<>(FILL_BATCH);
+            for (int i = pushed; i < Math.min(pushed + FILL_BATCH, messages); i++) {
+                bodies.add(messageBody);
+            }
+            service.pushBatch(queueUrl, bodies);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.example;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput and latency of push, pull and delete on every {@link QueueService} implementation.
+ * The backend, message size, queue depth and number of in-flight messages are parameters of
+ * {@link QueueBenchmarkState}. Thread counts are set on the command line, {@code -t} for
+ * {@link #roundTrip} and {@code -tg producers,consumers} for the producer/consumer group. The contention on the
+ * file queue locks, pushes against pulls and deletes of the same queue, is measured with
+ * {@code -p backend=file -tg 8,8 producerConsumer}.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QueueServiceBenchmark {
+    // Producers idle once this many pushed messages wait to be pulled, bounding the queue on disk
+    private static final long MAX_BACKLOG = 100000;
+
+    /**
+     * Push, pull and delete one message, keeping the depth of the queue constant.
+     */
+    @Benchmark
+    public Message roundTrip(QueueBenchmarkState state) throws InterruptedException, IOException {
+        state.service.push(state.queueUrl, state.messageBody);
+        Message message = state.service.pull(state.queueUrl);
+        if (message != null) {
+            state.service.delete(state.queueUrl, message.getReceiptHandle());
+        }
+        return message;
+    }
+
+    @Benchmark
+    @Group("producerConsumer")
+    @GroupThreads(1)
+    public void produce(QueueBenchmarkState state) throws InterruptedException, IOException {
+        if (state.backlog.get() < MAX_BACKLOG) {
+            state.service.push(state.queueUrl, state.messageBody);
+            state.backlog.incrementAndGet();
+        } else {
+            Thread.yield();
+        }
+    }
+
+    @Benchmark
+    @Group("producerConsumer")
+    @GroupThreads(1)
+    public Message consume(QueueBenchmarkState state) throws InterruptedException, IOException {
+        Message message = state.service.pull(state.queueUrl);
+        if (message != null) {
+            state.backlog.decrementAndGet();
+            state.service.delete(state.queueUrl, message.getReceiptHandle());
+        }
+        return message;
+    }
+}
@@ -0,0 +1,80 @@
+package com.example;
+
+import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.DeleteMessageRequest;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageResult;
+
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+/**
+ * In-process stand-in for SQS, so the benchmarks measure the adapter and not the network.
+ * Received messages stay in flight until they are deleted, there is no visibility timeout.
+ */
+class StubSqsClient extends AmazonSQSClient {
+    private final ConcurrentHashMap<String, Deque<Message>> visible = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Message> inFlight = new ConcurrentHashMap<>();
+
+    @Override
+    public SendMessageResult sendMessage(SendMessageRequest request) {
+        getQueue(request.getQueueUrl()).add(newMessage(request.getMessageBody()));
+        return new SendMessageResult();
+    }
+
+    @Override
+    public SendMessageBatchResult sendMessageBatch(SendMessageBatchRequest request) {
+        Deque<Message> queue = getQueue(request.getQueueUrl());
+        for (SendMessageBatchRequestEntry entry : request.getEntries()) {
+            queue.add(newMessage(entry.getMessageBody()));
+        }
+        return new SendMessageBatchResult();
+    }
+
+    @Override
+    public ReceiveMessageResult receiveMessage(ReceiveMessageRequest request) {
+        Deque<Message> queue = getQueue(request.getQueueUrl());
+        int maxMessages = request.getMaxNumberOfMessages() == null ? 1 : request.getMaxNumberOfMessages();
+        List<Message> messages = new ArrayList<>(maxMessages);
+        Message message;
+        while (messages.size() < maxMessages && (message = queue.poll()) != null) {
+            inFlight.put(message.getReceiptHandle(), message);
+            messages.add(message);
+        }
+        return new ReceiveMessageResult().withMessages(messages);
+    }
+
+    @Override
+    public void deleteMessage(DeleteMessageRequest request) {
+        inFlight.remove(request.getReceiptHandle());
+    }
+
+    @Override
+    public DeleteMessageBatchResult deleteMessageBatch(DeleteMessageBatchRequest request) {
+        for (DeleteMessageBatchRequestEntry entry : request.getEntries()) {
+            inFlight.remove(entry.getReceiptHandle());
+        }
+        return new DeleteMessageBatchResult();
+    }
+
+    private Deque<Message> getQueue(String queueUrl) {
+        return visible.computeIfAbsent(queueUrl, k -> new ConcurrentLinkedDeque<>());
+    }
+
+    private static Message newMessage(String body) {
+        return new Message().withBody(body).withReceiptHandle(UUID.randomUUID().toString());
+    }
+}
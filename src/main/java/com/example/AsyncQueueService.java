@@ -0,0 +1,76 @@
+package com.example;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Non-blocking counterpart of {@link QueueService}.
+ * Every operation returns at once with a future that completes when the operation does, so an operation in
+ * flight does not hold a thread of the caller. A failed operation completes its future exceptionally with
+ * the exception the blocking call would have thrown.
+ * Use {@link ExecutorAsyncQueueService} to run a blocking service on its own executor, and
+ * {@link BlockingQueueService} to give blocking callers an asynchronous service.
+ */
+public interface AsyncQueueService {
+    /**
+     * Push several messages in one call.
+     * @param queueUrl queue url
+     * @param messageBodies bodies of the messages, in order
+     * @return future completing once the messages are pushed
+     */
+    CompletableFuture<Void> pushBatch(String queueUrl, List<String> messageBodies);
+
+    /**
+     * Pull up to a number of messages in one call.
+     * @param queueUrl queue url
+     * @param maxMessages maximum number of messages to pull
+     * @return future of the pulled messages, empty if the queue is empty
+     */
+    CompletableFuture<List<Message>> pull(String queueUrl, int maxMessages);
+
+    /**
+     * Pull up to a number of messages, waiting for messages to arrive while the queue is empty.
+     * @param queueUrl queue url
+     * @param maxMessages maximum number of messages to pull
+     * @param waitTime how long to wait for a message
+     * @param unit unit of the wait time
+     * @return future of the pulled messages, empty if none arrived in time
+     */
+    CompletableFuture<List<Message>> pull(String queueUrl, int maxMessages, long waitTime, TimeUnit unit);
+
+    default CompletableFuture<Message> pull(String queueUrl) {
+        return pull(queueUrl, 1).thenApply(messages -> messages.isEmpty() ? null : messages.get(0));
+    }
+
+    default CompletableFuture<Message> pull(String queueUrl, long waitTime, TimeUnit unit) {
+        return pull(queueUrl, 1, waitTime, unit).thenApply(messages -> messages.isEmpty() ? null : messages.get(0));
+    }
+
+    /**
+     * Delete several messages in one call.
+     * @param queueUrl queue url
+     * @param receiptHandles receipt handles of the messages
+     * @return future completing once the messages are deleted
+     */
+    CompletableFuture<Void> deleteBatch(String queueUrl, List<String> receiptHandles);
+
+    /**
+     * Change how long an in-flight message stays invisible, counting from now.
+     * @param queueUrl queue url
+     * @param receiptHandle receipt handle of the message
+     * @param timeout new visibility timeout
+     * @param unit unit of the timeout
+     * @return future of whether the message was still in flight
+     */
+    CompletableFuture<Boolean> changeVisibility(String queueUrl, String receiptHandle, long timeout, TimeUnit unit);
+
+    default CompletableFuture<Void> push(String queueUrl, String messageBody) {
+        return pushBatch(queueUrl, Collections.singletonList(messageBody));
+    }
+
+    default CompletableFuture<Void> delete(String queueUrl, String receiptHandle) {
+        return deleteBatch(queueUrl, Collections.singletonList(receiptHandle));
+    }
+}
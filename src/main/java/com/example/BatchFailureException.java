@@ -0,0 +1,37 @@
+package com.example;
+
+import com.amazonaws.AmazonClientException;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Thrown by a batch push or delete to SQS when some of its entries failed.
+ * A batch call sends every request of at most {@link SqsQueueService#MAX_BATCH_SIZE} entries even when an
+ * earlier one failed, so the other entries went through and a retry only sends {@link #getFailedEntries()}.
+ */
+public class BatchFailureException extends AmazonClientException {
+    private static final long serialVersionUID = 1L;
+
+    private final List<String> failedEntries;
+
+    /**
+     * Create the error of a partly failed batch.
+     * @param message detail message
+     * @param failedEntries the entries that failed
+     * @param cause failure of a whole request, may be null
+     */
+    public BatchFailureException(String message, List<String> failedEntries, Throwable cause) {
+        super(message, cause);
+        this.failedEntries = Collections.unmodifiableList(failedEntries);
+    }
+
+    /**
+     * The entries that failed: message bodies of a push, receipt handles of a delete.
+     * The entries of a request that failed as a whole are included, SQS may still have applied them.
+     * @return the failed entries
+     */
+    public List<String> getFailedEntries() {
+        return failedEntries;
+    }
+}
@@ -0,0 +1,113 @@
+package com.example;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Blocking {@link QueueService} view of an {@link AsyncQueueService}, so existing callers keep working.
+ * Each call waits for its future and rethrows the exception it failed with.
+ */
+public class BlockingQueueService implements QueueService {
+    private final AsyncQueueService asyncQueueService;
+    private final MetricsRegistry metrics = new MetricsRegistry("BlockingQueueService");
+
+    public BlockingQueueService(AsyncQueueService service) {
+        asyncQueueService = service;
+    }
+
+    @Override
+    public void push(String queueUrl, String messageBody) throws InterruptedException, IOException {
+        long start = System.nanoTime();
+        await(asyncQueueService.push(queueUrl, messageBody));
+        metrics.getQueueMetrics(queueUrl).pushed(1, start);
+    }
+
+    @Override
+    public Message pull(String queueUrl) throws InterruptedException, IOException {
+        long start = System.nanoTime();
+        Message message = await(asyncQueueService.pull(queueUrl));
+        metrics.getQueueMetrics(queueUrl).pulled(message == null ? 0 : 1, start);
+        return message;
+    }
+
+    @Override
+    public List<Message> pull(String queueUrl, int maxMessages) throws InterruptedException, IOException {
+        long start = System.nanoTime();
+        List<Message> messages = await(asyncQueueService.pull(queueUrl, maxMessages));
+        metrics.getQueueMetrics(queueUrl).pulled(messages.size(), start);
+        return messages;
+    }
+
+    @Override
+    public List<Message> pull(String queueUrl, int maxMessages, long waitTime, TimeUnit unit)
+            throws InterruptedException, IOException {
+        long start = System.nanoTime();
+        List<Message> messages = await(asyncQueueService.pull(queueUrl, maxMessages, waitTime, unit));
+        metrics.getQueueMetrics(queueUrl).pulled(messages.size(), start);
+        return messages;
+    }
+
+    @Override
+    public void delete(String queueUrl, String receiptHandle) throws InterruptedException, IOException {
+        long start = System.nanoTime();
+        await(asyncQueueService.delete(queueUrl, receiptHandle));
+        metrics.getQueueMetrics(queueUrl).deleted(1, start);
+    }
+
+    @Override
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public void pushBatch(String queueUrl, List<String> messageBodies) throws InterruptedException, IOException {
+        long start = System.nanoTime();
+        await(asyncQueueService.pushBatch(queueUrl, messageBodies));
+        metrics.getQueueMetrics(queueUrl).pushed(messageBodies.size(), start);
+    }
+
+    @Override
+    public void deleteBatch(String queueUrl, List<String> receiptHandles) throws InterruptedException, IOException {
+        long start = System.nanoTime();
+        await(asyncQueueService.deleteBatch(queueUrl, receiptHandles));
+        metrics.getQueueMetrics(queueUrl).deleted(receiptHandles.size(), start);
+    }
+
+    @Override
+    public boolean changeVisibility(String queueUrl, String receiptHandle, long timeout, TimeUnit unit)
+            throws InterruptedException, IOException {
+        return await(asyncQueueService.changeVisibility(queueUrl, receiptHandle, timeout, unit));
+    }
+
+    /**
+     * Wait for a future and unwrap its failure.
+     * @param future the future
+     * @param <T> type of the result
+     * @return the result
+     * @throws InterruptedException exception
+     * @throws IOException exception
+     */
+    private static <T> T await(CompletableFuture<T> future) throws InterruptedException, IOException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof InterruptedException) {
+                throw (InterruptedException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+}
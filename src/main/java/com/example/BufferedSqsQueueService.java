@@ -0,0 +1,437 @@
+package com.example;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A buffered adapter for Amazon SQS service.
+ * Pushes and deletes are queued per queue and sent as batch requests of up to
+ * {@link SqsQueueService#MAX_BATCH_SIZE} entries, once a batch is full or its first entry has waited for the
+ * maximum linger time. A push returns when its batch is sent. A delete returns at once, a failed delete is
+ * logged and the message is delivered again after its visibility timeout.
+ * Pulled messages are prefetched into a bounded local buffer sized from the observed consumption rate and
+ * the latency of a receive. Prefetched messages are received with a known visibility timeout, and a message
+ * whose timeout is about to run out is dropped from the buffer instead of being handed out, because SQS
+ * may already deliver it to another consumer. {@link #close()} returns the buffered messages to SQS.
+ */
+public class BufferedSqsQueueService implements QueueService, Closeable {
+    private static final Logger LOGGER = Logger.getLogger(BufferedSqsQueueService.class.getName());
+    static final long DEFAULT_MAX_LINGER_MILLIS = 20;
+    static final int DEFAULT_MAX_PREFETCH = 100;
+    static final int DEFAULT_VISIBILITY_TIMEOUT_SECONDS = 30;
+    // Buffered messages this close to their visibility timeout are no longer handed out
+    static final long VISIBILITY_MARGIN_MILLIS = 2000;
+
+    private final AmazonSQSClient amazonSQSClient;
+    private final ScheduledExecutorService executor;
+    private final ConcurrentHashMap<String, QueueBuffer> buffers = new ConcurrentHashMap<>();
+    private final MetricsRegistry metrics = new MetricsRegistry("BufferedSqsQueueService");
+    private volatile long maxLingerMillis = DEFAULT_MAX_LINGER_MILLIS;
+    private volatile int maxPrefetch = DEFAULT_MAX_PREFETCH;
+    private volatile int visibilityTimeoutSeconds = DEFAULT_VISIBILITY_TIMEOUT_SECONDS;
+
+    /**
+     * Create a service buffering the requests to an SQS client on two daemon threads.
+     * @param sqsClient the SQS client
+     */
+    public BufferedSqsQueueService(AmazonSQSClient sqsClient) {
+        amazonSQSClient = sqsClient;
+        executor = Executors.newScheduledThreadPool(2, runnable -> {
+            Thread thread = new Thread(runnable, "sqs-buffer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Set how long a batch of pushes or deletes waits for more entries.
+     * @param maxLinger maximum linger time
+     * @param unit unit of the linger time
+     */
+    public void setMaxLinger(long maxLinger, TimeUnit unit) {
+        maxLingerMillis = unit.toMillis(maxLinger);
+    }
+
+    /**
+     * Set the largest number of messages prefetched for one queue.
+     * @param messages maximum number of buffered messages, 0 turns prefetching off
+     */
+    public void setMaxPrefetch(int messages) {
+        maxPrefetch = messages;
+    }
+
+    /**
+     * Set the visibility timeout requested for received messages.
+     * @param seconds visibility timeout in seconds
+     */
+    public void setVisibilityTimeoutSeconds(int seconds) {
+        visibilityTimeoutSeconds = seconds;
+    }
+
+    @Override
+    public void push(String queueUrl, String messageBody) throws InterruptedException {
+        long start = System.nanoTime();
+        QueueBuffer buffer = getBuffer(queueUrl);
+        await(buffer.sends.add(messageBody));
+        buffer.metrics.pushed(1, start);
+    }
+
+    @Override
+    public Message pull(String queueUrl) {
+        List<Message> messages = pull(queueUrl, 1);
+        return messages.isEmpty() ? null : messages.get(0);
+    }
+
+    @Override
+    public List<Message> pull(String queueUrl, int maxMessages) {
+        final long start = System.nanoTime();
+        QueueBuffer buffer = getBuffer(queueUrl);
+        List<Message> messages = buffer.take(maxMessages);
+        if (messages.isEmpty()) {
+            // Nothing buffered, a receive costs the same for one message or a full batch, so keep the rest
+            int wanted = maxPrefetch > 0 ? Math.max(maxMessages, SqsQueueService.MAX_BATCH_SIZE) : maxMessages;
+            buffer.fetch(Math.max(wanted, buffer.target()));
+            messages = buffer.take(maxMessages);
+        }
+        buffer.recordPull(messages.size());
+        buffer.prefetch();
+        buffer.metrics.pulled(messages.size(), start);
+        return messages;
+    }
+
+    @Override
+    public void delete(String queueUrl, String receiptHandle) {
+        long start = System.nanoTime();
+        QueueBuffer buffer = getBuffer(queueUrl);
+        buffer.deletes.add(receiptHandle);
+        buffer.metrics.deleted(1, start);
+    }
+
+    @Override
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public void pushBatch(String queueUrl, List<String> messageBodies) throws InterruptedException {
+        long start = System.nanoTime();
+        QueueBuffer buffer = getBuffer(queueUrl);
+        List<CompletableFuture<Void>> pushes = new ArrayList<>(messageBodies.size());
+        for (String messageBody : messageBodies) {
+            pushes.add(buffer.sends.add(messageBody));
+        }
+        await(CompletableFuture.allOf(pushes.toArray(new CompletableFuture<?>[pushes.size()])));
+        buffer.metrics.pushed(messageBodies.size(), start);
+    }
+
+    @Override
+    public void deleteBatch(String queueUrl, List<String> receiptHandles) {
+        long start = System.nanoTime();
+        QueueBuffer buffer = getBuffer(queueUrl);
+        for (String receiptHandle : receiptHandles) {
+            buffer.deletes.add(receiptHandle);
+        }
+        buffer.metrics.deleted(receiptHandles.size(), start);
+    }
+
+    /**
+     * Change the visibility timeout of a message at once, outside the batches.
+     */
+    @Override
+    public boolean changeVisibility(String queueUrl, String receiptHandle, long timeout, TimeUnit unit) {
+        return SqsQueueService.changeVisibility(amazonSQSClient, queueUrl, receiptHandle, timeout, unit);
+    }
+
+    /**
+     * Send the queued pushes and deletes, return the prefetched messages to SQS and unregister the metrics.
+     * Waits for the prefetches in flight first, so none of their messages stays buffered.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(visibilityTimeoutSeconds, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (QueueBuffer buffer : buffers.values()) {
+            buffer.sends.flush();
+            buffer.deletes.flush();
+            buffer.release();
+        }
+        metrics.close();
+    }
+
+    private QueueBuffer getBuffer(String queueUrl) {
+        return buffers.computeIfAbsent(queueUrl, QueueBuffer::new);
+    }
+
+    private static void await(CompletableFuture<Void> future) throws InterruptedException {
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new AmazonClientException(e.getCause());
+        }
+    }
+
+    /**
+     * A message received into the buffer.
+     */
+    private static class Received {
+        final Message message;
+        final long invisibleUntil;
+
+        Received(Message message, long invisibleUntil) {
+            this.message = message;
+            this.invisibleUntil = invisibleUntil;
+        }
+    }
+
+    /**
+     * An entry waiting for its batch request.
+     */
+    private static class Pending {
+        final String value;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        Pending(String value) {
+            this.value = value;
+        }
+    }
+
+    /**
+     * Pushes or deletes of one queue waiting to be sent together.
+     */
+    private abstract class OutboundBatch {
+        private List<Pending> pending = new ArrayList<>();
+
+        /**
+         * Queue an entry. The thread that fills a batch sends it.
+         * @param value message body or receipt handle
+         * @return future completing once the entry is sent
+         */
+        CompletableFuture<Void> add(String value) {
+            Pending entry = new Pending(value);
+            List<Pending> full = null;
+            synchronized (this) {
+                pending.add(entry);
+                if (pending.size() >= SqsQueueService.MAX_BATCH_SIZE) {
+                    full = take();
+                } else if (pending.size() == 1) {
+                    executor.schedule(this::flush, maxLingerMillis, TimeUnit.MILLISECONDS);
+                }
+            }
+            if (full != null) {
+                send(full);
+            }
+            return entry.future;
+        }
+
+        void flush() {
+            List<Pending> batch;
+            synchronized (this) {
+                batch = take();
+            }
+            if (!batch.isEmpty()) {
+                send(batch);
+            }
+        }
+
+        private List<Pending> take() {
+            List<Pending> batch = pending;
+            pending = new ArrayList<>();
+            return batch;
+        }
+
+        private void send(List<Pending> batch) {
+            try {
+                List<BatchResultErrorEntry> failed = request(batch);
+                for (BatchResultErrorEntry failure : failed) {
+                    batch.get(Integer.parseInt(failure.getId())).future.completeExceptionally(
+                            new AmazonClientException(failure.getCode() + " " + failure.getMessage()));
+                }
+                for (Pending entry : batch) {
+                    entry.future.complete(null);
+                }
+            } catch (RuntimeException e) {
+                for (Pending entry : batch) {
+                    entry.future.completeExceptionally(e);
+                }
+            }
+        }
+
+        /**
+         * Send one batch request, the id of an entry is its index in the batch.
+         * @param batch entries of the request
+         * @return the failed entries
+         */
+        abstract List<BatchResultErrorEntry> request(List<Pending> batch);
+    }
+
+    /**
+     * The batches and the prefetch buffer of one queue.
+     */
+    private class QueueBuffer {
+        final String queueUrl;
+        final OutboundBatch sends;
+        final OutboundBatch deletes;
+        final QueueMetrics metrics;
+        private final LinkedBlockingDeque<Received> received = new LinkedBlockingDeque<>();
+        private final AtomicBoolean fetching = new AtomicBoolean();
+        // Moving averages of messages pulled per millisecond and of the milliseconds a receive takes
+        private double pullRate;
+        private double receiveMillis;
+        private long lastPullNanos = System.nanoTime();
+
+        QueueBuffer(String queueUrl) {
+            this.queueUrl = queueUrl;
+            metrics = BufferedSqsQueueService.this.metrics.getQueueMetrics(queueUrl,
+                created -> SqsQueueService.setDepthGauges(amazonSQSClient, queueUrl, created));
+            sends = new OutboundBatch() {
+                @Override
+                List<BatchResultErrorEntry> request(List<Pending> batch) {
+                    List<SendMessageBatchRequestEntry> entries = new ArrayList<>(batch.size());
+                    for (int i = 0; i < batch.size(); i++) {
+                        entries.add(new SendMessageBatchRequestEntry(Integer.toString(i), batch.get(i).value));
+                    }
+                    return amazonSQSClient.sendMessageBatch(queueUrl, entries).getFailed();
+                }
+            };
+            deletes = new OutboundBatch() {
+                @Override
+                List<BatchResultErrorEntry> request(List<Pending> batch) {
+                    List<DeleteMessageBatchRequestEntry> entries = new ArrayList<>(batch.size());
+                    for (int i = 0; i < batch.size(); i++) {
+                        entries.add(new DeleteMessageBatchRequestEntry(Integer.toString(i), batch.get(i).value));
+                    }
+                    List<BatchResultErrorEntry> failed = amazonSQSClient.deleteMessageBatch(queueUrl, entries)
+                            .getFailed();
+                    if (!failed.isEmpty()) {
+                        LOGGER.warning(String.format("Failed to delete %d of %d messages from %s",
+                                failed.size(), batch.size(), queueUrl));
+                    }
+                    return failed;
+                }
+            };
+        }
+
+        /**
+         * Take buffered messages that are still safely invisible, dropping the others.
+         * @param maxMessages maximum number of messages
+         * @return the messages
+         */
+        List<Message> take(int maxMessages) {
+            List<Message> messages = new ArrayList<>(Math.min(maxMessages, SqsQueueService.MAX_BATCH_SIZE));
+            long now = System.currentTimeMillis();
+            Received next;
+            while (messages.size() < maxMessages && (next = received.pollFirst()) != null) {
+                if (next.invisibleUntil - VISIBILITY_MARGIN_MILLIS > now) {
+                    messages.add(next.message);
+                }
+            }
+            return messages;
+        }
+
+        /**
+         * Number of messages to keep buffered: enough for the pulls expected during two receives, and no
+         * more than can be pulled before their visibility timeout runs out.
+         * @return target size of the buffer
+         */
+        synchronized int target() {
+            double expected = pullRate * receiveMillis * 2;
+            double consumable = pullRate * (visibilityTimeoutSeconds * 1000L - VISIBILITY_MARGIN_MILLIS);
+            return (int) Math.min(Math.min(expected, consumable), maxPrefetch);
+        }
+
+        synchronized void recordPull(int messages) {
+            long now = System.nanoTime();
+            double elapsedMillis = Math.max((now - lastPullNanos) / 1e6, 0.001);
+            lastPullNanos = now;
+            pullRate = 0.8 * pullRate + 0.2 * (messages / elapsedMillis);
+        }
+
+        private synchronized void recordReceive(long nanos) {
+            receiveMillis = receiveMillis == 0 ? nanos / 1e6 : 0.8 * receiveMillis + 0.2 * (nanos / 1e6);
+        }
+
+        /**
+         * Refill the buffer in the background when it is below its target.
+         */
+        void prefetch() {
+            if (received.size() < target() && fetching.compareAndSet(false, true)) {
+                executor.execute(() -> {
+                    try {
+                        int missing = target() - received.size();
+                        while (missing > 0 && fetch(missing) > 0) {
+                            missing = target() - received.size();
+                        }
+                    } catch (RuntimeException e) {
+                        LOGGER.log(Level.WARNING, "Failed to prefetch messages of " + queueUrl, e);
+                    } finally {
+                        fetching.set(false);
+                    }
+                });
+            }
+        }
+
+        /**
+         * Receive messages into the buffer with one request.
+         * @param maxMessages number of messages wanted
+         * @return number of received messages
+         */
+        int fetch(int maxMessages) {
+            ReceiveMessageRequest receiveMessageRequest = new ReceiveMessageRequest(queueUrl);
+            receiveMessageRequest.setMaxNumberOfMessages(
+                    Math.max(1, Math.min(maxMessages, SqsQueueService.MAX_BATCH_SIZE)));
+            receiveMessageRequest.setVisibilityTimeout(visibilityTimeoutSeconds);
+            long start = System.nanoTime();
+            long invisibleUntil = System.currentTimeMillis() + visibilityTimeoutSeconds * 1000L;
+            List<com.amazonaws.services.sqs.model.Message> messages =
+                    amazonSQSClient.receiveMessage(receiveMessageRequest).getMessages();
+            recordReceive(System.nanoTime() - start);
+            for (com.amazonaws.services.sqs.model.Message message : messages) {
+                received.addLast(new Received(new Message(message.getBody(), message.getReceiptHandle()),
+                        invisibleUntil));
+            }
+            return messages.size();
+        }
+
+        /**
+         * Make the buffered messages visible again right away.
+         */
+        void release() {
+            List<ChangeMessageVisibilityBatchRequestEntry> entries = new ArrayList<>();
+            Received next;
+            while ((next = received.pollFirst()) != null) {
+                entries.add(new ChangeMessageVisibilityBatchRequestEntry(Integer.toString(entries.size()),
+                        next.message.getReceiptHandle()).withVisibilityTimeout(0));
+                if (entries.size() == SqsQueueService.MAX_BATCH_SIZE || received.isEmpty()) {
+                    amazonSQSClient.changeMessageVisibilityBatch(queueUrl, entries);
+                    entries = new ArrayList<>();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,361 @@
+package com.example;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Shared table of the in-flight messages a queue of {@link FileQueueService} delivered from its log.
+ * The table is a memory-mapped file of fixed-size slots, each holding the revival time, the log location
+ * and the receipt handle of one message. Consumers in any process claim and free slots with
+ * compare-and-swap operations through {@link MappedLongs}, so pulls and deletes need no exclusive lock.
+ * A message goes to the slots near the hash of its handle, which keeps lookups by handle short; when they
+ * are all taken the caller falls back to the {@link InvisibleLog}. Timed out messages are collected under
+ * the exclusive consumer lock, which also keeps the slots from changing while a segment is removed.
+ * A second mapped file counts the in-flight messages of each segment, segments sharing a counter modulo
+ * {@link #SEGMENT_COUNTERS}, so checking a released segment does not scan the slots. A counter is raised before
+ * its slot is filled and lowered after the slot is freed, so a crash in between leaves it too high, which only
+ * costs a scan.
+ */
+class ClaimTable implements Closeable {
+    static final int DEFAULT_SLOTS = 16384;
+    // Largest number of records in a compressed block, their index fits the top bits of a location
+    static final int MAX_BLOCK_RECORDS = 127;
+    private static final int INDEX_SHIFT = 56;
+    private static final long SEGMENT_MASK = (1L << (INDEX_SHIFT - 32)) - 1;
+    // Slots probed from the hash of a handle
+    private static final int MAX_PROBES = 32;
+    // Layout of a slot
+    private static final int REVIVAL = 0;
+    private static final int LOCATION = 8;
+    private static final int HANDLE_HIGH = 16;
+    private static final int HANDLE_LOW = 24;
+    private static final int SLOT_SIZE = 32;
+    // Revival times of a free slot and of a slot being filled
+    private static final long FREE = 0L;
+    private static final long CLAIMING = -1L;
+    // Number of segment counters and suffix of their file
+    static final int SEGMENT_COUNTERS = 1024;
+    private static final String COUNTERS_SUFFIX = ".segments";
+
+    private final FileChannel channel;
+    private final MappedLongs slots;
+    private final int slotCount;
+    private final FileChannel countersChannel;
+    private final MappedLongs counters;
+
+    /**
+     * A timed out message, its slot stays taken until {@link #free(Expired)}.
+     */
+    static class Expired {
+        final int slot;
+        final long location;
+        final long revival;
+
+        Expired(int slot, long location, long revival) {
+            this.slot = slot;
+            this.location = location;
+            this.revival = revival;
+        }
+    }
+
+    /**
+     * Open the table of a queue, creating it when missing. An existing table keeps its number of slots.
+     * @param file the table file
+     * @param slotCount number of slots of a new table
+     * @throws IOException exception
+     */
+    ClaimTable(Path file, int slotCount) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        long size = channel.size();
+        this.slotCount = size > 0 ? (int) (size / SLOT_SIZE) : slotCount;
+        slots = new MappedLongs(channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) this.slotCount * SLOT_SIZE));
+        Path countersFile = file.resolveSibling(file.getFileName() + COUNTERS_SUFFIX);
+        boolean created = Files.notExists(countersFile);
+        countersChannel = FileChannel.open(countersFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        counters = new MappedLongs(countersChannel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_COUNTERS * 8L));
+        if (created) {
+            // A table written before the counters existed
+            countSegments();
+        }
+    }
+
+    /**
+     * Combine a segment and a position in it into a location.
+     * @param segment segment number
+     * @param position position in the segment
+     * @return the location
+     */
+    static long location(long segment, int position) {
+        return segment << 32 | position;
+    }
+
+    /**
+     * Combine a segment, the position of a compressed block in it and the index of a record in the block
+     * into a location.
+     * @param segment segment number
+     * @param position position of the block in the segment
+     * @param index index of the record in the block
+     * @return the location
+     */
+    static long location(long segment, int position, int index) {
+        return (long) index << INDEX_SHIFT | segment << 32 | position;
+    }
+
+    static long segment(long location) {
+        return location >>> 32 & SEGMENT_MASK;
+    }
+
+    static int index(long location) {
+        return (int) (location >>> INDEX_SHIFT);
+    }
+
+    static int position(long location) {
+        return (int) location;
+    }
+
+    /**
+     * Take a free slot for a message before it is claimed from the log.
+     * @param handleHigh high half of the receipt handle
+     * @param handleLow low half of the receipt handle
+     * @return the slot, or -1 if the slots of the handle are all taken
+     */
+    int reserve(long handleHigh, long handleLow) {
+        int first = home(handleHigh, handleLow);
+        for (int i = 0; i < MAX_PROBES; i++) {
+            int offset = offset(first + i);
+            if (slots.get(offset + REVIVAL) == FREE && slots.compareAndSet(offset + REVIVAL, FREE, CLAIMING)) {
+                slots.set(offset + HANDLE_HIGH, handleHigh);
+                slots.set(offset + HANDLE_LOW, handleLow);
+                return (first + i) % slotCount;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Complete a reserved slot once its message is claimed, making it visible to deletes.
+     * @param slot the slot
+     * @param location location of the message in the log
+     * @param revival revival time, positive
+     */
+    void fill(int slot, long location, long revival) {
+        counters.addAndGet(counter(segment(location)), 1);
+        int offset = offset(slot);
+        slots.set(offset + LOCATION, location);
+        slots.set(offset + REVIVAL, revival);
+    }
+
+    /**
+     * Give back a reserved slot whose message was claimed by another consumer.
+     * @param slot the slot
+     */
+    void cancel(int slot) {
+        slots.set(offset(slot) + REVIVAL, FREE);
+    }
+
+    /**
+     * Free the slot of an in-flight message.
+     * @param handleHigh high half of the receipt handle
+     * @param handleLow low half of the receipt handle
+     * @return location of the message, or -1 if no slot holds it
+     */
+    long remove(long handleHigh, long handleLow) {
+        int first = home(handleHigh, handleLow);
+        for (int i = 0; i < MAX_PROBES; i++) {
+            int offset = offset(first + i);
+            long revival = slots.get(offset + REVIVAL);
+            if (revival > 0 && slots.get(offset + HANDLE_HIGH) == handleHigh
+                    && slots.get(offset + HANDLE_LOW) == handleLow) {
+                long location = slots.get(offset + LOCATION);
+                if (slots.compareAndSet(offset + REVIVAL, revival, FREE)) {
+                    counters.addAndGet(counter(segment(location)), -1);
+                    return location;
+                }
+                // Deleted by another consumer at the same time
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Move the revival time of an in-flight message.
+     * @param handleHigh high half of the receipt handle
+     * @param handleLow low half of the receipt handle
+     * @param revival new revival time, positive
+     * @return true if a slot held the message
+     */
+    boolean extend(long handleHigh, long handleLow, long revival) {
+        int first = home(handleHigh, handleLow);
+        for (int i = 0; i < MAX_PROBES; i++) {
+            int offset = offset(first + i);
+            long current = slots.get(offset + REVIVAL);
+            if (current > 0 && slots.get(offset + HANDLE_HIGH) == handleHigh
+                    && slots.get(offset + HANDLE_LOW) == handleLow) {
+                // Fails when the message is deleted at the same time
+                return slots.compareAndSet(offset + REVIVAL, current, revival);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Find the messages whose revival time has passed. Needs the exclusive consumer lock.
+     * @param now current time
+     * @return the timed out messages in revival order
+     */
+    List<Expired> expired(long now) {
+        List<Expired> expired = new ArrayList<>();
+        for (int slot = 0; slot < slotCount; slot++) {
+            int offset = offset(slot);
+            long revival = slots.get(offset + REVIVAL);
+            if (revival > 0 && revival <= now) {
+                expired.add(new Expired(slot, slots.get(offset + LOCATION), revival));
+            }
+        }
+        expired.sort((e1, e2) -> Long.compare(e1.revival, e2.revival));
+        return expired;
+    }
+
+    /**
+     * Check without a lock whether a message has timed out.
+     * @param now current time
+     * @return true if a slot holds a message whose revival time has passed
+     */
+    boolean hasExpired(long now) {
+        for (int slot = 0; slot < slotCount; slot++) {
+            long revival = slots.get(offset(slot) + REVIVAL);
+            if (revival > 0 && revival <= now) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The earliest revival time of the in-flight messages.
+     * @return revival time, or {@link Long#MAX_VALUE} if no message is in flight
+     */
+    long nextRevival() {
+        long next = Long.MAX_VALUE;
+        for (int slot = 0; slot < slotCount; slot++) {
+            long revival = slots.get(offset(slot) + REVIVAL);
+            if (revival > 0 && revival < next) {
+                next = revival;
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Deliver a timed out message again from its slot, unless another consumer did first.
+     * @param expired the message
+     * @param revival new revival time, positive
+     * @return true if the message is now claimed by the caller
+     */
+    boolean renew(Expired expired, long revival) {
+        return slots.compareAndSet(offset(expired.slot) + REVIVAL, expired.revival, revival);
+    }
+
+    /**
+     * Free the slot of a timed out message once it is revived.
+     * @param expired the message
+     */
+    void free(Expired expired) {
+        slots.set(offset(expired.slot) + REVIVAL, FREE);
+        counters.addAndGet(counter(segment(expired.location)), -1);
+    }
+
+    /**
+     * Whether an in-flight message was read from a segment. Needs the exclusive consumer lock.
+     * The slots are only scanned when the counter of the segment is not zero.
+     * @param segment segment number
+     * @return true if the segment has to be kept
+     */
+    boolean references(long segment) {
+        if (counters.get(counter(segment)) <= 0) {
+            return false;
+        }
+        for (int slot = 0; slot < slotCount; slot++) {
+            int offset = offset(slot);
+            if (slots.get(offset + REVIVAL) != FREE && segment(slots.get(offset + LOCATION)) == segment) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Count the in-flight messages, freeing the slots a crashed process left half filled.
+     * Needs the exclusive consumer lock of a queue no other process has open.
+     * @return number of in-flight messages in the table
+     */
+    int recount() {
+        for (int slot = 0; slot < slotCount; slot++) {
+            if (slots.get(offset(slot) + REVIVAL) == CLAIMING) {
+                cancel(slot);
+            }
+        }
+        return countSegments();
+    }
+
+    /**
+     * Free every slot. Needs the exclusive consumer lock.
+     */
+    void clear() {
+        for (int slot = 0; slot < slotCount; slot++) {
+            slots.set(offset(slot) + REVIVAL, FREE);
+        }
+        for (int i = 0; i < SEGMENT_COUNTERS; i++) {
+            counters.set(i * 8, 0L);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        countersChannel.close();
+    }
+
+    /**
+     * Rebuild the segment counters from the slots. Needs the exclusive consumer lock.
+     * @return number of in-flight messages in the table
+     */
+    private int countSegments() {
+        long[] counts = new long[SEGMENT_COUNTERS];
+        int size = 0;
+        for (int slot = 0; slot < slotCount; slot++) {
+            int offset = offset(slot);
+            long revival = slots.get(offset + REVIVAL);
+            if (revival > 0) {
+                counts[counter(segment(slots.get(offset + LOCATION))) / 8]++;
+                size++;
+            }
+        }
+        for (int i = 0; i < SEGMENT_COUNTERS; i++) {
+            counters.set(i * 8, counts[i]);
+        }
+        return size;
+    }
+
+    private static int counter(long segment) {
+        return (int) (segment % SEGMENT_COUNTERS) * 8;
+    }
+
+    private int home(long handleHigh, long handleLow) {
+        long hash = (handleHigh ^ handleLow) * 0x9E3779B97F4A7C15L;
+        return (int) ((hash >>> 32) % slotCount);
+    }
+
+    private int offset(int slot) {
+        return (slot % slotCount) * SLOT_SIZE;
+    }
+}
@@ -0,0 +1,108 @@
+package com.example;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Codec of the blocks of records a {@link SegmentedLog} compresses together.
+ * The codec of a segment is recorded in its header when the segment is created, so every segment is read
+ * with the codec it was written with, whatever the queue uses today.
+ */
+public enum Compression {
+    /**
+     * Records are stored as they are.
+     */
+    NONE((byte) 0),
+    /**
+     * Blocks of records are compressed with {@link Deflater} at its fastest level.
+     */
+    DEFLATE((byte) 1);
+
+    // Native codec state is costly to set up, every thread keeps one of each
+    private static final ThreadLocal<Deflater> DEFLATERS =
+            ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(Inflater::new);
+
+    // Stored in the segment header, never reuse an id
+    final byte id;
+
+    Compression(byte id) {
+        this.id = id;
+    }
+
+    /**
+     * Find the codec of an id read from a segment header.
+     * @param id codec id
+     * @return the codec, or null if the id is unknown
+     */
+    static Compression of(byte id) {
+        for (Compression compression : values()) {
+            if (compression.id == id) {
+                return compression;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Compress bytes.
+     * @param data the bytes
+     * @param length number of bytes to compress from the start
+     * @return the compressed bytes, or null if they would not be smaller
+     */
+    byte[] compress(byte[] data, int length) {
+        if (this == NONE) {
+            return null;
+        }
+        Deflater deflater = DEFLATERS.get();
+        deflater.reset();
+        deflater.setInput(data, 0, length);
+        deflater.finish();
+        byte[] compressed = new byte[length];
+        int size = 0;
+        while (!deflater.finished() && size < compressed.length) {
+            size += deflater.deflate(compressed, size, compressed.length - size);
+        }
+        if (!deflater.finished() || size >= length) {
+            return null;
+        }
+        return Arrays.copyOf(compressed, size);
+    }
+
+    /**
+     * Decompress bytes compressed by {@link #compress(byte[], int)}.
+     * @param data the compressed bytes
+     * @param length number of bytes the data decompresses to
+     * @return the decompressed bytes
+     * @throws IOException if the data is corrupt
+     */
+    byte[] decompress(byte[] data, int length) throws IOException {
+        if (this == NONE) {
+            throw new IOException("Compressed block in an uncompressed segment");
+        }
+        Inflater inflater = INFLATERS.get();
+        inflater.reset();
+        inflater.setInput(data);
+        byte[] decompressed = new byte[length];
+        int size = 0;
+        try {
+            while (size < length && !inflater.finished()) {
+                int inflated = inflater.inflate(decompressed, size, length - size);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                size += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed block", e);
+        }
+        if (size != length) {
+            throw new IOException(String.format("Compressed block decompressed to %d bytes, expected %d",
+                    size, length));
+        }
+        return decompressed;
+    }
+}
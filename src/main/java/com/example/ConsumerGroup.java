@@ -0,0 +1,109 @@
+package com.example;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A named consumer group of a retained queue of {@link FileQueueService}.
+ * The group reads the log of the queue with a {@link SegmentedLog.Cursor} of its own and tracks the messages
+ * it has in flight in a {@link ClaimTable} of its own, both in the directory of the group, so every group
+ * sees every message while the log is written once. A timed out message is delivered again straight from its
+ * slot, the retained log still holds it.
+ */
+class ConsumerGroup implements Closeable {
+    private static final String CURSOR_FILE_NAME = "cursor";
+    private static final String CLAIMS_FILE_NAME = "claims";
+    // Layout of the cursor file
+    private static final int LOCATION = 0;
+    private static final int READ_COUNT = 8;
+    private static final int IN_FLIGHT_COUNT = 16;
+    private static final int POSITIONED = 24;
+    private static final int CURSOR_SIZE = 32;
+    // Pause between two scans of the claim table for timed out messages
+    static final long REVIVAL_SCAN_MILLIS = 100L;
+
+    final SegmentedLog.Cursor cursor;
+    final ClaimTable claims;
+    private final FileChannel channel;
+    private final MappedLongs longs;
+    private volatile long nextRevivalScan;
+
+    /**
+     * Open the files of a group, creating them when missing.
+     * @param dir directory of the group
+     * @throws IOException exception
+     */
+    ConsumerGroup(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        channel = FileChannel.open(dir.resolve(CURSOR_FILE_NAME), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        longs = new MappedLongs(channel.map(FileChannel.MapMode.READ_WRITE, 0, CURSOR_SIZE));
+        cursor = new SegmentedLog.Cursor(longs, LOCATION, READ_COUNT);
+        claims = new ClaimTable(dir.resolve(CLAIMS_FILE_NAME), ClaimTable.DEFAULT_SLOTS);
+    }
+
+    /**
+     * Whether the cursor of a new group was moved to its first record.
+     * @return false until {@link #setPositioned()}
+     */
+    boolean isPositioned() {
+        return longs.get(POSITIONED) != 0;
+    }
+
+    void setPositioned() {
+        longs.set(POSITIONED, 1L);
+    }
+
+    /**
+     * The number of in-flight messages of the group, read without a lock.
+     * @return number of taken slots in 'claims'
+     */
+    int inFlightCount() {
+        return (int) longs.get(IN_FLIGHT_COUNT);
+    }
+
+    void addInFlight(long delta) {
+        if (delta != 0) {
+            longs.addAndGet(IN_FLIGHT_COUNT, delta);
+        }
+    }
+
+    /**
+     * Drop every in-flight message. Needs the exclusive lock of the group.
+     */
+    void clearInFlight() {
+        claims.clear();
+        longs.set(IN_FLIGHT_COUNT, 0L);
+    }
+
+    /**
+     * Whether the claim table is due for a scan of its timed out messages, which are looked for at most
+     * every {@link #REVIVAL_SCAN_MILLIS} by the pulls of this process.
+     * @param now current time
+     * @return true if the caller should scan
+     */
+    boolean revivalDue(long now) {
+        if (now < nextRevivalScan) {
+            return false;
+        }
+        nextRevivalScan = now + REVIVAL_SCAN_MILLIS;
+        return true;
+    }
+
+    /**
+     * Let the next pull scan for timed out messages, once a revival time has passed.
+     */
+    void revivalPassed() {
+        nextRevivalScan = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        claims.close();
+        channel.close();
+    }
+}
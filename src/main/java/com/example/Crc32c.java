@@ -0,0 +1,64 @@
+package com.example;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Checksum;
+
+/**
+ * CRC-32C (Castagnoli) checksum.
+ * java.util.zip.CRC32C only exists from Java 9 on, this table driven version keeps the project on Java 8.
+ */
+final class Crc32c implements Checksum {
+    private static final int POLYNOMIAL = 0x82F63B78;
+    private static final int[] TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < TABLE.length; i++) {
+            int crc = i;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLYNOMIAL : crc >>> 1;
+            }
+            TABLE[i] = crc;
+        }
+    }
+
+    private int crc = 0xFFFFFFFF;
+
+    @Override
+    public void update(int value) {
+        crc = (crc >>> 8) ^ TABLE[(crc ^ value) & 0xFF];
+    }
+
+    @Override
+    public void update(byte[] bytes, int off, int len) {
+        int value = crc;
+        for (int i = off; i < off + len; i++) {
+            value = (value >>> 8) ^ TABLE[(value ^ bytes[i]) & 0xFF];
+        }
+        crc = value;
+    }
+
+    @Override
+    public long getValue() {
+        return ~crc & 0xFFFFFFFFL;
+    }
+
+    @Override
+    public void reset() {
+        crc = 0xFFFFFFFF;
+    }
+
+    /**
+     * Checksum of a range of a buffer.
+     * @param buffer the buffer
+     * @param off start index
+     * @param len number of bytes
+     * @return the CRC-32C value
+     */
+    static int checksum(ByteBuffer buffer, int off, int len) {
+        int value = 0xFFFFFFFF;
+        for (int i = off; i < off + len; i++) {
+            value = (value >>> 8) ^ TABLE[(value ^ buffer.get(i)) & 0xFF];
+        }
+        return ~value;
+    }
+}
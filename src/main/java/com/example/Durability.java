@@ -0,0 +1,20 @@
+package com.example;
+
+/**
+ * When a push to {@link FileQueueService} returns relative to its record reaching the disk.
+ */
+public enum Durability {
+    /**
+     * The record is written to the operating system, which flushes it to disk at its own pace.
+     */
+    NONE,
+    /**
+     * Concurrent pushes are written and flushed to disk together. A batch is committed when it reaches the
+     * maximum number of bytes or when its first record has waited for the maximum delay.
+     */
+    BATCHED,
+    /**
+     * Every record is written and flushed to disk on its own.
+     */
+    SYNC_EACH
+}
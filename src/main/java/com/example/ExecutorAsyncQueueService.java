@@ -0,0 +1,113 @@
+package com.example;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the calls to a blocking {@link QueueService} on a dedicated I/O executor.
+ * The file and in-memory services block only for short, local work, so a small pool serves many callers,
+ * and the threads of the callers are free while their operations are queued. A long poll holds a thread
+ * of the pool while it waits, size the pool for the expected number of waiting consumers.
+ */
+public class ExecutorAsyncQueueService implements AsyncQueueService {
+    private static final AtomicInteger POOL_NUMBER = new AtomicInteger();
+
+    private final QueueService queueService;
+    private final ExecutorService executor;
+
+    /**
+     * An operation of the blocking service.
+     * @param <T> type of the result
+     */
+    private interface Call<T> {
+        T call() throws InterruptedException, IOException;
+    }
+
+    /**
+     * Run a service on a pool of its own.
+     * @param service the blocking service
+     * @param threads number of I/O threads
+     */
+    public ExecutorAsyncQueueService(QueueService service, int threads) {
+        this(service, Executors.newFixedThreadPool(threads, ioThreadFactory()));
+    }
+
+    /**
+     * Run a service on a given executor.
+     * @param service the blocking service
+     * @param executor executor running the calls
+     */
+    public ExecutorAsyncQueueService(QueueService service, ExecutorService executor) {
+        queueService = service;
+        this.executor = executor;
+    }
+
+    @Override
+    public CompletableFuture<Void> pushBatch(String queueUrl, List<String> messageBodies) {
+        return submit(() -> {
+            queueService.pushBatch(queueUrl, messageBodies);
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<List<Message>> pull(String queueUrl, int maxMessages) {
+        return submit(() -> queueService.pull(queueUrl, maxMessages));
+    }
+
+    @Override
+    public CompletableFuture<List<Message>> pull(String queueUrl, int maxMessages, long waitTime, TimeUnit unit) {
+        return submit(() -> queueService.pull(queueUrl, maxMessages, waitTime, unit));
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteBatch(String queueUrl, List<String> receiptHandles) {
+        return submit(() -> {
+            queueService.deleteBatch(queueUrl, receiptHandles);
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Boolean> changeVisibility(String queueUrl, String receiptHandle, long timeout,
+                                                       TimeUnit unit) {
+        return submit(() -> queueService.changeVisibility(queueUrl, receiptHandle, timeout, unit));
+    }
+
+    /**
+     * Stop the I/O executor once the submitted operations are done.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    private <T> CompletableFuture<T> submit(Call<T> call) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return call.call();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CompletionException(e);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    private static ThreadFactory ioThreadFactory() {
+        int pool = POOL_NUMBER.incrementAndGet();
+        AtomicInteger thread = new AtomicInteger();
+        return runnable -> {
+            Thread ioThread = new Thread(runnable, "queue-service-io-" + pool + "-" + thread.incrementAndGet());
+            ioThread.setDaemon(true);
+            return ioThread;
+        };
+    }
+}
@@ -0,0 +1,121 @@
+package com.example;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The files of one queue of {@link FileQueueService}.
+ */
+class FileQueue implements Closeable {
+    private static final String INVISIBLE_FILE_NAME = "invisible";
+    private static final String SHADOW_FILE_NAME = "shadow";
+    private static final String HEADER_FILE_NAME = "header";
+    private static final String CLAIMS_FILE_NAME = "claims";
+    private static final String GROUPS_DIR_NAME = "groups";
+
+    final SegmentedLog log;
+    final GroupCommitWriter writer;
+    final InvisibleLog invisible;
+    final Path shadow;
+    final QueueHeader header;
+    final ClaimTable claims;
+    final QueueSignal signal = new QueueSignal();
+    // Signalled when this process deletes or drops messages, for the pushes waiting for room
+    final QueueSignal space = new QueueSignal();
+    volatile QueueCapacity capacity;
+    final QueueMetrics metrics;
+    // Directory holding a directory per consumer group
+    final Path groupsDir;
+    // Consumer groups opened by this process, by name
+    final ConcurrentHashMap<String, ConsumerGroup> groups = new ConcurrentHashMap<>();
+    // Set once the queue directory is registered for change notifications
+    volatile boolean watched;
+    // Set while a compaction of the invisible log is pending
+    volatile boolean compacting;
+    // Times at which the reaper revives the timed out messages of the queue
+    final Set<Long> revivals = ConcurrentHashMap.newKeySet();
+
+    FileQueue(Path dir, long segmentSize, QueueMetrics metrics) throws IOException {
+        this.metrics = metrics;
+        log = new SegmentedLog(dir, segmentSize);
+        writer = new GroupCommitWriter(log);
+        invisible = new InvisibleLog(dir.resolve(INVISIBLE_FILE_NAME));
+        shadow = dir.resolve(SHADOW_FILE_NAME);
+        if (Files.notExists(shadow)) {
+            Files.createFile(shadow);
+        }
+        header = new QueueHeader(dir.resolve(HEADER_FILE_NAME));
+        claims = new ClaimTable(dir.resolve(CLAIMS_FILE_NAME), ClaimTable.DEFAULT_SLOTS);
+        log.setInUse(claims::references);
+        groupsDir = dir.resolve(GROUPS_DIR_NAME);
+    }
+
+    /**
+     * The consumer groups of the queue, opened by any process.
+     * @return names of the group directories
+     */
+    List<String> groupNames() {
+        List<String> names = new ArrayList<>();
+        File[] dirs = groupsDir.toFile().listFiles(File::isDirectory);
+        if (dirs != null) {
+            for (File dir : dirs) {
+                names.add(dir.getName());
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Whether the message counts have to be rebuilt before the queue is used.
+     * @return true after an unclean shutdown
+     */
+    boolean needsRecount() {
+        return header.isUnclean();
+    }
+
+    /**
+     * Rebuild the message counts of the header from the shadow file and the in-flight messages, which stay
+     * small. The counts of the log are written with its cursors and survive a crash of the process.
+     * Needs both the producer and the consumer lock.
+     * @throws IOException exception
+     */
+    void recount() throws IOException {
+        header.reset(RecordCodec.count(ByteBuffer.wrap(Files.readAllBytes(shadow))),
+                invisible.size() + claims.recount());
+    }
+
+    /**
+     * The number of visible messages, read without a lock.
+     * @return number of unread records in the log and records in 'shadow'
+     */
+    int visibleCount() {
+        return (int) (log.size() + header.shadowCount());
+    }
+
+    /**
+     * The number of in-flight messages, read without a lock.
+     * @return number of live records in 'invisible' and taken slots in 'claims'
+     */
+    int inFlightCount() {
+        return (int) header.inFlightCount();
+    }
+
+    @Override
+    public void close() throws IOException {
+        log.close();
+        invisible.close();
+        claims.close();
+        header.close();
+        for (ConsumerGroup group : groups.values()) {
+            group.close();
+        }
+    }
+}
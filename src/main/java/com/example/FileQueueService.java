@@ -1,26 +1,121 @@
 package com.example;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
-import java.util.LinkedList;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
 
 /**
  * File implementation of queue service.
- * Each queue is a folder with message stores in a file 'messages' and 'shadow'.
- * Early messages are stored in shadow with reversing order (First message is at the bottom of the file).
- * This design prevents rewriting the file after consuming a message. Invisible messages are stored in
- * file 'invisible' and the folder '.lock' is served as a mutex lock as a concurrency solution.
+ * Each queue is a folder holding an append-only {@link SegmentedLog}: pushes append to the tail segment
+ * and pulls advance a persisted read cursor, so neither rewrites existing data.
+ * Messages revived after a visibility timeout are stored in the file 'shadow' with reversing order
+ * (the next message to deliver is at the bottom of the file) and are delivered before the log.
+ * Invisible messages are tracked by an {@link InvisibleLog} in file 'invisible', deletes append tombstones
+ * that a background compaction drops once they make up most of the file.
+ * Concurrency is handled by {@link QueueLockManager} with separate producer and consumer locks per queue.
+ * Consumers in every process pull from the log and delete holding the consumer lock shared: they claim
+ * records by moving the head of the log with a compare-and-swap and track them in a {@link ClaimTable}, a
+ * memory-mapped file of in-flight slots. Revived messages, revivals and the removal of consumed segments
+ * take the consumer lock exclusively, as do the messages that find no free slot.
+ * The message counts are kept in the index of the log and a {@link QueueHeader}, updated with every
+ * operation, so depth queries take constant time. They are rebuilt by a scan only after an unclean shutdown.
+ * The queues found in the base directory are reopened when the service starts: the invisible log reloads
+ * its last checkpoint and scans the records after it, and in-flight messages whose revival time passed
+ * while the service was down are revived.
+ * With {@link #setCompression(String, Compression)} the records a push appends are compressed in blocks.
+ * With {@link #setRetention(String, long, TimeUnit, long)} the log of a queue keeps its segments until they
+ * pass an age or size limit, and named consumer groups read it: the methods taking a group name pull, delete
+ * and extend messages of a {@link ConsumerGroup}, which has its own cursor and in-flight messages, so K groups
+ * read every message of a single write. A group can be rewound to a time with
+ * {@link #rewind(String, String, long)}.
+ * With {@link #setCapacity(String, long, long, OverflowPolicy)} a queue holds a bounded number of messages
+ * or log bytes, and a push to a full queue waits, fails or drops the oldest messages of the log.
+ * Long polling consumers park on the {@link QueueSignal} of the queue. Pushes and revivals in this process
+ * signal it directly, and a {@link WatchService} on the queue directory signals it for other processes.
+ * A reaper thread revives the timed out messages of a queue at the revival times of the messages this process
+ * delivered, so a waiting consumer gets a message back without another pull or push.
  */
 public class FileQueueService implements QueueService {
     private static final Logger LOGGER = Logger.getLogger(FileQueueService.class.getName());
-    private static FileQueueService instance = null;
+    // Compact the invisible log once it holds this many dead records and they outnumber the live ones
+    private static final long COMPACTION_MIN_DEAD_RECORDS = 1024;
+    private static final double COMPACTION_DEAD_RATIO = 0.5;
+    // Bytes read at once from the end of the shadow file
+    private static final int TAIL_READ_SIZE = 64 * 1024;
+    private static final Pattern GROUP_NAME = Pattern.compile("[\\w.-]+");
+    // Longest wait for room before the counts are read again, deletes in other processes are not signalled
+    private static final long SPACE_POLL_MILLIS = 10L;
+    // Revival times are rounded up to a tick, the reaper runs at most once a tick for a queue
+    private static final long REVIVAL_TICK_MILLIS = 100L;
     private Long delayMilliSeconds = 500L;
+    private long segmentSize = SegmentedLog.DEFAULT_SEGMENT_SIZE;
+    private Durability durability = Durability.NONE;
+    private long maxBatchDelayMicros = GroupCommitWriter.DEFAULT_MAX_DELAY_MICROS;
+    private int maxBatchBytes = GroupCommitWriter.DEFAULT_MAX_BYTES;
+    private long checkpointInterval = InvisibleLog.DEFAULT_CHECKPOINT_INTERVAL;
+    private volatile long pushTimeoutMillis = QueueCapacity.DEFAULT_PUSH_TIMEOUT_MILLIS;
     private Path basePath;
+    private ConcurrentHashMap<String, FileQueue> queues = new ConcurrentHashMap<>();
+    private ConcurrentHashMap<String, Compression> compressions = new ConcurrentHashMap<>();
+    private ConcurrentHashMap<String, Retention> retentions = new ConcurrentHashMap<>();
+    private ConcurrentHashMap<String, QueueCapacity> capacities = new ConcurrentHashMap<>();
+    private QueueLockManager lockManager = new QueueLockManager();
+    private MetricsRegistry metrics = new MetricsRegistry("FileQueueService");
+    private WatchService watchService;
+    private ConcurrentHashMap<WatchKey, FileQueue> watchedQueues = new ConcurrentHashMap<>();
+    private ExecutorService compactor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "file-queue-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "file-queue-reaper");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * How long the segments of a retained queue are kept.
+     */
+    private static class Retention {
+        final long maxAgeMillis;
+        final long maxBytes;
+
+        Retention(long maxAgeMillis, long maxBytes) {
+            this.maxAgeMillis = maxAgeMillis;
+            this.maxBytes = maxBytes;
+        }
+    }
+
+    /**
+     * Created on first use by the class loader, which makes the creation thread-safe.
+     */
+    private static class Holder {
+        static final FileQueueService INSTANCE = new FileQueueService();
+    }
 
     private FileQueueService() {
         String baseDir = "tmp";
@@ -28,10 +123,63 @@ public class FileQueueService implements QueueService {
         if (dir != null) {
             baseDir = dir;
         }
-        File mydir = new File(baseDir);
-        mydir.delete();
-        mydir.mkdir();
         basePath = Paths.get(baseDir);
+        try {
+            Files.createDirectories(basePath);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot create the queue directory " + basePath, e);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(this::closeQueues, "file-queue-shutdown"));
+        recoverQueues();
+    }
+
+    /**
+     * Reopen the queues left in the base directory and revive their timed out messages.
+     * A queue that fails to open is logged and opened again on first use.
+     */
+    private void recoverQueues() {
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(basePath, Files::isDirectory)) {
+            for (Path dir : dirs) {
+                String queue = dir.getFileName().toString();
+                try {
+                    getQueue(queue);
+                    clearInvisible(queue);
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to recover queue " + queue, e);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to list the queues in " + basePath, e);
+        }
+    }
+
+    /**
+     * Close the open queues once their current operations are done, so the next start finds their
+     * message counts clean and does not rebuild them.
+     */
+    private void closeQueues() {
+        for (String queue : queues.keySet()) {
+            try {
+                QueueLockManager.QueueLock producerLock = getLock(queue, QueueLockManager.Domain.PRODUCER);
+                QueueLockManager.QueueLock consumerLock = getLock(queue, QueueLockManager.Domain.CONSUMER);
+                producerLock.lock();
+                try {
+                    consumerLock.lock();
+                    try {
+                        queues.remove(queue).close();
+                        metrics.unregister(queue);
+                    } finally {
+                        consumerLock.unlock();
+                    }
+                } finally {
+                    producerLock.unlock();
+                }
+            } catch (InterruptedException | IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to close queue " + queue, e);
+            }
+        }
     }
 
     /**
@@ -39,10 +187,7 @@ public class FileQueueService implements QueueService {
      * @return instance
      */
     public static FileQueueService getInstance() {
-        if (instance == null) {
-            instance = new FileQueueService();
-        }
-        return instance;
+        return Holder.INSTANCE;
     }
 
     private long now() {
@@ -53,227 +198,1272 @@ public class FileQueueService implements QueueService {
         delayMilliSeconds = delayTime;
     }
 
-    @Override
-    public void push(String queueUrl, String messageBody) throws InterruptedException, IOException {
+    /**
+     * Set the size of the segment files, applied to segments created from now on.
+     * @param size segment size in bytes
+     */
+    void setSegmentSize(long size) {
+        segmentSize = size;
+        for (FileQueue fileQueue : queues.values()) {
+            fileQueue.log.setSegmentSize(size);
+        }
+    }
+
+    /**
+     * Set how many bytes of in-flight records are written between two checkpoints of an invisible log.
+     * Reopening a queue after a crash scans at most this many bytes.
+     * @param bytes checkpoint interval in bytes
+     */
+    public void setCheckpointInterval(long bytes) {
+        checkpointInterval = bytes;
+        for (FileQueue fileQueue : queues.values()) {
+            fileQueue.invisible.setCheckpointInterval(bytes);
+        }
+    }
+
+    /**
+     * Select the compression of the messages of a queue, applied to the segments created from now on.
+     * The records of every push, or of every group commit, are compressed together in blocks, so batches
+     * of similar messages shrink the most. Segments keep the compression they were written with.
+     * @param queueUrl queue url
+     * @param compression the codec
+     * @throws IOException exception
+     */
+    public void setCompression(String queueUrl, Compression compression) throws IOException {
+        String queue = fromUrl(queueUrl);
+        compressions.put(queue, compression);
+        getQueue(queue).log.setCompression(compression);
+    }
+
+    /**
+     * Retain the messages of a queue after they are read, so consumer groups can read them.
+     * The oldest segments are removed once they were last written longer ago than the age limit, or while
+     * the segments take more than the size limit, even if a group has not read them yet. The limits are
+     * checked whenever a push starts a new segment and when the invisible messages are cleared. As with the
+     * other settings, every process using the queue sets it, or a process without it removes the segments
+     * as they are read.
+     * @param queueUrl queue url
+     * @param maxAge age limit, 0 for none
+     * @param unit unit of the age limit
+     * @param maxBytes size limit in bytes, 0 for none
+     * @throws IOException exception
+     */
+    public void setRetention(String queueUrl, long maxAge, TimeUnit unit, long maxBytes) throws IOException {
         String queue = fromUrl(queueUrl);
-        Message message = new Message(messageBody);
-        File lock = getLockFile(queue);
+        retentions.put(queue, new Retention(unit.toMillis(maxAge), maxBytes));
+        getQueue(queue).log.setRetained(true);
+    }
+
+    /**
+     * Limit the messages of a queue, counting the messages not yet deleted, visible or in flight, and the
+     * bytes of the log not read yet. A queue dropping its oldest messages drops them from the head of the log.
+     * As with the other settings, every process pushing to the queue sets it.
+     * @param queueUrl queue url
+     * @param maxMessages largest number of messages, 0 for no limit
+     * @param maxBytes largest number of unread log bytes, 0 for no limit
+     * @param policy what a push does when the queue is full
+     * @throws IOException exception
+     */
+    public void setCapacity(String queueUrl, long maxMessages, long maxBytes, OverflowPolicy policy)
+            throws IOException {
+        String queue = fromUrl(queueUrl);
+        QueueCapacity capacity = null;
+        if (maxMessages == 0 && maxBytes == 0) {
+            capacities.remove(queue);
+        } else {
+            capacity = new QueueCapacity(maxMessages, maxBytes, policy);
+            capacities.put(queue, capacity);
+        }
+        FileQueue fileQueue = getQueue(queue);
+        fileQueue.capacity = capacity;
+        fileQueue.space.signalAll();
+    }
+
+    /**
+     * Set how long a push to a full queue with the {@link OverflowPolicy#BLOCK} policy waits for room.
+     * @param timeout push timeout
+     * @param unit unit of the timeout
+     */
+    public void setPushTimeout(long timeout, TimeUnit unit) {
+        pushTimeoutMillis = unit.toMillis(timeout);
+    }
+
+    /**
+     * Move the cursor of a consumer group back or forth to the first message pushed at or after a time, to
+     * replay the messages retained since. The messages the group has in flight are dropped.
+     * @param queueUrl queue url
+     * @param group group name
+     * @param timestamp time in milliseconds
+     * @throws InterruptedException exception
+     * @throws IOException exception
+     */
+    public void rewind(String queueUrl, String group, long timestamp) throws InterruptedException, IOException {
+        String queue = fromUrl(queueUrl);
+        FileQueue fileQueue = getQueue(queue);
+        ConsumerGroup consumerGroup = getGroup(queue, fileQueue, group);
+        QueueLockManager.QueueLock producerLock = getLock(queue, QueueLockManager.Domain.PRODUCER);
+        QueueLockManager.QueueLock groupLock = getGroupLock(queue, fileQueue, group);
+        producerLock.lock();
         try {
-            lock(lock);
-            Path queueMessagePath = getQueueMessageQueuePath(queue);
-            Files.write(queueMessagePath, String.format("%s\n", message.toString()).getBytes(), StandardOpenOption.APPEND);
+            groupLock.lock();
+            try {
+                consumerGroup.clearInFlight();
+                fileQueue.log.moveCursor(consumerGroup.cursor, fileQueue.log.seek(timestamp));
+            } finally {
+                groupLock.unlock();
+            }
         } finally {
-            unlock(lock);
+            producerLock.unlock();
+        }
+        fileQueue.signal.signalAll();
+    }
+
+    /**
+     * Select when a push returns relative to its message reaching the disk.
+     * Concurrent pushes to a queue are committed together, see {@link Durability}.
+     * @param mode durability mode
+     */
+    public void setDurability(Durability mode) {
+        durability = mode;
+        for (FileQueue fileQueue : queues.values()) {
+            fileQueue.writer.setDurability(mode);
+        }
+    }
+
+    /**
+     * Set the batch limits of the {@link Durability#BATCHED} mode.
+     * @param maxDelayMicros how long a batch waits for more pushes, in microseconds
+     * @param maxBytes batch size that is committed without waiting
+     */
+    public void setBatchLimits(long maxDelayMicros, int maxBytes) {
+        maxBatchDelayMicros = maxDelayMicros;
+        maxBatchBytes = maxBytes;
+        for (FileQueue fileQueue : queues.values()) {
+            fileQueue.writer.setBatchLimits(maxDelayMicros, TimeUnit.MICROSECONDS, maxBytes);
         }
     }
 
+    /**
+     * Push a message.
+     * @throws QueueFullException if the queue is full and its policy makes no room in time
+     */
+    @Override
+    public void push(String queueUrl, String messageBody) throws InterruptedException, IOException {
+        pushBatch(queueUrl, Collections.singletonList(messageBody));
+    }
+
+    @Override
+    public boolean tryPush(String queueUrl, String messageBody) throws InterruptedException, IOException {
+        return pushRecords(queueUrl, Collections.singletonList(new Message(messageBody).encode()),
+                System.nanoTime(), true);
+    }
+
     @Override
     public Message pull(String queueUrl) throws InterruptedException, IOException {
+        List<Message> messages = pull(queueUrl, 1);
+        return messages.isEmpty() ? null : messages.get(0);
+    }
+
+    @Override
+    public List<Message> pull(String queueUrl, int maxMessages) throws InterruptedException, IOException {
+        final long start = System.nanoTime();
+        String queue = fromUrl(queueUrl);
+        FileQueue fileQueue = getQueue(queue);
+        QueueLockManager.QueueLock lock = getLock(queue, QueueLockManager.Domain.CONSUMER);
+        long revival = now() + delayMilliSeconds;
+        final long headSegment = fileQueue.log.headSegment();
+        List<Message> messages = new ArrayList<>();
+        boolean claimed = false;
+        if (fileQueue.header.shadowCount() == 0) {
+            // Claim from the log side by side with the consumers of every process
+            lock.lockShared();
+            try {
+                claimed = claim(fileQueue, messages, maxMessages, revival);
+            } finally {
+                lock.unlockShared();
+            }
+        }
+        if (!claimed) {
+            lock.lock();
+            try {
+                pullExclusive(fileQueue, messages, maxMessages, revival);
+            } finally {
+                lock.unlock();
+            }
+        }
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("Pulled messages: " + messages);
+        }
+        if (fileQueue.log.headSegment() != headSegment && fileQueue.log.needsSweep()) {
+            // Moved past a segment, which may hold no message in flight
+            sweep(queue, fileQueue);
+        }
+        if (!messages.isEmpty()) {
+            scheduleRevival(queue, fileQueue, revival);
+        }
+        fileQueue.metrics.pulled(messages.size(), start);
+        return messages;
+    }
+
+    @Override
+    public List<Message> pull(String queueUrl, int maxMessages, long waitTime, TimeUnit unit)
+            throws InterruptedException, IOException {
+        return pull(queueUrl, null, maxMessages, waitTime, unit);
+    }
+
+    /**
+     * Pull up to a number of messages of a consumer group of a retained queue: its timed out messages and
+     * then messages from its cursor, holding the lock of the group shared. A group is created by its first use.
+     * @param queueUrl queue url
+     * @param group group name, made of letters, digits, '_', '.' and '-'
+     * @param maxMessages maximum number of messages pulled
+     * @return the messages, fewer than asked for when the claim table of the group runs out of slots
+     * @throws InterruptedException exception
+     * @throws IOException exception
+     */
+    public List<Message> pull(String queueUrl, String group, int maxMessages) throws InterruptedException, IOException {
+        final long start = System.nanoTime();
         String queue = fromUrl(queueUrl);
-        File queueMessagePath = getQueueMessageQueuePath(queue).toFile();
-        File shadowQueuePath = getShadowQueueMessageQueuePath(queue).toFile();
-        File lock = getLockFile(queue);
-        Message message;
+        FileQueue fileQueue = getQueue(queue);
+        ConsumerGroup consumerGroup = getGroup(queue, fileQueue, group);
+        QueueLockManager.QueueLock lock = getGroupLock(queue, fileQueue, group);
+        long now = now();
+        long revival = now + delayMilliSeconds;
+        List<Message> messages = new ArrayList<>();
+        lock.lockShared();
         try {
-            lock(lock);
-            if (shadowQueuePath.length() == 0) {
-                List<String> allMessages = Files.readAllLines(queueMessagePath.toPath());
-                // Reverse the messages and write into shadow queue
-                for (int i = allMessages.size() - 1;i >= 0;i --) {
-                    Files.write(shadowQueuePath.toPath(), String.format("%s\n", allMessages.get(i)).getBytes(), StandardOpenOption.APPEND);
+            if (consumerGroup.inFlightCount() > 0 && consumerGroup.revivalDue(now)) {
+                reviveGroup(fileQueue, consumerGroup, messages, maxMessages, now, revival);
+            }
+            int claimed = 0;
+            while (messages.size() < maxMessages) {
+                SegmentedLog.Record record = fileQueue.log.peek(consumerGroup.cursor);
+                if (record == null) {
+                    break;
+                }
+                Message message = RecordCodec.decode(record.buffer, record.position);
+                int slot = consumerGroup.claims.reserve(message.handleHigh(), message.handleLow());
+                if (slot < 0) {
+                    break;
+                }
+                if (!fileQueue.log.take(record, consumerGroup.cursor)) {
+                    consumerGroup.claims.cancel(slot);
+                    continue;
                 }
-                // Clear the message file
-                PrintWriter writer = new PrintWriter(queueMessagePath);
-                writer.print("");
-                writer.close();
-            }
-            // Read the first message in the queue (the last line of the file)
-            String rawString = readFromLast(shadowQueuePath);
-            LOGGER.info("Raw String: " + rawString);
-            message = Message.fromString(rawString);
-            Path invisibleQueuePath = getInvisibleQueuePath(queue);
-            if (message != null) {
-                // Set the revival time and put the message temporarily into the invisible queue
-                message.setRevival(now() + delayMilliSeconds);
-                Files.write(invisibleQueuePath, String.format("%s\n", message.toString()).getBytes(), StandardOpenOption.APPEND);
+                consumerGroup.claims.fill(slot, record.location(), revival);
+                message.setRevival(revival);
+                messages.add(message);
+                claimed++;
             }
+            consumerGroup.addInFlight(claimed);
         } finally {
-            unlock(lock);
+            lock.unlockShared();
         }
-        return message;
+        if (!messages.isEmpty()) {
+            scheduleRevival(queue, fileQueue, revival);
+        }
+        metrics.getQueueMetrics(groupKey(queue, group)).pulled(messages.size(), start);
+        return messages;
+    }
+
+    /**
+     * Pull up to a number of messages of a consumer group, waiting for messages to arrive while the group has
+     * read every message.
+     * @param queueUrl queue url
+     * @param group group name, or null to pull from the queue itself
+     * @param maxMessages maximum number of messages pulled
+     * @param waitTime how long to wait for a message
+     * @param unit unit of the wait time
+     * @return the pulled messages, empty if none arrived in time
+     * @throws InterruptedException exception
+     * @throws IOException exception
+     */
+    public List<Message> pull(String queueUrl, String group, int maxMessages, long waitTime, TimeUnit unit)
+            throws InterruptedException, IOException {
+        long deadline = QueueSignal.deadline(waitTime, unit);
+        List<Message> messages = group == null ? pull(queueUrl, maxMessages) : pull(queueUrl, group, maxMessages);
+        if (!messages.isEmpty()) {
+            return messages;
+        }
+        String queue = fromUrl(queueUrl);
+        FileQueue fileQueue = getQueue(queue);
+        ConsumerGroup consumerGroup = group == null ? null : getGroup(queue, fileQueue, group);
+        watch(fileQueue, getQueueDir(queue));
+        while (messages.isEmpty()
+                && fileQueue.signal.awaitUntil(() -> hasMessages(fileQueue, consumerGroup), deadline)) {
+            // Another consumer may take the message first, then wait again
+            messages = group == null ? pull(queueUrl, maxMessages) : pull(queueUrl, group, maxMessages);
+        }
+        return messages;
     }
 
     @Override
     public void delete(String queueUrl, String receiptHandle) throws InterruptedException, IOException {
+        deleteBatch(queueUrl, Collections.singletonList(receiptHandle));
+    }
+
+    /**
+     * Delete a message of a consumer group, the other groups still read it.
+     * @param queueUrl queue url
+     * @param group group name
+     * @param receiptHandle receipt handle of the message
+     * @throws InterruptedException exception
+     * @throws IOException exception
+     */
+    public void delete(String queueUrl, String group, String receiptHandle) throws InterruptedException, IOException {
+        deleteBatch(queueUrl, group, Collections.singletonList(receiptHandle));
+    }
+
+    @Override
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Push a batch, all of it or none when the queue is full.
+     * @throws QueueFullException if the queue is full and its policy makes no room in time
+     */
+    @Override
+    public void pushBatch(String queueUrl, List<String> messageBodies) throws InterruptedException, IOException {
+        long start = System.nanoTime();
+        List<byte[]> records = new ArrayList<>(messageBodies.size());
+        for (String messageBody : messageBodies) {
+            records.add(new Message(messageBody).encode());
+        }
+        pushRecords(queueUrl, records, start, false);
+    }
+
+    /**
+     * Push a message with a UTF-8 body given as bytes.
+     * @throws QueueFullException if the queue is full and its policy makes no room in time
+     */
+    @Override
+    public void pushBytes(String queueUrl, byte[] messageBody) throws InterruptedException, IOException {
+        long start = System.nanoTime();
+        pushRecords(queueUrl, Collections.singletonList(new Message(messageBody).encode()), start, false);
+    }
+
+    private boolean pushRecords(String queueUrl, List<byte[]> records, long start, boolean tryOnly)
+            throws InterruptedException, IOException {
+        String queue = fromUrl(queueUrl);
+        FileQueue fileQueue = getQueue(queue);
+        if (fileQueue.capacity != null && !admit(queue, fileQueue, records, tryOnly)) {
+            return false;
+        }
+        final long tailSegment = fileQueue.log.tailSegment();
+        fileQueue.writer.write(records, getLock(queue, QueueLockManager.Domain.PRODUCER));
+        fileQueue.signal.signalAll();
+        fileQueue.metrics.pushed(records.size(), start);
+        if (fileQueue.log.tailSegment() != tailSegment) {
+            enforceRetention(queue, fileQueue);
+        }
+        return true;
+    }
+
+    /**
+     * Make room for records in a queue with a capacity, applying its overflow policy. The counts are read
+     * without a lock, so pushes from several threads or processes may pass the limits together.
+     * @param queue queue name
+     * @param fileQueue the queue
+     * @param records the records to push
+     * @param tryOnly whether to give up rather than wait or fail
+     * @return true if the records fit, false if they do not and the caller tries only
+     * @throws InterruptedException exception
+     * @throws IOException exception
+     * @throws QueueFullException if the records do not fit and the caller does not try only
+     */
+    private boolean admit(String queue, FileQueue fileQueue, List<byte[]> records, boolean tryOnly)
+            throws InterruptedException, IOException {
+        QueueCapacity capacity = fileQueue.capacity;
+        int count = records.size();
+        long size = 0;
+        for (byte[] record : records) {
+            size += record.length;
+        }
+        if (fits(fileQueue, capacity, count, size)) {
+            return true;
+        }
+        if (capacity.fitsEmpty(count, size)) {
+            if (capacity.policy == OverflowPolicy.DROP_OLDEST) {
+                if (dropOldest(queue, fileQueue, capacity, count, size)) {
+                    return true;
+                }
+            } else if (capacity.policy == OverflowPolicy.BLOCK && !tryOnly) {
+                long deadline = QueueSignal.deadline(pushTimeoutMillis, TimeUnit.MILLISECONDS);
+                long finalSize = size;
+                while (System.nanoTime() < deadline) {
+                    long slice = Math.min(deadline, QueueSignal.deadline(SPACE_POLL_MILLIS, TimeUnit.MILLISECONDS));
+                    if (fileQueue.space.awaitUntil(() -> fits(fileQueue, capacity, count, finalSize), slice)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        fileQueue.metrics.rejected(count);
+        if (tryOnly) {
+            return false;
+        }
+        throw capacity.full(queue, count);
+    }
+
+    private static boolean fits(FileQueue fileQueue, QueueCapacity capacity, int count, long size) {
+        return capacity.fits(fileQueue.visibleCount() + fileQueue.inFlightCount(), fileQueue.log.unreadBytes(),
+                count, size);
+    }
+
+    /**
+     * Drop records from the head of the log until new records fit. The records are moved past like pulled
+     * ones, holding the consumer lock shared, and never reach the in-flight messages.
+     * @return true if the new records fit
+     */
+    private boolean dropOldest(String queue, FileQueue fileQueue, QueueCapacity capacity, int count, long size)
+            throws InterruptedException, IOException {
+        QueueLockManager.QueueLock lock = getLock(queue, QueueLockManager.Domain.CONSUMER);
+        final long headSegment = fileQueue.log.headSegment();
+        int dropped = 0;
+        boolean fits;
+        lock.lockShared();
+        try {
+            while (!(fits = fits(fileQueue, capacity, count, size)) && fileQueue.log.poll() != null) {
+                dropped++;
+            }
+        } finally {
+            lock.unlockShared();
+        }
+        fileQueue.metrics.dropped(dropped);
+        if (fileQueue.log.headSegment() != headSegment && fileQueue.log.needsSweep()) {
+            sweep(queue, fileQueue);
+        }
+        return fits;
+    }
+
+    /**
+     * Claim messages from the log, each with a slot of the claim table. Needs the shared consumer lock.
+     * @param fileQueue the queue
+     * @param messages the pulled messages to add to
+     * @param maxMessages maximum number of messages pulled
+     * @param revival revival time of the messages
+     * @return false if the claim table ran out of slots before the log ran out of messages
+     * @throws IOException exception
+     */
+    private boolean claim(FileQueue fileQueue, List<Message> messages, int maxMessages, long revival)
+            throws IOException {
+        int claimed = 0;
+        try {
+            while (messages.size() < maxMessages) {
+                SegmentedLog.Record record = fileQueue.log.peek();
+                if (record == null) {
+                    return true;
+                }
+                Message message = RecordCodec.decode(record.buffer, record.position);
+                int slot = fileQueue.claims.reserve(message.handleHigh(), message.handleLow());
+                if (slot < 0) {
+                    return false;
+                }
+                if (!fileQueue.log.take(record)) {
+                    // Another consumer took the record first
+                    fileQueue.claims.cancel(slot);
+                    continue;
+                }
+                fileQueue.claims.fill(slot, record.location(), revival);
+                message.setRevival(revival);
+                messages.add(message);
+                claimed++;
+            }
+            return true;
+        } finally {
+            fileQueue.header.addInFlight(claimed);
+        }
+    }
+
+    /**
+     * Deliver the timed out messages of a consumer group again, read from the log at the location of their
+     * slot. A message whose segment the retention removed is dropped. Needs the shared lock of the group.
+     * @param fileQueue the queue
+     * @param consumerGroup the group
+     * @param messages the pulled messages to add to
+     * @param maxMessages maximum number of messages pulled
+     * @param now current time
+     * @param revival new revival time of the messages
+     * @throws IOException exception
+     */
+    private void reviveGroup(FileQueue fileQueue, ConsumerGroup consumerGroup, List<Message> messages,
+                             int maxMessages, long now, long revival) throws IOException {
+        int dropped = 0;
+        for (ClaimTable.Expired claim : consumerGroup.claims.expired(now)) {
+            if (messages.size() >= maxMessages) {
+                break;
+            }
+            if (!consumerGroup.claims.renew(claim, revival)) {
+                // Deleted, extended or revived by another consumer meanwhile
+                continue;
+            }
+            SegmentedLog.Record record;
+            try {
+                record = fileQueue.log.read(claim.location);
+            } catch (NoSuchFileException e) {
+                consumerGroup.claims.free(claim);
+                dropped++;
+                continue;
+            }
+            Message message = RecordCodec.decode(record.buffer, record.position);
+            message.setRevival(revival);
+            messages.add(message);
+        }
+        consumerGroup.addInFlight(-dropped);
+    }
+
+    /**
+     * Pull revived messages and then messages from the log. Needs the exclusive consumer lock.
+     * Revived messages and the messages finding no slot go to the invisible log.
+     * @param fileQueue the queue
+     * @param messages the pulled messages to add to
+     * @param maxMessages maximum number of messages pulled
+     * @param revival revival time of the messages
+     * @throws IOException exception
+     */
+    private void pullExclusive(FileQueue fileQueue, List<Message> messages, int maxMessages, long revival)
+            throws IOException {
+        // Revived messages go first
+        List<Message> untracked = readFromLast(fileQueue.shadow, maxMessages - messages.size());
+        fileQueue.header.addShadow(-untracked.size());
+        messages.addAll(untracked);
+        if (!claim(fileQueue, messages, maxMessages, revival)) {
+            while (messages.size() < maxMessages) {
+                SegmentedLog.Record record = fileQueue.log.poll();
+                if (record == null) {
+                    break;
+                }
+                Message message = RecordCodec.decode(record.buffer, record.position);
+                // Keep the segment until the message is deleted
+                fileQueue.log.pin(message.getReceiptHandle(), record.segment);
+                messages.add(message);
+                untracked.add(message);
+            }
+        }
+        if (!untracked.isEmpty()) {
+            // Set the revival time and put the messages temporarily into the invisible queue
+            for (Message message : untracked) {
+                message.setRevival(revival);
+            }
+            fileQueue.invisible.add(untracked);
+            fileQueue.header.addInFlight(untracked.size());
+        }
+    }
+
+    /**
+     * Remove the consumed segments of a queue.
+     * @param queue queue name
+     * @param fileQueue the queue
+     * @throws InterruptedException exception
+     * @throws IOException exception
+     */
+    private void sweep(String queue, FileQueue fileQueue) throws InterruptedException, IOException {
+        QueueLockManager.QueueLock lock = getLock(queue, QueueLockManager.Domain.CONSUMER);
+        lock.lock();
+        try {
+            fileQueue.log.sweep();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Check without a lock whether a pull may find a message.
+     * @param fileQueue the queue
+     * @param consumerGroup a consumer group, or null for the queue
+     * @return true if a message is waiting or may be waiting
+     */
+    private boolean hasMessages(FileQueue fileQueue, ConsumerGroup consumerGroup) {
+        try {
+            if (consumerGroup != null) {
+                return fileQueue.log.hasUnread(consumerGroup.cursor)
+                        || consumerGroup.inFlightCount() > 0 && consumerGroup.claims.hasExpired(now());
+            }
+            return fileQueue.shadow.toFile().length() > 0 || fileQueue.log.hasUnread();
+        } catch (IOException e) {
+            // Let the next pull report the error
+            return true;
+        }
+    }
+
+    /**
+     * Register the directory of a queue for change notifications, starting the watcher on first use.
+     * @param fileQueue the queue
+     * @param queueDir the queue directory
+     * @throws IOException exception
+     */
+    private synchronized void watch(FileQueue fileQueue, Path queueDir) throws IOException {
+        if (fileQueue.watched) {
+            return;
+        }
+        if (watchService == null) {
+            watchService = queueDir.getFileSystem().newWatchService();
+            Thread watcher = new Thread(this::dispatchChanges, "file-queue-watcher");
+            watcher.setDaemon(true);
+            watcher.start();
+        }
+        WatchKey key = queueDir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+        watchedQueues.put(key, fileQueue);
+        fileQueue.watched = true;
+    }
+
+    /**
+     * Wake the consumers of a queue whenever a file in its directory changes.
+     */
+    private void dispatchChanges() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                key.pollEvents();
+                FileQueue fileQueue = watchedQueues.get(key);
+                if (fileQueue != null) {
+                    fileQueue.signal.signalAll();
+                }
+                key.reset();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            LOGGER.info("File queue watcher stopped");
+        }
+    }
+
+    @Override
+    public void deleteBatch(String queueUrl, List<String> receiptHandles) throws InterruptedException, IOException {
+        final long start = System.nanoTime();
+        String queue = fromUrl(queueUrl);
+        FileQueue fileQueue = getQueue(queue);
+        QueueLockManager.QueueLock lock = getLock(queue, QueueLockManager.Domain.CONSUMER);
+        List<String> untracked = new ArrayList<>();
+        int deleted = 0;
+        boolean released = false;
+        lock.lockShared();
+        try {
+            for (String receiptHandle : receiptHandles) {
+                long location = removeClaim(fileQueue.claims, receiptHandle);
+                if (location < 0) {
+                    untracked.add(receiptHandle);
+                } else {
+                    deleted++;
+                    released |= fileQueue.log.isSweepable(ClaimTable.segment(location));
+                }
+            }
+            fileQueue.header.addInFlight(-deleted);
+        } finally {
+            lock.unlockShared();
+        }
+        if (!untracked.isEmpty()) {
+            lock.lock();
+            try {
+                int removed = 0;
+                for (String receiptHandle : fileQueue.invisible.remove(untracked)) {
+                    fileQueue.log.release(receiptHandle);
+                    removed++;
+                }
+                fileQueue.header.addInFlight(-removed);
+                deleted += removed;
+                maybeCompact(queue, fileQueue);
+            } finally {
+                lock.unlock();
+            }
+        }
+        if (released) {
+            // The last message in flight of the oldest consumed segment may be gone
+            sweep(queue, fileQueue);
+        }
+        if (deleted > 0) {
+            fileQueue.space.signalAll();
+        }
+        fileQueue.metrics.deleted(deleted, start);
+    }
+
+    /**
+     * Delete several messages of a consumer group, the other groups still read them.
+     * @param queueUrl queue url
+     * @param group group name
+     * @param receiptHandles receipt handles of the messages
+     * @throws InterruptedException exception
+     * @throws IOException exception
+     */
+    public void deleteBatch(String queueUrl, String group, List<String> receiptHandles)
+            throws InterruptedException, IOException {
+        long start = System.nanoTime();
         String queue = fromUrl(queueUrl);
-        File lock = getLockFile(queue);
+        FileQueue fileQueue = getQueue(queue);
+        ConsumerGroup consumerGroup = getGroup(queue, fileQueue, group);
+        QueueLockManager.QueueLock lock = getGroupLock(queue, fileQueue, group);
+        int deleted = 0;
+        lock.lockShared();
         try {
-            lock(lock);
-            List<String> invisibleMessages = Files.readAllLines(getInvisibleQueuePath(queue));
-            List<String> afterDeleteMessages = new LinkedList<>();
-            // Iterate through the invisible queue and delete the corresponding message
-            for (String rawMessage: invisibleMessages) {
-                Message message = Message.fromString(rawMessage);
-                if (message != null && !message.getReceiptHandle().equals(receiptHandle)) {
-                    afterDeleteMessages.add(rawMessage);
+            for (String receiptHandle : receiptHandles) {
+                if (removeClaim(consumerGroup.claims, receiptHandle) >= 0) {
+                    deleted++;
                 }
             }
-            generateNewInvisibleQueue(queue, afterDeleteMessages);
+            consumerGroup.addInFlight(-deleted);
         } finally {
-            unlock(lock);
+            lock.unlockShared();
+        }
+        metrics.getQueueMetrics(groupKey(queue, group)).deleted(deleted, start);
+    }
+
+    private long removeClaim(ClaimTable claims, String receiptHandle) {
+        UUID handle = parseHandle(receiptHandle);
+        return handle == null ? -1 : claims.remove(handle.getMostSignificantBits(), handle.getLeastSignificantBits());
+    }
+
+    private static UUID parseHandle(String receiptHandle) {
+        try {
+            return UUID.fromString(receiptHandle);
+        } catch (IllegalArgumentException e) {
+            return null;
         }
     }
 
     /**
-     * Help function to generate a new invisible queue.
+     * Move the revival time of a claimed message under the shared lock, or of a message of the invisible log
+     * under the exclusive one.
+     */
+    @Override
+    public boolean changeVisibility(String queueUrl, String receiptHandle, long timeout, TimeUnit unit)
+            throws InterruptedException, IOException {
+        String queue = fromUrl(queueUrl);
+        FileQueue fileQueue = getQueue(queue);
+        long revival = now() + unit.toMillis(timeout);
+        UUID handle = parseHandle(receiptHandle);
+        QueueLockManager.QueueLock lock = getLock(queue, QueueLockManager.Domain.CONSUMER);
+        if (handle != null) {
+            lock.lockShared();
+            try {
+                if (fileQueue.claims.extend(handle.getMostSignificantBits(), handle.getLeastSignificantBits(),
+                        revival)) {
+                    scheduleRevival(queue, fileQueue, revival);
+                    return true;
+                }
+            } finally {
+                lock.unlockShared();
+            }
+        }
+        lock.lock();
+        try {
+            boolean changed = fileQueue.invisible.changeRevival(receiptHandle, revival);
+            maybeCompact(queue, fileQueue);
+            if (changed) {
+                scheduleRevival(queue, fileQueue, revival);
+            }
+            return changed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Change how long an in-flight message of a consumer group stays invisible, counting from now.
+     * @param queueUrl queue url
+     * @param group group name
+     * @param receiptHandle receipt handle of the message
+     * @param timeout new visibility timeout
+     * @param unit unit of the timeout
+     * @return true if the message was still in flight in the group
+     * @throws InterruptedException exception
+     * @throws IOException exception
+     */
+    public boolean changeVisibility(String queueUrl, String group, String receiptHandle, long timeout,
+                                    TimeUnit unit) throws InterruptedException, IOException {
+        String queue = fromUrl(queueUrl);
+        FileQueue fileQueue = getQueue(queue);
+        ConsumerGroup consumerGroup = getGroup(queue, fileQueue, group);
+        QueueLockManager.QueueLock groupLock = getGroupLock(queue, fileQueue, group);
+        long revival = now() + unit.toMillis(timeout);
+        UUID handle = parseHandle(receiptHandle);
+        boolean changed;
+        groupLock.lockShared();
+        try {
+            changed = handle != null && consumerGroup.claims.extend(handle.getMostSignificantBits(),
+                    handle.getLeastSignificantBits(), revival);
+        } finally {
+            groupLock.unlockShared();
+        }
+        if (changed) {
+            scheduleRevival(queue, fileQueue, revival);
+        }
+        return changed;
+    }
+
+    /**
+     * Have the reaper revive the timed out messages of a queue and its groups once a revival time passes.
+     * The time is rounded up to a tick, and a tick is scheduled once.
+     * @param queue queue name
+     * @param fileQueue the files of the queue
+     * @param revival revival time of a message
+     */
+    private void scheduleRevival(String queue, FileQueue fileQueue, long revival) {
+        long tick = (revival + REVIVAL_TICK_MILLIS - 1) / REVIVAL_TICK_MILLIS * REVIVAL_TICK_MILLIS;
+        if (fileQueue.revivals.add(tick)) {
+            reaper.schedule(() -> revive(queue, fileQueue, tick), Math.max(0, tick - now()), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Revive the timed out messages of a queue, let its groups deliver theirs again and wake the long polls.
+     * @param queue queue name
+     * @param fileQueue the files of the queue
+     * @param tick the scheduled tick
+     */
+    private void revive(String queue, FileQueue fileQueue, long tick) {
+        fileQueue.revivals.remove(tick);
+        if (queues.get(queue) != fileQueue) {
+            // Closed meanwhile
+            return;
+        }
+        try {
+            if (fileQueue.inFlightCount() > 0) {
+                clearInvisible(queue);
+            }
+            for (ConsumerGroup consumerGroup : fileQueue.groups.values()) {
+                consumerGroup.revivalPassed();
+            }
+            fileQueue.signal.signalAll();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to revive the messages of " + queue, e);
+        }
+    }
+
+    /**
+     * Schedule a compaction of the invisible log when dead records dominate it.
      * @param queue queue name
-     * @param afterDeleteMessages the messages to be put on the queue
+     * @param fileQueue the files of the queue
+     */
+    private void maybeCompact(String queue, FileQueue fileQueue) {
+        InvisibleLog invisible = fileQueue.invisible;
+        if (fileQueue.compacting || invisible.deadRecords() < COMPACTION_MIN_DEAD_RECORDS
+                || invisible.deadRatio() < COMPACTION_DEAD_RATIO) {
+            return;
+        }
+        fileQueue.compacting = true;
+        compactor.execute(() -> {
+            try {
+                compactInvisible(queue);
+            } catch (InterruptedException | IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to compact the invisible log of " + queue, e);
+            } finally {
+                fileQueue.compacting = false;
+            }
+        });
+    }
+
+    /**
+     * Rewrite the invisible log of a queue without its dead records.
+     * @param queue queue name
+     * @throws InterruptedException exception
      * @throws IOException exception
      */
-    private void generateNewInvisibleQueue(String queue, List<String> afterDeleteMessages) throws IOException {
-        Path invisiblePath = getInvisibleQueuePath(queue);
-        // Clear file content
-        PrintWriter writer = new PrintWriter(invisiblePath.toFile());
-        writer.print("");
-        writer.close();
-        // Write the content
-        for (String message: afterDeleteMessages) {
-            Files.write(invisiblePath, String.format("%s\n", message).getBytes(), StandardOpenOption.APPEND);
+    void compactInvisible(String queue) throws InterruptedException, IOException {
+        FileQueue fileQueue = getQueue(queue);
+        QueueLockManager.QueueLock lock = getLock(queue, QueueLockManager.Domain.CONSUMER);
+        lock.lock();
+        try {
+            fileQueue.invisible.compact();
+        } finally {
+            lock.unlock();
         }
     }
 
     /**
      * The number of visible messages.
      * @param queue queue name
-     * @return number of lines in 'messages' and 'shadow'
+     * @return number of unread records in the log and records in 'shadow'
      * @throws IOException exception
      */
     int getQueueSize(String queue) throws IOException {
-        return Files.readAllLines(getQueueMessageQueuePath(queue)).size()
-                + Files.readAllLines(getShadowQueueMessageQueuePath(queue)).size();
+        return getQueue(queue).visibleCount();
+    }
+
+    /**
+     * The number of messages a consumer group has not read yet.
+     * @param queue queue name
+     * @param group group name
+     * @return number of records after the cursor of the group
+     * @throws IOException exception
+     */
+    int getQueueSize(String queue, String group) throws IOException {
+        FileQueue fileQueue = getQueue(queue);
+        return fileQueue.log.size(getGroup(queue, fileQueue, group).cursor);
     }
 
     /**
      * The number of invisible messages.
      * @param queue queue name
-     * @return number of lines in 'invisible'
+     * @return number of live records in 'invisible'
      * @throws IOException exception
      */
     int getInvisibleSize(String queue) throws IOException {
-        return Files.readAllLines(getInvisibleQueuePath(queue)).size();
+        return getQueue(queue).inFlightCount();
+    }
+
+    /**
+     * The number of in-flight messages of a consumer group.
+     * @param queue queue name
+     * @param group group name
+     * @return number of taken slots in the claim table of the group
+     * @throws IOException exception
+     */
+    int getInvisibleSize(String queue, String group) throws IOException {
+        FileQueue fileQueue = getQueue(queue);
+        return getGroup(queue, fileQueue, group).inFlightCount();
+    }
+
+    /**
+     * The number of visible and invisible messages.
+     * @param queue queue name
+     * @return number of messages not yet deleted
+     * @throws IOException exception
+     */
+    int getTotalSize(String queue) throws IOException {
+        return getQueueSize(queue) + getInvisibleSize(queue);
     }
 
-    private Path getInvisibleQueuePath(String queue) throws IOException {
-        final String INVISIBLE_FILE_NAME = "invisible";
-        Path res = getQueueDir(queue).resolve(INVISIBLE_FILE_NAME);
-        if (Files.notExists(res)) {
-            Files.createFile(res);
+    int getTotalSize(String queue, String group) throws IOException {
+        return getQueueSize(queue, group) + getInvisibleSize(queue, group);
+    }
+
+    /**
+     * The number of segment files of a queue.
+     * @param queue queue name
+     * @return number of segments on disk
+     * @throws IOException exception
+     */
+    int getSegmentCount(String queue) throws IOException {
+        return getQueue(queue).log.segmentCount();
+    }
+
+    private FileQueue getQueue(String queue) throws IOException {
+        FileQueue fileQueue = queues.get(queue);
+        if (fileQueue != null) {
+            return fileQueue;
+        }
+        try {
+            return queues.computeIfAbsent(queue, name -> {
+                try {
+                    return openQueue(name);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
         }
-        return res;
     }
 
-    private Path getQueueMessageQueuePath(String queue) throws IOException {
-        final String MESSAGE_FILE_NAME = "messages";
+    /**
+     * Open the files of a consumer group of a retained queue, once per process. The cursor of a new group
+     * starts at the oldest message retained. Positioning a new group takes the producer lock of the queue and
+     * the lock of the group, so this is never called holding the locks of the queue.
+     * @param queue queue name
+     * @param fileQueue the queue
+     * @param group group name
+     * @return the group
+     * @throws IOException exception
+     */
+    private ConsumerGroup getGroup(String queue, FileQueue fileQueue, String group) throws IOException {
+        ConsumerGroup consumerGroup = fileQueue.groups.get(group);
+        if (consumerGroup == null) {
+            checkGroupName(group);
+            if (!retentions.containsKey(queue)) {
+                throw new IllegalStateException("Queue " + queue + " keeps no messages for consumer groups, "
+                        + "set a retention first");
+            }
+            try {
+                consumerGroup = fileQueue.groups.computeIfAbsent(group, name -> {
+                    try {
+                        return new ConsumerGroup(fileQueue.groupsDir.resolve(name));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+        if (!consumerGroup.isPositioned()) {
+            position(queue, fileQueue, group, consumerGroup);
+        }
+        return consumerGroup;
+    }
 
-        Path res = getQueueDir(queue).resolve(MESSAGE_FILE_NAME);
-        if (Files.notExists(res)) {
-            Files.createFile(res);
+    private void position(String queue, FileQueue fileQueue, String group, ConsumerGroup consumerGroup)
+            throws IOException {
+        QueueLockManager.QueueLock producerLock = getLock(queue, QueueLockManager.Domain.PRODUCER);
+        QueueLockManager.QueueLock groupLock = getGroupLock(queue, fileQueue, group);
+        try {
+            producerLock.lock();
+            try {
+                groupLock.lock();
+                try {
+                    // Another thread or process may have positioned it meanwhile
+                    if (!consumerGroup.isPositioned()) {
+                        fileQueue.log.moveCursor(consumerGroup.cursor, fileQueue.log.firstLocation());
+                        consumerGroup.setPositioned();
+                    }
+                } finally {
+                    groupLock.unlock();
+                }
+            } finally {
+                producerLock.unlock();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while creating consumer group " + group);
         }
-        return res;
     }
 
-    private Path getShadowQueueMessageQueuePath(String queue) throws IOException {
-        final String MESSAGE_SHADOW_NAME = "shadow";
+    /**
+     * Open the consumer groups of a queue created by any process, before taking the locks of the queue.
+     * @param queue queue name
+     * @param fileQueue the queue
+     * @throws IOException exception
+     */
+    private void openGroups(String queue, FileQueue fileQueue) throws IOException {
+        for (String group : fileQueue.groupNames()) {
+            getGroup(queue, fileQueue, group);
+        }
+    }
 
-        Path res = getQueueDir(queue).resolve(MESSAGE_SHADOW_NAME);
-        if (Files.notExists(res)) {
-            Files.createFile(res);
+    /**
+     * Remove the segments of a retained queue past its retention limits. The queue head and the cursors of
+     * the groups left behind move to the oldest message kept, their messages in the removed segments are lost.
+     * @param queue queue name
+     * @param fileQueue the queue
+     * @throws InterruptedException exception
+     * @throws IOException exception
+     */
+    private void enforceRetention(String queue, FileQueue fileQueue) throws InterruptedException, IOException {
+        Retention retention = retentions.get(queue);
+        if (retention == null) {
+            return;
         }
-        return res;
+        openGroups(queue, fileQueue);
+        QueueLockManager.QueueLock producerLock = getLock(queue, QueueLockManager.Domain.PRODUCER);
+        QueueLockManager.QueueLock consumerLock = getLock(queue, QueueLockManager.Domain.CONSUMER);
+        producerLock.lock();
+        try {
+            consumerLock.lock();
+            try {
+                long writtenBefore = retention.maxAgeMillis > 0 ? now() - retention.maxAgeMillis : 0;
+                if (fileQueue.log.removeRetained(writtenBefore, retention.maxBytes) == 0) {
+                    return;
+                }
+                fileQueue.log.skipRemoved();
+                // A group created meanwhile by another process is positioned after the removal
+                for (Map.Entry<String, ConsumerGroup> entry : fileQueue.groups.entrySet()) {
+                    QueueLockManager.QueueLock groupLock = getGroupLock(queue, fileQueue, entry.getKey());
+                    groupLock.lock();
+                    try {
+                        fileQueue.log.skipRemoved(entry.getValue().cursor);
+                    } finally {
+                        groupLock.unlock();
+                    }
+                }
+            } finally {
+                consumerLock.unlock();
+            }
+        } finally {
+            producerLock.unlock();
+        }
+    }
+
+    /**
+     * Open the files of a queue, rebuilding the message counts if the queue was not closed cleanly.
+     * Called by {@link #getQueue(String)} once per queue, other threads opening the queue wait for it.
+     * @param queue queue name
+     * @return the files of the queue
+     * @throws IOException exception
+     */
+    private FileQueue openQueue(String queue) throws IOException {
+        QueueMetrics queueMetrics = metrics.getQueueMetrics(queue);
+        FileQueue fileQueue = new FileQueue(getQueueDir(queue), segmentSize, queueMetrics);
+        fileQueue.writer.setDurability(durability);
+        fileQueue.writer.setBatchLimits(maxBatchDelayMicros, TimeUnit.MICROSECONDS, maxBatchBytes);
+        fileQueue.invisible.setCheckpointInterval(checkpointInterval);
+        fileQueue.log.setCompression(compressions.getOrDefault(queue, Compression.NONE));
+        fileQueue.log.setRetained(retentions.containsKey(queue));
+        fileQueue.capacity = capacities.get(queue);
+        if (fileQueue.needsRecount()) {
+            recount(queue, fileQueue);
+        }
+        getLock(queue, QueueLockManager.Domain.PRODUCER).recordWaits(queueMetrics.lockWait);
+        getLock(queue, QueueLockManager.Domain.CONSUMER).recordWaits(queueMetrics.lockWait);
+        queueMetrics.setDepthGauges(fileQueue, FileQueue::visibleCount, FileQueue::inFlightCount);
+        return fileQueue;
+    }
+
+    private void recount(String queue, FileQueue fileQueue) throws IOException {
+        QueueLockManager.QueueLock producerLock = getLock(queue, QueueLockManager.Domain.PRODUCER);
+        QueueLockManager.QueueLock consumerLock = getLock(queue, QueueLockManager.Domain.CONSUMER);
+        try {
+            producerLock.lock();
+            try {
+                consumerLock.lock();
+                try {
+                    fileQueue.recount();
+                } finally {
+                    consumerLock.unlock();
+                }
+            } finally {
+                producerLock.unlock();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            fileQueue.close();
+            throw new InterruptedIOException("Interrupted while counting the messages of " + queue);
+        }
+        LOGGER.info(String.format("Rebuilt the message counts of %s: %d visible, %d in flight", queue,
+                fileQueue.visibleCount(), fileQueue.inFlightCount()));
     }
 
     /**
      *  Purge the queue.
      * @param queue queue name
      */
-    protected void purgeQueue(String queue) throws IOException {
-        getQueueMessageQueuePath(queue).toFile().delete();
-        getShadowQueueMessageQueuePath(queue).toFile().delete();
-        getInvisibleQueuePath(queue).toFile().delete();
+    protected void purgeQueue(String queue) throws InterruptedException, IOException {
+        // Open the queue and its groups first, opening them may take the locks
+        FileQueue fileQueue = getQueue(queue);
+        if (retentions.containsKey(queue)) {
+            openGroups(queue, fileQueue);
+        }
+        // Always take the producer lock before the consumer lock
+        QueueLockManager.QueueLock producerLock = getLock(queue, QueueLockManager.Domain.PRODUCER);
+        QueueLockManager.QueueLock consumerLock = getLock(queue, QueueLockManager.Domain.CONSUMER);
+        producerLock.lock();
+        try {
+            consumerLock.lock();
+            try {
+                fileQueue.log.purge();
+                fileQueue.invisible.clear();
+                fileQueue.claims.clear();
+                Files.write(fileQueue.shadow, new byte[0]);
+                fileQueue.header.reset(0, 0);
+                for (Map.Entry<String, ConsumerGroup> entry : fileQueue.groups.entrySet()) {
+                    QueueLockManager.QueueLock groupLock = getGroupLock(queue, fileQueue, entry.getKey());
+                    groupLock.lock();
+                    try {
+                        entry.getValue().clearInFlight();
+                        fileQueue.log.moveCursor(entry.getValue().cursor, fileQueue.log.firstLocation());
+                    } finally {
+                        groupLock.unlock();
+                    }
+                }
+            } finally {
+                consumerLock.unlock();
+            }
+        } finally {
+            producerLock.unlock();
+        }
+        fileQueue.space.signalAll();
     }
 
     /**
-     * Clear the insivible queue.
+     * Revive the timed out messages of a queue into the shadow queue and schedule the next revival.
      * @param queue the name of the queue
      * @throws IOException exception
      */
-    protected void clearInvisible(String queue) throws IOException {
-        List<String> messages = Files.readAllLines(getInvisibleQueuePath(queue));
-        List<String> afterDeleteMessages = new LinkedList<String>();
-        Path shadowQueuePath = getShadowQueueMessageQueuePath(queue);
-        for (String rawMessage: messages) {
-            Message message = Message.fromString(rawMessage);
-            if (message == null) {
-                continue;
+    protected void clearInvisible(String queue) throws InterruptedException, IOException {
+        FileQueue fileQueue = getQueue(queue);
+        QueueLockManager.QueueLock lock = getLock(queue, QueueLockManager.Domain.CONSUMER);
+        lock.lock();
+        try {
+            long now = now();
+            ByteArrayOutputStream revived = new ByteArrayOutputStream();
+            List<Message> expired = fileQueue.invisible.removeExpired(now);
+            maybeCompact(queue, fileQueue);
+            // Put the timeout messages back to the shadow queue
+            for (Message message : expired) {
+                revived.write(message.encode());
+            }
+            // The claim table is only scanned while messages are in flight
+            List<ClaimTable.Expired> expiredClaims = fileQueue.inFlightCount() > 0
+                    ? fileQueue.claims.expired(now) : Collections.<ClaimTable.Expired>emptyList();
+            for (ClaimTable.Expired claim : expiredClaims) {
+                SegmentedLog.Record record = fileQueue.log.read(claim.location);
+                revived.write(RecordCodec.decode(record.buffer, record.position).encode());
             }
-            // Put the timeout message back to the shadow queue
-            if (message.getRevival() <= now()) {
-                Files.write(shadowQueuePath, String.format("%s\n", message).getBytes(), StandardOpenOption.APPEND);
-            } else {
-                afterDeleteMessages.add(rawMessage);
+            int count = expired.size() + expiredClaims.size();
+            if (count > 0) {
+                Files.write(fileQueue.shadow, revived.toByteArray(), StandardOpenOption.APPEND);
+                // Freed once the messages are in the shadow queue, a crash in between delivers them twice
+                for (ClaimTable.Expired claim : expiredClaims) {
+                    fileQueue.claims.free(claim);
+                }
+                fileQueue.header.addShadow(count);
+                fileQueue.header.addInFlight(-count);
+                fileQueue.metrics.revived(count);
+                fileQueue.signal.signalAll();
+            }
+            long next = fileQueue.inFlightCount() > 0
+                    ? Math.min(fileQueue.invisible.nextRevival(), fileQueue.claims.nextRevival()) : Long.MAX_VALUE;
+            if (next != Long.MAX_VALUE) {
+                // Also covers the messages delivered before a restart and by other processes
+                scheduleRevival(queue, fileQueue, next);
             }
+            fileQueue.log.sweep();
+        } finally {
+            lock.unlock();
         }
-        generateNewInvisibleQueue(queue, afterDeleteMessages);
+        enforceRetention(queue, fileQueue);
     }
 
     /**
-     * Read the last line of file and also delete it.
+     * Read the last records of a file and also delete them.
+     * The tail of the file is read in one call and scanned backwards from the buffer.
      * @param file the file to read
-     * @return last line of the file
+     * @param maxMessages maximum number of records to read
+     * @return the messages of the last records, the last record first
      * @throws IOException exception
      */
-    private String readFromLast(File file) throws IOException {
-        StringBuilder builder = new StringBuilder();
-        RandomAccessFile randomAccessFile = null;
-        try {
-            randomAccessFile = new RandomAccessFile(file, "rw");
-            LOGGER.info("File length: " + randomAccessFile.length());
-            long fileLength = file.length() - 2;
-            if (fileLength < 0) {
-                return "";
-            }
-            // Set the pointer to the end of the file.
-            randomAccessFile.seek(fileLength);
-            long pointer;
-            for (pointer = fileLength; pointer >= 0; pointer--) {
-                randomAccessFile.seek(pointer);
-                char singleChar;
-                // Read from the last one char at the time.
-                singleChar = (char)randomAccessFile.read();
-                // Break when find the end of the line.
-                if (singleChar == '\n') {
-                    break;
-                }
-                builder.append(singleChar);
-            }
-            /* Since line is read from the last so it
-             * is in reverse so use reverse method to make it right
-             */
-            randomAccessFile.getChannel().truncate(pointer + 1);
-            builder.reverse();
-            return builder.toString();
-        } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
-            if (randomAccessFile != null) {
-                try {
-                    randomAccessFile.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
+    private List<Message> readFromLast(Path file, int maxMessages) throws IOException {
+        List<Message> messages = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            if (size == 0) {
+                return messages;
+            }
+            ByteBuffer buffer = readTail(channel, size, TAIL_READ_SIZE);
+            int end = buffer.limit();
+            int start = RecordCodec.previous(buffer, end);
+            if (start < 0 && buffer.limit() >= RecordCodec.FRAME_OVERHEAD) {
+                // The record is larger than the first read, read it whole
+                buffer = readTail(channel, size, buffer.getInt(buffer.limit() - 4) + RecordCodec.FRAME_OVERHEAD);
+                end = buffer.limit();
+                start = RecordCodec.previous(buffer, end);
+            }
+            if (start < 0) {
+                throw new IOException("Corrupt record at the end of " + file);
+            }
+            while (start >= 0 && messages.size() < maxMessages) {
+                if (!RecordCodec.isIntact(buffer, start)) {
+                    throw new IOException("Corrupt record at the end of " + file);
                 }
+                messages.add(RecordCodec.decode(buffer, start));
+                end = start;
+                start = RecordCodec.previous(buffer, end);
             }
+            channel.truncate(size - buffer.limit() + end);
         }
-        return "";
+        return messages;
+    }
+
+    private ByteBuffer readTail(FileChannel channel, long size, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(size, length));
+        long position = size - buffer.capacity();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+        buffer.flip();
+        return buffer;
     }
 
     /**
@@ -285,11 +1475,10 @@ public class FileQueueService implements QueueService {
         return queueUrl;
     }
 
-    private File getLockFile(String queue) throws IOException {
-        final String LOCK_DIR = ".lock";
-
-        Path res = getQueueDir(queue).resolve(LOCK_DIR);
-        return res.toFile();
+    private static void checkGroupName(String group) {
+        if (!GROUP_NAME.matcher(group).matches()) {
+            throw new IllegalArgumentException("Invalid consumer group name: " + group);
+        }
     }
 
     /**
@@ -306,13 +1495,24 @@ public class FileQueueService implements QueueService {
         return queueDir;
     }
 
-    private void lock(File lock) throws InterruptedException {
-        while (!lock.mkdir()) {
-            Thread.sleep(50);
-        }
+    private QueueLockManager.QueueLock getLock(String queue, QueueLockManager.Domain domain) throws IOException {
+        return lockManager.get(queue, getQueueDir(queue), domain);
     }
 
-    private void unlock(File lock) {
-        lock.delete();
+    /**
+     * The lock of a consumer group, held shared by its pulls, deletes and extensions and exclusively to
+     * move its cursor. Taken after the producer and the consumer lock of the queue.
+     */
+    private QueueLockManager.QueueLock getGroupLock(String queue, FileQueue fileQueue, String group) {
+        return lockManager.get(groupKey(queue, group), fileQueue.groupsDir.resolve(group),
+                QueueLockManager.Domain.CONSUMER);
+    }
+
+    /**
+     * The name the lock and the metrics of a consumer group are kept under. A queue name, being the name of
+     * a directory, never holds the '/' separating the group.
+     */
+    private static String groupKey(String queue, String group) {
+        return queue + "/" + group;
     }
 }
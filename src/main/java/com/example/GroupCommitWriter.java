@@ -0,0 +1,155 @@
+package com.example;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Group commit of the records pushed to a {@link SegmentedLog}.
+ * A pushing thread queues its record and then takes the producer lock. The thread that gets the lock first
+ * becomes the leader: it takes every queued record, appends them with one write, flushes them with one
+ * force and marks them committed. The other threads find their record committed once they get the lock
+ * and return without touching the file. A caller returns only when its own record is committed under the
+ * chosen {@link Durability}.
+ */
+class GroupCommitWriter {
+    static final long DEFAULT_MAX_DELAY_MICROS = 2000;
+    static final int DEFAULT_MAX_BYTES = 256 * 1024;
+
+    private final SegmentedLog log;
+    private final ConcurrentLinkedQueue<PendingWrite> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicLong pendingBytes = new AtomicLong();
+    // Leader waiting for a batch to fill up
+    private volatile Thread lingering;
+    private volatile Durability durability = Durability.NONE;
+    private volatile long maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(DEFAULT_MAX_DELAY_MICROS);
+    private volatile int maxBytes = DEFAULT_MAX_BYTES;
+
+    /**
+     * Records of one caller waiting to be committed.
+     */
+    private static class PendingWrite {
+        final List<byte[]> records;
+        final int bytes;
+        boolean committed;
+        IOException failure;
+
+        PendingWrite(List<byte[]> records) {
+            this.records = records;
+            int size = 0;
+            for (byte[] record : records) {
+                size += record.length;
+            }
+            bytes = size;
+        }
+    }
+
+    GroupCommitWriter(SegmentedLog log) {
+        this.log = log;
+    }
+
+    void setDurability(Durability mode) {
+        durability = mode;
+    }
+
+    /**
+     * Set the limits of a batch in {@link Durability#BATCHED} mode.
+     * @param maxDelay how long the leader waits for more records
+     * @param unit unit of the delay
+     * @param bytes batch size that is committed without waiting
+     */
+    void setBatchLimits(long maxDelay, TimeUnit unit, int bytes) {
+        maxDelayNanos = unit.toNanos(maxDelay);
+        maxBytes = bytes;
+    }
+
+    /**
+     * Append records and wait until they are committed.
+     * The records of one call are committed together and in order.
+     * @param records the encoded records
+     * @param lock producer lock of the queue
+     * @throws InterruptedException exception
+     * @throws IOException if the records could not be written
+     */
+    void write(List<byte[]> records, QueueLockManager.QueueLock lock) throws InterruptedException, IOException {
+        PendingWrite write = new PendingWrite(records);
+        pending.add(write);
+        if (pendingBytes.addAndGet(write.bytes) >= maxBytes) {
+            Thread leader = lingering;
+            if (leader != null) {
+                LockSupport.unpark(leader);
+            }
+        }
+        lock.lock();
+        try {
+            if (!write.committed) {
+                Durability mode = durability;
+                if (mode == Durability.BATCHED) {
+                    linger();
+                }
+                commit(mode);
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (write.failure != null) {
+            throw new IOException("Failed to commit the records", write.failure);
+        }
+    }
+
+    /**
+     * Wait for more records until the batch is full or the delay is over.
+     */
+    private void linger() {
+        long deadline = System.nanoTime() + maxDelayNanos;
+        lingering = Thread.currentThread();
+        try {
+            long remaining = maxDelayNanos;
+            while (pendingBytes.get() < maxBytes && remaining > 0) {
+                LockSupport.parkNanos(this, remaining);
+                remaining = deadline - System.nanoTime();
+            }
+        } finally {
+            lingering = null;
+        }
+    }
+
+    private void commit(Durability mode) {
+        List<PendingWrite> batch = new ArrayList<>();
+        List<byte[]> records = new ArrayList<>();
+        PendingWrite write;
+        while ((write = pending.poll()) != null) {
+            pendingBytes.addAndGet(-write.bytes);
+            batch.add(write);
+            records.addAll(write.records);
+        }
+        if (mode == Durability.SYNC_EACH) {
+            for (PendingWrite each : batch) {
+                complete(each, append(each.records, true));
+            }
+        } else {
+            IOException failure = append(records, mode == Durability.BATCHED);
+            for (PendingWrite each : batch) {
+                complete(each, failure);
+            }
+        }
+    }
+
+    private IOException append(List<byte[]> records, boolean force) {
+        try {
+            log.append(records, force);
+            return null;
+        } catch (IOException e) {
+            return e;
+        }
+    }
+
+    private void complete(PendingWrite write, IOException failure) {
+        write.failure = failure;
+        write.committed = true;
+    }
+}
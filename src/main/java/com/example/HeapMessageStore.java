@@ -0,0 +1,48 @@
+package com.example;
+
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+/**
+ * {@link MessageStore} keeping the messages as objects in a lock-free deque.
+ */
+class HeapMessageStore implements MessageStore {
+    private final Deque<Message> messages = new ConcurrentLinkedDeque<>();
+
+    @Override
+    public void offerLast(Message message) {
+        messages.offerLast(message);
+    }
+
+    @Override
+    public void addAll(List<Message> batch) {
+        // The deque links the whole batch in at once
+        messages.addAll(batch);
+    }
+
+    @Override
+    public void offerFirst(Message message) {
+        messages.offerFirst(message);
+    }
+
+    @Override
+    public Message pollFirst() {
+        return messages.pollFirst();
+    }
+
+    @Override
+    public int size() {
+        return messages.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return messages.isEmpty();
+    }
+
+    @Override
+    public void clear() {
+        messages.clear();
+    }
+}
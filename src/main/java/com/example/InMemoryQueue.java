@@ -0,0 +1,182 @@
+package com.example;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The state of one queue of {@link InMemoryQueueService}.
+ * The visible messages sit in a {@link MessageStore}, a lock-free deque by default or off-heap segments,
+ * and the in-flight messages in a concurrent map from receipt handle to their timeout. The timeouts are
+ * striped over several {@link TimingWheel}s by receipt handle, so pulls and deletes on one queue from many
+ * threads rarely meet on the same wheel lock. The in-flight map decides every race: whoever removes the
+ * handle, a delete or the revival, owns the message.
+ * A queue counts the body bytes of its messages until they are deleted, so a {@link QueueCapacity} set at
+ * any time sees them all, and wakes the producers waiting for room on its space signal whenever messages are
+ * deleted or dropped.
+ */
+class InMemoryQueue {
+    private static final int WHEEL_SIZE = 512;
+    private static final int STRIPES =
+            Integer.highestOneBit(Math.max(Runtime.getRuntime().availableProcessors() - 1, 1)) << 1;
+
+    final MessageStore visible;
+    final ConcurrentHashMap<String, TimingWheel.Timeout<Message>> inFlight = new ConcurrentHashMap<>();
+    final QueueSignal signal = new QueueSignal();
+    final QueueSignal space = new QueueSignal();
+    // Body bytes of the messages not yet deleted
+    final AtomicLong bytes = new AtomicLong();
+    volatile QueueCapacity capacity;
+    final QueueMetrics metrics;
+    private final TimingWheel<Message>[] wheels;
+
+    @SuppressWarnings("unchecked")
+    InMemoryQueue(MessageStore visible, QueueMetrics metrics, long tickMillis, long now) {
+        this.visible = visible;
+        this.metrics = metrics;
+        metrics.setDepthGauges(this, queue -> queue.visible.size(), queue -> queue.inFlight.size());
+        wheels = (TimingWheel<Message>[]) new TimingWheel<?>[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            wheels[i] = new TimingWheel<>(tickMillis, WHEEL_SIZE, now);
+        }
+    }
+
+    /**
+     * Make pulled messages invisible until their revival time.
+     * A message is scheduled inside the map update, so it cannot expire before it is mapped.
+     * @param messages the pulled messages
+     */
+    void hide(List<Message> messages) {
+        for (Message message : messages) {
+            inFlight.compute(message.getReceiptHandle(),
+                (handle, previous) -> wheel(handle).schedule(message, message.getRevival()));
+        }
+    }
+
+    /**
+     * Delete an in-flight message.
+     * @param receiptHandle receipt handle of the message
+     * @return true if the message was in flight
+     */
+    boolean delete(String receiptHandle) {
+        TimingWheel.Timeout<Message> timeout = inFlight.remove(receiptHandle);
+        if (timeout == null) {
+            return false;
+        }
+        wheel(receiptHandle).cancel(timeout);
+        released(timeout.item);
+        space.signalAll();
+        return true;
+    }
+
+    /**
+     * The number of messages not yet deleted.
+     * @return number of visible and in-flight messages
+     */
+    int size() {
+        return visible.size() + inFlight.size();
+    }
+
+    /**
+     * Count the bytes of messages once they are added to the queue.
+     * @param messages the messages
+     */
+    void added(List<Message> messages) {
+        bytes.addAndGet(bodyBytes(messages));
+    }
+
+    /**
+     * Drop the oldest visible message to make room.
+     * @return false if no message is visible
+     */
+    boolean dropOldest() {
+        Message message = visible.pollFirst();
+        if (message == null) {
+            return false;
+        }
+        released(message);
+        metrics.dropped(1);
+        return true;
+    }
+
+    private void released(Message message) {
+        bytes.addAndGet(-message.getBody().length);
+    }
+
+    static long bodyBytes(List<Message> messages) {
+        long size = 0;
+        for (Message message : messages) {
+            size += message.getBody().length;
+        }
+        return size;
+    }
+
+    /**
+     * Move the revival time of an in-flight message.
+     * The timeout is replaced inside the map update, so a delete or a revival sees either the old or the new
+     * one. A timeout the wheel already expired belongs to the revival and stays as it is.
+     * @param receiptHandle receipt handle of the message
+     * @param revival new revival time
+     * @return true if the message was still in flight
+     */
+    boolean changeVisibility(String receiptHandle, long revival) {
+        boolean[] changed = new boolean[1];
+        inFlight.computeIfPresent(receiptHandle, (handle, timeout) -> {
+            TimingWheel<Message> wheel = wheel(handle);
+            if (!wheel.cancel(timeout)) {
+                return timeout;
+            }
+            changed[0] = true;
+            timeout.item.setRevival(revival);
+            return wheel.schedule(timeout.item, revival);
+        });
+        return changed[0];
+    }
+
+    /**
+     * Put the in-flight messages past their revival time back to the front of the queue.
+     * @param now current time
+     * @return number of revived messages
+     */
+    int revive(long now) {
+        int revived = 0;
+        for (TimingWheel<Message> wheel : wheels) {
+            if (wheel.size() == 0) {
+                continue;
+            }
+            for (Message message : wheel.expire(now)) {
+                // A message deleted while it expired is gone from the map
+                if (inFlight.remove(message.getReceiptHandle()) != null) {
+                    visible.offerFirst(message);
+                    revived++;
+                }
+            }
+        }
+        if (revived > 0) {
+            metrics.revived(revived);
+            signal.signalAll();
+        }
+        return revived;
+    }
+
+    /**
+     * Drop every visible and in-flight message.
+     */
+    void purge() {
+        // Released one by one, the bytes of the messages pushed meanwhile stay counted
+        Message message;
+        while ((message = visible.pollFirst()) != null) {
+            released(message);
+        }
+        for (String receiptHandle : new ArrayList<>(inFlight.keySet())) {
+            delete(receiptHandle);
+        }
+        space.signalAll();
+    }
+
+    private TimingWheel<Message> wheel(String receiptHandle) {
+        int hash = receiptHandle.hashCode();
+        return wheels[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+    }
+}
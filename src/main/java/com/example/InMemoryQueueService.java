@@ -1,38 +1,61 @@
 package com.example;
 
-import java.util.Comparator;
-import java.util.Deque;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedDeque;
-import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
 
 /**
  * InMemory implementation of queue service.
- * A hashmap maps from a queue name to a deque which stores the messages.
- * Another hashmap with same structure stores all the invisible messages.
- * A priority queue is used to store all the invisible messages together for quick restoring
- * timeout messages back to the main queue.
+ * A hashmap maps from a queue name to an {@link InMemoryQueue} which owns the visible messages, the
+ * invisible messages and their timeouts, so independent queues never contend.
+ * Pulling and deleting a message take constant time, and a reaper thread restores timeout messages back
+ * to the main queue.
+ * Consumers long polling an empty queue park on its {@link QueueSignal} until a push or a revival.
+ * With {@link #setOffHeapStorage(long, int)} the visible messages of new queues are serialized into direct
+ * buffers, so a large backlog does not weigh on the garbage collector.
+ * With {@link #setCapacity(String, long, long, OverflowPolicy)} a queue holds a bounded number of messages
+ * or bytes, and a push to a full queue waits, fails or drops the oldest messages.
  */
 public class InMemoryQueueService implements QueueService {
-    private static InMemoryQueueService instance = null;
-    private ConcurrentHashMap<String, Deque<Message>> mainQueue;
-    private ConcurrentHashMap<String, HashMap<String, Message>> invisibleQueueMap;
-    private PriorityBlockingQueue<Message> invisibleQueueHeap;
+    private static final long REAPER_TICK_MILLISECONDS = 10L;
 
-    private Long delayMilliSeconds = 500L;
+    private ConcurrentHashMap<String, InMemoryQueue> queues;
+    private MetricsRegistry metrics = new MetricsRegistry("InMemoryQueueService");
+
+    private volatile Long delayMilliSeconds = 500L;
+    private volatile long pushTimeoutMillis = QueueCapacity.DEFAULT_PUSH_TIMEOUT_MILLIS;
+    // Memory of the off-heap queues, null to keep messages on heap
+    private volatile OffHeapMemory offHeapMemory;
+
+    /**
+     * Created on first use by the class loader, which makes the creation thread-safe.
+     */
+    private static class Holder {
+        static final InMemoryQueueService INSTANCE = new InMemoryQueueService();
+    }
 
     private InMemoryQueueService() {
-        // A customized comparator is used to rank the priority queue by revival time.
-        Comparator<Message> comparator = new Comparator<Message>() {
-            @Override
-            public int compare(Message o1, Message o2) {
-                return o1.getRevival().compareTo(o2.getRevival());
+        queues = new ConcurrentHashMap<>();
+        Thread reaper = new Thread(this::reap, "in-memory-queue-reaper");
+        reaper.setDaemon(true);
+        reaper.start();
+    }
+
+    /**
+     * Restore timeout messages once per tick of the timing wheels.
+     */
+    private void reap() {
+        try {
+            while (true) {
+                Thread.sleep(REAPER_TICK_MILLISECONDS);
+                clearInvisible();
             }
-        };
-        invisibleQueueMap = new ConcurrentHashMap<>();
-        mainQueue = new ConcurrentHashMap<>();
-        invisibleQueueHeap = new PriorityBlockingQueue<>(10, comparator);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     private long now() {
@@ -43,15 +66,47 @@ public class InMemoryQueueService implements QueueService {
         delayMilliSeconds = time;
     }
 
+    /**
+     * Store the visible messages of queues created from now on off heap, or on heap again.
+     * Pushing to a queue whose messages would exceed the memory cap fails with an {@link IllegalStateException}.
+     * The cap is shared by all queues created until the next call.
+     * @param maxBytes memory cap in bytes, 0 to store messages on heap
+     * @param segmentSize size of the buffer segments in bytes
+     */
+    public void setOffHeapStorage(long maxBytes, int segmentSize) {
+        offHeapMemory = maxBytes > 0 ? new OffHeapMemory(maxBytes, segmentSize) : null;
+    }
+
+    /**
+     * Limit the messages of a queue not yet deleted, visible or in flight.
+     * The bytes counted are the UTF-8 bodies of the messages, including those pushed before the limit was set.
+     * @param queueUrl queue url
+     * @param maxMessages largest number of messages, 0 for no limit
+     * @param maxBytes largest number of body bytes, 0 for no limit
+     * @param policy what a push does when the queue is full
+     */
+    public void setCapacity(String queueUrl, long maxMessages, long maxBytes, OverflowPolicy policy) {
+        InMemoryQueue inMemoryQueue = getQueue(fromUrl(queueUrl));
+        inMemoryQueue.capacity = maxMessages == 0 && maxBytes == 0 ? null
+                : new QueueCapacity(maxMessages, maxBytes, policy);
+        inMemoryQueue.space.signalAll();
+    }
+
+    /**
+     * Set how long a push to a full queue with the {@link OverflowPolicy#BLOCK} policy waits for room.
+     * @param timeout push timeout
+     * @param unit unit of the timeout
+     */
+    public void setPushTimeout(long timeout, TimeUnit unit) {
+        pushTimeoutMillis = unit.toMillis(timeout);
+    }
+
     /**
      * Singleton usage of the class.
      * @return instance
      */
     public static InMemoryQueueService getInstance() {
-        if (instance == null) {
-            instance = new InMemoryQueueService();
-        }
-        return instance;
+        return Holder.INSTANCE;
     }
 
     /**
@@ -60,8 +115,7 @@ public class InMemoryQueueService implements QueueService {
      * @return size of the queue
      */
     int getQueueSize(String queue) {
-        Deque<Message> messageDeque = getMainQueue(queue);
-        return messageDeque.size();
+        return getQueue(queue).visible.size();
     }
 
     /**
@@ -70,7 +124,7 @@ public class InMemoryQueueService implements QueueService {
      * @return size of the invisible queue
      */
     int getInvisibleSize(String queue) {
-        return getInvisibleQueueMap(queue).size();
+        return getQueue(queue).inFlight.size();
     }
 
     /**
@@ -78,54 +132,211 @@ public class InMemoryQueueService implements QueueService {
      * @param queue queue name
      */
     protected void purgeQueue(String queue) {
-        getMainQueue(queue).clear();
-        getInvisibleQueueMap(queue).clear();
-        invisibleQueueHeap.clear();
+        getQueue(queue).purge();
     }
 
+    @Override
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Push a message.
+     * @throws QueueFullException if the queue is full and its policy makes no room in time
+     */
     @Override
     public void push(String queueUrl, String messageBody) {
+        pushMessage(queueUrl, new Message(messageBody), false);
+    }
+
+    /**
+     * Push a message with a UTF-8 body given as bytes.
+     * @throws QueueFullException if the queue is full and its policy makes no room in time
+     */
+    @Override
+    public void pushBytes(String queueUrl, byte[] messageBody) {
+        pushMessage(queueUrl, new Message(messageBody), false);
+    }
+
+    @Override
+    public boolean tryPush(String queueUrl, String messageBody) {
+        return pushMessage(queueUrl, new Message(messageBody), true);
+    }
+
+    private boolean pushMessage(String queueUrl, Message message, boolean tryOnly) {
+        final long start = System.nanoTime();
         String queue = fromUrl(queueUrl);
-        Deque<Message> messageDeque = getMainQueue(queue);
-        Message message = new Message(messageBody);
+        InMemoryQueue inMemoryQueue = getQueue(queue);
+        List<Message> messages = Collections.singletonList(message);
+        if (!admit(queue, inMemoryQueue, messages, tryOnly)) {
+            return false;
+        }
         message.setQueue(queue);
-        messageDeque.offerLast(message);
+        inMemoryQueue.visible.offerLast(message);
+        inMemoryQueue.added(messages);
+        inMemoryQueue.signal.signalAll();
+        inMemoryQueue.metrics.pushed(1, start);
+        return true;
     }
 
+    /**
+     * Make room for messages in a queue with a capacity, applying its overflow policy.
+     * A push interrupted while it waits for room gives up as if it timed out and keeps the interrupt status.
+     * @param queue queue name
+     * @param inMemoryQueue the queue
+     * @param messages the messages to push
+     * @param tryOnly whether to give up rather than wait or fail
+     * @return true if the messages fit, false if they do not and the caller tries only
+     * @throws QueueFullException if the messages do not fit and the caller does not try only
+     */
+    private boolean admit(String queue, InMemoryQueue inMemoryQueue, List<Message> messages, boolean tryOnly) {
+        QueueCapacity capacity = inMemoryQueue.capacity;
+        if (capacity == null) {
+            return true;
+        }
+        int count = messages.size();
+        long size = InMemoryQueue.bodyBytes(messages);
+        // A message is counted once it is added, it may be deleted before, which leaves the count short a moment
+        BooleanSupplier fits = () -> capacity.fits(inMemoryQueue.size(), Math.max(inMemoryQueue.bytes.get(), 0),
+                count, size);
+        if (fits.getAsBoolean()) {
+            return true;
+        }
+        if (capacity.fitsEmpty(count, size)) {
+            if (capacity.policy == OverflowPolicy.DROP_OLDEST) {
+                while (!fits.getAsBoolean() && inMemoryQueue.dropOldest()) {
+                    // Dropped one more
+                }
+                if (fits.getAsBoolean()) {
+                    return true;
+                }
+            } else if (capacity.policy == OverflowPolicy.BLOCK && !tryOnly && awaitSpace(inMemoryQueue, fits)) {
+                return true;
+            }
+        }
+        inMemoryQueue.metrics.rejected(count);
+        if (tryOnly) {
+            return false;
+        }
+        throw capacity.full(queue, count);
+    }
+
+    private boolean awaitSpace(InMemoryQueue inMemoryQueue, BooleanSupplier fits) {
+        try {
+            return inMemoryQueue.space.awaitUntil(fits, QueueSignal.deadline(pushTimeoutMillis, TimeUnit.MILLISECONDS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Push a batch, all of it or none when the queue is full.
+     * @throws QueueFullException if the queue is full and its policy makes no room in time
+     */
     @Override
-    public Message pull(String queueUrl) {
+    public void pushBatch(String queueUrl, List<String> messageBodies) {
+        final long start = System.nanoTime();
         String queue = fromUrl(queueUrl);
-        Deque<Message> messageQueue = getMainQueue(queue);
-        Message nextMessage = messageQueue.pollFirst();
+        InMemoryQueue inMemoryQueue = getQueue(queue);
+        List<Message> messages = new ArrayList<>(messageBodies.size());
+        for (String messageBody : messageBodies) {
+            Message message = new Message(messageBody);
+            message.setQueue(queue);
+            messages.add(message);
+        }
+        admit(queue, inMemoryQueue, messages, false);
+        inMemoryQueue.visible.addAll(messages);
+        inMemoryQueue.added(messages);
+        inMemoryQueue.signal.signalAll();
+        inMemoryQueue.metrics.pushed(messages.size(), start);
+    }
+
+    @Override
+    public Message pull(String queueUrl) {
+        long start = System.nanoTime();
+        InMemoryQueue inMemoryQueue = getQueue(fromUrl(queueUrl));
+        Message nextMessage = inMemoryQueue.visible.pollFirst();
         if (nextMessage != null) {
             nextMessage.setRevival(now() + delayMilliSeconds);
-            getInvisibleQueueMap(queue).put(nextMessage.getReceiptHandle(), nextMessage);
-            invisibleQueueHeap.add(nextMessage);
+            inMemoryQueue.hide(Collections.singletonList(nextMessage));
         }
+        inMemoryQueue.metrics.pulled(nextMessage == null ? 0 : 1, start);
         return nextMessage;
     }
 
+    @Override
+    public List<Message> pull(String queueUrl, int maxMessages) {
+        long start = System.nanoTime();
+        InMemoryQueue inMemoryQueue = getQueue(fromUrl(queueUrl));
+        List<Message> messages = new ArrayList<>(Math.min(maxMessages, 16));
+        Message nextMessage;
+        while (messages.size() < maxMessages && (nextMessage = inMemoryQueue.visible.pollFirst()) != null) {
+            messages.add(nextMessage);
+        }
+        if (!messages.isEmpty()) {
+            long revival = now() + delayMilliSeconds;
+            for (Message message : messages) {
+                message.setRevival(revival);
+            }
+            inMemoryQueue.hide(messages);
+        }
+        inMemoryQueue.metrics.pulled(messages.size(), start);
+        return messages;
+    }
+
+    @Override
+    public Message pull(String queueUrl, long waitTime, TimeUnit unit) throws InterruptedException {
+        List<Message> messages = pull(queueUrl, 1, waitTime, unit);
+        return messages.isEmpty() ? null : messages.get(0);
+    }
+
+    @Override
+    public List<Message> pull(String queueUrl, int maxMessages, long waitTime, TimeUnit unit) throws InterruptedException {
+        long deadline = QueueSignal.deadline(waitTime, unit);
+        InMemoryQueue inMemoryQueue = getQueue(fromUrl(queueUrl));
+        List<Message> messages = pull(queueUrl, maxMessages);
+        while (messages.isEmpty()
+                && inMemoryQueue.signal.awaitUntil(() -> !inMemoryQueue.visible.isEmpty(), deadline)) {
+            // Another consumer may take the message first, then wait again
+            messages = pull(queueUrl, maxMessages);
+        }
+        return messages;
+    }
+
     @Override
     public void delete(String queueUrl, String receiptHandle) {
-        String queue = fromUrl(queueUrl);
-        HashMap<String, Message> messageQueue = getInvisibleQueueMap(queue);
-        invisibleQueueHeap.remove(messageQueue.get(receiptHandle));
-        messageQueue.remove(receiptHandle);
+        long start = System.nanoTime();
+        InMemoryQueue inMemoryQueue = getQueue(fromUrl(queueUrl));
+        inMemoryQueue.metrics.deleted(inMemoryQueue.delete(receiptHandle) ? 1 : 0, start);
+    }
+
+    @Override
+    public void deleteBatch(String queueUrl, List<String> receiptHandles) {
+        long start = System.nanoTime();
+        InMemoryQueue inMemoryQueue = getQueue(fromUrl(queueUrl));
+        int deleted = 0;
+        for (String receiptHandle : receiptHandles) {
+            if (inMemoryQueue.delete(receiptHandle)) {
+                deleted++;
+            }
+        }
+        inMemoryQueue.metrics.deleted(deleted, start);
+    }
+
+    @Override
+    public boolean changeVisibility(String queueUrl, String receiptHandle, long timeout, TimeUnit unit) {
+        return getQueue(fromUrl(queueUrl)).changeVisibility(receiptHandle, now() + unit.toMillis(timeout));
     }
 
     /**
-     * Clean up the invisible heap, put the timeout message back to the main queue.
+     * Put the timeout messages of every queue back to the main queue.
+     * The reaper thread calls it on every tick, calling it directly restores timeout messages right away.
      */
     protected void clearInvisible() {
-        while (invisibleQueueHeap.size() > 0) {
-            Message message = invisibleQueueHeap.peek();
-            if (message.getRevival() <= now()) {
-                invisibleQueueHeap.remove(message);
-                getInvisibleQueueMap(message.getQueue()).remove(message.getReceiptHandle());
-                getMainQueue(message.getQueue()).offerFirst(message);
-            } else {
-                break;
-            }
+        long now = now();
+        for (InMemoryQueue inMemoryQueue : queues.values()) {
+            inMemoryQueue.revive(now);
         }
     }
 
@@ -138,11 +349,13 @@ public class InMemoryQueueService implements QueueService {
         return queueUrl;
     }
 
-    private Deque<Message> getMainQueue(String queue) {
-        return mainQueue.computeIfAbsent(queue, k -> new ConcurrentLinkedDeque<Message>());
+    private InMemoryQueue getQueue(String queue) {
+        return queues.computeIfAbsent(queue, this::createQueue);
     }
 
-    private HashMap<String, Message> getInvisibleQueueMap(String queue) {
-        return invisibleQueueMap.computeIfAbsent(queue, k -> new HashMap<String, Message>());
+    private InMemoryQueue createQueue(String queue) {
+        OffHeapMemory memory = offHeapMemory;
+        MessageStore visible = memory == null ? new HeapMessageStore() : new OffHeapMessageStore(queue, memory);
+        return new InMemoryQueue(visible, metrics.getQueueMetrics(queue), REAPER_TICK_MILLISECONDS, now());
     }
 }
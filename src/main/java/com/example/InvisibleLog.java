@@ -0,0 +1,449 @@
+package com.example;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.UUID;
+
+/**
+ * Log of the invisible (in-flight) messages of a queue.
+ * A pulled message is appended as a {@link RecordCodec} message record and a delete or a revival appends
+ * a tombstone record, so neither rewrites the file. An in-memory index maps every receipt handle to the
+ * offset of its live record, and a heap ordered by revival time finds the timed out messages. Compaction
+ * writes the live records to a new file that replaces the old one. The index follows records appended by
+ * other processes and is rebuilt when another process replaced the file. Callers hold the consumer lock.
+ * Every {@link #DEFAULT_CHECKPOINT_INTERVAL} bytes of records, and on close, the index is written to a
+ * checkpoint file. Opening the log loads the checkpoint and scans only the records appended after it, so
+ * opening takes time in proportion to the interval rather than to the file.
+ */
+class InvisibleLog implements Closeable {
+    static final long DEFAULT_CHECKPOINT_INTERVAL = 8L * 1024 * 1024;
+    private static final byte[] EMPTY = new byte[0];
+    private static final int CHECKPOINT_MAGIC = 0x51434B50;
+    // Receipt handle, offset, length and revival time of an entry in the checkpoint
+    private static final int CHECKPOINT_ENTRY_SIZE = 16 + 8 + 4 + 8;
+
+    private final Path path;
+    private final Path checkpointPath;
+    private long checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+    // Length of the file covered by the last checkpoint
+    private long checkpointedLength;
+    private FileChannel channel;
+    // Identity of the file the channel is open on
+    private Object fileKey;
+    // Length of the file covered by the index
+    private long indexedLength;
+    private long records;
+    private final Map<String, Entry> index = new HashMap<>();
+    private final PriorityQueue<Entry> revivals = new PriorityQueue<>((e1, e2) -> Long.compare(e1.revival, e2.revival));
+
+    /**
+     * Position of a live in-flight record.
+     */
+    private static class Entry {
+        final long offset;
+        final int length;
+        final long revival;
+        boolean dead;
+
+        Entry(long offset, int length, long revival) {
+            this.offset = offset;
+            this.length = length;
+            this.revival = revival;
+        }
+    }
+
+    InvisibleLog(Path path) throws IOException {
+        this.path = path;
+        checkpointPath = path.resolveSibling(path.getFileName() + ".checkpoint");
+        open();
+    }
+
+    /**
+     * Set how many bytes of records are appended between two checkpoints.
+     * @param bytes checkpoint interval in bytes
+     */
+    void setCheckpointInterval(long bytes) {
+        checkpointInterval = bytes;
+    }
+
+    /**
+     * Append in-flight records for pulled messages with a single write.
+     * @param messages the messages, with their revival time set
+     * @throws IOException exception
+     */
+    void add(List<Message> messages) throws IOException {
+        refresh();
+        List<byte[]> records = new ArrayList<>(messages.size());
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        for (Message message : messages) {
+            byte[] record = message.encode();
+            records.add(record);
+            data.write(record);
+        }
+        long offset = append(data.toByteArray(), records.size());
+        for (int i = 0; i < messages.size(); i++) {
+            Message message = messages.get(i);
+            Entry entry = new Entry(offset, records.get(i).length, message.getRevival());
+            Entry previous = index.put(message.getReceiptHandle(), entry);
+            if (previous != null) {
+                previous.dead = true;
+            }
+            revivals.add(entry);
+            offset += entry.length;
+        }
+        maybeCheckpoint();
+    }
+
+    /**
+     * Remove messages by appending tombstones with a single write.
+     * @param receiptHandles receipt handles of the messages
+     * @return receipt handles of the messages that were in flight
+     * @throws IOException exception
+     */
+    List<String> remove(List<String> receiptHandles) throws IOException {
+        refresh();
+        List<String> removed = new ArrayList<>();
+        ByteArrayOutputStream tombstones = new ByteArrayOutputStream();
+        for (String receiptHandle : receiptHandles) {
+            Entry entry = index.remove(receiptHandle);
+            if (entry != null) {
+                entry.dead = true;
+                removed.add(receiptHandle);
+                tombstones.write(tombstone(receiptHandle));
+            }
+        }
+        if (!removed.isEmpty()) {
+            append(tombstones.toByteArray(), removed.size());
+            maybeCheckpoint();
+        }
+        return removed;
+    }
+
+    /**
+     * Move the revival time of an in-flight message by appending its record again with the new time.
+     * @param receiptHandle receipt handle of the message
+     * @param revival new revival time
+     * @return true if the message was in flight
+     * @throws IOException exception
+     */
+    boolean changeRevival(String receiptHandle, long revival) throws IOException {
+        refresh();
+        Entry entry = index.get(receiptHandle);
+        if (entry == null) {
+            return false;
+        }
+        Message message = read(entry);
+        message.setRevival(revival);
+        add(Collections.singletonList(message));
+        return true;
+    }
+
+    /**
+     * Remove every message whose revival time has passed.
+     * @param now current time
+     * @return the timed out messages in revival order
+     * @throws IOException exception
+     */
+    List<Message> removeExpired(long now) throws IOException {
+        refresh();
+        List<Message> expired = new ArrayList<>();
+        ByteArrayOutputStream tombstones = new ByteArrayOutputStream();
+        while (!revivals.isEmpty() && revivals.peek().revival <= now) {
+            Entry entry = revivals.poll();
+            if (entry.dead) {
+                continue;
+            }
+            Message message = read(entry);
+            index.remove(message.getReceiptHandle());
+            entry.dead = true;
+            expired.add(message);
+            tombstones.write(tombstone(message.getReceiptHandle()));
+        }
+        if (!expired.isEmpty()) {
+            // One write for all the tombstones
+            append(tombstones.toByteArray(), expired.size());
+            maybeCheckpoint();
+        }
+        return expired;
+    }
+
+    /**
+     * The earliest revival time of the messages in flight, or earlier once that message is gone.
+     * @return revival time, or {@link Long#MAX_VALUE} if no message is in flight
+     * @throws IOException exception
+     */
+    long nextRevival() throws IOException {
+        refresh();
+        return revivals.isEmpty() ? Long.MAX_VALUE : revivals.peek().revival;
+    }
+
+    /**
+     * The number of messages in flight.
+     * @return size of the index
+     * @throws IOException exception
+     */
+    int size() throws IOException {
+        refresh();
+        return index.size();
+    }
+
+    /**
+     * Ratio of records in the file that are tombstones or deleted messages.
+     * @return dead ratio between 0 and 1
+     */
+    double deadRatio() {
+        return records == 0 ? 0 : (double) (records - index.size()) / records;
+    }
+
+    /**
+     * Number of records in the file that are tombstones or deleted messages.
+     * @return dead record count
+     */
+    long deadRecords() {
+        return records - index.size();
+    }
+
+    /**
+     * Rewrite the file with the live records only.
+     * @throws IOException exception
+     */
+    void compact() throws IOException {
+        refresh();
+        List<Entry> live = new ArrayList<>(index.values());
+        live.sort((e1, e2) -> Long.compare(e1.offset, e2.offset));
+        rewrite(live);
+    }
+
+    /**
+     * Drop every record.
+     * @throws IOException exception
+     */
+    void clear() throws IOException {
+        rewrite(new ArrayList<>());
+    }
+
+    /**
+     * Write the index to the checkpoint file, replacing the previous checkpoint.
+     * Skipped when the file system has no file identity to tie the checkpoint to the file.
+     * @throws IOException exception
+     */
+    void checkpoint() throws IOException {
+        refresh();
+        if (fileKey == null) {
+            return;
+        }
+        byte[] key = fileKey.toString().getBytes(StandardCharsets.UTF_8);
+        int size = 8 + key.length + 8 + 8 + 4 + index.size() * CHECKPOINT_ENTRY_SIZE + 4;
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(CHECKPOINT_MAGIC).putInt(key.length).put(key);
+        buffer.putLong(indexedLength).putLong(records).putInt(index.size());
+        for (Map.Entry<String, Entry> live : index.entrySet()) {
+            UUID handle = UUID.fromString(live.getKey());
+            Entry entry = live.getValue();
+            buffer.putLong(handle.getMostSignificantBits()).putLong(handle.getLeastSignificantBits());
+            buffer.putLong(entry.offset).putInt(entry.length).putLong(entry.revival);
+        }
+        buffer.putInt(Crc32c.checksum(buffer, 0, size - 4));
+        buffer.flip();
+        Path written = checkpointPath.resolveSibling(checkpointPath.getFileName() + ".tmp");
+        try (FileChannel target = FileChannel.open(written, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(target, buffer, 0);
+            target.force(false);
+        }
+        Files.move(written, checkpointPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        checkpointedLength = indexedLength;
+    }
+
+    /**
+     * Number of bytes of records that opening the log would scan.
+     * @return bytes appended since the last checkpoint
+     */
+    long uncheckpointedLength() {
+        return indexedLength - checkpointedLength;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (indexedLength > checkpointedLength) {
+            checkpoint();
+        }
+        channel.close();
+    }
+
+    private void open() throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        fileKey = Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+        index.clear();
+        revivals.clear();
+        records = 0;
+        checkpointedLength = 0;
+        if (loadCheckpoint()) {
+            scan(indexedLength);
+        } else {
+            scan(0);
+        }
+    }
+
+    /**
+     * Fill the index from the checkpoint file if it was written for the current file.
+     * @return true if the checkpoint was loaded
+     * @throws IOException exception
+     */
+    private boolean loadCheckpoint() throws IOException {
+        if (fileKey == null || Files.notExists(checkpointPath)) {
+            return false;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(checkpointPath));
+        int end = buffer.limit() - 4;
+        if (end < 8 || buffer.getInt(0) != CHECKPOINT_MAGIC || buffer.getInt(end) != Crc32c.checksum(buffer, 0, end)) {
+            return false;
+        }
+        buffer.position(4);
+        byte[] key = new byte[buffer.getInt()];
+        buffer.get(key);
+        long length = buffer.getLong();
+        if (!fileKey.toString().equals(new String(key, StandardCharsets.UTF_8)) || length > channel.size()) {
+            return false;
+        }
+        records = buffer.getLong();
+        int count = buffer.getInt();
+        for (int i = 0; i < count; i++) {
+            String receiptHandle = ReceiptHandles.toString(buffer.getLong(), buffer.getLong());
+            Entry entry = new Entry(buffer.getLong(), buffer.getInt(), buffer.getLong());
+            index.put(receiptHandle, entry);
+            revivals.add(entry);
+        }
+        indexedLength = length;
+        checkpointedLength = length;
+        return true;
+    }
+
+    private void maybeCheckpoint() throws IOException {
+        if (indexedLength - checkpointedLength >= checkpointInterval) {
+            checkpoint();
+        }
+    }
+
+    /**
+     * Bring the index up to date with the file, which another process may have appended to or replaced.
+     */
+    private void refresh() throws IOException {
+        Object key = Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+        if (key != null && !key.equals(fileKey)) {
+            channel.close();
+            open();
+        } else if (channel.size() > indexedLength) {
+            scan(indexedLength);
+        }
+    }
+
+    /**
+     * Replace the file by one holding the given records, the rename keeps the old file intact on a crash.
+     */
+    private void rewrite(List<Entry> live) throws IOException {
+        Path rewritten = path.resolveSibling(path.getFileName() + ".compact");
+        try (FileChannel target = FileChannel.open(rewritten, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            long position = 0;
+            for (Entry entry : live) {
+                ByteBuffer buffer = ByteBuffer.allocate(entry.length);
+                readFully(buffer, entry.offset);
+                buffer.flip();
+                position += writeFully(target, buffer, position);
+            }
+            target.force(false);
+        }
+        channel.close();
+        // The new file may reuse the identity of a file the checkpoint was written for
+        Files.deleteIfExists(checkpointPath);
+        Files.move(rewritten, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        open();
+    }
+
+    private void scan(long from) throws IOException {
+        long end = channel.size();
+        int position = 0;
+        if (end > from) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, from, end - from);
+            int next = RecordCodec.next(buffer, position);
+            // A partially written record is picked up by the next scan
+            while (next > 0 && RecordCodec.isIntact(buffer, position)) {
+                apply(buffer, position, from + position, next - position);
+                position = next;
+                next = RecordCodec.next(buffer, position);
+            }
+        }
+        indexedLength = from + position;
+    }
+
+    private void apply(ByteBuffer buffer, int position, long offset, int length) {
+        records++;
+        String receiptHandle = RecordCodec.receiptHandle(buffer, position);
+        if (RecordCodec.type(buffer, position) == RecordCodec.MESSAGE) {
+            Entry entry = new Entry(offset, length, RecordCodec.revival(buffer, position));
+            Entry previous = index.put(receiptHandle, entry);
+            if (previous != null) {
+                previous.dead = true;
+            }
+            revivals.add(entry);
+        } else {
+            Entry entry = index.remove(receiptHandle);
+            if (entry != null) {
+                entry.dead = true;
+            }
+        }
+    }
+
+    private Message read(Entry entry) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(entry.length);
+        readFully(buffer, entry.offset);
+        return RecordCodec.decode(buffer, 0);
+    }
+
+    private long append(byte[] data, int count) throws IOException {
+        long offset = channel.size();
+        writeFully(channel, ByteBuffer.wrap(data), offset);
+        records += count;
+        if (indexedLength == offset) {
+            indexedLength = offset + data.length;
+        }
+        return offset;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of " + path);
+            }
+        }
+    }
+
+    private static byte[] tombstone(String receiptHandle) {
+        return RecordCodec.encode(RecordCodec.TOMBSTONE, receiptHandle, 0L, EMPTY);
+    }
+
+    private static int writeFully(FileChannel target, ByteBuffer buffer, long position) throws IOException {
+        int written = 0;
+        while (buffer.hasRemaining()) {
+            written += target.write(buffer, position + written);
+        }
+        return written;
+    }
+}
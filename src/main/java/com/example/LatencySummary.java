@@ -0,0 +1,48 @@
+package com.example;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Count and percentiles of a latency histogram, in microseconds.
+ */
+public class LatencySummary {
+    private final long count;
+    private final double p50;
+    private final double p99;
+    private final double p999;
+
+    /**
+     * Create the summary of a histogram.
+     * @param count number of recorded latencies
+     * @param p50 median
+     * @param p99 99th percentile
+     * @param p999 99.9th percentile
+     */
+    @ConstructorProperties({"count", "p50", "p99", "p999"})
+    public LatencySummary(long count, double p50, double p99, double p999) {
+        this.count = count;
+        this.p50 = p50;
+        this.p99 = p99;
+        this.p999 = p999;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getP50() {
+        return p50;
+    }
+
+    public double getP99() {
+        return p99;
+    }
+
+    public double getP999() {
+        return p999;
+    }
+
+    public String toString() {
+        return String.format("count=%d p50=%.1fus p99=%.1fus p999=%.1fus", count, p50, p99, p999);
+    }
+}
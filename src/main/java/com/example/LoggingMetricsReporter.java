@@ -0,0 +1,24 @@
+package com.example;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes the metrics of every queue to {@link java.util.logging}.
+ */
+public class LoggingMetricsReporter implements MetricsReporter {
+    private static final Logger LOGGER = Logger.getLogger(LoggingMetricsReporter.class.getName());
+
+    private final Level level;
+
+    public LoggingMetricsReporter(Level level) {
+        this.level = level;
+    }
+
+    @Override
+    public void report(String service, String queue, QueueMetrics metrics) {
+        if (LOGGER.isLoggable(level)) {
+            LOGGER.log(level, service + " " + queue + ": " + metrics);
+        }
+    }
+}
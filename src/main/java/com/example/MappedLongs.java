@@ -0,0 +1,191 @@
+package com.example;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+
+/**
+ * Atomic operations on the longs of a memory-mapped file.
+ * Every process mapping the same file shares the same physical pages, so a compare-and-swap through the
+ * mapping is atomic across processes as well as across threads. The longs are stored big-endian, as
+ * {@link java.nio.ByteBuffer} writes them, so a field may also be read or written through the buffer itself.
+ * Offsets must be multiples of 8.
+ * The operations go through a byte buffer view {@code VarHandle}, looked up by reflection so the class still
+ * compiles for Java 8. On Java 8 itself they fall back to {@code sun.misc.Unsafe}, also found by reflection.
+ */
+final class MappedLongs {
+    private static final boolean SWAP = ByteOrder.nativeOrder() != ByteOrder.BIG_ENDIAN;
+    // (MappedLongs, int) long
+    private static final MethodHandle GET;
+    // (MappedLongs, int, long) void
+    private static final MethodHandle SET;
+    // (MappedLongs, int, long, long) boolean
+    private static final MethodHandle COMPARE_AND_SET;
+    // Unsafe operations on an absolute address, null when the VarHandle is used
+    private static final MethodHandle UNSAFE_GET;
+    private static final MethodHandle UNSAFE_SET;
+    private static final MethodHandle UNSAFE_COMPARE_AND_SWAP;
+    private static final MethodHandle ADDRESS;
+
+    static {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        MethodHandle[] handles;
+        MethodHandle[] unsafe = new MethodHandle[4];
+        try {
+            handles = varHandleOperations(lookup);
+        } catch (ReflectiveOperationException e) {
+            try {
+                unsafe = unsafeOperations(lookup);
+                handles = new MethodHandle[]{
+                    lookup.findStatic(MappedLongs.class, "unsafeGet",
+                            MethodType.methodType(long.class, MappedLongs.class, int.class)),
+                    lookup.findStatic(MappedLongs.class, "unsafeSet",
+                            MethodType.methodType(void.class, MappedLongs.class, int.class, long.class)),
+                    lookup.findStatic(MappedLongs.class, "unsafeCompareAndSet",
+                            MethodType.methodType(boolean.class, MappedLongs.class, int.class, long.class, long.class))
+                };
+            } catch (ReflectiveOperationException fallback) {
+                fallback.addSuppressed(e);
+                throw new ExceptionInInitializerError(fallback);
+            }
+        }
+        GET = handles[0];
+        SET = handles[1];
+        COMPARE_AND_SET = handles[2];
+        UNSAFE_GET = unsafe[0];
+        UNSAFE_SET = unsafe[1];
+        UNSAFE_COMPARE_AND_SWAP = unsafe[2];
+        ADDRESS = unsafe[3];
+    }
+
+    // Keeps the mapping alive as long as its address is used
+    private final ByteBuffer buffer;
+    private final long address;
+
+    MappedLongs(MappedByteBuffer buffer) {
+        this.buffer = buffer;
+        try {
+            address = ADDRESS == null ? 0 : (long) ADDRESS.invokeExact((Buffer) buffer);
+        } catch (Throwable e) {
+            throw new IllegalStateException("Cannot read the address of a mapping", e);
+        }
+    }
+
+    long get(int offset) {
+        try {
+            return (long) GET.invokeExact(this, offset);
+        } catch (Throwable e) {
+            throw failure(e);
+        }
+    }
+
+    void set(int offset, long value) {
+        try {
+            SET.invokeExact(this, offset, value);
+        } catch (Throwable e) {
+            throw failure(e);
+        }
+    }
+
+    boolean compareAndSet(int offset, long expected, long value) {
+        try {
+            return (boolean) COMPARE_AND_SET.invokeExact(this, offset, expected, value);
+        } catch (Throwable e) {
+            throw failure(e);
+        }
+    }
+
+    long addAndGet(int offset, long delta) {
+        while (true) {
+            long value = get(offset);
+            if (compareAndSet(offset, value, value + delta)) {
+                return value + delta;
+            }
+        }
+    }
+
+    /**
+     * Look up the volatile and compare-and-set accesses of a big-endian long view of a byte buffer,
+     * adapted to take this class instead of the buffer.
+     * @param lookup lookup of this class
+     * @return the get, set and compare-and-set handles
+     * @throws ReflectiveOperationException before Java 9
+     */
+    private static MethodHandle[] varHandleOperations(MethodHandles.Lookup lookup)
+            throws ReflectiveOperationException {
+        Class<?> varHandle = Class.forName("java.lang.invoke.VarHandle");
+        Class<?> accessMode = Class.forName("java.lang.invoke.VarHandle$AccessMode");
+        Object view = MethodHandles.class.getMethod("byteBufferViewVarHandle", Class.class, ByteOrder.class)
+                .invoke(null, long[].class, ByteOrder.BIG_ENDIAN);
+        Method toMethodHandle = varHandle.getMethod("toMethodHandle", accessMode);
+        MethodHandle buffer = lookup.findGetter(MappedLongs.class, "buffer", ByteBuffer.class);
+        MethodHandle[] handles = new MethodHandle[3];
+        String[] modes = {"GET_VOLATILE", "SET_VOLATILE", "COMPARE_AND_SET"};
+        for (int i = 0; i < modes.length; i++) {
+            MethodHandle access = (MethodHandle) toMethodHandle.invoke(view, accessMode.getField(modes[i]).get(null));
+            handles[i] = MethodHandles.filterArguments(access, 0, buffer);
+        }
+        return handles;
+    }
+
+    /**
+     * Look up the volatile and compare-and-swap operations of {@code sun.misc.Unsafe} on absolute addresses,
+     * and the address of a direct buffer.
+     * @param lookup lookup of this class
+     * @return the get, put, compare-and-swap and address handles
+     * @throws ReflectiveOperationException when Unsafe is missing
+     */
+    private static MethodHandle[] unsafeOperations(MethodHandles.Lookup lookup) throws ReflectiveOperationException {
+        Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+        Field field = unsafeClass.getDeclaredField("theUnsafe");
+        field.setAccessible(true);
+        Object unsafe = field.get(null);
+        long addressOffset = (long) unsafeClass.getMethod("objectFieldOffset", Field.class)
+                .invoke(unsafe, Buffer.class.getDeclaredField("address"));
+        MethodHandle getLong = lookup.unreflect(unsafeClass.getMethod("getLong", Object.class, long.class))
+                .bindTo(unsafe);
+        return new MethodHandle[]{
+            lookup.unreflect(unsafeClass.getMethod("getLongVolatile", Object.class, long.class)).bindTo(unsafe),
+            lookup.unreflect(unsafeClass.getMethod("putLongVolatile", Object.class, long.class, long.class))
+                    .bindTo(unsafe),
+            lookup.unreflect(unsafeClass.getMethod("compareAndSwapLong", Object.class, long.class, long.class,
+                    long.class)).bindTo(unsafe),
+            MethodHandles.insertArguments(getLong, 1, addressOffset)
+                    .asType(MethodType.methodType(long.class, Buffer.class))
+        };
+    }
+
+    private static long unsafeGet(MappedLongs longs, int offset) throws Throwable {
+        return order((long) UNSAFE_GET.invokeExact((Object) null, longs.address + offset));
+    }
+
+    private static void unsafeSet(MappedLongs longs, int offset, long value) throws Throwable {
+        UNSAFE_SET.invokeExact((Object) null, longs.address + offset, order(value));
+    }
+
+    private static boolean unsafeCompareAndSet(MappedLongs longs, int offset, long expected, long value)
+            throws Throwable {
+        return (boolean) UNSAFE_COMPARE_AND_SWAP.invokeExact((Object) null, longs.address + offset, order(expected),
+                order(value));
+    }
+
+    private static long order(long value) {
+        return SWAP ? Long.reverseBytes(value) : value;
+    }
+
+    private static RuntimeException failure(Throwable cause) {
+        if (cause instanceof RuntimeException) {
+            return (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        return new IllegalStateException(cause);
+    }
+}
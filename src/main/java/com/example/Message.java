@@ -1,23 +1,41 @@
 package com.example;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.UUID;
 
+/**
+ * A message and its receipt handle.
+ * The body is kept in the form it was given, a string or UTF-8 bytes, and converted to the other form only
+ * when that is asked for. Handles of new messages come from {@link ReceiptHandles} and are formatted as a
+ * string only when read, so pushing a message to the file queue never builds one.
+ */
 public class Message {
     private static final String messageSeparator = "@";
 
     private String messageBody;
+    private byte[] body;
     private String receiptHandle;
-    private Long revival;
+    // Halves of the receipt handle as a UUID, valid when hasHandleBits is set
+    private final long handleHigh;
+    private final long handleLow;
+    private final boolean hasHandleBits;
+    private long revival;
+    private final long enqueueTime;
     private String queue;
 
     /** Constructor with message body only.
      * @param body message body
      */
     public Message(String body) {
-        messageBody = body;
-        receiptHandle = UUID.randomUUID().toString();
-        revival = -1L;
-        queue = "";
+        this(body, null, ReceiptHandles.node(), ReceiptHandles.next(), -1L);
+    }
+
+    /** Constructor with a UTF-8 message body only.
+     * @param body message body, not copied
+     */
+    public Message(byte[] body) {
+        this(null, body, ReceiptHandles.node(), ReceiptHandles.next(), -1L);
     }
 
     /** Constructor with message body and receipt handle.
@@ -26,10 +44,7 @@ public class Message {
      * @param handle receipt handle
      */
     public Message(String body, String handle) {
-        messageBody = body;
-        receiptHandle = handle;
-        revival = -1L;
-        queue = "";
+        this(body, handle, -1L);
     }
 
     /** Constructor with message body, receipt handle and revival time.
@@ -37,22 +52,46 @@ public class Message {
      * @param handle receipt handle
      * @param rev revival time
      */
-    public Message(String body, String handle, Long rev) {
+    public Message(String body, String handle, long rev) {
         messageBody = body;
         receiptHandle = handle;
+        handleHigh = 0;
+        handleLow = 0;
+        hasHandleBits = false;
+        revival = rev;
+        enqueueTime = -1L;
+        queue = "";
+    }
+
+    /** Constructor with the halves of a UUID receipt handle.
+     * @param messageBody message body, or null if given as bytes
+     * @param body UTF-8 message body, or null if given as a string
+     * @param handleHigh high half of the receipt handle
+     * @param handleLow low half of the receipt handle
+     * @param rev revival time
+     */
+    Message(String messageBody, byte[] body, long handleHigh, long handleLow, long rev) {
+        this.messageBody = messageBody;
+        this.body = body;
+        this.handleHigh = handleHigh;
+        this.handleLow = handleLow;
+        hasHandleBits = true;
         revival = rev;
+        enqueueTime = ReceiptHandles.isGenerated(handleHigh, handleLow) ? ReceiptHandles.timestamp(handleLow) : -1L;
         queue = "";
     }
 
     public String toString() {
-        return String.format("%s%s%s%s%s", messageBody, messageSeparator,
-                receiptHandle, messageSeparator, revival);
+        return String.format("%s%s%s%s%s", getMessageBody(), messageSeparator,
+                getReceiptHandle(), messageSeparator, revival);
     }
 
-    /** Message decoder.
+    /** Message decoder for the text format of {@link #toString()}.
      * @param rawString input message string
      * @return Message object
+     * @deprecated a body containing the separator is not decoded correctly, use {@link #decode(ByteBuffer)}
      */
+    @Deprecated
     public static Message fromString(String rawString) {
         String[] temps = rawString.split(messageSeparator);
         if (temps.length < 3) {
@@ -61,22 +100,120 @@ public class Message {
         return new Message(temps[0], temps[1], Long.parseLong(temps[2]));
     }
 
+    /** Encode the message as a binary record.
+     * The record has a length prefix, a CRC-32C checksum of the payload, the receipt handle and the revival
+     * time in fixed-width fields and the UTF-8 body, so any body survives the round trip.
+     * @return the record
+     * @throws IllegalArgumentException if the receipt handle is not a UUID
+     */
+    public byte[] encode() {
+        if (hasHandleBits) {
+            return RecordCodec.encode(RecordCodec.MESSAGE, handleHigh, handleLow, revival, getBody());
+        }
+        return RecordCodec.encode(RecordCodec.MESSAGE, receiptHandle, revival, getBody());
+    }
+
+    /** Decode the record at the position of a buffer and move the position past it.
+     * @param buffer buffer holding records written by {@link #encode()}
+     * @return the message, or null if no complete record starts at the position
+     * @throws IllegalArgumentException if the record does not match its checksum
+     */
+    public static Message decode(ByteBuffer buffer) {
+        int position = buffer.position();
+        int end = RecordCodec.next(buffer, position);
+        if (end < 0) {
+            return null;
+        }
+        if (!RecordCodec.isIntact(buffer, position)) {
+            throw new IllegalArgumentException("Corrupt record at " + position);
+        }
+        buffer.position(end);
+        return RecordCodec.decode(buffer, position);
+    }
+
+    /**
+     * The message body, decoded from its UTF-8 bytes on first use.
+     * @return the body
+     */
     public String getMessageBody() {
-        return messageBody;
+        String text = messageBody;
+        if (text == null) {
+            text = new String(body, StandardCharsets.UTF_8);
+            messageBody = text;
+        }
+        return text;
+    }
+
+    /** The message body as UTF-8 bytes.
+     * @return the body, not a copy
+     */
+    public byte[] getBody() {
+        byte[] bytes = body;
+        if (bytes == null) {
+            bytes = messageBody.getBytes(StandardCharsets.UTF_8);
+            body = bytes;
+        }
+        return bytes;
     }
 
+    /** The message body as a read-only buffer of UTF-8 bytes.
+     * @return a view of the body
+     */
+    public ByteBuffer getBodyBuffer() {
+        return ByteBuffer.wrap(getBody()).asReadOnlyBuffer();
+    }
+
+    /**
+     * The receipt handle, formatted from its two longs on first use.
+     * @return the receipt handle
+     */
     public String getReceiptHandle() {
-        return receiptHandle;
+        String handle = receiptHandle;
+        if (handle == null) {
+            handle = ReceiptHandles.toString(handleHigh, handleLow);
+            receiptHandle = handle;
+        }
+        return handle;
     }
 
-    public Long getRevival() {
+    /** Rough number of heap bytes taken by the message, counting the body in each form it is held in.
+     * @return estimated size in bytes
+     */
+    int estimatedSize() {
+        return 96 + (body == null ? 0 : body.length) + (messageBody == null ? 0 : 2 * messageBody.length());
+    }
+
+    /** The high half of the receipt handle as a UUID.
+     * @return most significant bits of the handle
+     * @throws IllegalArgumentException if the receipt handle is not a UUID
+     */
+    long handleHigh() {
+        return hasHandleBits ? handleHigh : UUID.fromString(receiptHandle).getMostSignificantBits();
+    }
+
+    /** The low half of the receipt handle as a UUID.
+     * @return least significant bits of the handle
+     * @throws IllegalArgumentException if the receipt handle is not a UUID
+     */
+    long handleLow() {
+        return hasHandleBits ? handleLow : UUID.fromString(receiptHandle).getLeastSignificantBits();
+    }
+
+    public long getRevival() {
         return revival;
     }
 
-    public void setRevival(Long rev) {
+    public void setRevival(long rev) {
         revival = rev;
     }
 
+    /** The time the message was first pushed, read from its receipt handle.
+     * @return time in milliseconds, or -1 if the handle does not tell
+     */
+    public long getEnqueueTime() {
+        return enqueueTime;
+    }
+
     public String getQueue() {
         return queue;
     }
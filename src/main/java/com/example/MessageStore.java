@@ -0,0 +1,42 @@
+package com.example;
+
+import java.util.List;
+
+/**
+ * The visible messages of an {@link InMemoryQueue}, in delivery order.
+ * Messages are pushed at the tail and pulled from the head, revived messages go back to the head.
+ * Implementations are safe for concurrent use.
+ */
+interface MessageStore {
+    /**
+     * Add a message at the tail.
+     * @param message the message
+     * @throws IllegalStateException if the store is full
+     */
+    void offerLast(Message message);
+
+    /**
+     * Add messages at the tail, all or none.
+     * @param messages the messages, in order
+     * @throws IllegalStateException if the store is full
+     */
+    void addAll(List<Message> messages);
+
+    /**
+     * Put a revived message back at the head.
+     * @param message the message
+     */
+    void offerFirst(Message message);
+
+    /**
+     * Remove the message at the head.
+     * @return the message, or null if the store is empty
+     */
+    Message pollFirst();
+
+    int size();
+
+    boolean isEmpty();
+
+    void clear();
+}
@@ -0,0 +1,183 @@
+package com.example;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * The metrics of the queues of one {@link QueueService}.
+ * The metrics of a queue are created on its first use and registered with the platform MBean server as
+ * {@code com.example:type=QueueMetrics,service=<service>,queue=<queue>}. Reporters read them periodically.
+ * The names do not depend on the number of instances: the metrics registered last under a name replace the
+ * previous ones. {@link #unregister(String)} and {@link #close()} remove them from the MBean server.
+ */
+public class MetricsRegistry {
+    private static final Logger LOGGER = Logger.getLogger(MetricsRegistry.class.getName());
+    // The metrics currently registered under each name, guarded by itself
+    private static final Map<ObjectName, QueueMetrics> REGISTERED = new HashMap<>();
+    private static final ScheduledExecutorService REPORTER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "queue-metrics-reporter");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final String service;
+    private final ConcurrentHashMap<String, QueueMetrics> queues = new ConcurrentHashMap<>();
+
+    /**
+     * Create the registry of a service.
+     * @param serviceName name of the service in the MBean names
+     */
+    MetricsRegistry(String serviceName) {
+        service = serviceName;
+    }
+
+    /**
+     * The name of the service in the MBean names.
+     * @return service name
+     */
+    public String getService() {
+        return service;
+    }
+
+    /**
+     * Get the metrics of a queue, creating them on first use.
+     * @param queue queue name
+     * @return the metrics
+     */
+    public QueueMetrics getQueueMetrics(String queue) {
+        return getQueueMetrics(queue, null);
+    }
+
+    /**
+     * Get the metrics of a queue, creating and initializing them on first use.
+     * @param queue queue name
+     * @param initializer sets up new metrics, such as their depth gauges, may be null
+     * @return the metrics
+     */
+    QueueMetrics getQueueMetrics(String queue, Consumer<QueueMetrics> initializer) {
+        QueueMetrics metrics = queues.get(queue);
+        if (metrics == null) {
+            QueueMetrics created = new QueueMetrics();
+            if (initializer != null) {
+                initializer.accept(created);
+            }
+            metrics = queues.putIfAbsent(queue, created);
+            if (metrics == null) {
+                metrics = created;
+                registerMBean(queue, created);
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * Find the metrics of a queue without creating them.
+     * @param queue queue name
+     * @return the metrics, or null before the first use of the queue
+     */
+    QueueMetrics find(String queue) {
+        return queues.get(queue);
+    }
+
+    /**
+     * Drop the metrics of a queue and unregister them from the MBean server.
+     * @param queue queue name
+     */
+    public void unregister(String queue) {
+        QueueMetrics metrics = queues.remove(queue);
+        if (metrics != null) {
+            unregisterMBean(queue, metrics);
+        }
+    }
+
+    /**
+     * Drop the metrics of every queue, when the service closes.
+     */
+    public void close() {
+        for (String queue : queues.keySet()) {
+            unregister(queue);
+        }
+    }
+
+    /**
+     * The metrics of every queue used so far.
+     * @return metrics by queue name
+     */
+    public Map<String, QueueMetrics> getQueues() {
+        return Collections.unmodifiableMap(queues);
+    }
+
+    /**
+     * Report the metrics of every queue periodically on a daemon thread.
+     * @param reporter the reporter
+     * @param period time between two reports
+     * @param unit unit of the period
+     * @return handle to cancel the reporting
+     */
+    public ScheduledFuture<?> startReporting(MetricsReporter reporter, long period, TimeUnit unit) {
+        return REPORTER.scheduleAtFixedRate(() -> report(reporter), period, period, unit);
+    }
+
+    /**
+     * Report the metrics of every queue once.
+     * @param reporter the reporter
+     */
+    public void report(MetricsReporter reporter) {
+        for (Map.Entry<String, QueueMetrics> entry : queues.entrySet()) {
+            try {
+                reporter.report(service, entry.getKey(), entry.getValue());
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Failed to report the metrics of " + entry.getKey(), e);
+            }
+        }
+    }
+
+    private void registerMBean(String queue, QueueMetrics metrics) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = objectName(queue);
+            synchronized (REGISTERED) {
+                if (REGISTERED.remove(name) != null && server.isRegistered(name)) {
+                    server.unregisterMBean(name);
+                }
+                server.registerMBean(metrics, name);
+                REGISTERED.put(name, metrics);
+            }
+        } catch (JMException e) {
+            LOGGER.log(Level.WARNING, "Failed to register the metrics of " + queue + " with JMX", e);
+        }
+    }
+
+    private void unregisterMBean(String queue, QueueMetrics metrics) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = objectName(queue);
+            synchronized (REGISTERED) {
+                // Leave the metrics of a newer instance registered under the same name
+                if (REGISTERED.remove(name, metrics) && server.isRegistered(name)) {
+                    server.unregisterMBean(name);
+                }
+            }
+        } catch (JMException e) {
+            LOGGER.log(Level.WARNING, "Failed to unregister the metrics of " + queue + " from JMX", e);
+        }
+    }
+
+    private ObjectName objectName(String queue) throws JMException {
+        return new ObjectName(String.format("com.example:type=QueueMetrics,service=%s,queue=%s",
+                ObjectName.quote(service), ObjectName.quote(queue)));
+    }
+}
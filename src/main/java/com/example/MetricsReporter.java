@@ -0,0 +1,14 @@
+package com.example;
+
+/**
+ * Receives the metrics of every queue of a service, see {@link MetricsRegistry#startReporting}.
+ */
+public interface MetricsReporter {
+    /**
+     * Report the metrics of one queue.
+     * @param service name of the service
+     * @param queue queue name
+     * @param metrics metrics of the queue
+     */
+    void report(String service, String queue, QueueMetrics metrics);
+}
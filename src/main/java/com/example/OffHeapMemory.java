@@ -0,0 +1,64 @@
+package com.example;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Pool of direct buffers shared by the {@link OffHeapMessageStore}s of a service, bounded by a memory cap.
+ * Buffers of the segment size are kept for reuse once released, since direct memory is only returned to
+ * the system when the garbage collector finds the buffer. A buffer for a message larger than a segment is
+ * allocated for it alone and dropped when released.
+ */
+class OffHeapMemory {
+    static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+
+    private final long capacity;
+    private final int segmentSize;
+    private final Deque<ByteBuffer> free = new ArrayDeque<>();
+    private long allocated;
+
+    /**
+     * Create an empty pool.
+     * @param capacity maximum number of bytes allocated at once
+     * @param segmentSize size of a segment in bytes
+     */
+    OffHeapMemory(long capacity, int segmentSize) {
+        this.capacity = capacity;
+        this.segmentSize = segmentSize;
+    }
+
+    long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Take a buffer for a segment.
+     * @param minSize number of bytes the buffer must hold at least
+     * @return an empty buffer, or null if the memory cap is reached
+     */
+    synchronized ByteBuffer allocate(int minSize) {
+        if (minSize <= segmentSize && !free.isEmpty()) {
+            return free.pollFirst();
+        }
+        int size = Math.max(segmentSize, minSize);
+        if (allocated + size > capacity) {
+            return null;
+        }
+        allocated += size;
+        return ByteBuffer.allocateDirect(size);
+    }
+
+    /**
+     * Give back a buffer taken by {@link #allocate(int)}.
+     * @param buffer the buffer
+     */
+    synchronized void release(ByteBuffer buffer) {
+        buffer.clear();
+        if (buffer.capacity() == segmentSize) {
+            free.offerFirst(buffer);
+        } else {
+            allocated -= buffer.capacity();
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.example;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * {@link MessageStore} serializing the messages into a ring of direct buffer segments.
+ * A message takes its receipt handle and UTF-8 body, {@code [body length][handle][body]}, so a backlog costs
+ * no heap objects per message and the garbage collector never scans it. Pushes append to the tail segment
+ * and pulls read the head segment, which goes back to the {@link OffHeapMemory} pool once read. Revived
+ * messages are still objects owned by the timing wheels, so they wait on heap in front of the ring.
+ * All methods lock the store.
+ */
+class OffHeapMessageStore implements MessageStore {
+    private static final int HEADER_SIZE = 4 + 16;
+
+    private final String queue;
+    private final OffHeapMemory memory;
+    // Segments in ring order, each read from its position up to its limit while filled up to the limit
+    private final Deque<ByteBuffer> segments = new ArrayDeque<>();
+    private final Deque<Message> revived = new ArrayDeque<>();
+    private int count;
+
+    /**
+     * Create an empty store.
+     * @param queue name of the queue, set on the messages read back
+     * @param memory pool the segments are taken from
+     */
+    OffHeapMessageStore(String queue, OffHeapMemory memory) {
+        this.queue = queue;
+        this.memory = memory;
+    }
+
+    @Override
+    public synchronized void offerLast(Message message) {
+        ByteBuffer segment = write(message);
+        if (segment == null) {
+            throw full();
+        }
+        count++;
+    }
+
+    @Override
+    public synchronized void addAll(List<Message> messages) {
+        ByteBuffer tail = segments.peekLast();
+        int tailLimit = tail == null ? 0 : tail.limit();
+        int segmentCount = segments.size();
+        for (Message message : messages) {
+            if (write(message) == null) {
+                // Undo the messages of the batch written so far
+                while (segments.size() > segmentCount) {
+                    memory.release(segments.pollLast());
+                }
+                if (tail != null) {
+                    tail.limit(tailLimit);
+                }
+                throw full();
+            }
+        }
+        count += messages.size();
+    }
+
+    @Override
+    public synchronized void offerFirst(Message message) {
+        revived.offerFirst(message);
+    }
+
+    @Override
+    public synchronized Message pollFirst() {
+        Message message = revived.pollFirst();
+        if (message != null || count == 0) {
+            return message;
+        }
+        ByteBuffer segment = segments.peekFirst();
+        while (!segment.hasRemaining()) {
+            // Records never span segments, so an exhausted head segment is followed by another
+            memory.release(segments.pollFirst());
+            segment = segments.peekFirst();
+        }
+        int length = segment.getInt();
+        final long handleHigh = segment.getLong();
+        final long handleLow = segment.getLong();
+        byte[] body = new byte[length];
+        segment.get(body);
+        count--;
+        if (count == 0) {
+            // Keep one segment and start it over
+            while (segments.size() > 1) {
+                memory.release(segments.pollFirst());
+            }
+            segments.peekFirst().position(0).limit(0);
+        }
+        message = new Message(null, body, handleHigh, handleLow, -1L);
+        message.setQueue(queue);
+        return message;
+    }
+
+    @Override
+    public synchronized int size() {
+        return count + revived.size();
+    }
+
+    @Override
+    public synchronized boolean isEmpty() {
+        return count == 0 && revived.isEmpty();
+    }
+
+    @Override
+    public synchronized void clear() {
+        while (!segments.isEmpty()) {
+            memory.release(segments.pollFirst());
+        }
+        revived.clear();
+        count = 0;
+    }
+
+    /**
+     * Append a message to the tail segment, moving on to a new segment when it does not fit.
+     * @param message the message
+     * @return the segment written to, or null if the memory cap is reached
+     */
+    private ByteBuffer write(Message message) {
+        byte[] body = message.getBody();
+        int size = HEADER_SIZE + body.length;
+        ByteBuffer segment = segments.peekLast();
+        if (segment == null || segment.capacity() - segment.limit() < size) {
+            segment = memory.allocate(size);
+            if (segment == null) {
+                return null;
+            }
+            segment.limit(0);
+            segments.offerLast(segment);
+        }
+        // Write behind the limit through a view, the segment keeps its read position
+        ByteBuffer tail = segment.duplicate();
+        tail.limit(tail.capacity()).position(segment.limit());
+        tail.putInt(body.length).putLong(message.handleHigh()).putLong(message.handleLow()).put(body);
+        segment.limit(tail.position());
+        return segment;
+    }
+
+    private IllegalStateException full() {
+        return new IllegalStateException(String.format("Off-heap memory cap of %d bytes reached by queue %s",
+                memory.getCapacity(), queue));
+    }
+}
@@ -0,0 +1,21 @@
+package com.example;
+
+/**
+ * What a push does when its queue is at capacity, see {@link InMemoryQueueService#setCapacity} and
+ * {@link FileQueueService#setCapacity}.
+ */
+public enum OverflowPolicy {
+    /**
+     * Wait for consumers to delete messages, up to the push timeout, then fail with a {@link QueueFullException}.
+     */
+    BLOCK,
+    /**
+     * Fail at once with a {@link QueueFullException}.
+     */
+    REJECT,
+    /**
+     * Drop the oldest visible messages to make room. Messages in flight are never dropped, a push that only
+     * they keep out fails with a {@link QueueFullException}.
+     */
+    DROP_OLDEST
+}
@@ -0,0 +1,244 @@
+package com.example;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Queue service splitting every queue into partitions, so one busy queue spreads over as many queues of the
+ * underlying service, each with its own lock or deque.
+ * Partition i of queue q is the queue {@code q#i} of the underlying service. Pushes go to the partitions in
+ * turn, or to the partition of a key with {@link #pushWithKey(String, String, String)}, which keeps the
+ * messages of one key in order. Every consumer thread has a home partition and pulls from it first; when it
+ * is empty the consumer steals from the other partitions. The receipt handles of pulled messages are prefixed
+ * with their partition, {@code i:handle}, so deletes go straight to the right partition.
+ * Ordering across partitions is not kept.
+ */
+public class PartitionedQueueService implements QueueService {
+    private static final String PARTITION_SEPARATOR = "#";
+    private static final char HANDLE_SEPARATOR = ':';
+    // Longest wait of a long poll on the home partition before the other partitions are checked again
+    static final long STEAL_INTERVAL_MILLISECONDS = 50L;
+
+    private final QueueService service;
+    private final int partitions;
+    private final MetricsRegistry metrics = new MetricsRegistry("PartitionedQueueService");
+    private final Map<String, AtomicInteger> nextPartitions = new ConcurrentHashMap<>();
+    private final AtomicInteger homes = new AtomicInteger();
+    private final ThreadLocal<Integer> home = ThreadLocal.withInitial(homes::getAndIncrement);
+
+    /**
+     * Spread every queue over a number of partitions of another service.
+     * @param service the underlying service holding the partitions
+     * @param partitions number of partitions of every queue
+     */
+    public PartitionedQueueService(QueueService service, int partitions) {
+        if (partitions < 1) {
+            throw new IllegalArgumentException("At least one partition is needed, got " + partitions);
+        }
+        this.service = service;
+        this.partitions = partitions;
+    }
+
+    /**
+     * The name of a partition in the underlying service.
+     * @param queueUrl queue url
+     * @param partition partition number
+     * @return queue url of the partition
+     */
+    static String partitionUrl(String queueUrl, int partition) {
+        return queueUrl + PARTITION_SEPARATOR + partition;
+    }
+
+    @Override
+    public void push(String queueUrl, String messageBody) throws InterruptedException, IOException {
+        long start = System.nanoTime();
+        service.push(partitionUrl(queueUrl, nextPartition(queueUrl)), messageBody);
+        metrics.getQueueMetrics(queueUrl).pushed(1, start);
+    }
+
+    /**
+     * Try the next partition in turn only, a full partition sheds the message even if another has room.
+     */
+    @Override
+    public boolean tryPush(String queueUrl, String messageBody) throws InterruptedException, IOException {
+        long start = System.nanoTime();
+        boolean pushed = service.tryPush(partitionUrl(queueUrl, nextPartition(queueUrl)), messageBody);
+        if (pushed) {
+            metrics.getQueueMetrics(queueUrl).pushed(1, start);
+        } else {
+            metrics.getQueueMetrics(queueUrl).rejected(1);
+        }
+        return pushed;
+    }
+
+    /**
+     * Push a batch to a single partition, the next one in turn.
+     */
+    @Override
+    public void pushBatch(String queueUrl, List<String> messageBodies) throws InterruptedException, IOException {
+        long start = System.nanoTime();
+        service.pushBatch(partitionUrl(queueUrl, nextPartition(queueUrl)), messageBodies);
+        metrics.getQueueMetrics(queueUrl).pushed(messageBodies.size(), start);
+    }
+
+    @Override
+    public void pushBytes(String queueUrl, byte[] messageBody) throws InterruptedException, IOException {
+        long start = System.nanoTime();
+        service.pushBytes(partitionUrl(queueUrl, nextPartition(queueUrl)), messageBody);
+        metrics.getQueueMetrics(queueUrl).pushed(1, start);
+    }
+
+    /**
+     * Push a message to the partition of a key. Messages with the same key go to the same partition and
+     * are pulled in the order they were pushed, as far as the underlying service keeps it.
+     * @param queueUrl queue url
+     * @param key partition key
+     * @param messageBody message body
+     * @throws InterruptedException exception
+     * @throws IOException exception
+     */
+    public void pushWithKey(String queueUrl, String key, String messageBody) throws InterruptedException, IOException {
+        long start = System.nanoTime();
+        service.push(partitionUrl(queueUrl, partitionOf(key)), messageBody);
+        metrics.getQueueMetrics(queueUrl).pushed(1, start);
+    }
+
+    @Override
+    public Message pull(String queueUrl) throws InterruptedException, IOException {
+        List<Message> messages = pull(queueUrl, 1);
+        return messages.isEmpty() ? null : messages.get(0);
+    }
+
+    /**
+     * Pull from the home partition of the calling thread, then from the following partitions until enough
+     * messages are found.
+     */
+    @Override
+    public List<Message> pull(String queueUrl, int maxMessages) throws InterruptedException, IOException {
+        long start = System.nanoTime();
+        List<Message> messages = new ArrayList<>();
+        int first = Math.floorMod(home.get(), partitions);
+        for (int i = 0; i < partitions && messages.size() < maxMessages; i++) {
+            int partition = (first + i) % partitions;
+            addAll(messages, queueUrl, partition,
+                    service.pull(partitionUrl(queueUrl, partition), maxMessages - messages.size()));
+        }
+        metrics.getQueueMetrics(queueUrl).pulled(messages.size(), start);
+        return messages;
+    }
+
+    /**
+     * Wait on the home partition while every partition is empty, checking the others again every
+     * {@link #STEAL_INTERVAL_MILLISECONDS}, so a message pushed to another partition waits at most that long.
+     */
+    @Override
+    public List<Message> pull(String queueUrl, int maxMessages, long waitTime, TimeUnit unit)
+            throws InterruptedException, IOException {
+        long deadline = QueueSignal.deadline(waitTime, unit);
+        List<Message> messages = pull(queueUrl, maxMessages);
+        int partition = Math.floorMod(home.get(), partitions);
+        while (messages.isEmpty()) {
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0) {
+                break;
+            }
+            long start = System.nanoTime();
+            addAll(messages, queueUrl, partition, service.pull(partitionUrl(queueUrl, partition), maxMessages,
+                    Math.min(remaining, STEAL_INTERVAL_MILLISECONDS), TimeUnit.MILLISECONDS));
+            if (messages.isEmpty()) {
+                messages = pull(queueUrl, maxMessages);
+            } else {
+                metrics.getQueueMetrics(queueUrl).pulled(messages.size(), start);
+            }
+        }
+        return messages;
+    }
+
+    @Override
+    public void delete(String queueUrl, String receiptHandle) throws InterruptedException, IOException {
+        deleteBatch(queueUrl, Collections.singletonList(receiptHandle));
+    }
+
+    /**
+     * Delete messages with one batch per partition.
+     * @throws IllegalArgumentException if a receipt handle was not made by this service
+     */
+    @Override
+    public void deleteBatch(String queueUrl, List<String> receiptHandles) throws InterruptedException, IOException {
+        final long start = System.nanoTime();
+        List<List<String>> byPartition = new ArrayList<>(partitions);
+        for (int i = 0; i < partitions; i++) {
+            byPartition.add(new ArrayList<>());
+        }
+        for (String receiptHandle : receiptHandles) {
+            byPartition.get(partitionOfHandle(receiptHandle)).add(unprefixed(receiptHandle));
+        }
+        for (int i = 0; i < partitions; i++) {
+            if (!byPartition.get(i).isEmpty()) {
+                service.deleteBatch(partitionUrl(queueUrl, i), byPartition.get(i));
+            }
+        }
+        metrics.getQueueMetrics(queueUrl).deleted(receiptHandles.size(), start);
+    }
+
+    /**
+     * Change the visibility timeout in the partition the message was pulled from.
+     * @throws IllegalArgumentException if the receipt handle was not made by this service
+     */
+    @Override
+    public boolean changeVisibility(String queueUrl, String receiptHandle, long timeout, TimeUnit unit)
+            throws InterruptedException, IOException {
+        return service.changeVisibility(partitionUrl(queueUrl, partitionOfHandle(receiptHandle)),
+                unprefixed(receiptHandle), timeout, unit);
+    }
+
+    @Override
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    private int nextPartition(String queueUrl) {
+        AtomicInteger next = nextPartitions.computeIfAbsent(queueUrl, k -> new AtomicInteger());
+        return Math.floorMod(next.getAndIncrement(), partitions);
+    }
+
+    private int partitionOf(String key) {
+        return Math.floorMod(key.hashCode(), partitions);
+    }
+
+    private int partitionOfHandle(String receiptHandle) {
+        int separator = receiptHandle.indexOf(HANDLE_SEPARATOR);
+        int partition = -1;
+        try {
+            partition = separator < 0 ? -1 : Integer.parseInt(receiptHandle.substring(0, separator));
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        if (partition < 0 || partition >= partitions) {
+            throw new IllegalArgumentException("Not a receipt handle of a partitioned queue: " + receiptHandle);
+        }
+        return partition;
+    }
+
+    private static String unprefixed(String receiptHandle) {
+        return receiptHandle.substring(receiptHandle.indexOf(HANDLE_SEPARATOR) + 1);
+    }
+
+    /**
+     * Add pulled messages of a partition, prefixing their receipt handles with the partition.
+     */
+    private static void addAll(List<Message> messages, String queueUrl, int partition, List<Message> pulled) {
+        for (Message message : pulled) {
+            Message partitioned = new Message(message.getMessageBody(),
+                    partition + String.valueOf(HANDLE_SEPARATOR) + message.getReceiptHandle(), message.getRevival());
+            partitioned.setQueue(queueUrl);
+            messages.add(partitioned);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.example;
+
+/**
+ * Capacity limits of a queue and the policy applied when a push would pass them.
+ * A limit of 0 is no limit. The limits are checked before the messages are added, so concurrent pushes may
+ * together pass them by the messages they are adding.
+ */
+class QueueCapacity {
+    static final long DEFAULT_PUSH_TIMEOUT_MILLIS = 10000L;
+
+    final long maxMessages;
+    final long maxBytes;
+    final OverflowPolicy policy;
+
+    /**
+     * Create the limits of a queue.
+     * @param maxMessages largest number of messages not yet deleted, 0 for no limit
+     * @param maxBytes largest number of bytes of messages not yet deleted, 0 for no limit
+     * @param policy what a push does at capacity
+     */
+    QueueCapacity(long maxMessages, long maxBytes, OverflowPolicy policy) {
+        if (maxMessages < 0 || maxBytes < 0) {
+            throw new IllegalArgumentException(String.format("Negative capacity: %d messages, %d bytes",
+                    maxMessages, maxBytes));
+        }
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        this.policy = policy;
+    }
+
+    /**
+     * Whether messages fit in a queue.
+     * @param messages number of messages in the queue
+     * @param bytes bytes of the messages in the queue
+     * @param count number of messages to add
+     * @param size bytes of the messages to add
+     * @return true if the queue stays within its limits
+     */
+    boolean fits(long messages, long bytes, int count, long size) {
+        return (maxMessages == 0 || messages + count <= maxMessages) && (maxBytes == 0 || bytes + size <= maxBytes);
+    }
+
+    /**
+     * Whether messages fit in the queue once it is empty, a batch that does not is rejected whatever the policy.
+     * @param count number of messages to add
+     * @param size bytes of the messages to add
+     * @return true if the messages fit in an empty queue
+     */
+    boolean fitsEmpty(int count, long size) {
+        return fits(0, 0, count, size);
+    }
+
+    /**
+     * The error of a push that found no room.
+     * @param queue queue name
+     * @param count number of messages of the push
+     * @return the exception
+     */
+    QueueFullException full(String queue, int count) {
+        return new QueueFullException(queue, String.format("Queue %s is full (%d messages, %d bytes), "
+                + "rejected %d messages", queue, maxMessages, maxBytes, count));
+    }
+}
@@ -0,0 +1,326 @@
+package com.example;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs a handler on the messages of a queue with a pool of worker threads.
+ * A fetcher thread long polls the queue in batches of up to the number of idle workers, so no more messages
+ * are in flight than the workers can take. While a handler runs, a heartbeat extends the visibility timeout
+ * of its message with {@link QueueService#changeVisibility(String, String, long, TimeUnit)} before it runs
+ * out, so a slow handler does not see its message delivered again. A message is deleted once its handler
+ * returns; the deletes are sent in batches on every heartbeat, and the message is extended until its delete
+ * is sent. A handler that throws gives its message up at once, so it is delivered again.
+ */
+public class QueueConsumer implements Closeable {
+    private static final Logger LOGGER = Logger.getLogger(QueueConsumer.class.getName());
+    private static final AtomicInteger CONSUMER_NUMBER = new AtomicInteger();
+    static final int DEFAULT_BATCH_SIZE = 10;
+    static final long DEFAULT_VISIBILITY_TIMEOUT_MILLIS = 5000L;
+    static final long HEARTBEAT_MILLIS = 50L;
+    // Longest wait of a pull, and so of closing the consumer
+    private static final long POLL_MILLIS = 1000L;
+    // Pause after a failed pull
+    private static final long BACK_OFF_MILLIS = 1000L;
+
+    private final QueueService service;
+    private final String queueUrl;
+    private final Handler handler;
+    private int concurrency = Runtime.getRuntime().availableProcessors();
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private long visibilityTimeoutMillis = DEFAULT_VISIBILITY_TIMEOUT_MILLIS;
+    // Messages handed to the workers and not deleted yet, by receipt handle
+    private final ConcurrentHashMap<String, Lease> leases = new ConcurrentHashMap<>();
+    private final Queue<String> acks = new ConcurrentLinkedQueue<>();
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private Semaphore idleWorkers;
+    private ExecutorService workers;
+    private ScheduledExecutorService heartbeat;
+    private Thread fetcher;
+    private volatile boolean running;
+
+    /**
+     * Processes one message.
+     */
+    public interface Handler {
+        /**
+         * Handle a message, the message is deleted when this returns and delivered again when this throws.
+         * @param message the message
+         * @throws Exception exception
+         */
+        void handle(Message message) throws Exception;
+    }
+
+    /**
+     * The time a message being handled stays invisible.
+     */
+    private static class Lease {
+        volatile long deadline;
+
+        Lease(long deadline) {
+            this.deadline = deadline;
+        }
+    }
+
+    /**
+     * Create a stopped consumer of a queue.
+     * @param service the queue service
+     * @param queueUrl queue url
+     * @param handler handler of the messages
+     */
+    public QueueConsumer(QueueService service, String queueUrl, Handler handler) {
+        this.service = service;
+        this.queueUrl = queueUrl;
+        this.handler = handler;
+    }
+
+    /**
+     * Set the number of messages handled at the same time, the number of available processors by default.
+     * @param workers number of worker threads
+     */
+    public void setConcurrency(int workers) {
+        checkNotStarted();
+        concurrency = workers;
+    }
+
+    /**
+     * Set the largest number of messages pulled in one call.
+     * @param messages maximum batch size
+     */
+    public void setBatchSize(int messages) {
+        checkNotStarted();
+        batchSize = messages;
+    }
+
+    /**
+     * Set the visibility timeout given to a message each time it is extended.
+     * A message is extended once less than half of it is left.
+     * @param timeout visibility timeout
+     * @param unit unit of the timeout
+     */
+    public void setVisibilityTimeout(long timeout, TimeUnit unit) {
+        checkNotStarted();
+        visibilityTimeoutMillis = unit.toMillis(timeout);
+    }
+
+    /**
+     * Start pulling and handling messages.
+     */
+    public synchronized void start() {
+        checkNotStarted();
+        String name = "queue-consumer-" + CONSUMER_NUMBER.incrementAndGet();
+        AtomicInteger worker = new AtomicInteger();
+        idleWorkers = new Semaphore(concurrency);
+        workers = Executors.newFixedThreadPool(concurrency, runnable -> daemon(runnable, name + "-worker-" + worker.incrementAndGet()));
+        heartbeat = Executors.newSingleThreadScheduledExecutor(runnable -> daemon(runnable, name + "-heartbeat"));
+        heartbeat.scheduleWithFixedDelay(this::beat, HEARTBEAT_MILLIS, HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+        running = true;
+        fetcher = daemon(this::fetch, name + "-fetcher");
+        fetcher.start();
+    }
+
+    public long getProcessedCount() {
+        return processed.get();
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * The number of messages being handled or waiting for their delete.
+     * @return number of leased messages
+     */
+    public int getInFlightCount() {
+        return leases.size();
+    }
+
+    /**
+     * Stop pulling, wait for the handlers running and send the last deletes.
+     * @throws IOException exception
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (fetcher == null || !running) {
+            return;
+        }
+        running = false;
+        try {
+            fetcher.join();
+            workers.shutdown();
+            while (!workers.awaitTermination(POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                LOGGER.fine("Waiting for the handlers of " + queueUrl);
+            }
+            heartbeat.shutdown();
+            heartbeat.awaitTermination(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            flushAcks();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            workers.shutdownNow();
+            heartbeat.shutdownNow();
+        }
+    }
+
+    private void fetch() {
+        while (running) {
+            int permits = 0;
+            try {
+                idleWorkers.acquire();
+                permits = 1 + idleWorkers.drainPermits();
+                if (permits > batchSize) {
+                    idleWorkers.release(permits - batchSize);
+                    permits = batchSize;
+                }
+                List<Message> messages = service.pull(queueUrl, permits, POLL_MILLIS, TimeUnit.MILLISECONDS);
+                long now = System.currentTimeMillis();
+                for (Message message : messages) {
+                    // Without a known revival time the first heartbeat extends the message
+                    leases.put(message.getReceiptHandle(),
+                            new Lease(message.getRevival() > 0 ? message.getRevival() : now));
+                    permits--;
+                    workers.execute(() -> process(message));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (IOException | RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Failed to pull from " + queueUrl, e);
+                try {
+                    Thread.sleep(BACK_OFF_MILLIS);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            } finally {
+                idleWorkers.release(permits);
+            }
+        }
+    }
+
+    private void process(Message message) {
+        String receiptHandle = message.getReceiptHandle();
+        try {
+            handler.handle(message);
+            processed.incrementAndGet();
+            acks.add(receiptHandle);
+        } catch (Throwable t) {
+            // Errors as well, or the lease would be extended forever
+            failed.incrementAndGet();
+            LOGGER.log(Level.FINE, "Handler failed on a message of " + queueUrl, t);
+            leases.remove(receiptHandle);
+            giveUp(receiptHandle);
+        } finally {
+            idleWorkers.release();
+        }
+    }
+
+    private void giveUp(String receiptHandle) {
+        try {
+            service.changeVisibility(queueUrl, receiptHandle, 0, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to give up a message of " + queueUrl, e);
+        }
+    }
+
+    /**
+     * Send the deletes of the handled messages and extend the messages whose timeout is running out.
+     */
+    private void beat() {
+        try {
+            flushAcks();
+            extendLeases();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            // Thrown out of a scheduled task it would cancel the heartbeat
+            LOGGER.log(Level.WARNING, "Heartbeat of " + queueUrl + " failed", e);
+        }
+    }
+
+    private void flushAcks() throws InterruptedException {
+        List<String> receiptHandles = new ArrayList<>();
+        String receiptHandle;
+        while ((receiptHandle = acks.poll()) != null) {
+            receiptHandles.add(receiptHandle);
+        }
+        if (receiptHandles.isEmpty()) {
+            return;
+        }
+        Set<String> failedHandles = Collections.emptySet();
+        try {
+            service.deleteBatch(queueUrl, receiptHandles);
+        } catch (BatchFailureException e) {
+            LOGGER.log(Level.WARNING, "Failed to delete " + e.getFailedEntries().size() + " messages of " + queueUrl
+                    + ", retrying", e);
+            failedHandles = new HashSet<>(e.getFailedEntries());
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to delete messages of " + queueUrl + ", retrying", e);
+            acks.addAll(receiptHandles);
+            return;
+        }
+        for (String handle : receiptHandles) {
+            if (!failedHandles.contains(handle)) {
+                leases.remove(handle);
+            } else if (leases.containsKey(handle)) {
+                // Still extended until its delete goes through, unless it was lost meanwhile
+                acks.add(handle);
+            }
+        }
+    }
+
+    private void extendLeases() throws InterruptedException {
+        long now = System.currentTimeMillis();
+        long margin = Math.max(visibilityTimeoutMillis / 2, 2 * HEARTBEAT_MILLIS);
+        for (Map.Entry<String, Lease> entry : leases.entrySet()) {
+            Lease lease = entry.getValue();
+            if (lease.deadline - now > margin) {
+                continue;
+            }
+            try {
+                if (service.changeVisibility(queueUrl, entry.getKey(), visibilityTimeoutMillis,
+                        TimeUnit.MILLISECONDS)) {
+                    lease.deadline = now + visibilityTimeoutMillis;
+                } else {
+                    // Revived or deleted meanwhile, it may be handled twice
+                    LOGGER.warning("Lost a message of " + queueUrl + " before it was handled");
+                    leases.remove(entry.getKey(), lease);
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to extend a message of " + queueUrl, e);
+            }
+        }
+    }
+
+    private void checkNotStarted() {
+        if (fetcher != null) {
+            throw new IllegalStateException("Consumer of " + queueUrl + " is already started");
+        }
+    }
+
+    private static Thread daemon(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+}
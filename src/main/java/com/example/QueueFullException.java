@@ -0,0 +1,29 @@
+package com.example;
+
+/**
+ * Thrown by a push to a queue at capacity whose overflow policy could not make room for the messages.
+ * It is unchecked like the other capacity errors, so producers decide where to shed the load.
+ */
+public class QueueFullException extends IllegalStateException {
+    private static final long serialVersionUID = 1L;
+
+    private final String queue;
+
+    /**
+     * Create the error of a full queue.
+     * @param queue queue name
+     * @param message detail message
+     */
+    public QueueFullException(String queue, String message) {
+        super(message);
+        this.queue = queue;
+    }
+
+    /**
+     * The queue that had no room.
+     * @return queue name
+     */
+    public String getQueue() {
+        return queue;
+    }
+}
@@ -0,0 +1,109 @@
+package com.example;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Small memory-mapped file with the message counts of a queue of {@link FileQueueService} that the
+ * {@link SegmentedLog} does not keep: the revived messages in 'shadow' and the in-flight messages.
+ * The counts are updated atomically with the files they count, as consumers holding only the shared consumer
+ * lock update them at the same time, and every process sharing the queue maps the same file, so depth queries
+ * read them without a lock.
+ * Each process holds a shared lock on the file while the queue is open. The last one to close the queue
+ * marks the counts clean; a process opening the queue alone finding them not clean knows that the last
+ * user stopped in the middle of an update, and the counts are rebuilt by scanning the queue files.
+ */
+class QueueHeader implements Closeable {
+    // Layout of the header file
+    private static final int SHADOW_COUNT = 0;
+    private static final int IN_FLIGHT_COUNT = 8;
+    private static final int CLEAN = 16;
+    private static final int HEADER_SIZE = 24;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer header;
+    private final MappedLongs counts;
+    private final boolean unclean;
+    private FileLock sharedLock;
+
+    /**
+     * Open the header of a queue, creating it when missing.
+     * @param file the header file
+     * @throws IOException exception
+     */
+    QueueHeader(Path file) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        counts = new MappedLongs(header);
+        FileLock exclusiveLock = channel.tryLock();
+        if (exclusiveLock != null) {
+            // No other process has the queue open, the counts are as the last one left them
+            unclean = header.getLong(CLEAN) == 0;
+            header.putLong(CLEAN, 0L);
+            exclusiveLock.release();
+        } else {
+            unclean = false;
+        }
+        sharedLock = channel.lock(0, Long.MAX_VALUE, true);
+    }
+
+    /**
+     * Whether the last process using the queue did not close it, so the counts may be wrong.
+     * A new header is unclean as well.
+     * @return true if the counts have to be rebuilt
+     */
+    boolean isUnclean() {
+        return unclean;
+    }
+
+    long shadowCount() {
+        return counts.get(SHADOW_COUNT);
+    }
+
+    long inFlightCount() {
+        return counts.get(IN_FLIGHT_COUNT);
+    }
+
+    void addShadow(long delta) {
+        counts.addAndGet(SHADOW_COUNT, delta);
+    }
+
+    void addInFlight(long delta) {
+        counts.addAndGet(IN_FLIGHT_COUNT, delta);
+    }
+
+    /**
+     * Replace both counts, after a purge or a rebuild.
+     * @param shadow number of messages in 'shadow'
+     * @param inFlight number of in-flight messages
+     */
+    void reset(long shadow, long inFlight) {
+        counts.set(SHADOW_COUNT, shadow);
+        counts.set(IN_FLIGHT_COUNT, inFlight);
+    }
+
+    /**
+     * Release the queue, marking the counts clean if no other process has it open.
+     * @throws IOException exception
+     */
+    @Override
+    public void close() throws IOException {
+        if (sharedLock != null) {
+            sharedLock.release();
+            sharedLock = null;
+            FileLock exclusiveLock = channel.tryLock();
+            if (exclusiveLock != null) {
+                header.putLong(CLEAN, 1L);
+                header.force();
+                exclusiveLock.release();
+            }
+        }
+        channel.close();
+    }
+}
@@ -0,0 +1,172 @@
+package com.example;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Lock manager of the file queue.
+ * Every queue has two lock domains: producers append to the tail of the log while consumers move the
+ * read cursor and maintain the invisible messages, so a push never waits behind a pull.
+ * Each (queue, domain) pair is guarded by a {@link ReentrantReadWriteLock} for the threads of this process and
+ * by a {@link FileChannel#lock()} on a lock file in the queue directory for other processes. The exclusive
+ * file lock is only taken by the outermost holder in the process; the shared file lock is taken by the first
+ * shared holder in the process and released by the last, so consumers that coordinate through shared memory
+ * run side by side in every process. The operating system drops the file locks of a process when it dies,
+ * so a crashed holder never leaves the queue locked.
+ */
+class QueueLockManager {
+    /**
+     * Lock domains of a queue.
+     */
+    enum Domain {
+        PRODUCER(".producer.lock"),
+        CONSUMER(".consumer.lock");
+
+        private final String fileName;
+
+        Domain(String fileName) {
+            this.fileName = fileName;
+        }
+    }
+
+    private final ConcurrentHashMap<String, QueueLock> locks = new ConcurrentHashMap<>();
+
+    /**
+     * Get the lock of a queue domain.
+     * @param queue queue name
+     * @param queueDir queue directory holding the lock file
+     * @param domain lock domain
+     * @return the lock
+     */
+    QueueLock get(String queue, Path queueDir, Domain domain) {
+        return locks.computeIfAbsent(queue + domain.fileName, k -> new QueueLock(queueDir.resolve(domain.fileName)));
+    }
+
+    /**
+     * A lock shared by the threads of this process and other processes.
+     */
+    static class QueueLock {
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        private final Path path;
+        private FileChannel channel;
+        private FileLock fileLock;
+        // Threads holding the shared lock, guarded by this
+        private int sharedHolders;
+        private FileLock sharedFileLock;
+        private volatile LatencyHistogram waits;
+
+        QueueLock(Path path) {
+            this.path = path;
+        }
+
+        /**
+         * Record from now on how long every outermost {@link #lock()} waits.
+         * @param histogram histogram of the waits
+         */
+        void recordWaits(LatencyHistogram histogram) {
+            waits = histogram;
+        }
+
+        /**
+         * Acquire the lock, blocking until both the process and the file lock are held.
+         * @throws InterruptedException when interrupted while waiting for another thread
+         * @throws IOException exception
+         */
+        void lock() throws InterruptedException, IOException {
+            final long start = System.nanoTime();
+            lock.writeLock().lockInterruptibly();
+            if (lock.getWriteHoldCount() > 1) {
+                return;
+            }
+            try {
+                fileLock = channel().lock();
+            } catch (IOException | RuntimeException e) {
+                lock.writeLock().unlock();
+                throw e;
+            }
+            recordWait(start);
+        }
+
+        /**
+         * Acquire the lock shared with other shared holders, blocking while an exclusive holder has it.
+         * Not reentrant from the exclusive lock.
+         * @throws InterruptedException when interrupted while waiting for another thread
+         * @throws IOException exception
+         */
+        void lockShared() throws InterruptedException, IOException {
+            long start = System.nanoTime();
+            lock.readLock().lockInterruptibly();
+            try {
+                synchronized (this) {
+                    if (sharedHolders == 0) {
+                        sharedFileLock = channel().lock(0, Long.MAX_VALUE, true);
+                    }
+                    sharedHolders++;
+                }
+            } catch (IOException | RuntimeException e) {
+                lock.readLock().unlock();
+                throw e;
+            }
+            recordWait(start);
+        }
+
+        /**
+         * Release the shared lock.
+         * @throws IOException exception
+         */
+        void unlockShared() throws IOException {
+            try {
+                synchronized (this) {
+                    if (--sharedHolders == 0 && sharedFileLock != null) {
+                        FileLock held = sharedFileLock;
+                        sharedFileLock = null;
+                        if (held.isValid()) {
+                            held.release();
+                        }
+                    }
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        private FileChannel channel() throws IOException {
+            // An interrupt during FileChannel.lock closes the channel, so reopen it when needed
+            if (channel == null || !channel.isOpen()) {
+                channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE);
+            }
+            return channel;
+        }
+
+        private void recordWait(long start) {
+            LatencyHistogram histogram = waits;
+            if (histogram != null) {
+                histogram.record(System.nanoTime() - start);
+            }
+        }
+
+        /**
+         * Release the lock.
+         * @throws IOException exception
+         */
+        void unlock() throws IOException {
+            try {
+                if (lock.getWriteHoldCount() == 1 && fileLock != null) {
+                    FileLock held = fileLock;
+                    fileLock = null;
+                    if (held.isValid()) {
+                        held.release();
+                    }
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+}
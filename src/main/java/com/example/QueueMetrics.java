@@ -0,0 +1,179 @@
+package com.example;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.ToLongFunction;
+
+/**
+ * Counters, latency histograms and depth gauges of one queue.
+ * Recording adds to {@link LongAdder}s and {@link LatencyHistogram}s and never allocates, so the metrics
+ * stay on in production. The depth gauges are only evaluated when read.
+ */
+public class QueueMetrics implements QueueMetricsMXBean {
+    private static final LongSupplier UNKNOWN = () -> -1;
+
+    private final LongAdder pushes = new LongAdder();
+    private final LongAdder pulls = new LongAdder();
+    private final LongAdder deletes = new LongAdder();
+    private final LongAdder revivals = new LongAdder();
+    private final LongAdder rejects = new LongAdder();
+    private final LongAdder drops = new LongAdder();
+    private final LatencyHistogram pushLatency = new LatencyHistogram();
+    private final LatencyHistogram pullLatency = new LatencyHistogram();
+    private final LatencyHistogram deleteLatency = new LatencyHistogram();
+    final LatencyHistogram lockWait = new LatencyHistogram();
+    private volatile LongSupplier visibleDepth = UNKNOWN;
+    private volatile LongSupplier inFlightDepth = UNKNOWN;
+
+    /**
+     * Record a push call.
+     * @param messages number of pushed messages
+     * @param startNanos {@link System#nanoTime()} at the start of the call
+     */
+    void pushed(int messages, long startNanos) {
+        pushes.add(messages);
+        pushLatency.record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Record a pull call.
+     * @param messages number of pulled messages
+     * @param startNanos {@link System#nanoTime()} at the start of the call
+     */
+    void pulled(int messages, long startNanos) {
+        pulls.add(messages);
+        pullLatency.record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Record a delete call.
+     * @param messages number of deleted messages
+     * @param startNanos {@link System#nanoTime()} at the start of the call
+     */
+    void deleted(int messages, long startNanos) {
+        deletes.add(messages);
+        deleteLatency.record(System.nanoTime() - startNanos);
+    }
+
+    void revived(int messages) {
+        revivals.add(messages);
+    }
+
+    /**
+     * Record messages a full queue did not take.
+     * @param messages number of rejected messages
+     */
+    void rejected(int messages) {
+        rejects.add(messages);
+    }
+
+    /**
+     * Record messages dropped to make room in a full queue.
+     * @param messages number of dropped messages
+     */
+    void dropped(int messages) {
+        drops.add(messages);
+    }
+
+    /**
+     * Set the gauges reporting the depths of the queue.
+     * @param visible number of visible messages
+     * @param inFlight number of in-flight messages
+     */
+    void setDepthGauges(LongSupplier visible, LongSupplier inFlight) {
+        visibleDepth = visible;
+        inFlightDepth = inFlight;
+    }
+
+    /**
+     * Set the gauges reporting the depths of a queue without keeping the queue reachable.
+     * The registry outlives a dropped queue, so the gauges hold it weakly and read -1 once it is collected.
+     * @param queue the queue
+     * @param visible number of visible messages of the queue, must not capture the queue
+     * @param inFlight number of in-flight messages of the queue, must not capture the queue
+     * @param <T> type of the queue
+     */
+    <T> void setDepthGauges(T queue, ToLongFunction<T> visible, ToLongFunction<T> inFlight) {
+        WeakReference<T> reference = new WeakReference<>(queue);
+        setDepthGauges(() -> depth(reference, visible), () -> depth(reference, inFlight));
+    }
+
+    private static <T> long depth(WeakReference<T> reference, ToLongFunction<T> gauge) {
+        T queue = reference.get();
+        return queue == null ? -1 : gauge.applyAsLong(queue);
+    }
+
+    @Override
+    public long getPushCount() {
+        return pushes.sum();
+    }
+
+    @Override
+    public long getPullCount() {
+        return pulls.sum();
+    }
+
+    @Override
+    public long getDeleteCount() {
+        return deletes.sum();
+    }
+
+    @Override
+    public long getRevivalCount() {
+        return revivals.sum();
+    }
+
+    @Override
+    public long getRejectCount() {
+        return rejects.sum();
+    }
+
+    @Override
+    public long getDropCount() {
+        return drops.sum();
+    }
+
+    @Override
+    public long getVisibleDepth() {
+        return visibleDepth.getAsLong();
+    }
+
+    @Override
+    public long getInFlightDepth() {
+        return inFlightDepth.getAsLong();
+    }
+
+    @Override
+    public LatencySummary getPushLatency() {
+        return pushLatency.summary();
+    }
+
+    @Override
+    public LatencySummary getPullLatency() {
+        return pullLatency.summary();
+    }
+
+    @Override
+    public LatencySummary getDeleteLatency() {
+        return deleteLatency.summary();
+    }
+
+    @Override
+    public LatencySummary getLockWait() {
+        return lockWait.summary();
+    }
+
+    /**
+     * All the metrics on one line, for logs.
+     * @return the metrics
+     */
+    @Override
+    public String toString() {
+        return String.format("pushes=%d pulls=%d deletes=%d revivals=%d rejects=%d drops=%d visible=%d "
+                        + "inFlight=%d push[%s] pull[%s] delete[%s] lockWait[%s]",
+                getPushCount(), getPullCount(), getDeleteCount(), getRevivalCount(), getRejectCount(),
+                getDropCount(), getVisibleDepth(),
+                getInFlightDepth(), getPushLatency(), getPullLatency(), getDeleteLatency(), getLockWait());
+    }
+}
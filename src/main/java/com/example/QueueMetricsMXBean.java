@@ -0,0 +1,50 @@
+package com.example;
+
+/**
+ * JMX view of the metrics of one queue.
+ */
+public interface QueueMetricsMXBean {
+    long getPushCount();
+
+    long getPullCount();
+
+    long getDeleteCount();
+
+    long getRevivalCount();
+
+    /**
+     * Number of pushed messages a full queue did not take.
+     * @return reject count
+     */
+    long getRejectCount();
+
+    /**
+     * Number of messages dropped to make room in a full queue.
+     * @return drop count
+     */
+    long getDropCount();
+
+    /**
+     * Number of visible messages, -1 if the backend cannot tell.
+     * @return visible depth
+     */
+    long getVisibleDepth();
+
+    /**
+     * Number of pulled messages not yet deleted or revived, -1 if the backend cannot tell.
+     * @return in-flight depth
+     */
+    long getInFlightDepth();
+
+    LatencySummary getPushLatency();
+
+    LatencySummary getPullLatency();
+
+    LatencySummary getDeleteLatency();
+
+    /**
+     * Time spent waiting for the queue locks, empty for backends without locks.
+     * @return lock wait summary
+     */
+    LatencySummary getLockWait();
+}
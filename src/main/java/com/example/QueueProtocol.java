@@ -0,0 +1,119 @@
+package com.example;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Binary protocol between {@link QueueServer} and {@link RemoteQueueService}.
+ * Every frame is {@code [length][request id][op or status][payload]}, the length counting the bytes after
+ * it. Strings and bodies are an int length and the UTF-8 bytes. A client may send many requests without
+ * waiting, responses carry the id of their request and come back in the order they complete.
+ * <ul>
+ * <li>push: queue, count, bodies; empty response</li>
+ * <li>pull: queue, maximum count, wait time in milliseconds; response count, (receipt handle, body) pairs</li>
+ * <li>delete: queue, count, receipt handles; empty response</li>
+ * <li>visibility: queue, receipt handle, timeout in milliseconds; response 1 if the message was in flight,
+ * else 0, as an int</li>
+ * </ul>
+ * A failed request is answered with the error status and the message of the exception.
+ */
+final class QueueProtocol {
+    static final byte PUSH = 1;
+    static final byte PULL = 2;
+    static final byte DELETE = 3;
+    static final byte VISIBILITY = 4;
+    static final byte OK = 0;
+    static final byte ERROR = 1;
+    // Request id and op or status
+    static final int HEADER_SIZE = 8 + 1;
+    static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+
+    private QueueProtocol() {
+    }
+
+    /**
+     * Start a frame, the length is filled in by {@link #finish(ByteBuffer)}.
+     * @param capacity bytes of payload expected, the buffer grows as needed
+     * @param requestId request id
+     * @param code op or status
+     * @return buffer positioned after the header
+     */
+    static ByteBuffer frame(int capacity, long requestId, byte code) {
+        ByteBuffer buffer = ByteBuffer.allocate(4 + HEADER_SIZE + capacity);
+        buffer.putInt(0).putLong(requestId).put(code);
+        return buffer;
+    }
+
+    /**
+     * Fill in the length of a frame and flip it for writing.
+     * @param frame the frame
+     * @return the frame
+     */
+    static ByteBuffer finish(ByteBuffer frame) {
+        frame.putInt(0, frame.position() - 4);
+        frame.flip();
+        return frame;
+    }
+
+    static ByteBuffer putBytes(ByteBuffer buffer, byte[] bytes) {
+        buffer = ensure(buffer, 4 + bytes.length);
+        buffer.putInt(bytes.length).put(bytes);
+        return buffer;
+    }
+
+    static ByteBuffer putString(ByteBuffer buffer, String value) {
+        return putBytes(buffer, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static ByteBuffer putInt(ByteBuffer buffer, int value) {
+        return ensure(buffer, 4).putInt(value);
+    }
+
+    static ByteBuffer putLong(ByteBuffer buffer, long value) {
+        return ensure(buffer, 8).putLong(value);
+    }
+
+    static byte[] getBytes(ByteBuffer buffer) throws IOException {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IOException("Malformed frame, field of " + length + " bytes");
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    static String getString(ByteBuffer buffer) throws IOException {
+        return new String(getBytes(buffer), StandardCharsets.UTF_8);
+    }
+
+    static List<String> getStrings(ByteBuffer buffer) throws IOException {
+        int count = getCount(buffer);
+        List<String> values = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            values.add(getString(buffer));
+        }
+        return values;
+    }
+
+    static int getCount(ByteBuffer buffer) throws IOException {
+        int count = buffer.getInt();
+        // Every element takes at least its length field
+        if (count < 0 || count > buffer.remaining() / 4) {
+            throw new IOException("Malformed frame, count of " + count);
+        }
+        return count;
+    }
+
+    private static ByteBuffer ensure(ByteBuffer buffer, int bytes) {
+        if (buffer.remaining() >= bytes) {
+            return buffer;
+        }
+        ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+        buffer.flip();
+        return grown.put(buffer);
+    }
+}
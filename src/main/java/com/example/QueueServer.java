@@ -0,0 +1,319 @@
+package com.example;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Serves a queue service to other processes over TCP, see {@link QueueProtocol}.
+ * A single selector thread accepts connections, reads requests and writes responses without blocking.
+ * Each request goes to an {@link AsyncQueueService} as soon as it is read, so a connection may have many
+ * requests in flight, including long polls, and their responses are written as they complete. A client that
+ * does not read its responses is not read from either once {@link #MAX_OUTPUT_BYTES} of them wait to be written.
+ * Use {@link RemoteQueueService} to connect.
+ */
+public class QueueServer implements Closeable {
+    private static final Logger LOGGER = Logger.getLogger(QueueServer.class.getName());
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    // Unwritten response bytes of a connection above which its requests are no longer read
+    static final long MAX_OUTPUT_BYTES = 4 * 1024 * 1024;
+
+    private final AsyncQueueService service;
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    // Connections with responses waiting to be written
+    private final Queue<Connection> writable = new ConcurrentLinkedQueue<>();
+    private final Thread selectorThread;
+
+    /**
+     * A client connection with its partly read request and its unwritten responses.
+     */
+    private class Connection {
+        final SocketChannel channel;
+        SelectionKey key;
+        ByteBuffer input = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        final Queue<ByteBuffer> output = new ConcurrentLinkedQueue<>();
+        // Bytes of the responses in output not written yet
+        final AtomicLong outputBytes = new AtomicLong();
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void send(ByteBuffer response) {
+            outputBytes.addAndGet(response.remaining());
+            output.add(response);
+            writable.add(this);
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Serve a blocking service, running its calls on a pool of its own.
+     * @param service the service
+     * @param threads number of threads running the calls, each long poll holds one while it waits
+     * @param address address to listen on, port 0 for any free port
+     * @throws IOException exception
+     */
+    public QueueServer(QueueService service, int threads, InetSocketAddress address) throws IOException {
+        this(new ExecutorAsyncQueueService(service, threads), address);
+    }
+
+    /**
+     * Serve an asynchronous service.
+     * @param service the service
+     * @param address address to listen on, port 0 for any free port
+     * @throws IOException exception
+     */
+    public QueueServer(AsyncQueueService service, InetSocketAddress address) throws IOException {
+        this.service = service;
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(address);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        selectorThread = new Thread(this::serve, "queue-server-selector");
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+    }
+
+    /**
+     * The port the server listens on.
+     * @return local port
+     * @throws IOException exception
+     */
+    public int getPort() throws IOException {
+        return ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+    }
+
+    /**
+     * Stop accepting and close every connection. Requests in flight are not answered, their clients
+     * see the connection close.
+     * @throws IOException exception
+     */
+    @Override
+    public void close() throws IOException {
+        selectorThread.interrupt();
+        try {
+            // The keys belong to the selector thread until it stops
+            selectorThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (selector.isOpen()) {
+            for (SelectionKey key : selector.keys()) {
+                try {
+                    key.channel().close();
+                } catch (IOException e) {
+                    LOGGER.log(Level.FINE, "Failed to close a connection", e);
+                }
+            }
+            selector.close();
+        }
+        serverChannel.close();
+        if (service instanceof ExecutorAsyncQueueService) {
+            ((ExecutorAsyncQueueService) service).shutdown();
+        }
+    }
+
+    private void serve() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                selector.select();
+                Connection connection;
+                while ((connection = writable.poll()) != null) {
+                    if (connection.key.isValid()) {
+                        int ops = connection.key.interestOps() | SelectionKey.OP_WRITE;
+                        if (connection.outputBytes.get() > MAX_OUTPUT_BYTES) {
+                            // The client is not reading its responses, stop reading its requests
+                            ops &= ~SelectionKey.OP_READ;
+                        }
+                        connection.key.interestOps(ops);
+                    }
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else {
+                            if (key.isReadable()) {
+                                read((Connection) key.attachment());
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                write((Connection) key.attachment());
+                            }
+                        }
+                    } catch (IOException | CancelledKeyException e) {
+                        LOGGER.log(Level.FINE, "Dropping a connection", e);
+                        key.cancel();
+                        key.channel().close();
+                    }
+                }
+            }
+        } catch (ClosedSelectorException | CancelledKeyException e) {
+            // Closing the selector cancels every key under the selector thread
+            LOGGER.fine("Queue server stopped");
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Queue server failed", e);
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        Connection connection = new Connection(channel);
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+    }
+
+    /**
+     * Read what the connection has and dispatch every complete request.
+     */
+    private void read(Connection connection) throws IOException {
+        if (connection.channel.read(connection.input) < 0) {
+            throw new IOException("Connection closed by the client");
+        }
+        ByteBuffer input = connection.input;
+        input.flip();
+        while (input.remaining() >= 4) {
+            int length = input.getInt(input.position());
+            if (length < QueueProtocol.HEADER_SIZE || length > QueueProtocol.MAX_FRAME_SIZE) {
+                throw new IOException("Bad frame length " + length);
+            }
+            if (input.remaining() < 4 + length) {
+                if (input.capacity() < 4 + length) {
+                    // Grow to hold the whole frame
+                    ByteBuffer grown = ByteBuffer.allocate(4 + length);
+                    grown.put(input);
+                    connection.input = grown;
+                    return;
+                }
+                break;
+            }
+            ByteBuffer frame = input.slice();
+            frame.limit(4 + length);
+            input.position(input.position() + 4 + length);
+            frame.getInt();
+            dispatch(connection, copy(frame));
+        }
+        input.compact();
+    }
+
+    private static ByteBuffer copy(ByteBuffer frame) {
+        ByteBuffer copy = ByteBuffer.allocate(frame.remaining());
+        copy.put(frame);
+        copy.flip();
+        return copy;
+    }
+
+    private void write(Connection connection) throws IOException {
+        ByteBuffer response;
+        while ((response = connection.output.peek()) != null) {
+            connection.outputBytes.addAndGet(-connection.channel.write(response));
+            if (response.hasRemaining()) {
+                break;
+            }
+            connection.output.poll();
+        }
+        // Read requests again once the client has taken enough of its responses
+        int ops = connection.outputBytes.get() > MAX_OUTPUT_BYTES ? 0 : SelectionKey.OP_READ;
+        if (!connection.output.isEmpty()) {
+            // Responses left, or added after the queue looked empty
+            ops |= SelectionKey.OP_WRITE;
+        }
+        connection.key.interestOps(ops);
+    }
+
+    /**
+     * Start the operation of a request, its response is sent once the future completes.
+     */
+    private void dispatch(Connection connection, ByteBuffer request) {
+        long requestId = request.getLong();
+        byte op = request.get();
+        CompletableFuture<ByteBuffer> response;
+        try {
+            String queueUrl = QueueProtocol.getString(request);
+            switch (op) {
+                case QueueProtocol.PUSH:
+                    response = service.pushBatch(queueUrl, QueueProtocol.getStrings(request))
+                            .thenApply(v -> QueueProtocol.frame(0, requestId, QueueProtocol.OK));
+                    break;
+                case QueueProtocol.PULL:
+                    int maxMessages = request.getInt();
+                    long waitMillis = request.getLong();
+                    CompletableFuture<List<Message>> messages = waitMillis > 0
+                            ? service.pull(queueUrl, maxMessages, waitMillis, TimeUnit.MILLISECONDS)
+                            : service.pull(queueUrl, maxMessages);
+                    response = messages.thenApply(pulled -> pullResponse(requestId, pulled));
+                    break;
+                case QueueProtocol.DELETE:
+                    response = service.deleteBatch(queueUrl, QueueProtocol.getStrings(request))
+                            .thenApply(v -> QueueProtocol.frame(0, requestId, QueueProtocol.OK));
+                    break;
+                case QueueProtocol.VISIBILITY:
+                    String receiptHandle = QueueProtocol.getString(request);
+                    long timeoutMillis = request.getLong();
+                    response = service.changeVisibility(queueUrl, receiptHandle, timeoutMillis, TimeUnit.MILLISECONDS)
+                            .thenApply(changed -> QueueProtocol.putInt(
+                                    QueueProtocol.frame(4, requestId, QueueProtocol.OK), changed ? 1 : 0));
+                    break;
+                default:
+                    throw new IOException("Unknown operation " + op);
+            }
+        } catch (IOException | RuntimeException e) {
+            response = new CompletableFuture<>();
+            response.completeExceptionally(e);
+        }
+        response.whenComplete((frame, failure) -> {
+            if (failure != null) {
+                frame = errorResponse(requestId, failure);
+            }
+            connection.send(QueueProtocol.finish(frame));
+        });
+    }
+
+    private static ByteBuffer pullResponse(long requestId, List<Message> messages) {
+        int size = 4;
+        for (Message message : messages) {
+            size += 8 + 36 + message.getBody().length;
+        }
+        ByteBuffer frame = QueueProtocol.frame(size, requestId, QueueProtocol.OK);
+        frame = QueueProtocol.putInt(frame, messages.size());
+        for (Message message : messages) {
+            frame = QueueProtocol.putString(frame, message.getReceiptHandle());
+            frame = QueueProtocol.putBytes(frame, message.getBody());
+        }
+        return frame;
+    }
+
+    private static ByteBuffer errorResponse(long requestId, Throwable failure) {
+        if (failure instanceof CompletionException && failure.getCause() != null) {
+            failure = failure.getCause();
+        }
+        String message = failure.getMessage() == null ? failure.toString() : failure.getMessage();
+        return QueueProtocol.putString(QueueProtocol.frame(0, requestId, QueueProtocol.ERROR), message);
+    }
+}
@@ -1,11 +1,156 @@
 package com.example;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
+// The original push, pull and delete come first, the pull overloads added later follow them
+@SuppressWarnings("checkstyle:overloadmethodsdeclarationorder")
 public interface QueueService {
     void push(String queueUrl, String messageBody) throws InterruptedException, IOException;
 
     Message pull(String queueUrl) throws InterruptedException, IOException;
 
     void delete(String queueUrl, String receiptHandle) throws InterruptedException, IOException;
+
+    /**
+     * Push several messages in one call.
+     * The default implementation pushes them one by one, implementations override it with a native batch.
+     * @param queueUrl queue url
+     * @param messageBodies bodies of the messages, in order
+     * @throws InterruptedException exception
+     * @throws IOException exception
+     */
+    default void pushBatch(String queueUrl, List<String> messageBodies) throws InterruptedException, IOException {
+        for (String messageBody : messageBodies) {
+            push(queueUrl, messageBody);
+        }
+    }
+
+    /**
+     * Push a message unless its queue is full, without waiting for room, so producers can shed load early.
+     * A queue that drops its oldest messages when full still makes room. The default implementation is for
+     * services without capacity limits and always pushes.
+     * @param queueUrl queue url
+     * @param messageBody message body
+     * @return false if the queue had no room for the message
+     * @throws InterruptedException exception
+     * @throws IOException exception
+     */
+    default boolean tryPush(String queueUrl, String messageBody) throws InterruptedException, IOException {
+        push(queueUrl, messageBody);
+        return true;
+    }
+
+    /**
+     * Push a message with a UTF-8 body given as bytes.
+     * The in-memory and file services keep the bytes as they are. The default implementation decodes them
+     * and pushes the string.
+     * @param queueUrl queue url
+     * @param messageBody UTF-8 body, not copied
+     * @throws InterruptedException exception
+     * @throws IOException exception
+     */
+    default void pushBytes(String queueUrl, byte[] messageBody) throws InterruptedException, IOException {
+        push(queueUrl, new String(messageBody, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Pull up to a number of messages in one call.
+     * @param queueUrl queue url
+     * @param maxMessages maximum number of messages to pull
+     * @return the pulled messages, empty if the queue is empty
+     * @throws InterruptedException exception
+     * @throws IOException exception
+     */
+    default List<Message> pull(String queueUrl, int maxMessages) throws InterruptedException, IOException {
+        List<Message> messages = new ArrayList<>();
+        while (messages.size() < maxMessages) {
+            Message message = pull(queueUrl);
+            if (message == null) {
+                break;
+            }
+            messages.add(message);
+        }
+        return messages;
+    }
+
+    /**
+     * Pull a message, waiting for one to arrive while the queue is empty.
+     * @param queueUrl queue url
+     * @param waitTime how long to wait for a message
+     * @param unit unit of the wait time
+     * @return the message, or null if none arrived in time
+     * @throws InterruptedException exception
+     * @throws IOException exception
+     */
+    default Message pull(String queueUrl, long waitTime, TimeUnit unit) throws InterruptedException, IOException {
+        List<Message> messages = pull(queueUrl, 1, waitTime, unit);
+        return messages.isEmpty() ? null : messages.get(0);
+    }
+
+    /**
+     * Pull up to a number of messages, waiting for messages to arrive while the queue is empty.
+     * Returns as soon as at least one message is available. The default implementation polls with a growing
+     * back-off, implementations override it to park until a message arrives.
+     * @param queueUrl queue url
+     * @param maxMessages maximum number of messages to pull
+     * @param waitTime how long to wait for a message
+     * @param unit unit of the wait time
+     * @return the pulled messages, empty if none arrived in time
+     * @throws InterruptedException exception
+     * @throws IOException exception
+     */
+    default List<Message> pull(String queueUrl, int maxMessages, long waitTime, TimeUnit unit)
+            throws InterruptedException, IOException {
+        long deadline = System.nanoTime() + unit.toNanos(waitTime);
+        long backOff = 1;
+        List<Message> messages = pull(queueUrl, maxMessages);
+        while (messages.isEmpty()) {
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0) {
+                break;
+            }
+            Thread.sleep(Math.min(backOff, remaining));
+            backOff = Math.min(backOff * 2, 100);
+            messages = pull(queueUrl, maxMessages);
+        }
+        return messages;
+    }
+
+    /**
+     * Change how long an in-flight message stays invisible, counting from now.
+     * A consumer still working on a message extends its timeout before it runs out, so the message is not
+     * delivered again, and gives a message up at once with a timeout of zero.
+     * @param queueUrl queue url
+     * @param receiptHandle receipt handle of the message
+     * @param timeout new visibility timeout
+     * @param unit unit of the timeout
+     * @return true if the message was still in flight, false if it was deleted or already revived
+     * @throws InterruptedException exception
+     * @throws IOException exception
+     */
+    boolean changeVisibility(String queueUrl, String receiptHandle, long timeout, TimeUnit unit)
+            throws InterruptedException, IOException;
+
+    /**
+     * The metrics of the queues of this service.
+     * @return the metrics registry
+     */
+    MetricsRegistry getMetrics();
+
+    /**
+     * Delete several messages in one call.
+     * @param queueUrl queue url
+     * @param receiptHandles receipt handles of the messages
+     * @throws InterruptedException exception
+     * @throws IOException exception
+     */
+    default void deleteBatch(String queueUrl, List<String> receiptHandles) throws InterruptedException, IOException {
+        for (String receiptHandle : receiptHandles) {
+            delete(queueUrl, receiptHandle);
+        }
+    }
 }
@@ -0,0 +1,67 @@
+package com.example;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Wakes consumers waiting for messages on a queue.
+ * Producers make a message available first and signal afterwards, while a waiter registers itself before
+ * checking for messages. So either the producer sees the waiter and signals it, or the waiter sees the
+ * message, and a wakeup is never lost. Signalling without waiters costs a single volatile read.
+ */
+class QueueSignal {
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    private volatile int waiters;
+
+    /**
+     * Wake every waiting consumer.
+     */
+    void signalAll() {
+        if (waiters > 0) {
+            lock.lock();
+            try {
+                available.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Park until a condition holds or a deadline passes.
+     * @param ready condition checked after every wakeup
+     * @param deadline deadline in {@link System#nanoTime()} terms
+     * @return true if the condition holds, false if the deadline passed
+     * @throws InterruptedException exception
+     */
+    boolean awaitUntil(BooleanSupplier ready, long deadline) throws InterruptedException {
+        lock.lockInterruptibly();
+        waiters++;
+        try {
+            while (!ready.getAsBoolean()) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                available.awaitNanos(remaining);
+            }
+            return true;
+        } finally {
+            waiters--;
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Deadline of a wait starting now.
+     * @param waitTime how long to wait
+     * @param unit unit of the wait time
+     * @return deadline in {@link System#nanoTime()} terms
+     */
+    static long deadline(long waitTime, TimeUnit unit) {
+        return System.nanoTime() + unit.toNanos(waitTime);
+    }
+}
@@ -0,0 +1,66 @@
+package com.example;
+
+import java.security.SecureRandom;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generator of the receipt handles of new messages, without a {@link SecureRandom} call per handle.
+ * A handle is a version 8 (custom) UUID: the high half is a random node id drawn once per process, the low
+ * half a sequence that starts at the current time in milliseconds shifted left by {@link #SEQUENCE_BITS}.
+ * Handles are therefore unique across processes and increase within one, and the enqueue time of a
+ * message can be read back from its handle.
+ */
+final class ReceiptHandles {
+    static final int SEQUENCE_BITS = 20;
+    private static final long VERSION_MASK = 0xF000L;
+    private static final long VERSION = 0x8000L;
+    private static final long VARIANT_MASK = 0xC000000000000000L;
+    private static final long VARIANT = 0x8000000000000000L;
+    private static final long NODE = new SecureRandom().nextLong() & ~VERSION_MASK | VERSION;
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
+    private ReceiptHandles() {
+    }
+
+    /**
+     * The high half of the handles of this process.
+     * @return node id
+     */
+    static long node() {
+        return NODE;
+    }
+
+    /**
+     * The low half of a new handle. The sequence moves ahead of the clock when more than
+     * 2^{@link #SEQUENCE_BITS} handles are taken in a millisecond.
+     * @return next sequence value with the variant bits set
+     */
+    static long next() {
+        long now = System.currentTimeMillis() << SEQUENCE_BITS;
+        return SEQUENCE.updateAndGet(last -> Math.max(last + 1, now)) | VARIANT;
+    }
+
+    /**
+     * Whether a handle was made by this class, in any process.
+     * @param high high half of the handle
+     * @param low low half of the handle
+     * @return true if the enqueue time can be read from the handle
+     */
+    static boolean isGenerated(long high, long low) {
+        return (high & VERSION_MASK) == VERSION && (low & VARIANT_MASK) == VARIANT;
+    }
+
+    /**
+     * The time a generated handle was taken.
+     * @param low low half of the handle
+     * @return time in milliseconds
+     */
+    static long timestamp(long low) {
+        return (low & ~VARIANT_MASK) >>> SEQUENCE_BITS;
+    }
+
+    static String toString(long high, long low) {
+        return new UUID(high, low).toString();
+    }
+}
@@ -0,0 +1,245 @@
+package com.example;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+/**
+ * Binary record format of the file queue.
+ * A record is framed as {@code [length][crc][payload][length]}: the payload length as an int, the CRC-32C of
+ * the payload, the payload, and the length again so that a buffer can be scanned backwards as well as
+ * forwards. The payload holds a type byte, the receipt handle as a 16 byte UUID, the revival time as a long
+ * and the UTF-8 body. A zero length marks the end of the records in a zero filled region.
+ * A block record holds records compressed together, see {@link Compression}: its handle holds the length of
+ * the records once decompressed and their count, and its body the compressed records.
+ * All methods work on absolute indexes and leave the buffer position alone.
+ */
+final class RecordCodec {
+    static final byte MESSAGE = 1;
+    static final byte TOMBSTONE = 2;
+    static final byte BLOCK = 3;
+    static final int FRAME_OVERHEAD = 12;
+    private static final int PAYLOAD_OFFSET = 8;
+    private static final int TYPE = 0;
+    private static final int HANDLE = 1;
+    private static final int REVIVAL = 17;
+    private static final int BODY = 25;
+
+    private RecordCodec() {
+    }
+
+    /**
+     * Size of the record of a body.
+     * @param bodyLength body length in bytes
+     * @return record size in bytes
+     */
+    static int frameSize(int bodyLength) {
+        return FRAME_OVERHEAD + BODY + bodyLength;
+    }
+
+    /**
+     * Encode a record into a new array.
+     * @param type record type
+     * @param receiptHandle receipt handle, a UUID string
+     * @param revival revival time
+     * @param body UTF-8 body
+     * @return the record
+     */
+    static byte[] encode(byte type, String receiptHandle, long revival, byte[] body) {
+        UUID handle = UUID.fromString(receiptHandle);
+        return encode(type, handle.getMostSignificantBits(), handle.getLeastSignificantBits(), revival, body);
+    }
+
+    /**
+     * Encode a record into a new array.
+     * @param type record type
+     * @param handleHigh high half of the receipt handle
+     * @param handleLow low half of the receipt handle
+     * @param revival revival time
+     * @param body UTF-8 body
+     * @return the record
+     */
+    static byte[] encode(byte type, long handleHigh, long handleLow, long revival, byte[] body) {
+        ByteBuffer buffer = ByteBuffer.allocate(frameSize(body.length));
+        write(buffer, type, handleHigh, handleLow, revival, body);
+        return buffer.array();
+    }
+
+    /**
+     * Encode a block record.
+     * @param count number of records in the block
+     * @param length length of the records before compression
+     * @param compressed the compressed records
+     * @return the block record
+     */
+    static byte[] encodeBlock(int count, int length, byte[] compressed) {
+        return encode(BLOCK, length, count, 0L, compressed);
+    }
+
+    /**
+     * Write a record at the buffer position and move the position past it.
+     * @param target buffer with at least {@link #frameSize(int)} bytes remaining
+     * @param type record type
+     * @param receiptHandle receipt handle, a UUID string
+     * @param revival revival time
+     * @param body UTF-8 body
+     */
+    static void write(ByteBuffer target, byte type, String receiptHandle, long revival, byte[] body) {
+        UUID handle = UUID.fromString(receiptHandle);
+        write(target, type, handle.getMostSignificantBits(), handle.getLeastSignificantBits(), revival, body);
+    }
+
+    /**
+     * Write a record at the buffer position and move the position past it.
+     * @param target buffer with at least {@link #frameSize(int)} bytes remaining
+     * @param type record type
+     * @param handleHigh high half of the receipt handle
+     * @param handleLow low half of the receipt handle
+     * @param revival revival time
+     * @param body UTF-8 body
+     */
+    static void write(ByteBuffer target, byte type, long handleHigh, long handleLow, long revival, byte[] body) {
+        int start = target.position();
+        int length = BODY + body.length;
+        target.putInt(length);
+        target.putInt(0);
+        target.put(type);
+        target.putLong(handleHigh);
+        target.putLong(handleLow);
+        target.putLong(revival);
+        target.put(body);
+        target.putInt(length);
+        target.putInt(start + 4, Crc32c.checksum(target, start + PAYLOAD_OFFSET, length));
+    }
+
+    /**
+     * Find the end of the record starting at an index.
+     * @param buffer the buffer, records are read up to its limit
+     * @param position start of the record
+     * @return index after the record, or -1 if no complete record starts there
+     */
+    static int next(ByteBuffer buffer, int position) {
+        if (position + FRAME_OVERHEAD > buffer.limit()) {
+            return -1;
+        }
+        int length = buffer.getInt(position);
+        if (length < BODY || length > buffer.limit() - position - FRAME_OVERHEAD
+                || buffer.getInt(position + PAYLOAD_OFFSET + length) != length) {
+            return -1;
+        }
+        return position + FRAME_OVERHEAD + length;
+    }
+
+    /**
+     * Find the start of the record ending at an index.
+     * @param buffer the buffer
+     * @param end index after the record
+     * @return start of the record, or -1 if no complete record ends there
+     */
+    static int previous(ByteBuffer buffer, int end) {
+        if (end - FRAME_OVERHEAD < 0) {
+            return -1;
+        }
+        int length = buffer.getInt(end - 4);
+        int start = end - FRAME_OVERHEAD - length;
+        if (length < BODY || start < 0 || buffer.getInt(start) != length) {
+            return -1;
+        }
+        return start;
+    }
+
+    /**
+     * Count the complete records from the start of a buffer.
+     * @param buffer the buffer
+     * @return number of records
+     */
+    static int count(ByteBuffer buffer) {
+        int count = 0;
+        int next = next(buffer, 0);
+        while (next > 0) {
+            count++;
+            next = next(buffer, next);
+        }
+        return count;
+    }
+
+    /**
+     * Verify the checksum of a complete record.
+     * @param buffer the buffer
+     * @param position start of the record
+     * @return true if the payload matches its checksum
+     */
+    static boolean isIntact(ByteBuffer buffer, int position) {
+        int length = buffer.getInt(position);
+        return buffer.getInt(position + 4) == Crc32c.checksum(buffer, position + PAYLOAD_OFFSET, length);
+    }
+
+    static byte type(ByteBuffer buffer, int position) {
+        return buffer.get(position + PAYLOAD_OFFSET + TYPE);
+    }
+
+    static String receiptHandle(ByteBuffer buffer, int position) {
+        int offset = position + PAYLOAD_OFFSET + HANDLE;
+        return new UUID(buffer.getLong(offset), buffer.getLong(offset + 8)).toString();
+    }
+
+    static long revival(ByteBuffer buffer, int position) {
+        return buffer.getLong(position + PAYLOAD_OFFSET + REVIVAL);
+    }
+
+    /**
+     * The enqueue time carried by the receipt handle of a record.
+     * @param buffer the buffer
+     * @param position start of the record
+     * @return time in milliseconds, or -1 if the handle was not made by {@link ReceiptHandles}
+     */
+    static long enqueueTime(ByteBuffer buffer, int position) {
+        int offset = position + PAYLOAD_OFFSET + HANDLE;
+        long high = buffer.getLong(offset);
+        long low = buffer.getLong(offset + 8);
+        return ReceiptHandles.isGenerated(high, low) ? ReceiptHandles.timestamp(low) : -1L;
+    }
+
+    static int checksum(ByteBuffer buffer, int position) {
+        return buffer.getInt(position + 4);
+    }
+
+    static int blockLength(ByteBuffer buffer, int position) {
+        return (int) buffer.getLong(position + PAYLOAD_OFFSET + HANDLE);
+    }
+
+    static int blockCount(ByteBuffer buffer, int position) {
+        return (int) buffer.getLong(position + PAYLOAD_OFFSET + HANDLE + 8);
+    }
+
+    /**
+     * Copy the UTF-8 body of a record.
+     * @param buffer the buffer
+     * @param position start of the record
+     * @return the body
+     */
+    static byte[] body(ByteBuffer buffer, int position) {
+        int length = buffer.getInt(position) - BODY;
+        byte[] body = new byte[length];
+        int offset = position + PAYLOAD_OFFSET + BODY;
+        if (buffer.hasArray()) {
+            System.arraycopy(buffer.array(), buffer.arrayOffset() + offset, body, 0, length);
+        } else {
+            ByteBuffer view = buffer.duplicate();
+            view.position(offset);
+            view.get(body);
+        }
+        return body;
+    }
+
+    /**
+     * Decode a message record. The body is decoded to a string only when the message is asked for it.
+     * @param buffer the buffer
+     * @param position start of the record
+     * @return the message
+     */
+    static Message decode(ByteBuffer buffer, int position) {
+        int offset = position + PAYLOAD_OFFSET + HANDLE;
+        return new Message(null, body(buffer, position), buffer.getLong(offset), buffer.getLong(offset + 8),
+                revival(buffer, position));
+    }
+}
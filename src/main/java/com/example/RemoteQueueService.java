@@ -0,0 +1,222 @@
+package com.example;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Client of a {@link QueueServer}.
+ * All threads share one connection: a call writes its request and waits for the response with its id,
+ * so the requests of concurrent callers are pipelined and a long poll does not hold up other calls.
+ * A reader thread completes the waiting calls as responses arrive. Once the connection fails, every
+ * waiting and later call fails with an {@link IOException}.
+ */
+public class RemoteQueueService implements QueueService, Closeable {
+    private final SocketChannel channel;
+    private final MetricsRegistry metrics = new MetricsRegistry("RemoteQueueService");
+    private final AtomicLong requestIds = new AtomicLong();
+    private final Map<Long, CompletableFuture<ByteBuffer>> pending = new ConcurrentHashMap<>();
+    private final Object writeLock = new Object();
+    private volatile IOException failure;
+
+    /**
+     * Connect to a server.
+     * @param address address of the server
+     * @throws IOException exception
+     */
+    public RemoteQueueService(InetSocketAddress address) throws IOException {
+        channel = SocketChannel.open(address);
+        channel.socket().setTcpNoDelay(true);
+        Thread reader = new Thread(this::readResponses, "queue-client-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    @Override
+    public void push(String queueUrl, String messageBody) throws InterruptedException, IOException {
+        pushBatch(queueUrl, Collections.singletonList(messageBody));
+    }
+
+    @Override
+    public void pushBatch(String queueUrl, List<String> messageBodies) throws InterruptedException, IOException {
+        final long start = System.nanoTime();
+        long requestId = requestIds.incrementAndGet();
+        ByteBuffer request = QueueProtocol.frame(64 * messageBodies.size(), requestId, QueueProtocol.PUSH);
+        request = QueueProtocol.putString(request, queueUrl);
+        request = QueueProtocol.putInt(request, messageBodies.size());
+        for (String messageBody : messageBodies) {
+            request = QueueProtocol.putString(request, messageBody);
+        }
+        call(requestId, request);
+        metrics.getQueueMetrics(queueUrl).pushed(messageBodies.size(), start);
+    }
+
+    @Override
+    public Message pull(String queueUrl) throws InterruptedException, IOException {
+        List<Message> messages = pull(queueUrl, 1);
+        return messages.isEmpty() ? null : messages.get(0);
+    }
+
+    @Override
+    public List<Message> pull(String queueUrl, int maxMessages) throws InterruptedException, IOException {
+        return pull(queueUrl, maxMessages, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Pull up to a number of messages, the server waits for messages to arrive while the queue is empty.
+     */
+    @Override
+    public List<Message> pull(String queueUrl, int maxMessages, long waitTime, TimeUnit unit)
+            throws InterruptedException, IOException {
+        final long start = System.nanoTime();
+        long requestId = requestIds.incrementAndGet();
+        ByteBuffer request = QueueProtocol.frame(32 + queueUrl.length(), requestId, QueueProtocol.PULL);
+        request = QueueProtocol.putString(request, queueUrl);
+        request = QueueProtocol.putInt(request, maxMessages);
+        request = QueueProtocol.putLong(request, unit.toMillis(waitTime));
+        ByteBuffer response = call(requestId, request);
+        int count = QueueProtocol.getCount(response);
+        List<Message> messages = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String receiptHandle = QueueProtocol.getString(response);
+            Message message = new Message(QueueProtocol.getString(response), receiptHandle);
+            message.setQueue(queueUrl);
+            messages.add(message);
+        }
+        metrics.getQueueMetrics(queueUrl).pulled(messages.size(), start);
+        return messages;
+    }
+
+    @Override
+    public void delete(String queueUrl, String receiptHandle) throws InterruptedException, IOException {
+        deleteBatch(queueUrl, Collections.singletonList(receiptHandle));
+    }
+
+    @Override
+    public void deleteBatch(String queueUrl, List<String> receiptHandles) throws InterruptedException, IOException {
+        final long start = System.nanoTime();
+        long requestId = requestIds.incrementAndGet();
+        ByteBuffer request = QueueProtocol.frame(48 * receiptHandles.size(), requestId, QueueProtocol.DELETE);
+        request = QueueProtocol.putString(request, queueUrl);
+        request = QueueProtocol.putInt(request, receiptHandles.size());
+        for (String receiptHandle : receiptHandles) {
+            request = QueueProtocol.putString(request, receiptHandle);
+        }
+        call(requestId, request);
+        metrics.getQueueMetrics(queueUrl).deleted(receiptHandles.size(), start);
+    }
+
+    @Override
+    public boolean changeVisibility(String queueUrl, String receiptHandle, long timeout, TimeUnit unit)
+            throws InterruptedException, IOException {
+        long requestId = requestIds.incrementAndGet();
+        ByteBuffer request = QueueProtocol.frame(64 + queueUrl.length(), requestId, QueueProtocol.VISIBILITY);
+        request = QueueProtocol.putString(request, queueUrl);
+        request = QueueProtocol.putString(request, receiptHandle);
+        request = QueueProtocol.putLong(request, unit.toMillis(timeout));
+        return call(requestId, request).getInt() != 0;
+    }
+
+    @Override
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Close the connection and unregister the metrics, failing the calls still waiting.
+     * @throws IOException exception
+     */
+    @Override
+    public void close() throws IOException {
+        metrics.close();
+        channel.close();
+    }
+
+    /**
+     * Send a request and wait for its response.
+     * @param requestId id of the request
+     * @param request the request frame, not finished yet
+     * @return payload of the response
+     * @throws InterruptedException exception
+     * @throws IOException exception
+     */
+    private ByteBuffer call(long requestId, ByteBuffer request) throws InterruptedException, IOException {
+        CompletableFuture<ByteBuffer> response = new CompletableFuture<>();
+        pending.put(requestId, response);
+        try {
+            if (failure != null) {
+                throw new IOException("Connection to the queue server failed", failure);
+            }
+            QueueProtocol.finish(request);
+            synchronized (writeLock) {
+                while (request.hasRemaining()) {
+                    channel.write(request);
+                }
+            }
+            return response.get();
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause().getMessage(), e.getCause());
+        } finally {
+            pending.remove(requestId);
+        }
+    }
+
+    private void readResponses() {
+        try {
+            ByteBuffer length = ByteBuffer.allocate(4);
+            while (true) {
+                length.clear();
+                readFully(length);
+                int size = length.getInt(0);
+                if (size < QueueProtocol.HEADER_SIZE || size > QueueProtocol.MAX_FRAME_SIZE) {
+                    throw new IOException("Bad frame length " + size);
+                }
+                ByteBuffer response = ByteBuffer.allocate(size);
+                readFully(response);
+                response.flip();
+                long requestId = response.getLong();
+                byte status = response.get();
+                CompletableFuture<ByteBuffer> call = pending.get(requestId);
+                if (call == null) {
+                    continue;
+                }
+                if (status == QueueProtocol.OK) {
+                    call.complete(response);
+                } else {
+                    call.completeExceptionally(new IOException(QueueProtocol.getString(response)));
+                }
+            }
+        } catch (IOException e) {
+            failure = e;
+            try {
+                // Later writes fail at once instead of waiting for a response that never comes
+                channel.close();
+            } catch (IOException ignored) {
+                // Already failed
+            }
+            for (CompletableFuture<ByteBuffer> call : pending.values()) {
+                call.completeExceptionally(e);
+            }
+        }
+    }
+
+    private void readFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Connection closed by the queue server");
+            }
+        }
+    }
+}
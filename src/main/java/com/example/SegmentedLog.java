@@ -0,0 +1,957 @@
+package com.example;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongPredicate;
+
+/**
+ * Append-only message log made of fixed-size segment files.
+ * Segments are named after their sequence number and preallocated to the segment size, so the unused
+ * part of a segment reads back as zeros. Records use the {@link RecordCodec} format and are appended with a positional
+ * channel write and read back through a memory mapping of the segment. The write position (tail) and the read cursor
+ * (head) are kept in a small memory-mapped 'index' file, so every process sharing the directory sees the same
+ * cursors. The index also counts the records appended and read, so the number of unread records is known without
+ * walking the segments. A segment is removed once the head has moved past it and none of its messages are pinned.
+ * Appends are serialized by the producer lock of the queue. The head is a single long holding the segment and
+ * the position, moved with a compare-and-swap, so consumers in any number of threads and processes claim
+ * distinct records holding only the shared consumer lock. Removing segments and everything else needs the
+ * exclusive consumer lock.
+ * Every segment starts with a header naming its {@link Compression}. A log with compression set writes the
+ * records of an append in blocks, each compressed into a single block record, and the location of a record
+ * in a block adds its index to the position of the block. Segments without a header, from the versions
+ * before compression, hold plain records.
+ * A retained log keeps its segments after they are read and drops the oldest ones past a retention limit
+ * instead, so any number of {@link Cursor}s, each in a file of its own, read the same records.
+ */
+class SegmentedLog implements Closeable {
+    static final long DEFAULT_SEGMENT_SIZE = 16L * 1024 * 1024;
+    private static final String INDEX_FILE_NAME = "index";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    // Layout of the index file
+    private static final int TAIL_SEGMENT = 0;
+    private static final int TAIL_POSITION = 8;
+    private static final int TAIL_COUNT = 16;
+    private static final int HEAD_COUNT = 24;
+    private static final int HEAD = 32;
+    private static final int INDEX_SIZE = 40;
+    // Header of a segment: magic number and compression id
+    private static final int SEGMENT_MAGIC = 0x51534547;
+    private static final int SEGMENT_HEADER_SIZE = 16;
+    // Largest length of the records compressed into one block
+    private static final int MAX_BLOCK_BYTES = 64 * 1024;
+
+    private final Path dir;
+    private long segmentSize;
+    private final FileChannel indexChannel;
+    private final MappedByteBuffer index;
+    private final MappedLongs cursors;
+    // Head of the queue and its read count, in the index
+    private final Cursor queueCursor;
+    // Channel of the segment currently appended to
+    private FileChannel writeChannel;
+    private long writeSegment = -1;
+    // Compression of the segment currently appended to
+    private Compression writeCompression = Compression.NONE;
+    // Compression of the segments created from now on
+    private volatile Compression compression = Compression.NONE;
+    // Last block decompressed, the consumers at the head all read from the same block
+    private volatile Block headBlock;
+    // Mappings of the segments read from
+    private final Map<Long, MappedByteBuffer> readBuffers = new ConcurrentHashMap<>();
+    // Lowest segment this process has not removed, the segments below the head from it up may be removable
+    private volatile long oldestSegment;
+    // Set when segments are only removed by retention, not once the head moves past them
+    private volatile boolean retained;
+    // Tells whether a segment still holds messages in flight outside the pins
+    private LongPredicate inUse = segment -> false;
+    // Written after every append so that a reader in this process sees the appended bytes
+    private volatile long appended;
+    // Number of pulled but not yet deleted messages per segment, and the segment of every such message
+    private final Map<Long, Integer> pinCounts = new HashMap<>();
+    private final Map<String, Long> pins = new HashMap<>();
+
+    /**
+     * A record read from the log, located in the mapping of its segment or in its decompressed block.
+     */
+    static class Record {
+        final long segment;
+        final ByteBuffer buffer;
+        final int position;
+        private final long location;
+        // Location of the record after this one
+        private final long next;
+
+        Record(long segment, ByteBuffer buffer, int position, long location, long next) {
+            this.segment = segment;
+            this.buffer = buffer;
+            this.position = position;
+            this.location = location;
+            this.next = next;
+        }
+
+        /**
+         * The location of the record, as combined by {@link ClaimTable#location(long, int, int)}.
+         * @return location of the record
+         */
+        long location() {
+            return location;
+        }
+    }
+
+    /**
+     * A read position in the log and the number of records read up to it, two longs of a memory-mapped
+     * file. The position moves with a compare-and-swap, so a cursor is shared by the consumers of every process.
+     */
+    static class Cursor {
+        private final MappedLongs longs;
+        private final int location;
+        private final int count;
+
+        /**
+         * Create a cursor over two longs of a mapped file.
+         * @param longs the mapped file
+         * @param location offset of the location of the next record to read
+         * @param count offset of the number of records read
+         */
+        Cursor(MappedLongs longs, int location, int count) {
+            this.longs = longs;
+            this.location = location;
+            this.count = count;
+        }
+
+        long location() {
+            return longs.get(location);
+        }
+    }
+
+    /**
+     * The records of a block record, decompressed.
+     */
+    private static class Block {
+        // Location and checksum of the block record
+        final long location;
+        final int checksum;
+        final ByteBuffer records;
+        // Start of every record and the end of the last one
+        final int[] starts;
+
+        Block(long location, int checksum, ByteBuffer records, int[] starts) {
+            this.location = location;
+            this.checksum = checksum;
+            this.records = records;
+            this.starts = starts;
+        }
+    }
+
+    /**
+     * Open the log stored in a directory, creating it when missing.
+     * @param dir directory holding the segments and the index
+     * @param segmentSize size of a segment file in bytes
+     * @throws IOException exception
+     */
+    SegmentedLog(Path dir, long segmentSize) throws IOException {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        Files.createDirectories(dir);
+        indexChannel = FileChannel.open(dir.resolve(INDEX_FILE_NAME), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, INDEX_SIZE);
+        cursors = new MappedLongs(index);
+        queueCursor = new Cursor(cursors, HEAD, HEAD_COUNT);
+        oldestSegment = oldestSegmentOnDisk();
+    }
+
+    /**
+     * Set the check of the messages in flight outside the pins, a segment they use is not removed.
+     * @param check tells whether a segment is in use
+     */
+    void setInUse(LongPredicate check) {
+        inUse = check;
+    }
+
+    /**
+     * Keep the segments once they are read, they are only removed by {@link #removeRetained(long, long)}.
+     * @param retained whether the log is retained
+     */
+    void setRetained(boolean retained) {
+        this.retained = retained;
+    }
+
+    /**
+     * Set the size of segments created from now on.
+     * @param size segment size in bytes
+     */
+    void setSegmentSize(long size) {
+        segmentSize = size;
+    }
+
+    /**
+     * Set the compression of segments created from now on.
+     * @param compression the codec
+     */
+    void setCompression(Compression compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Append records at the tail, rolling over to a new segment when the current one is full.
+     * The records of a segment are written with a single call, in compressed blocks if the segment was
+     * created with compression.
+     * @param records the encoded records
+     * @param force whether to flush the records and the index to disk before returning
+     * @throws IOException exception
+     */
+    void append(List<byte[]> records, boolean force) throws IOException {
+        long segment = index.getLong(TAIL_SEGMENT);
+        long position = index.getLong(TAIL_POSITION);
+        int first = 0;
+        while (first < records.size()) {
+            FileChannel channel = writeChannel(segment, records.get(first).length + SEGMENT_HEADER_SIZE);
+            if (position == 0) {
+                writeHeader(channel);
+                position = SEGMENT_HEADER_SIZE;
+            }
+            int last = first;
+            long end = position;
+            boolean full = false;
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            while (last < records.size() && !full) {
+                int count = blockSize(records, last);
+                byte[] block = count > 0 ? compressBlock(records, last, count) : null;
+                if (block != null && end + block.length <= channel.size()) {
+                    data.write(block);
+                    end += block.length;
+                    last += count;
+                } else if (block != null && end > SEGMENT_HEADER_SIZE) {
+                    // Goes whole to the next segment
+                    full = true;
+                } else {
+                    // Not compressed, or a block too large for an empty segment
+                    int stop = last + Math.max(count, 1);
+                    while (last < stop && end + records.get(last).length <= channel.size()) {
+                        data.write(records.get(last));
+                        end += records.get(last).length;
+                        last++;
+                    }
+                    full = last < stop;
+                }
+            }
+            if (last > first) {
+                ByteBuffer buffer = ByteBuffer.wrap(data.toByteArray());
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer, position + buffer.position());
+                }
+                if (force) {
+                    channel.force(false);
+                }
+            }
+            if (full) {
+                // The rest of the segment stays zero, which tells readers to move on to the next one
+                segment++;
+                position = 0;
+            } else {
+                position = end;
+            }
+            first = last;
+        }
+        // Counted before the tail moves, so a reader never counts more records read than appended
+        index.putLong(TAIL_COUNT, index.getLong(TAIL_COUNT) + records.size());
+        index.putLong(TAIL_SEGMENT, segment);
+        index.putLong(TAIL_POSITION, position);
+        if (force) {
+            index.force();
+        }
+        appended++;
+    }
+
+    /**
+     * Read the record at the head and move the head past it.
+     * @return the record, or null if the log is empty
+     * @throws IOException exception
+     */
+    Record poll() throws IOException {
+        while (true) {
+            Record record = peek();
+            if (record == null || take(record)) {
+                return record;
+            }
+        }
+    }
+
+    /**
+     * Count the records going into the next block.
+     * @param records the records
+     * @param first index of the first record of the block
+     * @return number of records, 0 if the segment is not compressed
+     */
+    private int blockSize(List<byte[]> records, int first) {
+        if (writeCompression == Compression.NONE) {
+            return 0;
+        }
+        int last = first;
+        int length = 0;
+        while (last < records.size() && last - first < ClaimTable.MAX_BLOCK_RECORDS
+                && (last == first || length + records.get(last).length <= MAX_BLOCK_BYTES)) {
+            length += records.get(last).length;
+            last++;
+        }
+        return last - first;
+    }
+
+    /**
+     * Compress records into a block record.
+     * @param records the records
+     * @param first index of the first record of the block
+     * @param count number of records in the block
+     * @return the block record, or null if compressing does not make the records smaller
+     */
+    private byte[] compressBlock(List<byte[]> records, int first, int count) {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        for (int i = first; i < first + count; i++) {
+            data.write(records.get(i), 0, records.get(i).length);
+        }
+        byte[] compressed = writeCompression.compress(data.toByteArray(), data.size());
+        if (compressed == null || RecordCodec.frameSize(compressed.length) >= data.size()) {
+            return null;
+        }
+        return RecordCodec.encodeBlock(count, data.size(), compressed);
+    }
+
+    /**
+     * Read the record at the head without moving the head. Needs the shared consumer lock.
+     * @return the record, or null if the log is empty
+     * @throws IOException exception
+     */
+    Record peek() throws IOException {
+        return peek(queueCursor);
+    }
+
+    /**
+     * Read the record at a cursor without moving the cursor. Needs the shared lock of the cursor.
+     * @param cursor the cursor
+     * @return the record, or null if the cursor is at the tail
+     * @throws IOException exception
+     */
+    Record peek(Cursor cursor) throws IOException {
+        // Reading the counter makes the appends of other threads in this process visible
+        long appendCount = appended;
+        while (true) {
+            long head = cursor.location();
+            long segment = ClaimTable.segment(head);
+            // Position of the record, or of the block holding it
+            int start = ClaimTable.position(head);
+            long tailSegment = index.getLong(TAIL_SEGMENT);
+            if (segment > tailSegment || segment == tailSegment && start >= index.getLong(TAIL_POSITION)) {
+                return null;
+            }
+            MappedByteBuffer buffer;
+            try {
+                buffer = readBuffer(segment);
+            } catch (NoSuchFileException e) {
+                if (cursor.location() != head) {
+                    // Consumed and removed by another process meanwhile
+                    continue;
+                }
+                throw e;
+            }
+            if (start == 0 && hasHeader(buffer)) {
+                cursor.longs.compareAndSet(cursor.location, head, ClaimTable.location(segment, SEGMENT_HEADER_SIZE));
+                continue;
+            }
+            int end = RecordCodec.next(buffer, start);
+            if (end < 0) {
+                if (segment < tailSegment && (start + 4 > buffer.capacity() || buffer.getInt(start) == 0)) {
+                    // End of the segment, continue with the next one
+                    cursor.longs.compareAndSet(cursor.location, head, ClaimTable.location(segment + 1, 0));
+                    continue;
+                }
+                if (cursor.location() != head) {
+                    // Another consumer moved the head meanwhile
+                    continue;
+                }
+                throw new IOException(String.format("Truncated record in segment %d at %d", segment, start));
+            }
+            return record(buffer, head, end);
+        }
+    }
+
+    /**
+     * Move the head past a record read by {@link #peek()}, unless another consumer took it first.
+     * @param record the record
+     * @return true if the record is now claimed by the caller
+     */
+    boolean take(Record record) {
+        return take(record, queueCursor);
+    }
+
+    /**
+     * Move a cursor past a record read by {@link #peek(Cursor)}, unless another consumer took it first.
+     * @param record the record
+     * @param cursor the cursor
+     * @return true if the record is now claimed by the caller
+     */
+    boolean take(Record record, Cursor cursor) {
+        if (!cursor.longs.compareAndSet(cursor.location, record.location, record.next)) {
+            return false;
+        }
+        cursor.longs.addAndGet(cursor.count, 1);
+        return true;
+    }
+
+    /**
+     * Read a record behind the head, the message of an in-flight slot.
+     * @param location location of the record
+     * @return the record
+     * @throws IOException exception
+     */
+    Record read(long location) throws IOException {
+        long segment = ClaimTable.segment(location);
+        int position = ClaimTable.position(location);
+        MappedByteBuffer buffer = readBuffer(segment);
+        int end = RecordCodec.next(buffer, position);
+        if (end < 0) {
+            throw new IOException(String.format("Corrupt record in segment %d at %d", segment, position));
+        }
+        return record(buffer, location, end);
+    }
+
+    /**
+     * Read the first record at or after a location, moving on to the next segments as needed.
+     * @param location location of a record or of the start of a segment
+     * @return the record, or null if the location is at the tail
+     * @throws IOException exception
+     */
+    Record readFrom(long location) throws IOException {
+        while (true) {
+            long segment = ClaimTable.segment(location);
+            int position = ClaimTable.position(location);
+            long tailSegment = index.getLong(TAIL_SEGMENT);
+            if (segment > tailSegment || segment == tailSegment && position >= index.getLong(TAIL_POSITION)) {
+                return null;
+            }
+            MappedByteBuffer buffer = readBuffer(segment);
+            if (position == 0 && hasHeader(buffer)) {
+                location = ClaimTable.location(segment, SEGMENT_HEADER_SIZE);
+                continue;
+            }
+            int end = RecordCodec.next(buffer, position);
+            if (end < 0) {
+                if (segment < tailSegment && (position + 4 > buffer.capacity() || buffer.getInt(position) == 0)) {
+                    location = ClaimTable.location(segment + 1, 0);
+                    continue;
+                }
+                throw new IOException(String.format("Truncated record in segment %d at %d", segment, position));
+            }
+            return record(buffer, location, end);
+        }
+    }
+
+    /**
+     * Find the first record enqueued at or after a time. Segments are skipped whole while the next one starts
+     * before the time, then the records are scanned. Records without an enqueue time count as older.
+     * @param time enqueue time in milliseconds
+     * @return location of the record, or the tail if every record is older
+     * @throws IOException exception
+     */
+    long seek(long time) throws IOException {
+        long tailSegment = index.getLong(TAIL_SEGMENT);
+        long location = firstLocation();
+        for (long segment = ClaimTable.segment(location) + 1; segment <= tailSegment; segment++) {
+            Record first = readFrom(ClaimTable.location(segment, 0));
+            if (first == null || first.segment != segment
+                    || RecordCodec.enqueueTime(first.buffer, first.position) >= time) {
+                break;
+            }
+            location = ClaimTable.location(segment, 0);
+        }
+        Record record = readFrom(location);
+        while (record != null && RecordCodec.enqueueTime(record.buffer, record.position) < time) {
+            record = readFrom(record.next);
+        }
+        return record != null ? record.location
+                : ClaimTable.location(index.getLong(TAIL_SEGMENT), (int) index.getLong(TAIL_POSITION));
+    }
+
+    /**
+     * The location of the oldest record kept.
+     * @return the start of the oldest segment on disk
+     */
+    long firstLocation() {
+        return ClaimTable.location(Math.min(oldestSegmentOnDisk(), index.getLong(TAIL_SEGMENT)), 0);
+    }
+
+    /**
+     * Move a cursor and count the records after it. Needs the producer lock and the exclusive lock of the cursor.
+     * @param cursor the cursor
+     * @param location its new location
+     * @throws IOException exception
+     */
+    void moveCursor(Cursor cursor, long location) throws IOException {
+        cursor.longs.set(cursor.location, location);
+        recount(cursor);
+    }
+
+    /**
+     * Move a cursor left behind the removed segments to the oldest record kept. Needs the producer lock and
+     * the exclusive lock of the cursor.
+     * @param cursor the cursor
+     * @return true if the cursor was moved
+     * @throws IOException exception
+     */
+    boolean skipRemoved(Cursor cursor) throws IOException {
+        long first = firstLocation();
+        if (ClaimTable.segment(cursor.location()) >= ClaimTable.segment(first)) {
+            return false;
+        }
+        moveCursor(cursor, first);
+        return true;
+    }
+
+    /**
+     * Move the head of the queue left behind the removed segments, see {@link #skipRemoved(Cursor)}.
+     * @return true if the head was moved
+     * @throws IOException exception
+     */
+    boolean skipRemoved() throws IOException {
+        return skipRemoved(queueCursor);
+    }
+
+    /**
+     * Remove the oldest segments past the retention limits, up to the first segment kept. The tail segment
+     * and the segments holding pinned or in-use messages are kept. Needs the exclusive consumer lock.
+     * @param writtenBefore segments last written before this time are removed, 0 for no age limit
+     * @param maxBytes segments are removed while all of them take more bytes, 0 for no size limit
+     * @return number of removed segments
+     * @throws IOException exception
+     */
+    int removeRetained(long writtenBefore, long maxBytes) throws IOException {
+        long tailSegment = index.getLong(TAIL_SEGMENT);
+        long bytes = 0;
+        File[] files = dir.toFile().listFiles((parent, name) -> name.endsWith(SEGMENT_SUFFIX));
+        if (files != null) {
+            for (File file : files) {
+                bytes += file.length();
+            }
+        }
+        int removed = 0;
+        long segment = oldestSegmentOnDisk();
+        for (; segment < tailSegment; segment++) {
+            Path path = segmentPath(segment);
+            if (Files.notExists(path)) {
+                continue;
+            }
+            boolean expired = writtenBefore > 0 && Files.getLastModifiedTime(path).toMillis() < writtenBefore;
+            boolean oversized = maxBytes > 0 && bytes > maxBytes;
+            if (!expired && !oversized || pinCounts.containsKey(segment) || inUse.test(segment)) {
+                break;
+            }
+            bytes -= Files.size(path);
+            readBuffers.remove(segment);
+            Files.delete(path);
+            removed++;
+        }
+        oldestSegment = Math.max(oldestSegment, segment);
+        return removed;
+    }
+
+    /**
+     * Check and read the record at a location, decompressing its block if it is in one.
+     * @param buffer mapping of the segment
+     * @param location location of the record
+     * @param end position after the record or block record in the segment
+     * @return the record
+     * @throws IOException exception
+     */
+    private Record record(MappedByteBuffer buffer, long location, int end) throws IOException {
+        long segment = ClaimTable.segment(location);
+        int position = ClaimTable.position(location);
+        if (RecordCodec.type(buffer, position) != RecordCodec.BLOCK) {
+            if (!RecordCodec.isIntact(buffer, position)) {
+                throw new IOException(String.format("Corrupt record in segment %d at %d", segment, position));
+            }
+            return new Record(segment, buffer, position, location, ClaimTable.location(segment, end));
+        }
+        Block block = block(buffer, segment, position);
+        int index = ClaimTable.index(location);
+        if (index >= block.starts.length - 1) {
+            throw new IOException(String.format("No record %d in the block of segment %d at %d",
+                    index, segment, position));
+        }
+        long next = index + 2 < block.starts.length
+                ? ClaimTable.location(segment, position, index + 1) : ClaimTable.location(segment, end);
+        return new Record(segment, block.records, block.starts[index], location, next);
+    }
+
+    /**
+     * Decompress a block record, or take it from the last block decompressed.
+     */
+    private Block block(MappedByteBuffer buffer, long segment, int position) throws IOException {
+        long location = ClaimTable.location(segment, position);
+        int checksum = RecordCodec.checksum(buffer, position);
+        Block block = headBlock;
+        if (block != null && block.location == location && block.checksum == checksum) {
+            return block;
+        }
+        Compression codec = compression(buffer);
+        if (codec == null || !RecordCodec.isIntact(buffer, position)) {
+            throw new IOException(String.format("Corrupt block in segment %d at %d", segment, position));
+        }
+        ByteBuffer records = ByteBuffer.wrap(codec.decompress(RecordCodec.body(buffer, position),
+                RecordCodec.blockLength(buffer, position)));
+        int count = RecordCodec.blockCount(buffer, position);
+        int[] starts = new int[count + 1];
+        for (int i = 0; i < count; i++) {
+            int next = RecordCodec.next(records, starts[i]);
+            if (next < 0 || !RecordCodec.isIntact(records, starts[i])) {
+                throw new IOException(String.format("Corrupt record %d in the block of segment %d at %d",
+                        i, segment, position));
+            }
+            starts[i + 1] = next;
+        }
+        block = new Block(location, checksum, records, starts);
+        headBlock = block;
+        return block;
+    }
+
+    private static boolean hasHeader(ByteBuffer buffer) {
+        return buffer.capacity() >= SEGMENT_HEADER_SIZE && buffer.getInt(0) == SEGMENT_MAGIC;
+    }
+
+    /**
+     * The compression recorded in the header of a segment.
+     * @param buffer mapping of the segment
+     * @return the codec, NONE without a header, or null if the codec is unknown
+     */
+    private static Compression compression(ByteBuffer buffer) {
+        return hasHeader(buffer) ? Compression.of(buffer.get(4)) : Compression.NONE;
+    }
+
+    /**
+     * The segment appended to.
+     * @return segment number
+     */
+    long tailSegment() {
+        return index.getLong(TAIL_SEGMENT);
+    }
+
+    /**
+     * The segment of the head.
+     * @return segment number
+     */
+    long headSegment() {
+        return ClaimTable.segment(cursors.get(HEAD));
+    }
+
+    /**
+     * Whether consumed segments may be waiting for {@link #sweep()}.
+     * @return true if this process has not removed every segment below the head
+     */
+    boolean needsSweep() {
+        return !retained && oldestSegment < headSegment();
+    }
+
+    /**
+     * Whether a segment is the oldest consumed segment this process keeps, which {@link #sweep()} removes once
+     * its last message in flight is gone.
+     * @param segment segment number
+     * @return true if the segment is below the head and not above the oldest kept segment
+     */
+    boolean isSweepable(long segment) {
+        return !retained && segment <= oldestSegment && segment < headSegment();
+    }
+
+    /**
+     * Remove the segments below the head that hold no pinned or in-use message.
+     * Needs the exclusive consumer lock.
+     * @throws IOException exception
+     */
+    void sweep() throws IOException {
+        if (retained) {
+            return;
+        }
+        long head = headSegment();
+        long oldest = Math.max(oldestSegment, oldestSegmentOnDisk());
+        for (long segment = oldest; segment < head; segment++) {
+            removeIfReleased(segment);
+            if (Files.notExists(segmentPath(segment)) && segment == oldest) {
+                oldest++;
+            }
+        }
+        oldestSegment = oldest;
+    }
+
+    /**
+     * Check without the consumer lock whether a record may be waiting at the head.
+     * The record itself is looked up rather than the tail position, because a change notification for a
+     * segment arrives once the record is written but possibly before the writer updated the tail.
+     * @return true if a record is waiting or may be waiting
+     * @throws IOException exception
+     */
+    boolean hasUnread() throws IOException {
+        return hasUnread(queueCursor);
+    }
+
+    /**
+     * Check without a lock whether a record may be waiting at a cursor, see {@link #hasUnread()}.
+     * @param cursor the cursor
+     * @return true if a record is waiting or may be waiting
+     * @throws IOException exception
+     */
+    boolean hasUnread(Cursor cursor) throws IOException {
+        long head = cursor.location();
+        long segment = ClaimTable.segment(head);
+        long position = ClaimTable.position(head);
+        // Inside a block the rest of the block is unread
+        if (ClaimTable.index(head) > 0 || segment < index.getLong(TAIL_SEGMENT)
+                || position < index.getLong(TAIL_POSITION)) {
+            return true;
+        }
+        // The writer may also have rolled over to the next segment
+        return recordStartsAt(segment, position) || recordStartsAt(segment + 1, 0);
+    }
+
+    private boolean recordStartsAt(long segment, long position) throws IOException {
+        try (FileChannel channel = FileChannel.open(segmentPath(segment), StandardOpenOption.READ)) {
+            ByteBuffer length = ByteBuffer.allocate(4);
+            return channel.read(length, position) == 4 && length.getInt(0) != 0;
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+
+    /**
+     * The number of records between head and tail, read from the index without a lock.
+     * @return number of unread records
+     */
+    int size() {
+        return size(queueCursor);
+    }
+
+    /**
+     * The number of records between a cursor and the tail, read without a lock.
+     * @param cursor the cursor
+     * @return number of unread records
+     */
+    int size(Cursor cursor) {
+        // The read count first, it never passes the append count read after it
+        long read = cursor.longs.get(cursor.count);
+        return (int) Math.max(index.getLong(TAIL_COUNT) - read, 0);
+    }
+
+    /**
+     * The bytes between head and tail, read without a lock. Segments in between are counted at the current
+     * segment size.
+     * @return estimated bytes of the unread records
+     */
+    long unreadBytes() {
+        long head = cursors.get(HEAD);
+        long segments = index.getLong(TAIL_SEGMENT) - ClaimTable.segment(head);
+        return Math.max(segments * segmentSize + index.getLong(TAIL_POSITION) - ClaimTable.position(head), 0);
+    }
+
+    /**
+     * Rebuild the record counts of the index by walking the records between head and tail.
+     * Needs both the producer and the consumer lock.
+     * @return number of unread records
+     * @throws IOException exception
+     */
+    int recount() throws IOException {
+        return recount(queueCursor);
+    }
+
+    /**
+     * Rebuild the read count of a cursor, see {@link #recount()}.
+     * Needs the producer lock and the exclusive lock of the cursor.
+     * @param cursor the cursor
+     * @return number of unread records
+     * @throws IOException exception
+     */
+    int recount(Cursor cursor) throws IOException {
+        int count = 0;
+        long tailSegment = index.getLong(TAIL_SEGMENT);
+        long tailPosition = index.getLong(TAIL_POSITION);
+        long head = cursor.location();
+        int position = ClaimTable.position(head);
+        // Records of the head block already read
+        int skipped = ClaimTable.index(head);
+        for (long segment = ClaimTable.segment(head); segment <= tailSegment; segment++) {
+            if (!Files.exists(segmentPath(segment))) {
+                break;
+            }
+            MappedByteBuffer buffer = map(segment);
+            if (position == 0 && hasHeader(buffer)) {
+                position = SEGMENT_HEADER_SIZE;
+            }
+            long end = segment == tailSegment ? tailPosition : buffer.capacity();
+            int next = RecordCodec.next(buffer, position);
+            while (next > 0 && next <= end) {
+                boolean block = RecordCodec.type(buffer, position) == RecordCodec.BLOCK;
+                count += block ? RecordCodec.blockCount(buffer, position) - skipped : 1;
+                skipped = 0;
+                position = next;
+                next = RecordCodec.next(buffer, next);
+            }
+            position = 0;
+        }
+        cursor.longs.set(cursor.count, index.getLong(TAIL_COUNT) - count);
+        return count;
+    }
+
+    /**
+     * Count the segment files on disk.
+     * @return number of segments
+     */
+    int segmentCount() {
+        File[] files = dir.toFile().listFiles((parent, name) -> name.endsWith(SEGMENT_SUFFIX));
+        return files == null ? 0 : files.length;
+    }
+
+    /**
+     * Keep the segment of a pulled message until the message is released.
+     * @param key receipt handle of the message
+     * @param segment segment the message was read from
+     */
+    void pin(String key, long segment) {
+        if (pins.putIfAbsent(key, segment) == null) {
+            pinCounts.merge(segment, 1, Integer::sum);
+        }
+    }
+
+    /**
+     * Release a message pinned by {@link #pin(String, long)}, removing its segment if nothing else holds it.
+     * @param key receipt handle of the message
+     * @throws IOException exception
+     */
+    void release(String key) throws IOException {
+        Long segment = pins.remove(key);
+        if (segment == null) {
+            return;
+        }
+        if (pinCounts.merge(segment, -1, Integer::sum) <= 0) {
+            pinCounts.remove(segment);
+            removeIfReleased(segment);
+        }
+    }
+
+    /**
+     * Drop every segment and reset both cursors.
+     * @throws IOException exception
+     */
+    void purge() throws IOException {
+        closeSegments();
+        File[] files = dir.toFile().listFiles((parent, name) -> name.endsWith(SEGMENT_SUFFIX));
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        for (int i = 0; i < INDEX_SIZE; i += 8) {
+            cursors.set(i, 0L);
+        }
+        oldestSegment = 0;
+        headBlock = null;
+        pins.clear();
+        pinCounts.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closeSegments();
+        indexChannel.close();
+    }
+
+    private void closeSegments() throws IOException {
+        if (writeChannel != null) {
+            writeChannel.close();
+            writeChannel = null;
+        }
+        writeSegment = -1;
+        readBuffers.clear();
+    }
+
+    private void removeIfReleased(long segment) throws IOException {
+        if (!retained && segment < headSegment() && !pinCounts.containsKey(segment) && !inUse.test(segment)) {
+            readBuffers.remove(segment);
+            Files.deleteIfExists(segmentPath(segment));
+        }
+    }
+
+    private long oldestSegmentOnDisk() {
+        File[] files = dir.toFile().listFiles((parent, name) -> name.endsWith(SEGMENT_SUFFIX));
+        long oldest = Long.MAX_VALUE;
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                oldest = Math.min(oldest, Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+            }
+        }
+        return oldest == Long.MAX_VALUE ? headSegment() : oldest;
+    }
+
+    private FileChannel writeChannel(long segment, int recordLength) throws IOException {
+        if (segment != writeSegment) {
+            if (writeChannel != null) {
+                writeChannel.close();
+            }
+            RandomAccessFile file = new RandomAccessFile(segmentPath(segment).toFile(), "rw");
+            if (file.length() == 0) {
+                // Preallocate, a single record larger than a segment gets a segment of its own
+                file.setLength(Math.max(segmentSize, recordLength));
+            }
+            writeChannel = file.getChannel();
+            writeSegment = segment;
+            ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+            writeChannel.read(header, 0);
+            Compression recorded = compression(header);
+            writeCompression = recorded == null ? Compression.NONE : recorded;
+        }
+        return writeChannel;
+    }
+
+    /**
+     * Start a new segment with its header, recording the compression of the log.
+     */
+    private void writeHeader(FileChannel channel) throws IOException {
+        writeCompression = compression;
+        ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+        header.putInt(SEGMENT_MAGIC).put(writeCompression.id);
+        header.clear();
+        while (header.hasRemaining()) {
+            channel.write(header, header.position());
+        }
+    }
+
+    private MappedByteBuffer readBuffer(long segment) throws IOException {
+        MappedByteBuffer buffer = readBuffers.get(segment);
+        if (buffer == null) {
+            // Mapped twice at worst when two consumers get to a segment at the same time
+            buffer = map(segment);
+            readBuffers.put(segment, buffer);
+        }
+        return buffer;
+    }
+
+    private MappedByteBuffer map(long segment) throws IOException {
+        try (FileChannel channel = FileChannel.open(segmentPath(segment), StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    private Path segmentPath(long segment) {
+        return dir.resolve(String.format("%020d%s", segment, SEGMENT_SUFFIX));
+    }
+}
@@ -0,0 +1,183 @@
+package com.example;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.sqs.AmazonSQSAsync;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An asynchronous adapter for Amazon SQS service, built on the asynchronous SQS client.
+ * Requests are issued as batches of at most {@link SqsQueueService#MAX_BATCH_SIZE} entries and their
+ * futures are completed from the callbacks of the client.
+ */
+public class SqsAsyncQueueService implements AsyncQueueService {
+    private AmazonSQSAsync amazonSQSAsync;
+
+    public SqsAsyncQueueService(AmazonSQSAsync sqsAsyncClient) {
+        amazonSQSAsync = sqsAsyncClient;
+    }
+
+    /**
+     * Push messages in requests of at most {@link SqsQueueService#MAX_BATCH_SIZE} entries, all sent at once.
+     * The future fails with a {@link BatchFailureException} holding the bodies of the messages not sent.
+     */
+    @Override
+    public CompletableFuture<Void> pushBatch(String queueUrl, List<String> messageBodies) {
+        SqsQueueService.BatchFailures failures = new SqsQueueService.BatchFailures("send", messageBodies);
+        List<CompletableFuture<Void>> batches = new ArrayList<>();
+        for (int from = 0; from < messageBodies.size(); from += SqsQueueService.MAX_BATCH_SIZE) {
+            int first = from;
+            int to = Math.min(from + SqsQueueService.MAX_BATCH_SIZE, messageBodies.size());
+            List<SendMessageBatchRequestEntry> entries = new ArrayList<>(to - from);
+            for (int i = from; i < to; i++) {
+                entries.add(new SendMessageBatchRequestEntry(Integer.toString(i), messageBodies.get(i)));
+            }
+            CompletableFuture<SendMessageBatchResult> batch = new CompletableFuture<>();
+            amazonSQSAsync.sendMessageBatchAsync(new SendMessageBatchRequest(queueUrl, entries), complete(batch));
+            batches.add(batch.handle((result, failure) -> {
+                if (failure == null) {
+                    failures.add(result.getFailed());
+                } else {
+                    failures.add(first, to, failure);
+                }
+                return null;
+            }));
+        }
+        return CompletableFuture.allOf(batches.toArray(new CompletableFuture<?>[batches.size()])).thenRun(failures::check);
+    }
+
+    @Override
+    public CompletableFuture<List<Message>> pull(String queueUrl, int maxMessages) {
+        return receive(queueUrl, maxMessages, new ArrayList<>());
+    }
+
+    /**
+     * Long poll SQS, which holds the request open until a message arrives or the wait time is over.
+     * SQS waits at most {@link SqsQueueService#MAX_WAIT_TIME_SECONDS} and returns at most
+     * {@link SqsQueueService#MAX_BATCH_SIZE} messages.
+     */
+    @Override
+    public CompletableFuture<List<Message>> pull(String queueUrl, int maxMessages, long waitTime, TimeUnit unit) {
+        long waitSeconds = Math.min((unit.toMillis(waitTime) + 999) / 1000, SqsQueueService.MAX_WAIT_TIME_SECONDS);
+        ReceiveMessageRequest receiveMessageRequest = new ReceiveMessageRequest(queueUrl);
+        receiveMessageRequest.setMaxNumberOfMessages(Math.min(maxMessages, SqsQueueService.MAX_BATCH_SIZE));
+        receiveMessageRequest.setWaitTimeSeconds((int) waitSeconds);
+        CompletableFuture<ReceiveMessageResult> received = new CompletableFuture<>();
+        amazonSQSAsync.receiveMessageAsync(receiveMessageRequest, complete(received));
+        return received.thenApply(result -> toMessages(result, new ArrayList<>()));
+    }
+
+    /**
+     * Delete messages in requests of at most {@link SqsQueueService#MAX_BATCH_SIZE} entries, all sent at once.
+     * The future fails with a {@link BatchFailureException} holding the receipt handles of the messages not
+     * deleted.
+     */
+    @Override
+    public CompletableFuture<Void> deleteBatch(String queueUrl, List<String> receiptHandles) {
+        SqsQueueService.BatchFailures failures = new SqsQueueService.BatchFailures("delete", receiptHandles);
+        List<CompletableFuture<Void>> batches = new ArrayList<>();
+        for (int from = 0; from < receiptHandles.size(); from += SqsQueueService.MAX_BATCH_SIZE) {
+            int first = from;
+            int to = Math.min(from + SqsQueueService.MAX_BATCH_SIZE, receiptHandles.size());
+            List<DeleteMessageBatchRequestEntry> entries = new ArrayList<>(to - from);
+            for (int i = from; i < to; i++) {
+                entries.add(new DeleteMessageBatchRequestEntry(Integer.toString(i), receiptHandles.get(i)));
+            }
+            CompletableFuture<DeleteMessageBatchResult> batch = new CompletableFuture<>();
+            amazonSQSAsync.deleteMessageBatchAsync(new DeleteMessageBatchRequest(queueUrl, entries), complete(batch));
+            batches.add(batch.handle((result, failure) -> {
+                if (failure == null) {
+                    failures.add(result.getFailed());
+                } else {
+                    failures.add(first, to, failure);
+                }
+                return null;
+            }));
+        }
+        return CompletableFuture.allOf(batches.toArray(new CompletableFuture<?>[batches.size()])).thenRun(failures::check);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> changeVisibility(String queueUrl, String receiptHandle, long timeout,
+                                                       TimeUnit unit) {
+        CompletableFuture<Void> changed = new CompletableFuture<>();
+        amazonSQSAsync.changeMessageVisibilityAsync(new ChangeMessageVisibilityRequest(queueUrl, receiptHandle,
+                SqsQueueService.visibilitySeconds(timeout, unit)), complete(changed));
+        return changed.handle((result, failure) -> {
+            if (failure == null) {
+                return true;
+            }
+            if (failure instanceof AmazonServiceException
+                    && SqsQueueService.isNotInFlight((AmazonServiceException) failure)) {
+                return false;
+            }
+            throw new CompletionException(failure);
+        });
+    }
+
+    /**
+     * Receive messages until enough are pulled or a receive comes back empty.
+     * @param queueUrl queue url
+     * @param maxMessages maximum number of messages to pull
+     * @param messages messages pulled so far
+     * @return future of the pulled messages
+     */
+    private CompletableFuture<List<Message>> receive(String queueUrl, int maxMessages, List<Message> messages) {
+        ReceiveMessageRequest receiveMessageRequest = new ReceiveMessageRequest(queueUrl);
+        receiveMessageRequest.setMaxNumberOfMessages(
+                Math.min(maxMessages - messages.size(), SqsQueueService.MAX_BATCH_SIZE));
+        CompletableFuture<ReceiveMessageResult> received = new CompletableFuture<>();
+        amazonSQSAsync.receiveMessageAsync(receiveMessageRequest, complete(received));
+        return received.thenCompose(result -> {
+            int before = messages.size();
+            toMessages(result, messages);
+            if (messages.size() == before || messages.size() >= maxMessages) {
+                return CompletableFuture.completedFuture(messages);
+            }
+            return receive(queueUrl, maxMessages, messages);
+        });
+    }
+
+    private static List<Message> toMessages(ReceiveMessageResult result, List<Message> messages) {
+        for (com.amazonaws.services.sqs.model.Message message : result.getMessages()) {
+            messages.add(new Message(message.getBody(), message.getReceiptHandle()));
+        }
+        return messages;
+    }
+
+    /**
+     * Callback of the client completing a future.
+     * @param future future to complete
+     * @param <Q> type of the request
+     * @param <R> type of the result
+     * @return the callback
+     */
+    private static <Q extends AmazonWebServiceRequest, R> AsyncHandler<Q, R> complete(CompletableFuture<R> future) {
+        return new AsyncHandler<Q, R>() {
+            @Override
+            public void onError(Exception exception) {
+                future.completeExceptionally(exception);
+            }
+
+            @Override
+            public void onSuccess(Q request, R result) {
+                future.complete(result);
+            }
+        };
+    }
+}
@@ -1,16 +1,33 @@
 package com.example;
 
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
 import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.QueueAttributeName;
 import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
 import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * An adapter for Amazon SQS service.
  */
 public class SqsQueueService implements QueueService {
+    // Largest number of entries SQS accepts in one batch request
+    static final int MAX_BATCH_SIZE = 10;
+    // Longest wait SQS accepts for a long poll
+    static final int MAX_WAIT_TIME_SECONDS = 20;
+    // Longest visibility timeout SQS accepts
+    static final int MAX_VISIBILITY_TIMEOUT_SECONDS = 12 * 60 * 60;
+
     private AmazonSQSClient amazonSQSClient;
+    private MetricsRegistry metrics = new MetricsRegistry("SqsQueueService");
 
     public SqsQueueService(AmazonSQSClient sqsClient) {
         amazonSQSClient = sqsClient;
@@ -18,23 +35,264 @@ public class SqsQueueService implements QueueService {
 
     @Override
     public void push(String queueUrl, String messageBody) {
+        long start = System.nanoTime();
         amazonSQSClient.sendMessage(queueUrl, messageBody);
+        getQueueMetrics(queueUrl).pushed(1, start);
     }
 
     @Override
     public Message pull(String queueUrl) {
+        long start = System.nanoTime();
         ReceiveMessageRequest receiveMessageRequest = new ReceiveMessageRequest(queueUrl);
         receiveMessageRequest.setMaxNumberOfMessages(1);
         ReceiveMessageResult receiveMessageResult = amazonSQSClient.receiveMessage(receiveMessageRequest);
         List<com.amazonaws.services.sqs.model.Message> messages = receiveMessageResult.getMessages();
+        getQueueMetrics(queueUrl).pulled(messages.size(), start);
         if (messages.size() > 0) {
             return new Message(messages.get(0).getBody(), messages.get(0).getReceiptHandle());
         }
         return null;
     }
 
+    @Override
+    public List<Message> pull(String queueUrl, int maxMessages) {
+        long start = System.nanoTime();
+        List<Message> messages = new ArrayList<>();
+        while (messages.size() < maxMessages) {
+            ReceiveMessageRequest receiveMessageRequest = new ReceiveMessageRequest(queueUrl);
+            receiveMessageRequest.setMaxNumberOfMessages(Math.min(maxMessages - messages.size(), MAX_BATCH_SIZE));
+            List<com.amazonaws.services.sqs.model.Message> received =
+                    amazonSQSClient.receiveMessage(receiveMessageRequest).getMessages();
+            if (received.isEmpty()) {
+                break;
+            }
+            for (com.amazonaws.services.sqs.model.Message message : received) {
+                messages.add(new Message(message.getBody(), message.getReceiptHandle()));
+            }
+        }
+        getQueueMetrics(queueUrl).pulled(messages.size(), start);
+        return messages;
+    }
+
+    /**
+     * Long poll SQS, which holds the request open until a message arrives or the wait time is over.
+     * SQS waits at most {@link #MAX_WAIT_TIME_SECONDS} and returns at most {@link #MAX_BATCH_SIZE} messages.
+     */
+    @Override
+    public List<Message> pull(String queueUrl, int maxMessages, long waitTime, TimeUnit unit) {
+        final long start = System.nanoTime();
+        ReceiveMessageRequest receiveMessageRequest = new ReceiveMessageRequest(queueUrl);
+        receiveMessageRequest.setMaxNumberOfMessages(Math.min(maxMessages, MAX_BATCH_SIZE));
+        long waitSeconds = (unit.toMillis(waitTime) + 999) / 1000;
+        receiveMessageRequest.setWaitTimeSeconds((int) Math.min(waitSeconds, MAX_WAIT_TIME_SECONDS));
+        List<Message> messages = new ArrayList<>();
+        for (com.amazonaws.services.sqs.model.Message message :
+                amazonSQSClient.receiveMessage(receiveMessageRequest).getMessages()) {
+            messages.add(new Message(message.getBody(), message.getReceiptHandle()));
+        }
+        getQueueMetrics(queueUrl).pulled(messages.size(), start);
+        return messages;
+    }
+
     @Override
     public void delete(String queueUrl, String messageBody) {
+        long start = System.nanoTime();
         amazonSQSClient.deleteMessage(queueUrl, messageBody);
+        getQueueMetrics(queueUrl).deleted(1, start);
+    }
+
+    @Override
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Push messages in requests of at most {@link #MAX_BATCH_SIZE} entries.
+     * Every request is sent even when an earlier one fails, then the failed messages are reported together.
+     * @throws BatchFailureException with the bodies of the messages that were not sent
+     */
+    @Override
+    public void pushBatch(String queueUrl, List<String> messageBodies) {
+        final long start = System.nanoTime();
+        BatchFailures failures = new BatchFailures("send", messageBodies);
+        for (int from = 0; from < messageBodies.size(); from += MAX_BATCH_SIZE) {
+            int to = Math.min(from + MAX_BATCH_SIZE, messageBodies.size());
+            List<SendMessageBatchRequestEntry> entries = new ArrayList<>(to - from);
+            for (int i = from; i < to; i++) {
+                entries.add(new SendMessageBatchRequestEntry(Integer.toString(i), messageBodies.get(i)));
+            }
+            try {
+                failures.add(amazonSQSClient.sendMessageBatch(queueUrl, entries).getFailed());
+            } catch (AmazonClientException e) {
+                failures.add(from, to, e);
+            }
+        }
+        getQueueMetrics(queueUrl).pushed(messageBodies.size() - failures.size(), start);
+        failures.check();
+    }
+
+    /**
+     * Delete messages in requests of at most {@link #MAX_BATCH_SIZE} entries.
+     * Every request is sent even when an earlier one fails, then the failed messages are reported together.
+     * @throws BatchFailureException with the receipt handles of the messages that were not deleted
+     */
+    @Override
+    public void deleteBatch(String queueUrl, List<String> receiptHandles) {
+        final long start = System.nanoTime();
+        BatchFailures failures = new BatchFailures("delete", receiptHandles);
+        for (int from = 0; from < receiptHandles.size(); from += MAX_BATCH_SIZE) {
+            int to = Math.min(from + MAX_BATCH_SIZE, receiptHandles.size());
+            List<DeleteMessageBatchRequestEntry> entries = new ArrayList<>(to - from);
+            for (int i = from; i < to; i++) {
+                entries.add(new DeleteMessageBatchRequestEntry(Integer.toString(i), receiptHandles.get(i)));
+            }
+            try {
+                failures.add(amazonSQSClient.deleteMessageBatch(queueUrl, entries).getFailed());
+            } catch (AmazonClientException e) {
+                failures.add(from, to, e);
+            }
+        }
+        getQueueMetrics(queueUrl).deleted(receiptHandles.size() - failures.size(), start);
+        failures.check();
+    }
+
+    @Override
+    public boolean changeVisibility(String queueUrl, String receiptHandle, long timeout, TimeUnit unit) {
+        return changeVisibility(amazonSQSClient, queueUrl, receiptHandle, timeout, unit);
+    }
+
+    /**
+     * Change the visibility timeout of a message, rounded up to whole seconds.
+     * @param client SQS client
+     * @param queueUrl queue url
+     * @param receiptHandle receipt handle of the message
+     * @param timeout new visibility timeout
+     * @param unit unit of the timeout
+     * @return true if the message was still in flight
+     */
+    static boolean changeVisibility(AmazonSQSClient client, String queueUrl, String receiptHandle, long timeout,
+                                    TimeUnit unit) {
+        try {
+            client.changeMessageVisibility(queueUrl, receiptHandle, visibilitySeconds(timeout, unit));
+            return true;
+        } catch (AmazonServiceException e) {
+            if (isNotInFlight(e)) {
+                return false;
+            }
+            throw e;
+        }
+    }
+
+    static int visibilitySeconds(long timeout, TimeUnit unit) {
+        long seconds = (unit.toMillis(timeout) + 999) / 1000;
+        return (int) Math.max(0, Math.min(seconds, MAX_VISIBILITY_TIMEOUT_SECONDS));
+    }
+
+    /**
+     * Whether SQS refused a request because the message was deleted or is visible again.
+     * @param failure the failure
+     * @return true for an invalid receipt handle or a message not in flight
+     */
+    static boolean isNotInFlight(AmazonServiceException failure) {
+        String code = failure.getErrorCode();
+        return code != null && (code.equals("ReceiptHandleIsInvalid") || code.endsWith("MessageNotInflight"));
+    }
+
+    private QueueMetrics getQueueMetrics(String queueUrl) {
+        QueueMetrics queueMetrics = metrics.find(queueUrl);
+        if (queueMetrics != null) {
+            return queueMetrics;
+        }
+        return metrics.getQueueMetrics(queueUrl, created -> setDepthGauges(amazonSQSClient, queueUrl, created));
+    }
+
+    /**
+     * Report the approximate depths SQS keeps for a queue, each read is a request to SQS.
+     * @param client SQS client
+     * @param queueUrl queue url
+     * @param queueMetrics metrics of the queue
+     */
+    static void setDepthGauges(AmazonSQSClient client, String queueUrl, QueueMetrics queueMetrics) {
+        queueMetrics.setDepthGauges(
+            () -> approximate(client, queueUrl, QueueAttributeName.ApproximateNumberOfMessages),
+            () -> approximate(client, queueUrl, QueueAttributeName.ApproximateNumberOfMessagesNotVisible));
+    }
+
+    private static long approximate(AmazonSQSClient client, String queueUrl, QueueAttributeName attribute) {
+        try {
+            String value = client.getQueueAttributes(queueUrl, Collections.singletonList(attribute.toString()))
+                    .getAttributes().get(attribute.toString());
+            return value == null ? -1 : Long.parseLong(value);
+        } catch (AmazonClientException | NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * The failed entries of the requests of one batch call, which may complete on several threads.
+     * The id of an entry is its index in the call.
+     */
+    static class BatchFailures {
+        private final String action;
+        private final List<String> items;
+        private final List<String> failed = new ArrayList<>();
+        private String firstError;
+        private Throwable cause;
+
+        /**
+         * Start collecting the failures of a batch call.
+         * @param action the batch action, for the error message
+         * @param items message bodies or receipt handles of the call
+         */
+        BatchFailures(String action, List<String> items) {
+            this.action = action;
+            this.items = items;
+        }
+
+        /**
+         * Record the entries a request reported as failed.
+         * @param errors failed entries of the request result
+         */
+        synchronized void add(List<BatchResultErrorEntry> errors) {
+            for (BatchResultErrorEntry error : errors) {
+                failed.add(items.get(Integer.parseInt(error.getId())));
+                if (firstError == null) {
+                    firstError = String.format("entry %s: %s %s", error.getId(), error.getCode(), error.getMessage());
+                }
+            }
+        }
+
+        /**
+         * Record a request that failed as a whole.
+         * @param from index of its first entry
+         * @param to index after its last entry
+         * @param failure the failure
+         */
+        synchronized void add(int from, int to, Throwable failure) {
+            failed.addAll(items.subList(from, to));
+            if (cause == null) {
+                cause = failure;
+                firstError = failure.getMessage();
+            }
+        }
+
+        /**
+         * The number of failed entries.
+         * @return number of failed entries
+         */
+        synchronized int size() {
+            return failed.size();
+        }
+
+        /**
+         * Fail when some entries failed.
+         * @throws BatchFailureException with the failed entries
+         */
+        synchronized void check() {
+            if (!failed.isEmpty()) {
+                throw new BatchFailureException(String.format("Failed to %s %d of %d messages, %s", action,
+                        failed.size(), items.size(), firstError), new ArrayList<>(failed), cause);
+            }
+        }
     }
 }
@@ -0,0 +1,245 @@
+package com.example;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The state of one queue of {@link TieredQueueService}.
+ * The head of the queue and the in-flight messages live in an {@link InMemoryQueue}. Once the visible
+ * messages in memory reach the budget of the queue or of the service, pushes spill to a {@link SegmentedLog}
+ * and keep spilling until the log is drained, so the order of the queue is kept. The log is refilled into
+ * memory in the background, or right away by a pull finding the memory empty. The spill lock serializes
+ * the spill and refill decisions and the log, pulls from memory and deletes do not take it.
+ */
+class TieredQueue implements Closeable {
+    final InMemoryQueue memory;
+    private final String queue;
+    private final SegmentedLog spill;
+    private final Budget budget;
+    // Estimated bytes of the visible messages in memory
+    private final AtomicLong memoryBytes = new AtomicLong();
+    private final Object spillLock = new Object();
+    private volatile int spilled;
+
+    /**
+     * Memory limits shared by the queues of a service.
+     */
+    static class Budget {
+        volatile long queueLimit;
+        volatile long totalLimit;
+        final AtomicLong total = new AtomicLong();
+
+        Budget(long queueLimit, long totalLimit) {
+            this.queueLimit = queueLimit;
+            this.totalLimit = totalLimit;
+        }
+    }
+
+    /**
+     * Visible messages in memory, counting their estimated size against the budget.
+     */
+    private class MemoryTier implements MessageStore {
+        private final HeapMessageStore messages = new HeapMessageStore();
+
+        @Override
+        public void offerLast(Message message) {
+            reserve(message.estimatedSize());
+            messages.offerLast(message);
+        }
+
+        @Override
+        public void addAll(List<Message> batch) {
+            long bytes = 0;
+            for (Message message : batch) {
+                bytes += message.estimatedSize();
+            }
+            reserve(bytes);
+            messages.addAll(batch);
+        }
+
+        @Override
+        public void offerFirst(Message message) {
+            reserve(message.estimatedSize());
+            messages.offerFirst(message);
+        }
+
+        @Override
+        public Message pollFirst() {
+            Message message = messages.pollFirst();
+            if (message != null) {
+                reserve(-message.estimatedSize());
+            }
+            return message;
+        }
+
+        @Override
+        public int size() {
+            return messages.size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return messages.isEmpty();
+        }
+
+        @Override
+        public void clear() {
+            messages.clear();
+            budget.total.addAndGet(-memoryBytes.getAndSet(0));
+        }
+    }
+
+    /**
+     * Create an empty queue, purging what an earlier spill log left in its directory.
+     * @param queue queue name
+     * @param dir directory of the spill log
+     * @param budget memory limits
+     * @param metrics metrics of the queue
+     * @param tickMillis tick of the timing wheels
+     * @param now current time
+     * @throws IOException exception
+     */
+    TieredQueue(String queue, Path dir, Budget budget, QueueMetrics metrics, long tickMillis, long now)
+            throws IOException {
+        this.queue = queue;
+        this.budget = budget;
+        memory = new InMemoryQueue(new MemoryTier(), metrics, tickMillis, now);
+        metrics.setDepthGauges(this, tiered -> tiered.memory.visible.size() + tiered.spilled, tiered -> tiered.memory.inFlight.size());
+        spill = new SegmentedLog(dir, SegmentedLog.DEFAULT_SEGMENT_SIZE);
+        // Spilled messages do not outlive the service, like the messages in memory
+        spill.purge();
+    }
+
+    /**
+     * Push messages to memory if the budget allows and nothing is spilled, else to the spill log.
+     * @param messages the messages, in order
+     * @throws IOException exception
+     */
+    void push(List<Message> messages) throws IOException {
+        long bytes = 0;
+        for (Message message : messages) {
+            bytes += message.estimatedSize();
+        }
+        synchronized (spillLock) {
+            if (spilled == 0 && hasRoom(bytes)) {
+                memory.visible.addAll(messages);
+            } else {
+                List<byte[]> records = new ArrayList<>(messages.size());
+                for (Message message : messages) {
+                    records.add(message.encode());
+                }
+                spill.append(records, false);
+                spilled += records.size();
+            }
+        }
+        memory.signal.signalAll();
+    }
+
+    /**
+     * Pull visible messages from memory, refilling it from the spill log when it runs out.
+     * @param maxMessages maximum number of messages
+     * @return the messages, without their revival time set
+     * @throws IOException exception
+     */
+    List<Message> poll(int maxMessages) throws IOException {
+        List<Message> messages = new ArrayList<>(Math.min(maxMessages, 16));
+        while (messages.size() < maxMessages) {
+            Message message = memory.visible.pollFirst();
+            if (message == null) {
+                if (spilled == 0 || refill() == 0) {
+                    break;
+                }
+                continue;
+            }
+            messages.add(message);
+        }
+        return messages;
+    }
+
+    /**
+     * Whether the background refill should move spilled messages to memory.
+     * @return true if messages are spilled and memory is below half of the queue budget
+     */
+    boolean needsRefill() {
+        return spilled > 0 && memoryBytes.get() < budget.queueLimit / 2;
+    }
+
+    /**
+     * Move spilled messages to memory until memory is half full, moving at least one message.
+     * @return number of moved messages
+     * @throws IOException exception
+     */
+    int refill() throws IOException {
+        int moved = 0;
+        synchronized (spillLock) {
+            List<Message> messages = new ArrayList<>();
+            long bytes = 0;
+            while (spilled > 0 && (moved == 0 || memoryBytes.get() + bytes < budget.queueLimit / 2
+                    && budget.total.get() + bytes < budget.totalLimit)) {
+                SegmentedLog.Record record = spill.poll();
+                if (record == null) {
+                    throw new IOException(String.format("Spill log of %s ended %d messages early", queue, spilled));
+                }
+                Message message = RecordCodec.decode(record.buffer, record.position);
+                message.setQueue(queue);
+                messages.add(message);
+                bytes += message.estimatedSize();
+                spilled--;
+                moved++;
+            }
+            memory.visible.addAll(messages);
+        }
+        if (moved > 0) {
+            memory.signal.signalAll();
+        }
+        return moved;
+    }
+
+    /**
+     * The number of messages in the spill log.
+     * @return spilled messages
+     */
+    int spilledCount() {
+        return spilled;
+    }
+
+    /**
+     * Estimated bytes of the visible messages in memory.
+     * @return bytes
+     */
+    long memoryBytes() {
+        return memoryBytes.get();
+    }
+
+    /**
+     * Drop every visible, spilled and in-flight message.
+     * @throws IOException exception
+     */
+    void purge() throws IOException {
+        synchronized (spillLock) {
+            spill.purge();
+            spilled = 0;
+            memory.purge();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (spillLock) {
+            spill.close();
+        }
+    }
+
+    private boolean hasRoom(long bytes) {
+        return memoryBytes.get() + bytes <= budget.queueLimit && budget.total.get() + bytes <= budget.totalLimit;
+    }
+
+    private void reserve(long bytes) {
+        memoryBytes.addAndGet(bytes);
+        budget.total.addAndGet(bytes);
+    }
+}
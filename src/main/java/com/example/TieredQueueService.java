@@ -0,0 +1,276 @@
+package com.example;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Queue service serving each queue from memory and spilling to disk under memory pressure.
+ * A {@link TieredQueue} keeps the head of the queue and the in-flight messages in memory, as
+ * {@link InMemoryQueueService} does. When the visible messages in memory exceed the budget of the queue
+ * or of the service, further pushes go to a segment log on disk until consumers have drained it, so a burst
+ * of pushes costs disk space rather than heap. A reaper thread revives timed out messages and refills memory
+ * from disk once it is half empty, so a steady stream of consumers keeps pulling from memory.
+ * Like the in-memory service, the messages do not survive the process, the spill directory is scratch space.
+ */
+public class TieredQueueService implements QueueService, Closeable {
+    private static final Logger LOGGER = Logger.getLogger(TieredQueueService.class.getName());
+    private static final long REAPER_TICK_MILLISECONDS = 10L;
+    static final long DEFAULT_QUEUE_BUDGET = 64L * 1024 * 1024;
+    static final long DEFAULT_TOTAL_BUDGET = 256L * 1024 * 1024;
+
+    private final Path spillDir;
+    private final ConcurrentHashMap<String, TieredQueue> queues = new ConcurrentHashMap<>();
+    private final MetricsRegistry metrics = new MetricsRegistry("TieredQueueService");
+    private final TieredQueue.Budget budget = new TieredQueue.Budget(DEFAULT_QUEUE_BUDGET, DEFAULT_TOTAL_BUDGET);
+    private final Thread reaper;
+    private volatile Long delayMilliSeconds = 500L;
+
+    /**
+     * Create a service spilling its queues under a directory.
+     * @param spillDir directory of the spilled messages, one folder per queue
+     * @throws IOException exception
+     */
+    public TieredQueueService(Path spillDir) throws IOException {
+        this.spillDir = spillDir;
+        Files.createDirectories(spillDir);
+        reaper = new Thread(this::reap, "tiered-queue-reaper");
+        reaper.setDaemon(true);
+        reaper.start();
+    }
+
+    /**
+     * Set the memory budgets, counted in estimated bytes of the visible messages held in memory.
+     * @param queueBytes budget of each queue
+     * @param totalBytes budget of all queues together
+     */
+    public void setMemoryBudget(long queueBytes, long totalBytes) {
+        budget.queueLimit = queueBytes;
+        budget.totalLimit = totalBytes;
+    }
+
+    void setDelayMilliSeconds(Long time) {
+        delayMilliSeconds = time;
+    }
+
+    /**
+     * Revive timeout messages and refill memory from disk once per tick.
+     */
+    private void reap() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                Thread.sleep(REAPER_TICK_MILLISECONDS);
+                long now = now();
+                for (TieredQueue tieredQueue : queues.values()) {
+                    tieredQueue.memory.revive(now);
+                    if (tieredQueue.needsRefill()) {
+                        refill(tieredQueue);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void refill(TieredQueue tieredQueue) {
+        try {
+            tieredQueue.refill();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to refill a queue from disk", e);
+        }
+    }
+
+    private long now() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Get the number of visible messages, in memory and on disk.
+     * @param queue queue name
+     * @return size of the queue
+     * @throws IOException exception
+     */
+    int getQueueSize(String queue) throws IOException {
+        TieredQueue tieredQueue = getQueue(queue);
+        return tieredQueue.memory.visible.size() + tieredQueue.spilledCount();
+    }
+
+    /**
+     * Get the number of visible messages on disk.
+     * @param queue queue name
+     * @return number of spilled messages
+     * @throws IOException exception
+     */
+    int getSpilledSize(String queue) throws IOException {
+        return getQueue(queue).spilledCount();
+    }
+
+    /**
+     * Get the number of invisible messages.
+     * @param queue queue name
+     * @return size of the invisible queue
+     * @throws IOException exception
+     */
+    int getInvisibleSize(String queue) throws IOException {
+        return getQueue(queue).memory.inFlight.size();
+    }
+
+    /**
+     * Purge the queue.
+     * @param queue queue name
+     * @throws IOException exception
+     */
+    protected void purgeQueue(String queue) throws IOException {
+        getQueue(queue).purge();
+    }
+
+    @Override
+    public void push(String queueUrl, String messageBody) throws IOException {
+        pushBatch(queueUrl, Collections.singletonList(messageBody));
+    }
+
+    @Override
+    public void pushBytes(String queueUrl, byte[] messageBody) throws IOException {
+        pushMessages(queueUrl, Collections.singletonList(new Message(messageBody)));
+    }
+
+    @Override
+    public void pushBatch(String queueUrl, List<String> messageBodies) throws IOException {
+        List<Message> messages = new ArrayList<>(messageBodies.size());
+        for (String messageBody : messageBodies) {
+            messages.add(new Message(messageBody));
+        }
+        pushMessages(queueUrl, messages);
+    }
+
+    private void pushMessages(String queueUrl, List<Message> messages) throws IOException {
+        long start = System.nanoTime();
+        String queue = fromUrl(queueUrl);
+        TieredQueue tieredQueue = getQueue(queue);
+        for (Message message : messages) {
+            message.setQueue(queue);
+        }
+        tieredQueue.push(messages);
+        tieredQueue.memory.metrics.pushed(messages.size(), start);
+    }
+
+    @Override
+    public Message pull(String queueUrl) throws IOException {
+        List<Message> messages = pull(queueUrl, 1);
+        return messages.isEmpty() ? null : messages.get(0);
+    }
+
+    @Override
+    public List<Message> pull(String queueUrl, int maxMessages) throws IOException {
+        long start = System.nanoTime();
+        TieredQueue tieredQueue = getQueue(fromUrl(queueUrl));
+        List<Message> messages = tieredQueue.poll(maxMessages);
+        if (!messages.isEmpty()) {
+            long revival = now() + delayMilliSeconds;
+            for (Message message : messages) {
+                message.setRevival(revival);
+            }
+            tieredQueue.memory.hide(messages);
+        }
+        tieredQueue.memory.metrics.pulled(messages.size(), start);
+        return messages;
+    }
+
+    @Override
+    public List<Message> pull(String queueUrl, int maxMessages, long waitTime, TimeUnit unit)
+            throws InterruptedException, IOException {
+        long deadline = QueueSignal.deadline(waitTime, unit);
+        TieredQueue tieredQueue = getQueue(fromUrl(queueUrl));
+        List<Message> messages = pull(queueUrl, maxMessages);
+        while (messages.isEmpty()
+                && tieredQueue.memory.signal.awaitUntil(() -> hasMessages(tieredQueue), deadline)) {
+            // Another consumer may take the message first, then wait again
+            messages = pull(queueUrl, maxMessages);
+        }
+        return messages;
+    }
+
+    /**
+     * Check without a lock whether a pull may find a message.
+     * @param tieredQueue the queue
+     * @return true if a message is waiting in memory or spilled
+     */
+    private static boolean hasMessages(TieredQueue tieredQueue) {
+        return !tieredQueue.memory.visible.isEmpty() || tieredQueue.spilledCount() > 0;
+    }
+
+    @Override
+    public void delete(String queueUrl, String receiptHandle) throws IOException {
+        deleteBatch(queueUrl, Collections.singletonList(receiptHandle));
+    }
+
+    @Override
+    public void deleteBatch(String queueUrl, List<String> receiptHandles) throws IOException {
+        long start = System.nanoTime();
+        TieredQueue tieredQueue = getQueue(fromUrl(queueUrl));
+        int deleted = 0;
+        for (String receiptHandle : receiptHandles) {
+            if (tieredQueue.memory.delete(receiptHandle)) {
+                deleted++;
+            }
+        }
+        tieredQueue.memory.metrics.deleted(deleted, start);
+    }
+
+    @Override
+    public boolean changeVisibility(String queueUrl, String receiptHandle, long timeout, TimeUnit unit)
+            throws IOException {
+        return getQueue(fromUrl(queueUrl)).memory.changeVisibility(receiptHandle, now() + unit.toMillis(timeout));
+    }
+
+    @Override
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Stop the reaper, unregister the metrics and close the spill logs.
+     * @throws IOException exception
+     */
+    @Override
+    public void close() throws IOException {
+        reaper.interrupt();
+        metrics.close();
+        for (TieredQueue tieredQueue : queues.values()) {
+            tieredQueue.close();
+        }
+    }
+
+    /**
+     * Sanitize the queue name.
+     * @param queueUrl original queue url
+     * @return sanitized queue name
+     */
+    private String fromUrl(String queueUrl) {
+        return queueUrl;
+    }
+
+    private TieredQueue getQueue(String queue) throws IOException {
+        TieredQueue tieredQueue = queues.get(queue);
+        return tieredQueue != null ? tieredQueue : openQueue(queue);
+    }
+
+    private synchronized TieredQueue openQueue(String queue) throws IOException {
+        TieredQueue tieredQueue = queues.get(queue);
+        if (tieredQueue == null) {
+            tieredQueue = new TieredQueue(queue, spillDir.resolve(queue), budget, metrics.getQueueMetrics(queue),
+                    REAPER_TICK_MILLISECONDS, now());
+            queues.put(queue, tieredQueue);
+        }
+        return tieredQueue;
+    }
+}
@@ -0,0 +1,133 @@
+package com.example;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hashed timing wheel holding items until their deadline.
+ * Time is cut into ticks and every tick hashes to one bucket of the wheel. A bucket is a doubly linked list,
+ * so scheduling links a node in and cancelling unlinks it, both in constant time whatever the number of
+ * scheduled items. Items more than one turn of the wheel away share the bucket and are skipped until
+ * their tick comes. Deadlines are in milliseconds, as given by {@link System#currentTimeMillis()}.
+ * @param <T> type of the items
+ */
+class TimingWheel<T> {
+    private final long tickMillis;
+    private final Timeout<T>[] buckets;
+    private final int mask;
+    // Last tick whose bucket was fully expired
+    private long expiredTick;
+    private int size;
+
+    /**
+     * A scheduled item, the handle to cancel it.
+     * @param <T> type of the item
+     */
+    static final class Timeout<T> {
+        final T item;
+        final long deadline;
+        private final long tick;
+        private Timeout<T> prev;
+        private Timeout<T> next;
+        private boolean scheduled;
+
+        private Timeout(T item, long deadline, long tick) {
+            this.item = item;
+            this.deadline = deadline;
+            this.tick = tick;
+        }
+    }
+
+    /**
+     * Create a wheel.
+     * @param tickMillis length of a tick in milliseconds
+     * @param wheelSize number of buckets, rounded up to a power of two
+     * @param startMillis current time
+     */
+    @SuppressWarnings("unchecked")
+    TimingWheel(long tickMillis, int wheelSize, long startMillis) {
+        this.tickMillis = tickMillis;
+        int capacity = Integer.highestOneBit(Math.max(wheelSize - 1, 1)) << 1;
+        buckets = (Timeout<T>[]) new Timeout<?>[capacity];
+        mask = capacity - 1;
+        expiredTick = startMillis / tickMillis - 1;
+    }
+
+    /**
+     * Schedule an item.
+     * @param item the item
+     * @param deadline time at which the item expires
+     * @return handle to cancel the item
+     */
+    synchronized Timeout<T> schedule(T item, long deadline) {
+        // A deadline in a tick already expired goes to the next tick to check
+        Timeout<T> timeout = new Timeout<>(item, deadline, Math.max(deadline / tickMillis, expiredTick + 1));
+        int bucket = (int) (timeout.tick & mask);
+        timeout.next = buckets[bucket];
+        if (timeout.next != null) {
+            timeout.next.prev = timeout;
+        }
+        buckets[bucket] = timeout;
+        timeout.scheduled = true;
+        size++;
+        return timeout;
+    }
+
+    /**
+     * Cancel an item, nothing happens if it already expired or was cancelled.
+     * @param timeout handle returned by {@link #schedule(Object, long)}
+     * @return true if the item was still scheduled
+     */
+    synchronized boolean cancel(Timeout<T> timeout) {
+        if (!timeout.scheduled) {
+            return false;
+        }
+        unlink(timeout);
+        return true;
+    }
+
+    /**
+     * Remove every item whose deadline has passed.
+     * @param now current time
+     * @return the expired items
+     */
+    synchronized List<T> expire(long now) {
+        List<T> expired = new ArrayList<>();
+        long nowTick = now / tickMillis;
+        // Past a full turn every bucket is visited once
+        long from = Math.max(expiredTick + 1, nowTick - mask);
+        for (long tick = from; tick <= nowTick && size > 0; tick++) {
+            Timeout<T> timeout = buckets[(int) (tick & mask)];
+            while (timeout != null) {
+                Timeout<T> next = timeout.next;
+                if (timeout.tick < nowTick || timeout.deadline <= now) {
+                    unlink(timeout);
+                    expired.add(timeout.item);
+                }
+                timeout = next;
+            }
+        }
+        // The current tick is only partly over
+        expiredTick = Math.max(expiredTick, nowTick - 1);
+        return expired;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    private void unlink(Timeout<T> timeout) {
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            buckets[(int) (timeout.tick & mask)] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.scheduled = false;
+        size--;
+    }
+}
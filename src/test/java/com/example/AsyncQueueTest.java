@@ -0,0 +1,159 @@
+package com.example;
+
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.sqs.AbstractAmazonSQSAsync;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AsyncQueueTest {
+    private final String BASE_QUEUE_NAME = "AsyncQueue";
+    private InMemoryQueueService inMemoryService;
+    private String messageBody;
+
+    /**
+     * SQS stub answering every asynchronous call at once from an in-memory deque.
+     */
+    static class StubSqsAsync extends AbstractAmazonSQSAsync {
+        final Deque<com.amazonaws.services.sqs.model.Message> messages = new ConcurrentLinkedDeque<>();
+        int receiveCalls;
+        boolean failDeletes;
+
+        @Override
+        public Future<SendMessageBatchResult> sendMessageBatchAsync(SendMessageBatchRequest request,
+                AsyncHandler<SendMessageBatchRequest, SendMessageBatchResult> handler) {
+            assertTrue(request.getEntries().size() <= SqsQueueService.MAX_BATCH_SIZE);
+            for (SendMessageBatchRequestEntry entry : request.getEntries()) {
+                messages.add(new com.amazonaws.services.sqs.model.Message()
+                        .withBody(entry.getMessageBody()).withReceiptHandle(UUID.randomUUID().toString()));
+            }
+            SendMessageBatchResult result = new SendMessageBatchResult();
+            handler.onSuccess(request, result);
+            return CompletableFuture.completedFuture(result);
+        }
+
+        @Override
+        public Future<ReceiveMessageResult> receiveMessageAsync(ReceiveMessageRequest request,
+                AsyncHandler<ReceiveMessageRequest, ReceiveMessageResult> handler) {
+            receiveCalls++;
+            List<com.amazonaws.services.sqs.model.Message> received = new ArrayList<>();
+            com.amazonaws.services.sqs.model.Message message;
+            while (received.size() < request.getMaxNumberOfMessages() && (message = messages.poll()) != null) {
+                received.add(message);
+            }
+            ReceiveMessageResult result = new ReceiveMessageResult().withMessages(received);
+            handler.onSuccess(request, result);
+            return CompletableFuture.completedFuture(result);
+        }
+
+        @Override
+        public Future<DeleteMessageBatchResult> deleteMessageBatchAsync(DeleteMessageBatchRequest request,
+                AsyncHandler<DeleteMessageBatchRequest, DeleteMessageBatchResult> handler) {
+            DeleteMessageBatchResult result = new DeleteMessageBatchResult();
+            if (failDeletes) {
+                for (DeleteMessageBatchRequestEntry entry : request.getEntries()) {
+                    result.getFailed().add(new BatchResultErrorEntry().withId(entry.getId()).withCode("Gone"));
+                }
+            }
+            handler.onSuccess(request, result);
+            return CompletableFuture.completedFuture(result);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        inMemoryService = InMemoryQueueService.getInstance();
+        inMemoryService.setDelayMilliSeconds(500L);
+        messageBody = String.format("AsyncQueueTest%s", System.currentTimeMillis());
+    }
+
+    @Test(timeout = 10000)
+    public void executorTest() throws Exception {
+        String QUEUE_NAME = BASE_QUEUE_NAME + "Executor";
+        inMemoryService.purgeQueue(QUEUE_NAME);
+        ExecutorAsyncQueueService service = new ExecutorAsyncQueueService(inMemoryService, 2);
+        // Many outstanding operations on two I/O threads
+        List<CompletableFuture<Void>> pushes = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            pushes.add(service.push(QUEUE_NAME, messageBody));
+        }
+        CompletableFuture.allOf(pushes.toArray(new CompletableFuture[pushes.size()])).get();
+        assertEquals(1000, inMemoryService.getQueueSize(QUEUE_NAME));
+        List<Message> messages = service.pull(QUEUE_NAME, 1000).get();
+        assertEquals(1000, messages.size());
+        List<String> receiptHandles = new ArrayList<>();
+        for (Message message : messages) {
+            receiptHandles.add(message.getReceiptHandle());
+        }
+        service.deleteBatch(QUEUE_NAME, receiptHandles).get();
+        assertEquals(0, inMemoryService.getInvisibleSize(QUEUE_NAME));
+        assertNull(service.pull(QUEUE_NAME, 50, TimeUnit.MILLISECONDS).get());
+        service.shutdown();
+    }
+
+    @Test(timeout = 10000)
+    public void blockingTest() throws Exception {
+        String QUEUE_NAME = BASE_QUEUE_NAME + "Blocking";
+        inMemoryService.purgeQueue(QUEUE_NAME);
+        ExecutorAsyncQueueService asyncService = new ExecutorAsyncQueueService(inMemoryService, 1);
+        QueueService service = new BlockingQueueService(asyncService);
+        service.push(QUEUE_NAME, messageBody);
+        Message message = service.pull(QUEUE_NAME);
+        assertNotNull("Failed to retrieve the message!", message);
+        assertEquals(messageBody, message.getMessageBody());
+        service.delete(QUEUE_NAME, message.getReceiptHandle());
+        assertEquals(0, inMemoryService.getInvisibleSize(QUEUE_NAME));
+        assertNull(service.pull(QUEUE_NAME));
+        asyncService.shutdown();
+    }
+
+    @Test
+    public void sqsTest() throws Exception {
+        StubSqsAsync sqs = new StubSqsAsync();
+        AsyncQueueService service = new SqsAsyncQueueService(sqs);
+        List<String> bodies = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            bodies.add(messageBody + i);
+        }
+        service.pushBatch(BASE_QUEUE_NAME, bodies).get();
+        assertEquals(25, sqs.messages.size());
+        List<Message> messages = service.pull(BASE_QUEUE_NAME, 25).get();
+        assertEquals(25, messages.size());
+        assertEquals(messageBody + 0, messages.get(0).getMessageBody());
+        assertEquals(3, sqs.receiveCalls);
+        service.delete(BASE_QUEUE_NAME, messages.get(0).getReceiptHandle()).get();
+        sqs.failDeletes = true;
+        try {
+            service.deleteBatch(BASE_QUEUE_NAME, Arrays.asList(messages.get(1).getReceiptHandle())).get();
+            throw new AssertionError("Failed delete was not reported");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof BatchFailureException);
+            assertEquals(Arrays.asList(messages.get(1).getReceiptHandle()),
+                    ((BatchFailureException) e.getCause()).getFailedEntries());
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package com.example;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequest;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequestEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchResult;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BufferedSqsQueueTest {
+    private final String QUEUE_URL = "BufferedSqsQueue";
+    private StubSqs sqs;
+    private BufferedSqsQueueService service;
+
+    /**
+     * Local stand-in for SQS keeping the visible messages in a deque and counting the requests.
+     */
+    static class StubSqs extends AmazonSQSClient {
+        final Deque<com.amazonaws.services.sqs.model.Message> messages = new ConcurrentLinkedDeque<>();
+        final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+        final AtomicInteger sendCalls = new AtomicInteger();
+        final AtomicInteger receiveCalls = new AtomicInteger();
+        final AtomicInteger deleteCalls = new AtomicInteger();
+
+        @Override
+        public SendMessageBatchResult sendMessageBatch(SendMessageBatchRequest request) {
+            sendCalls.incrementAndGet();
+            assertTrue(request.getEntries().size() <= SqsQueueService.MAX_BATCH_SIZE);
+            for (SendMessageBatchRequestEntry entry : request.getEntries()) {
+                messages.add(new com.amazonaws.services.sqs.model.Message()
+                        .withBody(entry.getMessageBody()).withReceiptHandle(UUID.randomUUID().toString()));
+            }
+            return new SendMessageBatchResult();
+        }
+
+        @Override
+        public ReceiveMessageResult receiveMessage(ReceiveMessageRequest request) {
+            receiveCalls.incrementAndGet();
+            List<com.amazonaws.services.sqs.model.Message> received = new ArrayList<>();
+            com.amazonaws.services.sqs.model.Message message;
+            while (received.size() < request.getMaxNumberOfMessages() && (message = messages.poll()) != null) {
+                inFlight.add(message.getReceiptHandle());
+                received.add(message);
+            }
+            return new ReceiveMessageResult().withMessages(received);
+        }
+
+        @Override
+        public DeleteMessageBatchResult deleteMessageBatch(DeleteMessageBatchRequest request) {
+            deleteCalls.incrementAndGet();
+            for (DeleteMessageBatchRequestEntry entry : request.getEntries()) {
+                inFlight.remove(entry.getReceiptHandle());
+            }
+            return new DeleteMessageBatchResult();
+        }
+
+        @Override
+        public ChangeMessageVisibilityBatchResult changeMessageVisibilityBatch(
+                ChangeMessageVisibilityBatchRequest request) {
+            for (ChangeMessageVisibilityBatchRequestEntry entry : request.getEntries()) {
+                inFlight.remove(entry.getReceiptHandle());
+                messages.addFirst(new com.amazonaws.services.sqs.model.Message()
+                        .withReceiptHandle(entry.getReceiptHandle()));
+            }
+            return new ChangeMessageVisibilityBatchResult();
+        }
+    }
+
+    @Before
+    public void setUp() {
+        sqs = new StubSqs();
+        service = new BufferedSqsQueueService(sqs);
+        service.setMaxLinger(5, TimeUnit.MILLISECONDS);
+    }
+
+    @Test(timeout = 10000)
+    public void sendBatchingTest() throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(20);
+        for (int i = 0; i < 100; i++) {
+            executor.execute(() -> {
+                try {
+                    service.push(QUEUE_URL, "message");
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+        assertEquals("Pushed messages are lost", 100, sqs.messages.size());
+        assertTrue("Pushes were not batched", sqs.sendCalls.get() < 50);
+    }
+
+    @Test(timeout = 10000)
+    public void prefetchTest() throws InterruptedException {
+        for (int i = 0; i < 200; i++) {
+            sqs.messages.add(new com.amazonaws.services.sqs.model.Message()
+                    .withBody("message" + i).withReceiptHandle(UUID.randomUUID().toString()));
+        }
+        // Like SQS, the buffer does not keep the order of the messages
+        Set<String> bodies = new HashSet<>();
+        for (int i = 0; i < 200; i++) {
+            Message message = service.pull(QUEUE_URL);
+            assertNotNull("Failed to retrieve the message!", message);
+            bodies.add(message.getMessageBody());
+            service.delete(QUEUE_URL, message.getReceiptHandle());
+        }
+        assertEquals("A message was delivered twice", 200, bodies.size());
+        assertTrue("Pulls did not use the buffer", sqs.receiveCalls.get() < 100);
+        service.close();
+        assertTrue("Deletes were not batched", sqs.deleteCalls.get() < 100);
+        assertEquals("Deleted messages are in flight", 0, sqs.inFlight.size());
+    }
+
+    @Test(timeout = 10000)
+    public void releaseTest() {
+        for (int i = 0; i < 50; i++) {
+            sqs.messages.add(new com.amazonaws.services.sqs.model.Message()
+                    .withBody("message" + i).withReceiptHandle(UUID.randomUUID().toString()));
+        }
+        List<Message> messages = service.pull(QUEUE_URL, 5);
+        assertEquals(5, messages.size());
+        service.close();
+        // Only the pulled messages stay invisible, the buffered ones are visible again
+        assertEquals(5, sqs.inFlight.size());
+        assertEquals(45, sqs.messages.size());
+        assertNull(new BufferedSqsQueueService(new StubSqs()).pull(QUEUE_URL));
+    }
+
+    @Test(timeout = 10000)
+    public void partialFailureTest() {
+        StubSqs failing = new StubSqs() {
+            @Override
+            public SendMessageBatchResult sendMessageBatch(SendMessageBatchRequest request) {
+                List<SendMessageBatchRequestEntry> sent = new ArrayList<>();
+                List<BatchResultErrorEntry> failed = new ArrayList<>();
+                for (SendMessageBatchRequestEntry entry : request.getEntries()) {
+                    if (entry.getMessageBody().equals("down")) {
+                        sendCalls.incrementAndGet();
+                        throw new AmazonServiceException("Service unavailable");
+                    }
+                    if (entry.getMessageBody().equals("bad")) {
+                        failed.add(new BatchResultErrorEntry().withId(entry.getId()).withCode("Invalid"));
+                    } else {
+                        sent.add(entry);
+                    }
+                }
+                super.sendMessageBatch(new SendMessageBatchRequest(request.getQueueUrl(), sent));
+                return new SendMessageBatchResult().withFailed(failed);
+            }
+
+            @Override
+            public DeleteMessageBatchResult deleteMessageBatch(DeleteMessageBatchRequest request) {
+                super.deleteMessageBatch(request);
+                return new DeleteMessageBatchResult().withFailed(new BatchResultErrorEntry()
+                        .withId(request.getEntries().get(0).getId()).withCode("Gone"));
+            }
+        };
+        SqsQueueService sqsService = new SqsQueueService(failing);
+        List<String> bodies = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            bodies.add(i == 3 ? "bad" : i == 12 ? "down" : "message" + i);
+        }
+        try {
+            sqsService.pushBatch(QUEUE_URL, bodies);
+            throw new AssertionError("Failed push was not reported");
+        } catch (BatchFailureException e) {
+            // The requests after the failed one were still sent
+            assertEquals(3, failing.sendCalls.get());
+            List<String> expected = new ArrayList<>(bodies.subList(10, 20));
+            expected.add(0, "bad");
+            assertEquals(expected, e.getFailedEntries());
+            assertEquals(14, failing.messages.size());
+        }
+        List<String> handles = new ArrayList<>();
+        for (com.amazonaws.services.sqs.model.Message message : failing.messages) {
+            handles.add(message.getReceiptHandle());
+        }
+        try {
+            sqsService.deleteBatch(QUEUE_URL, handles);
+            throw new AssertionError("Failed delete was not reported");
+        } catch (BatchFailureException e) {
+            assertEquals(Arrays.asList(handles.get(0), handles.get(10)), e.getFailedEntries());
+            assertFalse(e.getMessage().isEmpty());
+        }
+    }
+}
@@ -4,12 +4,33 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class FileQueueTest {
     private final String BASE_QUEUE_NAME = "MyQueue";
@@ -43,6 +64,37 @@ public class FileQueueTest {
         assertEquals("Message is not same!", messageBody, message.getMessageBody());
     }
 
+    @Test
+    public void bodyEncodingTest() throws InterruptedException, IOException {
+        String QUEUE_NAME = BASE_QUEUE_NAME + "Encoding";
+        service.purgeQueue(QUEUE_NAME);
+        String body = "user@example.com\nsecond line \u00e9";
+        service.push(QUEUE_NAME, body);
+        assertEquals("Message is not same!", body, service.pull(QUEUE_NAME).getMessageBody());
+    }
+
+    @Test
+    public void bytesTest() throws InterruptedException, IOException {
+        String QUEUE_NAME = BASE_QUEUE_NAME + "Bytes";
+        service.purgeQueue(QUEUE_NAME);
+        long start = System.currentTimeMillis();
+        byte[] body = "caf\u00e9".getBytes(StandardCharsets.UTF_8);
+        service.pushBytes(QUEUE_NAME, body);
+        service.push(QUEUE_NAME, messageBody);
+        Message first = service.pull(QUEUE_NAME);
+        Message second = service.pull(QUEUE_NAME);
+        assertArrayEquals(body, first.getBody());
+        assertEquals("caf\u00e9", first.getMessageBody());
+        assertEquals(messageBody, new String(second.getBody(), StandardCharsets.UTF_8));
+        assertTrue("Enqueue time is not kept", first.getEnqueueTime() >= start
+                && first.getEnqueueTime() <= System.currentTimeMillis());
+        UUID firstHandle = UUID.fromString(first.getReceiptHandle());
+        UUID secondHandle = UUID.fromString(second.getReceiptHandle());
+        assertEquals(firstHandle.getMostSignificantBits(), secondHandle.getMostSignificantBits());
+        assertTrue("Receipt handles are not increasing",
+                firstHandle.getLeastSignificantBits() < secondHandle.getLeastSignificantBits());
+    }
+
     @Test
     public void deleteTest() throws InterruptedException, IOException {
         String QUEUE_NAME = BASE_QUEUE_NAME + "Delete";
@@ -68,17 +120,154 @@ public class FileQueueTest {
         String QUEUE_NAME = BASE_QUEUE_NAME + "Timeout";
         service.purgeQueue(QUEUE_NAME);
         service.setDelayMilliSeconds(0L);
-        service.push(QUEUE_NAME, messageBody);
-        service.push(QUEUE_NAME, messageBodyNew);
-        assertEquals(2, service.getQueueSize(QUEUE_NAME));
-        assertEquals(messageBody, service.pull(QUEUE_NAME).getMessageBody());
-        assertEquals(1, service.getQueueSize(QUEUE_NAME));
-        while(service.getInvisibleSize(QUEUE_NAME) != 0 || service.getQueueSize(QUEUE_NAME) != 2)  {
-            service.clearInvisible(QUEUE_NAME);
+        try {
+            service.push(QUEUE_NAME, messageBody);
+            service.push(QUEUE_NAME, messageBodyNew);
+            assertEquals(2, service.getQueueSize(QUEUE_NAME));
+            assertEquals(messageBody, service.pull(QUEUE_NAME).getMessageBody());
+            while (service.getInvisibleSize(QUEUE_NAME) != 0 || service.getQueueSize(QUEUE_NAME) != 2) {
+                service.clearInvisible(QUEUE_NAME);
+            }
+            assertEquals(0, service.getInvisibleSize(QUEUE_NAME));
+            assertEquals(2, service.getQueueSize(QUEUE_NAME));
+            assertEquals(messageBody, service.pull(QUEUE_NAME).getMessageBody());
+        } finally {
+            // The reaper revives the messages of the other tests at once otherwise
+            service.setDelayMilliSeconds(500L);
         }
+    }
+
+    @Test
+    public void segmentTest() throws InterruptedException, IOException {
+        String QUEUE_NAME = BASE_QUEUE_NAME + "Segment";
+        service.purgeQueue(QUEUE_NAME);
+        service.setSegmentSize(128L);
+        try {
+            for (int i = 0; i < 10; i++) {
+                service.push(QUEUE_NAME, messageBody + i);
+            }
+            assertEquals(10, service.getQueueSize(QUEUE_NAME));
+            assertTrue("Log did not roll over", service.getSegmentCount(QUEUE_NAME) > 1);
+            for (int i = 0; i < 10; i++) {
+                Message message = service.pull(QUEUE_NAME);
+                assertEquals(messageBody + i, message.getMessageBody());
+                service.delete(QUEUE_NAME, message.getReceiptHandle());
+            }
+            assertNull(service.pull(QUEUE_NAME));
+            assertEquals("Consumed segments are not removed", 1, service.getSegmentCount(QUEUE_NAME));
+        } finally {
+            service.setSegmentSize(SegmentedLog.DEFAULT_SEGMENT_SIZE);
+        }
+    }
+
+    @Test
+    public void compactionTest() throws InterruptedException, IOException {
+        String QUEUE_NAME = BASE_QUEUE_NAME + "Compaction";
+        service.purgeQueue(QUEUE_NAME);
+        Message[] messages = new Message[5];
+        for (int i = 0; i < messages.length; i++) {
+            service.push(QUEUE_NAME, messageBody + i);
+            messages[i] = service.pull(QUEUE_NAME);
+        }
+        for (int i = 0; i < 3; i++) {
+            service.delete(QUEUE_NAME, messages[i].getReceiptHandle());
+        }
+        assertEquals(2, service.getInvisibleSize(QUEUE_NAME));
+        service.compactInvisible(QUEUE_NAME);
+        assertEquals("Compaction lost in-flight messages", 2, service.getInvisibleSize(QUEUE_NAME));
+        service.delete(QUEUE_NAME, messages[3].getReceiptHandle());
+        service.delete(QUEUE_NAME, messages[4].getReceiptHandle());
         assertEquals(0, service.getInvisibleSize(QUEUE_NAME));
-        assertEquals(2, service.getQueueSize(QUEUE_NAME));
-        assertEquals(messageBody, service.pull(QUEUE_NAME).getMessageBody());
+    }
+
+    @Test
+    public void groupCommitTest() throws InterruptedException, IOException {
+        String QUEUE_NAME = BASE_QUEUE_NAME + "GroupCommit";
+        service.purgeQueue(QUEUE_NAME);
+        for (Durability durability : Durability.values()) {
+            service.setDurability(durability);
+            ExecutorService executor = Executors.newFixedThreadPool(8);
+            for (int i = 0; i < 40; i++) {
+                executor.execute(() -> {
+                    try {
+                        service.push(QUEUE_NAME, messageBody);
+                    } catch (IOException | InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                });
+            }
+            executor.shutdown();
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+        service.setDurability(Durability.NONE);
+        assertEquals("Pushed messages are lost", 120, service.getQueueSize(QUEUE_NAME));
+    }
+
+    @Test
+    public void batchTest() throws InterruptedException, IOException {
+        String QUEUE_NAME = BASE_QUEUE_NAME + "Batch";
+        service.purgeQueue(QUEUE_NAME);
+        service.pushBatch(QUEUE_NAME, Arrays.asList(messageBody, messageBodyNew, messageBody));
+        assertEquals(3, service.getQueueSize(QUEUE_NAME));
+        List<Message> messages = service.pull(QUEUE_NAME, 2);
+        assertEquals(2, messages.size());
+        assertEquals(messageBody, messages.get(0).getMessageBody());
+        assertEquals(messageBodyNew, messages.get(1).getMessageBody());
+        assertEquals(2, service.getInvisibleSize(QUEUE_NAME));
+        service.deleteBatch(QUEUE_NAME, Arrays.asList(messages.get(0).getReceiptHandle(),
+                messages.get(1).getReceiptHandle()));
+        assertEquals(0, service.getInvisibleSize(QUEUE_NAME));
+        assertEquals(1, service.pull(QUEUE_NAME, 10).size());
+        QueueMetrics metrics = service.getMetrics().getQueueMetrics(QUEUE_NAME);
+        assertEquals(1, metrics.getInFlightDepth());
+        assertTrue("Lock waits are not recorded", metrics.getLockWait().getCount() > 0);
+    }
+
+    @Test(timeout = 5000)
+    public void longPollTest() throws InterruptedException, IOException {
+        String QUEUE_NAME = BASE_QUEUE_NAME + "LongPoll";
+        service.purgeQueue(QUEUE_NAME);
+        assertNull("Pulled a message from an empty queue", service.pull(QUEUE_NAME, 50, TimeUnit.MILLISECONDS));
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.execute(() -> {
+            try {
+                Thread.sleep(100);
+                service.push(QUEUE_NAME, messageBody);
+            } catch (IOException | InterruptedException e) {
+                e.printStackTrace();
+            }
+        });
+        executor.shutdown();
+        Message message = service.pull(QUEUE_NAME, 3, TimeUnit.SECONDS);
+        assertNotNull("Waiting consumer was not woken up", message);
+        assertEquals(messageBody, message.getMessageBody());
+    }
+
+    @Test(timeout = 10000)
+    public void longPollRevivalTest() throws InterruptedException, IOException {
+        String QUEUE_NAME = BASE_QUEUE_NAME + "LongPollRevival";
+        String GROUP_QUEUE_NAME = QUEUE_NAME + "Groups";
+        String BILLING = "billing";
+        service.setRetention(GROUP_QUEUE_NAME, 0, TimeUnit.MILLISECONDS, 0);
+        service.purgeQueue(QUEUE_NAME);
+        service.purgeQueue(GROUP_QUEUE_NAME);
+        service.setDelayMilliSeconds(300L);
+        try {
+            // Nothing is pushed while waiting, the timed out message wakes the consumer
+            service.push(QUEUE_NAME, messageBody);
+            assertEquals(messageBody, service.pull(QUEUE_NAME).getMessageBody());
+            List<Message> messages = service.pull(QUEUE_NAME, 1, 3, TimeUnit.SECONDS);
+            assertEquals("Waiting consumer was not woken up by a revival", 1, messages.size());
+            assertEquals(messageBody, messages.get(0).getMessageBody());
+
+            service.push(GROUP_QUEUE_NAME, messageBody);
+            assertEquals(1, service.pull(GROUP_QUEUE_NAME, BILLING, 1).size());
+            messages = service.pull(GROUP_QUEUE_NAME, BILLING, 1, 3, TimeUnit.SECONDS);
+            assertEquals("Waiting group consumer was not woken up by a revival", 1, messages.size());
+            assertEquals(messageBody, messages.get(0).getMessageBody());
+        } finally {
+            service.setDelayMilliSeconds(500L);
+        }
     }
 
     @Test
@@ -99,8 +288,450 @@ public class FileQueueTest {
             executor.execute(worker);
         }
         executor.shutdown();
-        while (!executor.isTerminated()) {}
+        executor.awaitTermination(10, TimeUnit.SECONDS);
         assertEquals("Queue is not empty", 0, service.getQueueSize(QUEUE_NAME));
         assertEquals("Invisible queue is not empty", 0, service.getInvisibleSize(QUEUE_NAME));
     }
+
+    @Test
+    public void countTest() throws InterruptedException, IOException {
+        String QUEUE_NAME = BASE_QUEUE_NAME + "Count";
+        service.purgeQueue(QUEUE_NAME);
+        service.pushBatch(QUEUE_NAME, Arrays.asList(messageBody, messageBodyNew, messageBody, messageBodyNew));
+        List<Message> messages = service.pull(QUEUE_NAME, 3);
+        service.delete(QUEUE_NAME, messages.get(0).getReceiptHandle());
+        assertEquals(1, service.getQueueSize(QUEUE_NAME));
+        assertEquals(2, service.getInvisibleSize(QUEUE_NAME));
+        assertEquals(3, service.getTotalSize(QUEUE_NAME));
+
+        // Reopen the files of a queue after a crash left wrong counts behind
+        Path dir = Files.createTempDirectory("FileQueueTestCount");
+        MetricsRegistry registry = new MetricsRegistry("FileQueueTestCount");
+        FileQueue fileQueue = new FileQueue(dir, SegmentedLog.DEFAULT_SEGMENT_SIZE, registry.getQueueMetrics("a"));
+        fileQueue.log.append(Arrays.asList(new Message(messageBody).encode(), new Message(messageBody).encode()),
+                false);
+        fileQueue.close();
+        fileQueue = new FileQueue(dir, SegmentedLog.DEFAULT_SEGMENT_SIZE, registry.getQueueMetrics("b"));
+        assertFalse("Counts of a clean shutdown are rebuilt", fileQueue.needsRecount());
+        assertEquals(2, fileQueue.visibleCount());
+        fileQueue.close();
+        try (FileChannel header = FileChannel.open(dir.resolve("header"), StandardOpenOption.WRITE)) {
+            header.write(ByteBuffer.wrap(new byte[24]).putLong(0, 7).putLong(8, 7), 0);
+        }
+        fileQueue = new FileQueue(dir, SegmentedLog.DEFAULT_SEGMENT_SIZE, registry.getQueueMetrics("c"));
+        assertTrue("Counts of an unclean shutdown are kept", fileQueue.needsRecount());
+        fileQueue.recount();
+        assertEquals(2, fileQueue.visibleCount());
+        assertEquals(0, fileQueue.inFlightCount());
+        fileQueue.close();
+    }
+
+    @Test
+    public void claimCounterTest() throws IOException {
+        Path file = Files.createTempDirectory("FileQueueTestClaims").resolve("claims");
+        ClaimTable claims = new ClaimTable(file, 64);
+        UUID handle = UUID.randomUUID();
+        int slot = claims.reserve(handle.getMostSignificantBits(), handle.getLeastSignificantBits());
+        claims.fill(slot, ClaimTable.location(3, 0), System.currentTimeMillis() + 60000);
+        assertTrue(claims.references(3));
+        assertFalse(claims.references(4));
+        assertFalse("Segments sharing a counter are told apart", claims.references(3 + ClaimTable.SEGMENT_COUNTERS));
+        claims.close();
+        // Counters are rebuilt for a table written without them
+        Files.delete(file.resolveSibling("claims.segments"));
+        claims = new ClaimTable(file, 64);
+        assertTrue(claims.references(3));
+        assertEquals(ClaimTable.location(3, 0),
+                claims.remove(handle.getMostSignificantBits(), handle.getLeastSignificantBits()));
+        assertFalse(claims.references(3));
+        claims.close();
+    }
+
+    @Test
+    public void checkpointTest() throws IOException {
+        Path dir = Files.createTempDirectory("FileQueueTestCheckpoint");
+        Path path = dir.resolve("invisible");
+        InvisibleLog invisible = new InvisibleLog(path);
+        invisible.setCheckpointInterval(1024);
+        List<Message> messages = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            Message message = new Message(messageBody + i);
+            message.setRevival(i < 20 ? 0L : Long.MAX_VALUE);
+            messages.add(message);
+            invisible.add(Collections.singletonList(message));
+        }
+        invisible.remove(Arrays.asList(messages.get(0).getReceiptHandle(), messages.get(39).getReceiptHandle()));
+        assertTrue("No checkpoint was written", invisible.uncheckpointedLength() < 1024);
+
+        // A second process opening the log after a crash scans only past the checkpoint
+        InvisibleLog recovered = new InvisibleLog(path);
+        assertTrue(recovered.uncheckpointedLength() < 1024);
+        assertEquals(38, recovered.size());
+        List<Message> expired = recovered.removeExpired(System.currentTimeMillis());
+        assertEquals(19, expired.size());
+        for (Message message : expired) {
+            assertEquals("Revived a message before its time", 0L, message.getRevival());
+        }
+        recovered.close();
+        invisible.close();
+
+        // A damaged checkpoint falls back to a full scan
+        Path checkpoint = dir.resolve("invisible.checkpoint");
+        byte[] data = Files.readAllBytes(checkpoint);
+        data[data.length / 2] ^= 1;
+        Files.write(checkpoint, data);
+        invisible = new InvisibleLog(path);
+        assertEquals(19, invisible.size());
+        invisible.close();
+    }
+
+    @Test
+    public void claimTest() throws InterruptedException, IOException {
+        String QUEUE_NAME = BASE_QUEUE_NAME + "Claim";
+        service.purgeQueue(QUEUE_NAME);
+        service.setSegmentSize(1024L);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        Set<String> pulled = ConcurrentHashMap.newKeySet();
+        try {
+            for (int i = 0; i < 400; i++) {
+                service.push(QUEUE_NAME, messageBody + i);
+            }
+            List<Future<?>> consumers = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                consumers.add(executor.submit(() -> {
+                    List<Message> messages;
+                    while (!(messages = service.pull(QUEUE_NAME, 3)).isEmpty()) {
+                        for (Message message : messages) {
+                            assertTrue("Claimed a message twice", pulled.add(message.getMessageBody()));
+                            service.delete(QUEUE_NAME, message.getReceiptHandle());
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> consumer : consumers) {
+                try {
+                    consumer.get();
+                } catch (ExecutionException e) {
+                    throw new AssertionError(e.getCause());
+                }
+            }
+            assertEquals(400, pulled.size());
+            assertEquals(0, service.getTotalSize(QUEUE_NAME));
+            assertEquals("Consumed segments are not removed", 1, service.getSegmentCount(QUEUE_NAME));
+        } finally {
+            executor.shutdown();
+            service.setSegmentSize(SegmentedLog.DEFAULT_SEGMENT_SIZE);
+        }
+    }
+
+    @Test
+    public void visibilityTest() throws InterruptedException, IOException {
+        String QUEUE_NAME = BASE_QUEUE_NAME + "Visibility";
+        service.purgeQueue(QUEUE_NAME);
+        service.setDelayMilliSeconds(500L);
+        service.push(QUEUE_NAME, messageBody);
+        // Claimed from the log
+        Message message = service.pull(QUEUE_NAME);
+        assertTrue(service.changeVisibility(QUEUE_NAME, message.getReceiptHandle(), 0, TimeUnit.MILLISECONDS));
+        service.clearInvisible(QUEUE_NAME);
+        assertEquals("Message was not given up", 1, service.getQueueSize(QUEUE_NAME));
+        // Pulled from the shadow queue into the invisible log
+        message = service.pull(QUEUE_NAME);
+        assertTrue(service.changeVisibility(QUEUE_NAME, message.getReceiptHandle(), 1, TimeUnit.HOURS));
+        Thread.sleep(600);
+        service.clearInvisible(QUEUE_NAME);
+        assertEquals("Extended message was revived", 1, service.getInvisibleSize(QUEUE_NAME));
+        assertTrue(service.changeVisibility(QUEUE_NAME, message.getReceiptHandle(), 0, TimeUnit.MILLISECONDS));
+        service.clearInvisible(QUEUE_NAME);
+        assertEquals(0, service.getInvisibleSize(QUEUE_NAME));
+        message = service.pull(QUEUE_NAME);
+        service.delete(QUEUE_NAME, message.getReceiptHandle());
+        assertFalse("Changed a deleted message",
+                service.changeVisibility(QUEUE_NAME, message.getReceiptHandle(), 1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void compressionTest() throws InterruptedException, IOException {
+        String QUEUE_NAME = BASE_QUEUE_NAME + "Compression";
+        String PLAIN_QUEUE_NAME = QUEUE_NAME + "Plain";
+        service.purgeQueue(QUEUE_NAME);
+        service.purgeQueue(PLAIN_QUEUE_NAME);
+        service.setSegmentSize(16 * 1024L);
+        try {
+            service.setCompression(QUEUE_NAME, Compression.DEFLATE);
+            List<String> bodies = new ArrayList<>();
+            for (int i = 0; i < 600; i++) {
+                bodies.add(String.format("{\"id\":%d,\"type\":\"order\",\"status\":\"created\",\"source\":\"%s\"}",
+                        i, messageBody));
+            }
+            service.pushBatch(QUEUE_NAME, bodies);
+            service.pushBatch(PLAIN_QUEUE_NAME, bodies);
+            assertTrue("Compressed segments are not smaller",
+                    3 * service.getSegmentCount(QUEUE_NAME) <= service.getSegmentCount(PLAIN_QUEUE_NAME));
+            assertEquals(600, service.getQueueSize(QUEUE_NAME));
+            // Revived from their blocks
+            service.setDelayMilliSeconds(0L);
+            assertEquals(5, service.pull(QUEUE_NAME, 5).size());
+            service.clearInvisible(QUEUE_NAME);
+            service.setDelayMilliSeconds(500L);
+            Set<String> pulled = new HashSet<>();
+            List<Message> messages;
+            while (!(messages = service.pull(QUEUE_NAME, 7)).isEmpty()) {
+                for (Message message : messages) {
+                    assertTrue("Pulled a message twice", pulled.add(message.getMessageBody()));
+                    service.delete(QUEUE_NAME, message.getReceiptHandle());
+                }
+            }
+            assertEquals(new HashSet<>(bodies), pulled);
+            assertEquals(0, service.getTotalSize(QUEUE_NAME));
+            assertEquals("Consumed segments are not removed", 1, service.getSegmentCount(QUEUE_NAME));
+        } finally {
+            service.setSegmentSize(SegmentedLog.DEFAULT_SEGMENT_SIZE);
+            service.setDelayMilliSeconds(500L);
+        }
+    }
+
+    @Test
+    public void consumerGroupTest() throws InterruptedException, IOException {
+        String QUEUE_NAME = BASE_QUEUE_NAME + "Groups";
+        String BILLING = "billing";
+        String AUDIT = "audit";
+        service.setRetention(QUEUE_NAME, 0, TimeUnit.MILLISECONDS, 0);
+        service.purgeQueue(QUEUE_NAME);
+        service.setSegmentSize(2048L);
+        try {
+            List<String> bodies = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                bodies.add(messageBody + i);
+                service.push(QUEUE_NAME, messageBody + i);
+            }
+            int segments = service.getSegmentCount(QUEUE_NAME);
+            assertTrue(segments > 1);
+            // Every group reads every message
+            for (String group : Arrays.asList(BILLING, AUDIT)) {
+                assertEquals(50, service.getQueueSize(QUEUE_NAME, group));
+                List<String> pulled = new ArrayList<>();
+                List<Message> messages;
+                while (!(messages = service.pull(QUEUE_NAME, group, 7)).isEmpty()) {
+                    for (Message message : messages) {
+                        pulled.add(message.getMessageBody());
+                        service.delete(QUEUE_NAME, group, message.getReceiptHandle());
+                    }
+                }
+                assertEquals(bodies, pulled);
+                assertEquals(0, service.getTotalSize(QUEUE_NAME, group));
+            }
+            assertEquals("Read segments are not retained", segments, service.getSegmentCount(QUEUE_NAME));
+            assertEquals(50, service.getQueueSize(QUEUE_NAME));
+
+            // Replay from a time
+            Thread.sleep(5);
+            long replayFrom = System.currentTimeMillis();
+            Thread.sleep(5);
+            service.pushBatch(QUEUE_NAME, Arrays.asList(messageBodyNew + 1, messageBodyNew + 2));
+            service.rewind(QUEUE_NAME, BILLING, replayFrom);
+            assertEquals(2, service.getQueueSize(QUEUE_NAME, BILLING));
+            service.rewind(QUEUE_NAME, BILLING, 0);
+            assertEquals(52, service.getQueueSize(QUEUE_NAME, BILLING));
+            service.rewind(QUEUE_NAME, BILLING, replayFrom);
+
+            // A timed out message is delivered again to its group only
+            service.setDelayMilliSeconds(0L);
+            Message message = service.pull(QUEUE_NAME, BILLING, 1).get(0);
+            assertEquals(messageBodyNew + 1, message.getMessageBody());
+            assertEquals(1, service.getInvisibleSize(QUEUE_NAME, BILLING));
+            Thread.sleep(2 * ConsumerGroup.REVIVAL_SCAN_MILLIS);
+            service.setDelayMilliSeconds(500L);
+            List<Message> messages = service.pull(QUEUE_NAME, BILLING, 5);
+            assertEquals(2, messages.size());
+            assertEquals(message.getReceiptHandle(), messages.get(0).getReceiptHandle());
+            assertTrue(service.changeVisibility(QUEUE_NAME, BILLING, messages.get(1).getReceiptHandle(), 1,
+                    TimeUnit.SECONDS));
+            assertFalse(service.changeVisibility(QUEUE_NAME, AUDIT, messages.get(1).getReceiptHandle(), 1,
+                    TimeUnit.SECONDS));
+            service.deleteBatch(QUEUE_NAME, BILLING, Arrays.asList(messages.get(0).getReceiptHandle(),
+                    messages.get(1).getReceiptHandle()));
+            assertEquals(0, service.getTotalSize(QUEUE_NAME, BILLING));
+            assertEquals(2, service.getQueueSize(QUEUE_NAME, AUDIT));
+
+            // A queue named like a group is an ordinary queue
+            String PLAIN_NAME = QUEUE_NAME + "@" + BILLING;
+            service.purgeQueue(PLAIN_NAME);
+            service.push(PLAIN_NAME, messageBody);
+            assertEquals(messageBody, service.pull(PLAIN_NAME).getMessageBody());
+            assertEquals(0, service.getQueueSize(PLAIN_NAME));
+        } finally {
+            service.setSegmentSize(SegmentedLog.DEFAULT_SEGMENT_SIZE);
+            service.setDelayMilliSeconds(500L);
+        }
+    }
+
+    @Test
+    public void retentionTest() throws InterruptedException, IOException {
+        String QUEUE_NAME = BASE_QUEUE_NAME + "Retention";
+        String GROUP = "slow";
+        service.setRetention(QUEUE_NAME, 0, TimeUnit.MILLISECONDS, 3 * 2048L);
+        service.purgeQueue(QUEUE_NAME);
+        service.setSegmentSize(2048L);
+        try {
+            assertEquals(0, service.getQueueSize(QUEUE_NAME, GROUP));
+            for (int i = 0; i < 200; i++) {
+                service.push(QUEUE_NAME, messageBody + i);
+            }
+            assertTrue("Segments past the size limit are kept", service.getSegmentCount(QUEUE_NAME) <= 4);
+            // The group lost the removed messages and reads on from the oldest one kept
+            int lag = service.getQueueSize(QUEUE_NAME, GROUP);
+            assertTrue(lag > 0 && lag < 200);
+            assertEquals(lag, service.getQueueSize(QUEUE_NAME));
+            List<Message> messages = service.pull(QUEUE_NAME, GROUP, 200);
+            assertEquals(lag, messages.size());
+            assertEquals(messageBody + 199, messages.get(lag - 1).getMessageBody());
+        } finally {
+            service.setSegmentSize(SegmentedLog.DEFAULT_SEGMENT_SIZE);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void groupCreationTest() throws InterruptedException, IOException, ExecutionException {
+        String QUEUE_NAME = BASE_QUEUE_NAME + "GroupCreation";
+        service.setRetention(QUEUE_NAME, 0, TimeUnit.MILLISECONDS, 4 * 2048L);
+        service.purgeQueue(QUEUE_NAME);
+        service.setSegmentSize(2048L);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            // Groups are created while pushes start new segments and enforce the retention
+            List<Future<?>> futures = new ArrayList<>();
+            futures.add(executor.submit(() -> {
+                for (int i = 0; i < 300; i++) {
+                    service.push(QUEUE_NAME, messageBody + i);
+                }
+                return null;
+            }));
+            for (int t = 0; t < 3; t++) {
+                int first = t * 10;
+                futures.add(executor.submit(() -> {
+                    for (int i = first; i < first + 10; i++) {
+                        service.getQueueSize(QUEUE_NAME, "group" + i);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            assertEquals(service.getQueueSize(QUEUE_NAME), service.getQueueSize(QUEUE_NAME, "group0"));
+        } finally {
+            executor.shutdownNow();
+            service.setSegmentSize(SegmentedLog.DEFAULT_SEGMENT_SIZE);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void capacityTest() throws InterruptedException, IOException {
+        String QUEUE_NAME = BASE_QUEUE_NAME + "Capacity";
+        service.purgeQueue(QUEUE_NAME);
+        try {
+            service.setCapacity(QUEUE_NAME, 3, 0, OverflowPolicy.REJECT);
+            service.pushBatch(QUEUE_NAME, Arrays.asList(messageBody + 0, messageBody + 1, messageBody + 2));
+            assertFalse("Pushed to a full queue", service.tryPush(QUEUE_NAME, messageBody + 3));
+            try {
+                service.pushBatch(QUEUE_NAME, Collections.singletonList(messageBody + 3));
+                fail("Pushed to a full queue");
+            } catch (QueueFullException e) {
+                assertEquals(QUEUE_NAME, e.getQueue());
+            }
+            Message message = service.pull(QUEUE_NAME);
+            service.delete(QUEUE_NAME, message.getReceiptHandle());
+            assertTrue(service.tryPush(QUEUE_NAME, messageBody + 3));
+
+            service.setCapacity(QUEUE_NAME, 3, 0, OverflowPolicy.BLOCK);
+            service.setPushTimeout(50, TimeUnit.MILLISECONDS);
+            long start = System.nanoTime();
+            try {
+                service.push(QUEUE_NAME, messageBody + 4);
+                fail("Pushed to a full queue");
+            } catch (QueueFullException e) {
+                assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 50);
+            }
+
+            // Dropped from the head of the log
+            service.setCapacity(QUEUE_NAME, 3, 0, OverflowPolicy.DROP_OLDEST);
+            service.pushBatch(QUEUE_NAME, Arrays.asList(messageBody + 4, messageBody + 5));
+            assertEquals(3, service.getTotalSize(QUEUE_NAME));
+            List<Message> messages = service.pull(QUEUE_NAME, 5);
+            assertEquals(3, messages.size());
+            assertEquals(messageBody + 3, messages.get(0).getMessageBody());
+            assertEquals(messageBody + 5, messages.get(2).getMessageBody());
+        } finally {
+            service.setCapacity(QUEUE_NAME, 0, 0, OverflowPolicy.REJECT);
+            service.setPushTimeout(QueueCapacity.DEFAULT_PUSH_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Test
+    public void blockTest() throws IOException {
+        SegmentedLog log = new SegmentedLog(Files.createTempDirectory("FileQueueTestBlock"), 2048L);
+        List<byte[]> records = new ArrayList<>();
+        for (int i = 0; i < 60; i++) {
+            records.add(new Message(messageBody + i).encode());
+        }
+        log.append(records.subList(0, 20), false);
+        // The segment already started stays plain, the next one is compressed
+        log.setCompression(Compression.DEFLATE);
+        log.append(records.subList(20, 60), false);
+        assertTrue("Log did not roll over", log.segmentCount() > 1);
+        boolean inBlock = false;
+        for (int i = 0; i < 50; i++) {
+            SegmentedLog.Record record = log.poll();
+            assertEquals(messageBody + i, RecordCodec.decode(record.buffer, record.position).getMessageBody());
+            inBlock |= ClaimTable.index(record.location()) > 0;
+        }
+        assertTrue("No record was read from a block", inBlock);
+        assertTrue(log.hasUnread());
+        assertEquals(10, log.size());
+        assertEquals("Recount from inside a block", 10, log.recount());
+        for (int i = 50; i < 60; i++) {
+            SegmentedLog.Record record = log.poll();
+            assertEquals(messageBody + i, RecordCodec.decode(record.buffer, record.position).getMessageBody());
+        }
+        assertNull(log.poll());
+        assertFalse(log.hasUnread());
+        log.close();
+    }
+
+    @Test
+    public void claimTableTest() throws IOException {
+        // Two mappings of the file stand for two processes
+        Path file = Files.createTempDirectory("FileQueueTestClaims").resolve("claims");
+        ClaimTable first = new ClaimTable(file, 64);
+        ClaimTable second = new ClaimTable(file, 1024);
+        int slot = first.reserve(1L, 2L);
+        assertEquals("Matched a slot still being filled", -1L, second.remove(1L, 2L));
+        first.fill(slot, ClaimTable.location(3L, 40), 100L);
+        assertEquals(ClaimTable.location(3L, 40), second.remove(1L, 2L));
+        assertEquals("Deleted a message twice", -1L, first.remove(1L, 2L));
+
+        for (int i = 0; i < 64; i++) {
+            int taken = first.reserve(7L, 9L);
+            assertTrue("Ran out of slots too early", taken >= 0 || i >= 32);
+            if (taken >= 0) {
+                first.fill(taken, ClaimTable.location(5L, i), 200L - i);
+            }
+        }
+        assertEquals("Probed past the slots of the handle", -1, second.reserve(7L, 9L));
+        assertTrue(second.references(5L));
+        List<ClaimTable.Expired> expired = second.expired(180L);
+        assertEquals(12, expired.size());
+        assertEquals("Expired out of revival order", 169L, expired.get(0).revival);
+        for (ClaimTable.Expired claim : expired) {
+            second.free(claim);
+        }
+        assertTrue(first.extend(7L, 9L, 300L));
+        assertFalse("Extended a free slot", first.extend(8L, 9L, 300L));
+        first.reserve(11L, 13L);
+        assertEquals("Half filled slot survived a recount", 20, second.recount());
+        first.close();
+        second.close();
+    }
 }
@@ -4,12 +4,23 @@ import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class InMemoryQueueTest {
     private final String BASE_QUEUE_NAME = "InMemoryQueue";
@@ -20,6 +31,7 @@ public class InMemoryQueueTest {
     @Before
     public void setUp() {
         service = InMemoryQueueService.getInstance();
+        service.setDelayMilliSeconds(500L);
         messageBody = String.format("InMemeryQueueTest%s", System.currentTimeMillis());
         messageBodyNew = String.format("InMemeryQueueTestNew%s", System.currentTimeMillis());
     }
@@ -80,8 +92,155 @@ public class InMemoryQueueTest {
         assertEquals("Message body is not same", messageBody, service.pull(QUEUE_NAME).getMessageBody());
     }
 
+    @Test(timeout = 5000)
+    public void reaperTest() throws InterruptedException {
+        String QUEUE_NAME = BASE_QUEUE_NAME + "Reaper";
+        service.purgeQueue(QUEUE_NAME);
+        service.setDelayMilliSeconds(50L);
+        service.push(QUEUE_NAME, messageBody);
+        service.push(QUEUE_NAME, messageBodyNew);
+        Message first = service.pull(QUEUE_NAME);
+        Message second = service.pull(QUEUE_NAME);
+        service.delete(QUEUE_NAME, second.getReceiptHandle());
+        assertEquals(1, service.getInvisibleSize(QUEUE_NAME));
+        // The reaper revives the first message without a call to clearInvisible
+        Message revived = service.pull(QUEUE_NAME, 3, TimeUnit.SECONDS);
+        assertNotNull("Timeout message was not revived", revived);
+        assertEquals(first.getReceiptHandle(), revived.getReceiptHandle());
+        service.delete(QUEUE_NAME, revived.getReceiptHandle());
+        assertEquals("Invisible queue is not empty", 0, service.getInvisibleSize(QUEUE_NAME));
+        assertEquals("Queue is not empty", 0, service.getQueueSize(QUEUE_NAME));
+    }
+
+    @Test
+    public void offHeapTest() throws InterruptedException {
+        String QUEUE_NAME = BASE_QUEUE_NAME + "OffHeap";
+        service.setOffHeapStorage(4 * 256, 256);
+        try {
+            service.purgeQueue(QUEUE_NAME);
+            service.setDelayMilliSeconds(50L);
+            service.pushBatch(QUEUE_NAME, Arrays.asList(messageBody, messageBodyNew));
+            service.pushBytes(QUEUE_NAME, messageBody.getBytes(StandardCharsets.UTF_8));
+            assertEquals(3, service.getQueueSize(QUEUE_NAME));
+            Message first = service.pull(QUEUE_NAME);
+            assertEquals(messageBody, first.getMessageBody());
+            assertEquals(QUEUE_NAME, first.getQueue());
+            while (service.getInvisibleSize(QUEUE_NAME) != 0) {
+                Thread.sleep(10);
+            }
+            // The revived message goes back to the head
+            Message revived = service.pull(QUEUE_NAME);
+            assertEquals(first.getReceiptHandle(), revived.getReceiptHandle());
+            service.delete(QUEUE_NAME, revived.getReceiptHandle());
+            List<Message> messages = service.pull(QUEUE_NAME, 10);
+            assertEquals(2, messages.size());
+            assertEquals(messageBodyNew, messages.get(0).getMessageBody());
+            assertEquals(messageBody, messages.get(1).getMessageBody());
+            for (Message message : messages) {
+                service.delete(QUEUE_NAME, message.getReceiptHandle());
+            }
+            char[] large = new char[200];
+            Arrays.fill(large, 'x');
+            List<String> bodies = Collections.nCopies(5, new String(large));
+            // Room for the bodies, but not for their records in memory
+            service.setCapacity(QUEUE_NAME, 0, 5 * 200, OverflowPolicy.REJECT);
+            try {
+                service.pushBatch(QUEUE_NAME, bodies);
+                fail("Pushed past the memory cap");
+            } catch (IllegalStateException e) {
+                assertFalse("Rejected by the capacity", e instanceof QueueFullException);
+                assertEquals("A rejected batch was partly pushed", 0, service.getQueueSize(QUEUE_NAME));
+            }
+            // The rejected batch took no room
+            service.pushBatch(QUEUE_NAME, bodies.subList(0, 4));
+            assertEquals(4, service.pull(QUEUE_NAME, 10).size());
+        } finally {
+            service.setCapacity(QUEUE_NAME, 0, 0, OverflowPolicy.REJECT);
+            service.setOffHeapStorage(0, 0);
+        }
+    }
+
     @Test
-    public void concurrentTest() {
+    public void batchTest() {
+        String QUEUE_NAME = BASE_QUEUE_NAME + "Batch";
+        service.purgeQueue(QUEUE_NAME);
+        service.pushBatch(QUEUE_NAME, Arrays.asList(messageBody, messageBodyNew, messageBody));
+        assertEquals(3, service.getQueueSize(QUEUE_NAME));
+        List<Message> messages = service.pull(QUEUE_NAME, 2);
+        assertEquals(2, messages.size());
+        assertEquals(messageBody, messages.get(0).getMessageBody());
+        assertEquals(messageBodyNew, messages.get(1).getMessageBody());
+        assertEquals(2, service.getInvisibleSize(QUEUE_NAME));
+        service.deleteBatch(QUEUE_NAME, Arrays.asList(messages.get(0).getReceiptHandle(),
+                messages.get(1).getReceiptHandle()));
+        assertEquals(0, service.getInvisibleSize(QUEUE_NAME));
+        assertEquals(1, service.pull(QUEUE_NAME, 10).size());
+    }
+
+    @Test(timeout = 5000)
+    public void longPollTest() throws InterruptedException {
+        String QUEUE_NAME = BASE_QUEUE_NAME + "LongPoll";
+        service.purgeQueue(QUEUE_NAME);
+        assertNull("Pulled a message from an empty queue", service.pull(QUEUE_NAME, 50, TimeUnit.MILLISECONDS));
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.execute(() -> {
+            try {
+                Thread.sleep(100);
+                service.push(QUEUE_NAME, messageBody);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        });
+        executor.shutdown();
+        Message message = service.pull(QUEUE_NAME, 3, TimeUnit.SECONDS);
+        assertNotNull("Waiting consumer was not woken up", message);
+        assertEquals(messageBody, message.getMessageBody());
+    }
+
+    @Test(timeout = 30000)
+    public void stressTest() throws InterruptedException {
+        String QUEUE_NAME = BASE_QUEUE_NAME + "Stress";
+        service.purgeQueue(QUEUE_NAME);
+        // Long enough that no message is revived, so each one must be delivered exactly once
+        service.setDelayMilliSeconds(60000L);
+        int threads = 4;
+        int messagesPerThread = 5000;
+        int total = threads * messagesPerThread;
+        ConcurrentHashMap<String, Integer> deliveries = new ConcurrentHashMap<>();
+        AtomicInteger deleted = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads * 2);
+        for (int t = 0; t < threads; t++) {
+            int producer = t;
+            executor.execute(() -> {
+                for (int i = 0; i < messagesPerThread; i++) {
+                    service.push(QUEUE_NAME, producer + "-" + i);
+                }
+            });
+            executor.execute(() -> {
+                while (deleted.get() < total) {
+                    List<Message> messages = service.pull(QUEUE_NAME, 8);
+                    List<String> receiptHandles = new ArrayList<>();
+                    for (Message message : messages) {
+                        deliveries.merge(message.getMessageBody(), 1, Integer::sum);
+                        receiptHandles.add(message.getReceiptHandle());
+                    }
+                    service.deleteBatch(QUEUE_NAME, receiptHandles);
+                    deleted.addAndGet(messages.size());
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(30, TimeUnit.SECONDS);
+        assertEquals("Messages were lost", total, deliveries.size());
+        for (Integer count : deliveries.values()) {
+            assertEquals("A message was delivered twice", 1, count.intValue());
+        }
+        assertEquals("Queue is not empty", 0, service.getQueueSize(QUEUE_NAME));
+        assertEquals("Invisible queue is not empty", 0, service.getInvisibleSize(QUEUE_NAME));
+    }
+
+    @Test
+    public void concurrentTest() throws InterruptedException {
         String QUEUE_NAME = BASE_QUEUE_NAME + "Concur";
         service.purgeQueue(QUEUE_NAME);
         ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() + 1);
@@ -94,8 +253,104 @@ public class InMemoryQueueTest {
             executor.execute(worker);
         }
         executor.shutdown();
-        while (!executor.isTerminated()) {}
+        executor.awaitTermination(10, TimeUnit.SECONDS);
         assertEquals("Queue is not empty", 0, service.getQueueSize(QUEUE_NAME));
         assertEquals("Invisible queue is not empty", 0, service.getInvisibleSize(QUEUE_NAME));
     }
+
+    @Test(timeout = 10000)
+    public void capacityTest() throws InterruptedException {
+        String QUEUE_NAME = BASE_QUEUE_NAME + "Capacity";
+        service.purgeQueue(QUEUE_NAME);
+        try {
+            service.setCapacity(QUEUE_NAME, 3, 0, OverflowPolicy.REJECT);
+            service.pushBatch(QUEUE_NAME, Arrays.asList(messageBody + 0, messageBody + 1));
+            assertTrue(service.tryPush(QUEUE_NAME, messageBody + 2));
+            assertFalse("Pushed to a full queue", service.tryPush(QUEUE_NAME, messageBody + 3));
+            try {
+                service.push(QUEUE_NAME, messageBody + 3);
+                fail("Pushed to a full queue");
+            } catch (QueueFullException e) {
+                assertEquals(QUEUE_NAME, e.getQueue());
+            }
+            // In-flight messages take room until they are deleted
+            Message message = service.pull(QUEUE_NAME);
+            assertFalse(service.tryPush(QUEUE_NAME, messageBody + 3));
+            service.delete(QUEUE_NAME, message.getReceiptHandle());
+            assertTrue(service.tryPush(QUEUE_NAME, messageBody + 3));
+
+            // A blocked push waits for a delete
+            service.setCapacity(QUEUE_NAME, 3, 0, OverflowPolicy.BLOCK);
+            Message inFlight = service.pull(QUEUE_NAME);
+            ExecutorService executor = Executors.newSingleThreadExecutor();
+            executor.execute(() -> {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                service.delete(QUEUE_NAME, inFlight.getReceiptHandle());
+            });
+            long start = System.nanoTime();
+            service.push(QUEUE_NAME, messageBody + 4);
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 50);
+            executor.shutdown();
+            service.setPushTimeout(50, TimeUnit.MILLISECONDS);
+            try {
+                service.push(QUEUE_NAME, messageBody + 5);
+                fail("Pushed to a full queue");
+            } catch (QueueFullException e) {
+                // Timed out
+            }
+            assertFalse("A try waited for room", service.tryPush(QUEUE_NAME, messageBody + 5));
+
+            // The oldest visible messages make room
+            service.setCapacity(QUEUE_NAME, 3, 0, OverflowPolicy.DROP_OLDEST);
+            service.pushBatch(QUEUE_NAME, Arrays.asList(messageBody + 5, messageBody + 6));
+            List<Message> messages = service.pull(QUEUE_NAME, 5);
+            assertEquals(3, messages.size());
+            assertEquals(messageBody + 4, messages.get(0).getMessageBody());
+            assertEquals(messageBody + 6, messages.get(2).getMessageBody());
+            assertEquals(2, service.getMetrics().getQueueMetrics(QUEUE_NAME).getDropCount());
+
+            // Limited by bytes
+            service.purgeQueue(QUEUE_NAME);
+            service.setCapacity(QUEUE_NAME, 0, 10, OverflowPolicy.REJECT);
+            assertTrue(service.tryPush(QUEUE_NAME, "12345"));
+            assertTrue(service.tryPush(QUEUE_NAME, "12345"));
+            assertFalse(service.tryPush(QUEUE_NAME, "1"));
+            service.delete(QUEUE_NAME, service.pull(QUEUE_NAME).getReceiptHandle());
+            assertTrue(service.tryPush(QUEUE_NAME, "1"));
+
+            // Messages pushed before the byte limit count
+            service.purgeQueue(QUEUE_NAME);
+            service.setCapacity(QUEUE_NAME, 0, 0, OverflowPolicy.REJECT);
+            service.pushBatch(QUEUE_NAME, Arrays.asList("12345", "12345"));
+            service.setCapacity(QUEUE_NAME, 0, 10, OverflowPolicy.REJECT);
+            assertFalse(service.tryPush(QUEUE_NAME, "1"));
+            service.delete(QUEUE_NAME, service.pull(QUEUE_NAME).getReceiptHandle());
+            assertTrue(service.tryPush(QUEUE_NAME, "1"));
+            assertFalse(service.tryPush(QUEUE_NAME, "12345"));
+        } finally {
+            service.setCapacity(QUEUE_NAME, 0, 0, OverflowPolicy.REJECT);
+            service.setPushTimeout(QueueCapacity.DEFAULT_PUSH_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Test
+    public void visibilityTest() throws InterruptedException {
+        String QUEUE_NAME = BASE_QUEUE_NAME + "Visibility";
+        service.purgeQueue(QUEUE_NAME);
+        service.push(QUEUE_NAME, messageBody);
+        Message message = service.pull(QUEUE_NAME);
+        assertTrue(service.changeVisibility(QUEUE_NAME, message.getReceiptHandle(), 1, TimeUnit.HOURS));
+        Thread.sleep(700);
+        assertEquals("Extended message was revived", 1, service.getInvisibleSize(QUEUE_NAME));
+        assertTrue(service.changeVisibility(QUEUE_NAME, message.getReceiptHandle(), 0, TimeUnit.MILLISECONDS));
+        message = service.pull(QUEUE_NAME, 1, TimeUnit.SECONDS);
+        assertNotNull("Message was not given up", message);
+        service.delete(QUEUE_NAME, message.getReceiptHandle());
+        assertFalse("Changed a deleted message",
+                service.changeVisibility(QUEUE_NAME, message.getReceiptHandle(), 1, TimeUnit.SECONDS));
+    }
 }
@@ -0,0 +1,111 @@
+package com.example;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MetricsTest {
+    @Test
+    public void histogramTest() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long nanos = 1; nanos <= 100000; nanos++) {
+            histogram.record(nanos * 1000);
+        }
+        assertEquals(100000, histogram.count());
+        // Percentiles are exact to one sub-bucket, an eighth of the value
+        assertTrue(Math.abs(histogram.percentile(0.5) - 50000000L) <= 50000000L / LatencyHistogram.SUB_BUCKETS);
+        assertTrue(Math.abs(histogram.percentile(0.99) - 99000000L) <= 99000000L / LatencyHistogram.SUB_BUCKETS);
+        for (long value : new long[]{0, 1, 7, 8, 9, 1000, 123456789, Long.MAX_VALUE}) {
+            int index = LatencyHistogram.index(value);
+            assertTrue(value <= LatencyHistogram.upperBound(index));
+            assertTrue(index == 0 || value > LatencyHistogram.upperBound(index - 1));
+        }
+    }
+
+    @Test
+    public void queueMetricsTest() throws Exception {
+        String QUEUE_NAME = "MetricsQueue";
+        InMemoryQueueService service = InMemoryQueueService.getInstance();
+        service.setDelayMilliSeconds(500L);
+        service.purgeQueue(QUEUE_NAME);
+        QueueMetrics metrics = service.getMetrics().getQueueMetrics(QUEUE_NAME);
+        long pushes = metrics.getPushCount();
+        long pulls = metrics.getPullCount();
+        long deletes = metrics.getDeleteCount();
+        List<String> bodies = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            bodies.add("metrics" + i);
+        }
+        service.pushBatch(QUEUE_NAME, bodies);
+        service.push(QUEUE_NAME, "metrics");
+        List<Message> messages = service.pull(QUEUE_NAME, 4);
+        service.delete(QUEUE_NAME, messages.get(0).getReceiptHandle());
+        assertEquals(11, metrics.getPushCount() - pushes);
+        assertEquals(4, metrics.getPullCount() - pulls);
+        assertEquals(1, metrics.getDeleteCount() - deletes);
+        assertEquals(7, metrics.getVisibleDepth());
+        assertEquals(3, metrics.getInFlightDepth());
+        assertTrue(metrics.getPullLatency().getCount() > 0);
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(String.format("com.example:type=QueueMetrics,service=%s,queue=%s",
+                ObjectName.quote(service.getMetrics().getService()), ObjectName.quote(QUEUE_NAME)));
+        assertEquals(7L, server.getAttribute(name, "VisibleDepth"));
+        CompositeData pushLatency = (CompositeData) server.getAttribute(name, "PushLatency");
+        assertTrue((Long) pushLatency.get("count") >= 2);
+
+        List<String> reported = new ArrayList<>();
+        service.getMetrics().report((serviceName, queue, queueMetrics) -> reported.add(queue));
+        assertTrue(reported.contains(QUEUE_NAME));
+        service.getMetrics().report(new LoggingMetricsReporter(Level.FINE));
+    }
+
+    @Test
+    public void unregisterTest() throws Exception {
+        String QUEUE_NAME = "MetricsUnregisterQueue";
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        TieredQueueService first = new TieredQueueService(Files.createTempDirectory("MetricsTestFirst"));
+        TieredQueueService second = new TieredQueueService(Files.createTempDirectory("MetricsTestSecond"));
+        try {
+            // Both instances use the same name, the last one to create the metrics of a queue is registered
+            assertEquals(first.getMetrics().getService(), second.getMetrics().getService());
+            ObjectName name = new ObjectName(String.format("com.example:type=QueueMetrics,service=%s,queue=%s",
+                    ObjectName.quote(first.getMetrics().getService()), ObjectName.quote(QUEUE_NAME)));
+            first.push(QUEUE_NAME, "first");
+            second.pushBatch(QUEUE_NAME, Arrays.asList("second", "second"));
+            assertEquals(2L, server.getAttribute(name, "VisibleDepth"));
+            first.close();
+            assertEquals("Closing an older instance keeps the metrics of the newer one", 2L,
+                    server.getAttribute(name, "VisibleDepth"));
+            second.close();
+            assertFalse(server.isRegistered(name));
+            assertTrue(second.getMetrics().getQueues().isEmpty());
+        } finally {
+            first.close();
+            second.close();
+        }
+    }
+
+    @Test
+    public void weakGaugeTest() {
+        QueueMetrics metrics = new QueueMetrics();
+        // The queue sets its gauges, then nothing refers to it any more
+        new InMemoryQueue(new HeapMessageStore(), metrics, 100, System.currentTimeMillis());
+        for (int i = 0; i < 100 && metrics.getVisibleDepth() != -1; i++) {
+            System.gc();
+        }
+        assertEquals("The gauges do not keep a dropped queue reachable", -1, metrics.getVisibleDepth());
+    }
+}
@@ -0,0 +1,127 @@
+package com.example;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class PartitionedQueueTest {
+    private static final int PARTITIONS = 4;
+    private final String BASE_QUEUE_NAME = "PartitionedQueue";
+    private InMemoryQueueService memory;
+    private FileQueueService file;
+    private String messageBody;
+
+    @Before
+    public void setUp() {
+        memory = InMemoryQueueService.getInstance();
+        memory.setDelayMilliSeconds(500L);
+        file = FileQueueService.getInstance();
+        messageBody = String.format("PartitionedQueueTest%s", System.currentTimeMillis());
+    }
+
+    private void purge(String queue) throws InterruptedException, IOException {
+        for (int i = 0; i < PARTITIONS; i++) {
+            memory.purgeQueue(PartitionedQueueService.partitionUrl(queue, i));
+            file.purgeQueue(PartitionedQueueService.partitionUrl(queue, i));
+        }
+    }
+
+    @Test
+    public void routingTest() throws InterruptedException, IOException {
+        String QUEUE_NAME = BASE_QUEUE_NAME + "Routing";
+        purge(QUEUE_NAME);
+        PartitionedQueueService service = new PartitionedQueueService(memory, PARTITIONS);
+        for (int i = 0; i < 2 * PARTITIONS; i++) {
+            service.push(QUEUE_NAME, messageBody + i);
+        }
+        for (int i = 0; i < PARTITIONS; i++) {
+            assertEquals("Pushes are not spread evenly", 2,
+                    memory.getQueueSize(PartitionedQueueService.partitionUrl(QUEUE_NAME, i)));
+        }
+        for (int i = 0; i < 5; i++) {
+            service.pushWithKey(QUEUE_NAME, "key", messageBody + "key" + i);
+        }
+        // One partition got all the keyed messages and keeps their order
+        List<Integer> sizes = new ArrayList<>();
+        for (int i = 0; i < PARTITIONS; i++) {
+            sizes.add(memory.getQueueSize(PartitionedQueueService.partitionUrl(QUEUE_NAME, i)));
+        }
+        assertTrue(sizes.contains(7));
+        List<String> keyed = new ArrayList<>();
+        List<Message> messages;
+        while (!(messages = service.pull(QUEUE_NAME, 3)).isEmpty()) {
+            for (Message message : messages) {
+                if (message.getMessageBody().contains("key")) {
+                    keyed.add(message.getMessageBody());
+                }
+                service.delete(QUEUE_NAME, message.getReceiptHandle());
+            }
+        }
+        assertEquals(Arrays.asList(messageBody + "key0", messageBody + "key1", messageBody + "key2",
+                messageBody + "key3", messageBody + "key4"), keyed);
+        for (int i = 0; i < PARTITIONS; i++) {
+            assertEquals(0, memory.getInvisibleSize(PartitionedQueueService.partitionUrl(QUEUE_NAME, i)));
+        }
+    }
+
+    @Test
+    public void stealingTest() throws InterruptedException, IOException {
+        String QUEUE_NAME = BASE_QUEUE_NAME + "Stealing";
+        purge(QUEUE_NAME);
+        PartitionedQueueService service = new PartitionedQueueService(file, PARTITIONS);
+        List<String> bodies = new ArrayList<>();
+        for (int i = 0; i < 3 * PARTITIONS; i++) {
+            bodies.add(messageBody + i);
+            service.push(QUEUE_NAME, messageBody + i);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(PARTITIONS);
+        List<Future<List<String>>> consumers = new ArrayList<>();
+        for (int t = 0; t < PARTITIONS; t++) {
+            consumers.add(executor.submit(() -> {
+                List<String> pulled = new ArrayList<>();
+                Message message;
+                while ((message = service.pull(QUEUE_NAME)) != null) {
+                    pulled.add(message.getMessageBody());
+                    service.delete(QUEUE_NAME, message.getReceiptHandle());
+                }
+                return pulled;
+            }));
+        }
+        Set<String> pulled = new HashSet<>();
+        for (Future<List<String>> consumer : consumers) {
+            try {
+                for (String body : consumer.get()) {
+                    assertTrue("Pulled a message twice", pulled.add(body));
+                }
+            } catch (Exception e) {
+                throw new AssertionError(e);
+            }
+        }
+        executor.shutdown();
+        assertEquals(new HashSet<>(bodies), pulled);
+
+        // A consumer with an empty home partition steals the message pushed to another one
+        service.pushWithKey(QUEUE_NAME, "key", messageBody);
+        Message message = service.pull(QUEUE_NAME, 1, TimeUnit.SECONDS);
+        assertNotNull(message);
+        assertEquals(messageBody, message.getMessageBody());
+        service.delete(QUEUE_NAME, message.getReceiptHandle());
+        for (int i = 0; i < PARTITIONS; i++) {
+            assertEquals(0, file.getTotalSize(PartitionedQueueService.partitionUrl(QUEUE_NAME, i)));
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.example;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class QueueConsumerTest {
+    private final String BASE_QUEUE_NAME = "QueueConsumer";
+    private InMemoryQueueService service;
+
+    @Before
+    public void setUp() {
+        service = InMemoryQueueService.getInstance();
+        service.setDelayMilliSeconds(500L);
+    }
+
+    @Test(timeout = 10000)
+    public void slowHandlerTest() throws InterruptedException, IOException {
+        String QUEUE_NAME = BASE_QUEUE_NAME + "Slow";
+        service.purgeQueue(QUEUE_NAME);
+        for (int i = 0; i < 16; i++) {
+            service.push(QUEUE_NAME, "message" + i);
+        }
+        Map<String, AtomicInteger> handled = new ConcurrentHashMap<>();
+        // Every handler outlasts the 500 ms timeout of the pull
+        QueueConsumer consumer = new QueueConsumer(service, QUEUE_NAME, message -> {
+            handled.computeIfAbsent(message.getMessageBody(), k -> new AtomicInteger()).incrementAndGet();
+            Thread.sleep(800);
+        });
+        consumer.setConcurrency(8);
+        consumer.setBatchSize(4);
+        consumer.setVisibilityTimeout(400, TimeUnit.MILLISECONDS);
+        consumer.start();
+        while (consumer.getProcessedCount() < 16) {
+            Thread.sleep(50);
+        }
+        consumer.close();
+        assertEquals(16, handled.size());
+        for (Map.Entry<String, AtomicInteger> entry : handled.entrySet()) {
+            assertEquals("Handled twice: " + entry.getKey(), 1, entry.getValue().get());
+        }
+        assertEquals(0, consumer.getInFlightCount());
+        assertEquals("Queue is not empty", 0, service.getQueueSize(QUEUE_NAME));
+        assertEquals("Invisible queue is not empty", 0, service.getInvisibleSize(QUEUE_NAME));
+    }
+
+    @Test(timeout = 10000)
+    public void failingHandlerTest() throws InterruptedException, IOException {
+        String QUEUE_NAME = BASE_QUEUE_NAME + "Failing";
+        service.purgeQueue(QUEUE_NAME);
+        service.push(QUEUE_NAME, "message");
+        AtomicInteger attempts = new AtomicInteger();
+        QueueConsumer consumer = new QueueConsumer(service, QUEUE_NAME, message -> {
+            if (attempts.incrementAndGet() == 1) {
+                throw new IllegalStateException("First attempt fails");
+            }
+        });
+        consumer.setConcurrency(2);
+        consumer.start();
+        while (consumer.getProcessedCount() < 1) {
+            Thread.sleep(10);
+        }
+        consumer.close();
+        assertEquals(2, attempts.get());
+        assertEquals(1, consumer.getFailedCount());
+        assertEquals("Invisible queue is not empty", 0, service.getInvisibleSize(QUEUE_NAME));
+    }
+
+    @Test(timeout = 10000)
+    public void partialDeleteFailureTest() throws InterruptedException, IOException {
+        String QUEUE_NAME = BASE_QUEUE_NAME + "PartialDelete";
+        service.purgeQueue(QUEUE_NAME);
+        for (int i = 0; i < 20; i++) {
+            service.push(QUEUE_NAME, "message" + i);
+        }
+        AtomicReference<String> failed = new AtomicReference<>();
+        Set<String> deleted = ConcurrentHashMap.newKeySet();
+        // Fails one message of the first batch of deletes, like a partly failed SQS batch
+        QueueService failingDeletes = new QueueService() {
+            @Override
+            public void push(String queueUrl, String messageBody) throws InterruptedException, IOException {
+                service.push(queueUrl, messageBody);
+            }
+
+            @Override
+            public Message pull(String queueUrl) throws InterruptedException, IOException {
+                return service.pull(queueUrl);
+            }
+
+            @Override
+            public void delete(String queueUrl, String receiptHandle) throws InterruptedException, IOException {
+                service.delete(queueUrl, receiptHandle);
+            }
+
+            @Override
+            public List<Message> pull(String queueUrl, int maxMessages, long waitTime, TimeUnit unit)
+                    throws InterruptedException, IOException {
+                return service.pull(queueUrl, maxMessages, waitTime, unit);
+            }
+
+            @Override
+            public boolean changeVisibility(String queueUrl, String receiptHandle, long timeout, TimeUnit unit)
+                    throws InterruptedException, IOException {
+                return service.changeVisibility(queueUrl, receiptHandle, timeout, unit);
+            }
+
+            @Override
+            public MetricsRegistry getMetrics() {
+                return service.getMetrics();
+            }
+
+            @Override
+            public void deleteBatch(String queueUrl, List<String> receiptHandles)
+                    throws InterruptedException, IOException {
+                if (!failed.compareAndSet(null, receiptHandles.get(0))) {
+                    service.deleteBatch(queueUrl, receiptHandles);
+                    deleted.addAll(receiptHandles);
+                    return;
+                }
+                List<String> sent = receiptHandles.subList(1, receiptHandles.size());
+                service.deleteBatch(queueUrl, sent);
+                deleted.addAll(sent);
+                throw new BatchFailureException("Failed to delete 1 of " + receiptHandles.size() + " messages",
+                        Collections.singletonList(receiptHandles.get(0)), null);
+            }
+        };
+        QueueConsumer consumer = new QueueConsumer(failingDeletes, QUEUE_NAME, message -> { });
+        consumer.setConcurrency(4);
+        consumer.setVisibilityTimeout(400, TimeUnit.MILLISECONDS);
+        consumer.start();
+        while (consumer.getProcessedCount() < 20 || consumer.getInFlightCount() > 0) {
+            Thread.sleep(10);
+        }
+        consumer.close();
+        // The failed delete is retried, the others are sent once
+        assertEquals(20, deleted.size());
+        assertTrue("Failed delete was not retried", deleted.contains(failed.get()));
+        assertEquals("A message was handled twice", 20, consumer.getProcessedCount());
+        assertEquals("Queue is not empty", 0, service.getQueueSize(QUEUE_NAME));
+        assertEquals("Invisible queue is not empty", 0, service.getInvisibleSize(QUEUE_NAME));
+    }
+}
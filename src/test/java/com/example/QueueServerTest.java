@@ -0,0 +1,148 @@
+package com.example;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class QueueServerTest {
+    private final String BASE_QUEUE_NAME = "RemoteQueue";
+    private InMemoryQueueService backend;
+    private QueueServer server;
+    private RemoteQueueService producer;
+    private RemoteQueueService consumer;
+    private String messageBody;
+
+    @Before
+    public void setUp() throws IOException {
+        backend = InMemoryQueueService.getInstance();
+        backend.setDelayMilliSeconds(500L);
+        server = new QueueServer(backend, 8, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort());
+        producer = new RemoteQueueService(address);
+        consumer = new RemoteQueueService(address);
+        messageBody = String.format("QueueServerTest%s é", System.currentTimeMillis());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        producer.close();
+        consumer.close();
+        server.close();
+    }
+
+    @Test
+    public void roundTripTest() throws InterruptedException, IOException {
+        String QUEUE_NAME = BASE_QUEUE_NAME + "RoundTrip";
+        backend.purgeQueue(QUEUE_NAME);
+        producer.pushBatch(QUEUE_NAME, Arrays.asList(messageBody, messageBody + 1, messageBody + 2));
+        assertEquals(3, backend.getQueueSize(QUEUE_NAME));
+        List<Message> messages = consumer.pull(QUEUE_NAME, 2);
+        assertEquals(2, messages.size());
+        assertEquals(messageBody, messages.get(0).getMessageBody());
+        assertEquals(messageBody + 1, messages.get(1).getMessageBody());
+        consumer.deleteBatch(QUEUE_NAME, Arrays.asList(messages.get(0).getReceiptHandle(),
+                messages.get(1).getReceiptHandle()));
+        assertEquals(0, backend.getInvisibleSize(QUEUE_NAME));
+        Message last = consumer.pull(QUEUE_NAME);
+        assertTrue(consumer.changeVisibility(QUEUE_NAME, last.getReceiptHandle(), 1, TimeUnit.MINUTES));
+        consumer.delete(QUEUE_NAME, last.getReceiptHandle());
+        assertFalse(consumer.changeVisibility(QUEUE_NAME, last.getReceiptHandle(), 1, TimeUnit.MINUTES));
+        assertNull(consumer.pull(QUEUE_NAME));
+        assertEquals(3, producer.getMetrics().getQueueMetrics(QUEUE_NAME).getPushCount());
+    }
+
+    @Test(timeout = 5000)
+    public void longPollTest() throws InterruptedException, IOException {
+        String QUEUE_NAME = BASE_QUEUE_NAME + "LongPoll";
+        backend.purgeQueue(QUEUE_NAME);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<Message> waiting = executor.submit(() -> consumer.pull(QUEUE_NAME, 3, TimeUnit.SECONDS));
+        // A waiting long poll does not hold up other requests on the same connection
+        Thread.sleep(100);
+        assertNull(consumer.pull(QUEUE_NAME + "Other"));
+        producer.push(QUEUE_NAME, messageBody);
+        Message message = null;
+        try {
+            message = waiting.get();
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+        executor.shutdown();
+        assertNotNull("Waiting consumer was not woken up", message);
+        assertEquals(messageBody, message.getMessageBody());
+    }
+
+    @Test(timeout = 5000)
+    public void closeTest() throws InterruptedException, IOException {
+        String QUEUE_NAME = BASE_QUEUE_NAME + "Close";
+        backend.purgeQueue(QUEUE_NAME);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<Message> waiting = executor.submit(() -> consumer.pull(QUEUE_NAME, 3, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        server.close();
+        try {
+            waiting.get();
+            fail("A long poll in flight is answered after the server closed");
+        } catch (ExecutionException e) {
+            assertTrue("Closing the server closes its connections", e.getCause() instanceof IOException);
+        }
+        executor.shutdown();
+    }
+
+    @Test
+    public void pipelineTest() throws InterruptedException, IOException {
+        String QUEUE_NAME = BASE_QUEUE_NAME + "Pipeline";
+        backend.purgeQueue(QUEUE_NAME);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        Set<String> pulled = ConcurrentHashMap.newKeySet();
+        List<Future<?>> workers = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            int worker = i;
+            workers.add(executor.submit(() -> {
+                for (int j = 0; j < 100; j++) {
+                    producer.push(QUEUE_NAME, messageBody + worker + "-" + j);
+                }
+                for (Message message : consumer.pull(QUEUE_NAME, 1000)) {
+                    consumer.delete(QUEUE_NAME, message.getReceiptHandle());
+                    assertTrue("Pulled a message twice", pulled.add(message.getMessageBody()));
+                }
+                return null;
+            }));
+        }
+        for (Future<?> worker : workers) {
+            try {
+                worker.get();
+            } catch (Exception e) {
+                throw new AssertionError(e);
+            }
+        }
+        executor.shutdown();
+        for (Message message : consumer.pull(QUEUE_NAME, 1000)) {
+            consumer.delete(QUEUE_NAME, message.getReceiptHandle());
+            pulled.add(message.getMessageBody());
+        }
+        assertEquals(800, pulled.size());
+        assertEquals(0, backend.getInvisibleSize(QUEUE_NAME));
+    }
+}
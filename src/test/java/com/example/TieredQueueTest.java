@@ -0,0 +1,83 @@
+package com.example;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class TieredQueueTest {
+    private final String BASE_QUEUE_NAME = "TieredQueue";
+    private TieredQueueService service;
+    private String messageBody;
+
+    @Before
+    public void setUp() throws IOException {
+        service = new TieredQueueService(Files.createTempDirectory("TieredQueueTest"));
+        messageBody = String.format("TieredQueueTest%s", System.currentTimeMillis());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        service.close();
+    }
+
+    @Test
+    public void spillTest() throws InterruptedException, IOException {
+        String QUEUE_NAME = BASE_QUEUE_NAME + "Spill";
+        service.purgeQueue(QUEUE_NAME);
+        // Room for about ten messages in memory
+        service.setMemoryBudget(10 * new Message(messageBody).estimatedSize(), 1024 * 1024);
+        List<String> bodies = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            bodies.add(messageBody + i);
+        }
+        service.pushBatch(QUEUE_NAME, bodies.subList(0, 5));
+        for (String body : bodies.subList(5, 100)) {
+            service.push(QUEUE_NAME, body);
+        }
+        assertEquals(100, service.getQueueSize(QUEUE_NAME));
+        assertTrue("Nothing was spilled", service.getSpilledSize(QUEUE_NAME) > 0);
+        List<Message> pulled = new ArrayList<>();
+        while (pulled.size() < 100) {
+            List<Message> messages = service.pull(QUEUE_NAME, 7);
+            assertTrue("Queue ran dry with spilled messages", !messages.isEmpty());
+            pulled.addAll(messages);
+        }
+        for (int i = 0; i < 100; i++) {
+            assertEquals("Order is not kept across the tiers", bodies.get(i), pulled.get(i).getMessageBody());
+            service.delete(QUEUE_NAME, pulled.get(i).getReceiptHandle());
+        }
+        assertEquals(0, service.getQueueSize(QUEUE_NAME));
+        assertEquals(0, service.getInvisibleSize(QUEUE_NAME));
+    }
+
+    @Test(timeout = 5000)
+    public void revivalTest() throws InterruptedException, IOException {
+        String QUEUE_NAME = BASE_QUEUE_NAME + "Revival";
+        service.purgeQueue(QUEUE_NAME);
+        service.setDelayMilliSeconds(50L);
+        service.setMemoryBudget(1, 1024 * 1024);
+        service.push(QUEUE_NAME, messageBody);
+        service.push(QUEUE_NAME, messageBody + 1);
+        assertEquals(2, service.getSpilledSize(QUEUE_NAME));
+        Message first = service.pull(QUEUE_NAME);
+        assertEquals(messageBody, first.getMessageBody());
+        while (service.getInvisibleSize(QUEUE_NAME) != 0) {
+            Thread.sleep(10);
+        }
+        // The revived message goes back in front of the spilled one
+        Message revived = service.pull(QUEUE_NAME, 1, TimeUnit.SECONDS);
+        assertNotNull("Timeout message was not revived", revived);
+        assertEquals(first.getReceiptHandle(), revived.getReceiptHandle());
+        assertEquals(messageBody + 1, service.pull(QUEUE_NAME).getMessageBody());
+    }
+}